@@ -0,0 +1,97 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.log4j.aws;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.log4j.Category;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.spi.LoggerRepository;
+
+import com.kdgregory.log4j.aws.internal.shared.AbstractAppender;
+
+
+/**
+ *  Static operations that apply to all of the AWS appenders in the current
+ *  Log4J configuration.
+ */
+public class AWSAppenders
+{
+    private AWSAppenders()
+    {
+        // this class is not intended to be instantiated
+    }
+
+
+    /**
+     *  Flushes every AWS appender attached to a logger (directly or through a
+     *  fan-out) in the current Log4J configuration, in parallel, waiting up to
+     *  the specified number of
+     *  milliseconds for all messages logged so far to be accepted by their
+     *  destinations. Returns <code>true</code> if they were, <code>false</code>
+     *  if the timeout expired. For example, at the end of a batch job:
+     *  <pre>
+     *      if (! AWSAppenders.flushAll(5000))
+     *          System.err.println("some log messages may not have been delivered");
+     *  </pre>
+     */
+    public static boolean flushAll(long timeout)
+    {
+        List<CountDownLatch> latches = new ArrayList<CountDownLatch>();
+        for (AbstractAppender<?> appender : findAppenders())
+        {
+            latches.addAll(appender.requestFlush());
+        }
+        return AbstractAppender.awaitFlush(latches, timeout);
+    }
+
+//----------------------------------------------------------------------------
+//  Internals
+//----------------------------------------------------------------------------
+
+    /**
+     *  Returns all AWS appenders attached to the root logger or any other logger,
+     *  directly or via a {@link FanOutAppender}, without duplicates.
+     */
+    private static List<AbstractAppender<?>> findAppenders()
+    {
+        LoggerRepository repository = LogManager.getLoggerRepository();
+        Set<AbstractAppender<?>> result = Collections.newSetFromMap(new IdentityHashMap<AbstractAppender<?>,Boolean>());
+
+        addAppenders(repository.getRootLogger(), result);
+        for (Enumeration<?> loggers = repository.getCurrentLoggers() ; loggers.hasMoreElements() ; )
+        {
+            addAppenders((Category)loggers.nextElement(), result);
+        }
+
+        return new ArrayList<AbstractAppender<?>>(result);
+    }
+
+
+    private static void addAppenders(Category logger, Set<AbstractAppender<?>> result)
+    {
+        addAppenders(logger.getAllAppenders(), result);
+    }
+
+
+    private static void addAppenders(Enumeration<?> appenders, Set<AbstractAppender<?>> result)
+    {
+        while ((appenders != null) && appenders.hasMoreElements())
+        {
+            Object appender = appenders.nextElement();
+            if (appender instanceof AbstractAppender)
+            {
+                result.add((AbstractAppender<?>)appender);
+            }
+            else if (appender instanceof FanOutAppender)
+            {
+                addAppenders(((FanOutAppender)appender).getAllAppenders(), result);
+            }
+        }
+    }
+}
@@ -2,6 +2,7 @@
 package com.kdgregory.log4j.aws;
 
 import java.util.Date;
+import java.util.regex.Pattern;
 
 import com.kdgregory.log4j.aws.internal.cloudwatch.CloudWatchConstants;
 import com.kdgregory.log4j.aws.internal.cloudwatch.CloudWatchLogWriter;
@@ -26,7 +27,8 @@ public class CloudWatchAppender extends AbstractAppender<CloudWatchWriterConfig>
 	private String region;
 
 	// these variables hold the post-substitution log-group and log-stream names
-	// (mostly useful for testing)
+	// (mostly useful for testing); when routing, each route has its own names,
+	// which are only held in its writer's configuration
 
 	private String actualLogGroup;
 	private String actualLogStream;
@@ -60,6 +62,7 @@ public class CloudWatchAppender extends AbstractAppender<CloudWatchWriterConfig>
 	 */
 	public void setLogGroup(String value) {
 		logGroup = value;
+		Substitutions.prefetch(value);
 	}
 
 	/**
@@ -74,13 +77,15 @@ public class CloudWatchAppender extends AbstractAppender<CloudWatchWriterConfig>
 	 * Sets the CloudWatch Log Stream associated with this appender.
 	 * <p>
 	 * You typically create a separate log stream for each instance of the
-	 * application.
+	 * application. If the appender routes events (see {@link #setRoutingKey}),
+	 * use <code>{route}</code> to give each route its own stream.
 	 * <p>
 	 * Default value is <code>{startTimestamp}</code>, the JVM startup
 	 * timestamp.
 	 */
 	public void setLogStream(String value) {
 		logStream = value;
+		Substitutions.prefetch(value);
 	}
 
 	/**
@@ -111,10 +116,24 @@ public class CloudWatchAppender extends AbstractAppender<CloudWatchWriterConfig>
 
 	@Override
 	protected CloudWatchWriterConfig generateWriterConfig() {
-		Substitutions subs = new Substitutions(new Date(), sequence.get());
-		actualLogGroup = CloudWatchConstants.ALLOWED_NAME_REGEX.matcher(subs.perform(logGroup)).replaceAll("");
-		actualLogStream = CloudWatchConstants.ALLOWED_NAME_REGEX.matcher(subs.perform(logStream)).replaceAll("");
-		return new CloudWatchWriterConfig(actualLogGroup, actualLogStream, batchDelay, discardThreshold, discardAction, accessKey, secretKey, region);
+		return generateWriterConfig(null);
+	}
+
+	@Override
+	protected CloudWatchWriterConfig generateWriterConfig(String route) {
+		Substitutions subs = new Substitutions(new Date(), sequence.get(), route);
+		String group = CloudWatchConstants.ALLOWED_NAME_REGEX.matcher(subs.perform(logGroup)).replaceAll("");
+		String stream = CloudWatchConstants.ALLOWED_NAME_REGEX.matcher(subs.perform(logStream)).replaceAll("");
+		if (route == null) {
+			actualLogGroup = group;
+			actualLogStream = stream;
+		}
+		return new CloudWatchWriterConfig(group, stream, batchDelay, discardThreshold, discardAction, accessKey, secretKey, region, statistics);
+	}
+
+	@Override
+	protected Pattern disallowedRouteCharacters() {
+		return CloudWatchConstants.ALLOWED_NAME_REGEX;
 	}
 
 	@Override
@@ -0,0 +1,192 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.log4j.aws;
+
+import java.util.Enumeration;
+
+import org.apache.log4j.Appender;
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.helpers.AppenderAttachableImpl;
+import org.apache.log4j.spi.AppenderAttachable;
+import org.apache.log4j.spi.LoggingEvent;
+
+import com.kdgregory.log4j.aws.internal.shared.AbstractAppender;
+import com.kdgregory.log4j.aws.internal.shared.AbstractLayout;
+import com.kdgregory.log4j.aws.internal.shared.LogMessage;
+
+
+/**
+ *  Sends each event to multiple appenders, formatting it once. The event is
+ *  formatted with this appender's layout, and the resulting bytes are shared
+ *  by every attached AWS appender: each has its own writer, queue, and discard
+ *  policy, but none of them reformat or copy the message. The bytes become
+ *  garbage once the last writer has sent or discarded them.
+ *  <p>
+ *  Attached appenders still apply their own threshold, filters, and other
+ *  settings (such as rate limits or sampling), and the event is only formatted
+ *  if at least one of them will take it. Their layouts are used only for
+ *  headers, footers, and messages that they hold and write later (such as the
+ *  tail buffer); an attached appender without a layout is given this one.
+ *  Appenders that aren't AWS appenders are called normally.
+ *  <p>
+ *  Attached appenders should not also be attached to a logger, or they'll see
+ *  every event twice. Since Log4J's properties configuration doesn't support
+ *  appender references, this appender must be configured using XML or in code:
+ *  <pre>
+ *      &lt;appender name="fanout" class="com.kdgregory.log4j.aws.FanOutAppender"&gt;
+ *          &lt;layout class="org.apache.log4j.PatternLayout"&gt; ... &lt;/layout&gt;
+ *          &lt;appender-ref ref="cloudwatch" /&gt;
+ *          &lt;appender-ref ref="kinesis" /&gt;
+ *      &lt;/appender&gt;
+ *  </pre>
+ *  Closing this appender closes all attached appenders.
+ */
+public class FanOutAppender
+extends AppenderSkeleton
+implements AppenderAttachable
+{
+    private AppenderAttachableImpl appenders = new AppenderAttachableImpl();
+
+
+//----------------------------------------------------------------------------
+//  AppenderAttachable
+//----------------------------------------------------------------------------
+
+    @Override
+    public synchronized void addAppender(Appender appender)
+    {
+        inheritLayout(appender);
+        appenders.addAppender(appender);
+    }
+
+
+    @Override
+    public synchronized Enumeration<?> getAllAppenders()
+    {
+        return appenders.getAllAppenders();
+    }
+
+
+    @Override
+    public synchronized Appender getAppender(String name)
+    {
+        return appenders.getAppender(name);
+    }
+
+
+    @Override
+    public synchronized boolean isAttached(Appender appender)
+    {
+        return appenders.isAttached(appender);
+    }
+
+
+    @Override
+    public synchronized void removeAllAppenders()
+    {
+        appenders.removeAllAppenders();
+    }
+
+
+    @Override
+    public synchronized void removeAppender(Appender appender)
+    {
+        appenders.removeAppender(appender);
+    }
+
+
+    @Override
+    public synchronized void removeAppender(String name)
+    {
+        appenders.removeAppender(name);
+    }
+
+//----------------------------------------------------------------------------
+//  Appender
+//----------------------------------------------------------------------------
+
+    @Override
+    public synchronized void activateOptions()
+    {
+        for (Enumeration<?> en = appenders.getAllAppenders() ; (en != null) && en.hasMoreElements() ; )
+        {
+            inheritLayout((Appender)en.nextElement());
+        }
+    }
+
+
+    @Override
+    public boolean requiresLayout()
+    {
+        return true;
+    }
+
+
+    @Override
+    protected void append(LoggingEvent event)
+    {
+        // called from doAppend(), which is synchronized, so we have exclusive access to the list
+        LogMessage message = null;
+        if (layout != null)
+        {
+            for (Enumeration<?> en = appenders.getAllAppenders() ; (en != null) && en.hasMoreElements() ; )
+            {
+                Object appender = en.nextElement();
+                if ((appender instanceof AbstractAppender) && ((AbstractAppender<?>)appender).wouldAccept(event))
+                {
+                    message = LogMessage.create(event, layout);
+                    if (message == null)
+                        return;
+                    break;
+                }
+            }
+        }
+
+        // appenders that won't take the event still see it, so that they can
+        // count it as discarded (or report that they're closed)
+        for (Enumeration<?> en = appenders.getAllAppenders() ; (en != null) && en.hasMoreElements() ; )
+        {
+            Appender appender = (Appender)en.nextElement();
+            if ((appender instanceof AbstractAppender) && (layout != null))
+            {
+                ((AbstractAppender<?>)appender).appendFormatted(event, message);
+            }
+            else
+            {
+                appender.doAppend(event);
+            }
+        }
+    }
+
+
+    @Override
+    public synchronized void close()
+    {
+        if (closed)
+            return;
+
+        closed = true;
+        for (Enumeration<?> en = appenders.getAllAppenders() ; (en != null) && en.hasMoreElements() ; )
+        {
+            ((Appender)en.nextElement()).close();
+        }
+    }
+
+//----------------------------------------------------------------------------
+//  Internals
+//----------------------------------------------------------------------------
+
+    private void inheritLayout(Appender appender)
+    {
+        if ((layout != null) && (appender.getLayout() == null) && appender.requiresLayout())
+        {
+            appender.setLayout(layout);
+        }
+
+        // a routing appender splits the events that we format between destinations
+        if ((layout instanceof AbstractLayout) && (appender instanceof AbstractAppender)
+            && (((AbstractAppender<?>)appender).getRoutingKey() != null))
+        {
+            ((AbstractLayout)layout).prepareForRouting();
+        }
+    }
+}
@@ -1,16 +1,23 @@
 // Copyright (c) Keith D Gregory, all rights reserved
 package com.kdgregory.log4j.aws;
 
-import java.util.Date;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
-import org.apache.log4j.Layout;
-import org.apache.log4j.spi.LocationInfo;
+import org.apache.log4j.helpers.LogLog;
 import org.apache.log4j.spi.LoggingEvent;
 
-import com.kdgregory.log4j.aws.internal.shared.JsonConverter;
-import com.kdgregory.log4j.aws.internal.shared.Substitutions;
+import com.kdgregory.log4j.aws.internal.shared.AbstractLayout;
+import com.kdgregory.log4j.aws.internal.shared.BinaryLayout;
+import com.kdgregory.log4j.aws.internal.shared.InstanceMetadata;
+import com.kdgregory.log4j.aws.internal.shared.JsonWriter;
+import com.kdgregory.log4j.aws.internal.shared.LRUCache;
+import com.kdgregory.log4j.aws.internal.shared.ThrowableCache;
 
 
 /**
@@ -24,7 +31,8 @@ import com.kdgregory.log4j.aws.internal.shared.Substitutions;
  *  <li> <code>thread</code>:       the name of the thread where the message was logged.
  *  <li> <code>logger</code>:       the name of the logger.
  *  <li> <code>level</code>:        the level of this log message.
- *  <li> <code>message</code>:      the message itself.
+ *  <li> <code>message</code>:      the message itself (omitted if the message is a
+ *                                  <code>Map</code>; see <code>data</code>, below).
  *  <li> <code>processId</code>:    the PID of the invoking process, if available (this is
  *                                  retrieved from <code>RuntimeMxBean</code> and may not be
  *                                  available on all platforms).
@@ -32,11 +40,17 @@ import com.kdgregory.log4j.aws.internal.shared.Substitutions;
  *  <p>
  *  The following properties will only appear if they are present in the event:
  *  <ul>
+ *  <li> <code>data</code>:         the values from a {@link StructuredMessage}, or the
+ *                                  message itself if it's a <code>Map</code>. This is
+ *                                  a child object, and its values are converted directly
+ *                                  (not via the message's string representation).
  *  <li> <code>exception</code>:    the stack trace of an associated exception. This
  *                                  is exposed as an array of strings, with the first
  *                                  element being the location where the exception
  *                                  was caught.
  *  <li> <code>mdc</code>:          the mapped diagnostic context. This is a child map.
+ *                                  Each thread's most recent encoding is reused while
+ *                                  the MDC's contents are unchanged.
  *  <li> <code>ndc</code>:          the nested diagnostic context. This is a single
  *                                  string that contains each of the pushed entries
  *                                  separated by spaces (yes, that's how Log4J does it).
@@ -53,9 +67,12 @@ import com.kdgregory.log4j.aws.internal.shared.Substitutions;
  *                                  <li> <code>fileName</code>
  *                                  <li> <code>lineNumber</code>
  *                                  </ul>
+ *                                  Location still requires capturing the stack, but the
+ *                                  formatted object is cached for each call site.
  *  <li> <code>instanceId</code>:   the EC2 instance ID of the machine where the logger is
- *                                  running. WARNING: do not enable this elsewhere, as the
- *                                  operation to retrieve this value may take a long time.
+ *                                  running. When not running on EC2 this is omitted, after
+ *                                  a delay of up to one second; if the lookup takes longer,
+ *                                  it's added when it completes. See {@link InstanceMetadata}.
  *  <li> <code>hostname</code>:     the name of the machine where the logger is running, if
  *                                  available (this is currently retrieved from
  *                                  <code>RuntimeMxBean</code> and may not be available on
@@ -68,24 +85,78 @@ import com.kdgregory.log4j.aws.internal.shared.Substitutions;
  *  as a single comma-separate string, which may contain substitution values (example:
  *  <code>appName=Fribble,startedAt={startupTimestamp}</code>).
  *  <p>
+ *  Exceptions can be made more compact with the following properties:
+ *  <ul>
+ *  <li> <code>stackTraceFilter</code>:     a comma-separated list of package (or class)
+ *                                          prefixes; matching stack frames are replaced by
+ *                                          a line giving the number of frames removed.
+ *  <li> <code>stackTraceMaxFrames</code>:  the maximum number of frames written for the
+ *                                          exception and each of its causes; remaining
+ *                                          frames are replaced by a line giving their
+ *                                          number.
+ *  <li> <code>exceptionReferenceInterval</code>: if positive, each event with an exception
+ *                                          also has an <code>exceptionHash</code>, which
+ *                                          identifies the (possibly compacted) trace. The
+ *                                          full trace is written only once per interval
+ *                                          (in milliseconds) for a given hash; other
+ *                                          events just have the hash. This is tracked
+ *                                          by the layout, not per destination, so it's
+ *                                          disabled (with a warning) if the layout is
+ *                                          used by a routing appender.
+ *  </ul>
+ *  <p>
  *  WARNING: you should not rely on the order in which elements are output. Any apparent
  *  ordering is an implementation choice and subject to change without notice.
+ *  <p>
+ *  The appenders in this library don't call <code>format()</code>: the JSON is written
+ *  directly as UTF-8 bytes, via {@link BinaryLayout}.
  */
 public class JsonLayout
-extends Layout
+extends AbstractLayout
 {
-    // if enabled and supported, these will be not-null
-    private String processId;
-    private String hostname;
-    private String instanceId;
-    private Map<String,String> tags;
-
-    private ThreadLocal<JsonConverter> converterTL = new ThreadLocal<JsonConverter>()
+    // keys are encoded once, rather than escaped for every event
+    private final static byte[] KEY_DATA            = JsonWriter.encode("data");
+    private final static byte[] KEY_EXCEPTION       = JsonWriter.encode("exception");
+    private final static byte[] KEY_EXCEPTION_HASH  = JsonWriter.encode("exceptionHash");
+    private final static byte[] KEY_LEVEL           = JsonWriter.encode("level");
+    private final static byte[] KEY_LOCATION        = JsonWriter.encode("locationInfo");
+    private final static byte[] KEY_CLASSNAME       = JsonWriter.encode("className");
+    private final static byte[] KEY_FILENAME        = JsonWriter.encode("fileName");
+    private final static byte[] KEY_LINENUMBER      = JsonWriter.encode("lineNumber");
+    private final static byte[] KEY_METHODNAME      = JsonWriter.encode("methodName");
+    private final static byte[] KEY_LOGGER          = JsonWriter.encode("logger");
+    private final static byte[] KEY_MDC             = JsonWriter.encode("mdc");
+    private final static byte[] KEY_MESSAGE         = JsonWriter.encode("message");
+    private final static byte[] KEY_NDC             = JsonWriter.encode("ndc");
+    private final static byte[] KEY_THREAD          = JsonWriter.encode("thread");
+    private final static byte[] KEY_TIMESTAMP       = JsonWriter.encode("timestamp");
+
+    // exceptions are much larger than names, so we remember fewer of them
+    private final static int MAX_CACHED_EXCEPTIONS = 256;
+
+    // the static values don't change after activation, so are encoded once;
+    // each fragment holds the properties that are adjacent in the output, and
+    // will be null if none of those properties are present
+    private volatile byte[] hostFragment;
+    private volatile byte[] processFragment;
+
+    // level names repeat from event to event, so we remember their encoding
+    private ConcurrentHashMap<String,byte[]> levelCache = new ConcurrentHashMap<String,byte[]>();
+
+    // exceptions, compacted and encoded
+    private LRUCache<ThrowableCache.Key,EncodedException> exceptionCache = new LRUCache<ThrowableCache.Key,EncodedException>(MAX_CACHED_EXCEPTIONS);
+    private String[] stackTraceFilterPrefixes;
+
+    // the MDC usually stays the same for many events on a thread (for example, a
+    // request ID), so each thread remembers the encoding of its most recent MDC
+    private ThreadLocal<EncodedMdc> mdcTL = new ThreadLocal<EncodedMdc>();
+
+    private ThreadLocal<JsonWriter> writerTL = new ThreadLocal<JsonWriter>()
     {
         @Override
-        protected JsonConverter initialValue()
+        protected JsonWriter initialValue()
         {
-            return new JsonConverter();
+            return new JsonWriter();
         }
     };
 
@@ -93,148 +164,414 @@ extends Layout
 //  Configuration
 //----------------------------------------------------------------------------
 
-    private boolean enableLocation;
-    private boolean enableHostname;
-    private boolean enableInstanceId;
-    private String rawTags;
+    private String stackTraceFilter;
+    private int stackTraceMaxFrames;
+    private long exceptionReferenceInterval;
 
 
-    public void setEnableLocation(boolean value)
+    public void setStackTraceFilter(String value)
     {
-        enableLocation = value;
+        stackTraceFilter = value;
     }
 
 
-    public boolean getEnableLocation()
+    public String getStackTraceFilter()
     {
-        return enableLocation;
+        return stackTraceFilter;
     }
 
 
-    public void setEnableInstanceId(boolean value)
+    public void setStackTraceMaxFrames(int value)
     {
-        enableInstanceId = value;
+        stackTraceMaxFrames = value;
     }
 
 
-    public boolean getEnableInstanceId()
+    public int getStackTraceMaxFrames()
     {
-        return enableInstanceId;
+        return stackTraceMaxFrames;
     }
 
 
-    public void setEnableHostname(boolean value)
+    public void setExceptionReferenceInterval(long value)
     {
-        enableHostname = value;
+        exceptionReferenceInterval = value;
     }
 
 
-    public boolean getEnableHostname()
+    public long getExceptionReferenceInterval()
     {
-        return enableHostname;
+        return exceptionReferenceInterval;
     }
 
 
-    public void setTags(String value)
+//----------------------------------------------------------------------------
+//  Layout Overrides
+//----------------------------------------------------------------------------
+
+    @Override
+    public void activateOptions()
     {
-        rawTags = value;
+        super.activateOptions();
+
+        stackTraceFilterPrefixes = null;
+        if ((stackTraceFilter != null) && ! stackTraceFilter.trim().isEmpty())
+        {
+            List<String> prefixes = new ArrayList<String>();
+            for (String prefix : stackTraceFilter.split(","))
+            {
+                if (! prefix.trim().isEmpty())
+                    prefixes.add(prefix.trim());
+            }
+            stackTraceFilterPrefixes = prefixes.toArray(new String[prefixes.size()]);
+        }
     }
 
 
-    public String getTags()
+    /**
+     *  Disables exception references: a route might only see the hash for a
+     *  trace whose full form was written to another route.
+     */
+    @Override
+    public void prepareForRouting()
     {
-        return rawTags;
+        if (exceptionReferenceInterval > 0)
+        {
+            LogLog.warn("exceptionReferenceInterval can't be used with routing; disabled");
+            exceptionReferenceInterval = 0;
+        }
     }
 
 
-//----------------------------------------------------------------------------
-//  Layout Overrides
-//----------------------------------------------------------------------------
+    @Override
+    protected void encodeStaticContent()
+    {
+        JsonWriter fragmentWriter = new JsonWriter();
+        if (hostname != null)   fragmentWriter.key("hostname").value(hostname);
+        if (instanceId != null) fragmentWriter.key("instanceId").value(instanceId);
+        hostFragment = (fragmentWriter.size() > 0) ? fragmentWriter.toByteArray() : null;
+
+        fragmentWriter.reset();
+        if (processId != null)  fragmentWriter.key("processId").value(processId);
+        if (tags != null)       fragmentWriter.key("tags").map(tags);
+        processFragment = (fragmentWriter.size() > 0) ? fragmentWriter.toByteArray() : null;
+    }
+
 
     @Override
-    public void activateOptions()
+    public String format(LoggingEvent event)
+    {
+        try
+        {
+            return new String(formatAsBytes(event), "UTF-8");
+        }
+        catch (UnsupportedEncodingException ex)
+        {
+            throw new RuntimeException("caught UnsupportedEncodingException for UTF-8; should never happen!");
+        }
+    }
+
+
+    /**
+     *  Writes the event as UTF-8 JSON. Keys are written in alphabetical order,
+     *  which matches the output of earlier versions that built a sorted map.
+     */
+    @Override
+    public byte[] formatAsBytes(LoggingEvent event)
     {
-        Substitutions subs = new Substitutions(new Date(), 0);
+        refreshInstanceId();
+        byte[] hostFragment = this.hostFragment;
 
-        processId = subs.perform("{pid}");
-        if ("unknown".equals(processId))
-            processId = null;
+        JsonWriter out = writerTL.get().reset();
+        out.beginObject();
 
-        if (enableHostname)
+        Map<?,?> data = StructuredMessage.dataFor(event);
+        if (data != null)
         {
-            hostname = subs.perform("{hostname}");
-            if ("unknown".equals(hostname))
-                hostname = null;
+            out.key(KEY_DATA).map(data);
         }
 
-        if (enableInstanceId)
+        if (event.getThrowableInformation() != null)
         {
-            instanceId = subs.perform("{instanceId}");
-            if ("{instanceId}".equals(instanceId))
-                instanceId = null;
+            writeException(out, event);
         }
 
-        if ((rawTags != null) && !rawTags.isEmpty())
+        if (hostFragment != null)   out.fragment(hostFragment);
+
+        out.key(KEY_LEVEL).fragment(cachedEncoding(levelCache, event.getLevel().toString()));
+
+        if (enableLocation)
         {
-            tags = new TreeMap<String,String>();
-            for (String tagdef : rawTags.split(","))
+            out.key(KEY_LOCATION).fragment(encodedLocation(event));
+        }
+
+        out.key(KEY_LOGGER).fragment(encodedLoggerName(event.getLoggerName()));
+
+        Map<?,?> mdc = event.getProperties();
+        if ((mdc != null) && ! mdc.isEmpty())
+        {
+            out.key(KEY_MDC).fragment(encodedMdc(mdc));
+        }
+
+        if (StructuredMessage.hasText(event))
+        {
+            out.key(KEY_MESSAGE).value(StructuredMessage.textFor(event));
+        }
+
+        String ndc = event.getNDC();
+        if (ndc != null)                out.key(KEY_NDC).value(ndc);
+        if (processFragment != null)    out.fragment(processFragment);
+
+        out.key(KEY_THREAD).value(event.getThreadName());
+        out.key(KEY_TIMESTAMP).timestamp(event.getTimeStamp());
+
+        out.endObject();
+        return out.toByteArray();
+    }
+
+
+//----------------------------------------------------------------------------
+//  Internals
+//----------------------------------------------------------------------------
+
+    /**
+     *  Writes the event's exception (and/or its hash), using the cached encoding
+     *  if available.
+     */
+    private void writeException(JsonWriter out, LoggingEvent event)
+    {
+        ThrowableCache.Key key = ThrowableCache.keyFor(event);
+        EncodedException encoded = (key != null) ? exceptionCache.get(key) : null;
+        if (encoded == null)
+        {
+            String[] rep = (key != null)
+                         ? ThrowableCache.getThrowableStrRep(event, key)
+                         : event.getThrowableStrRep();
+            encoded = new EncodedException(compactStackTrace(rep));
+            if (key != null)
             {
-                String[] splitdef = tagdef.split("=");
-                if (splitdef.length == 2)
+                exceptionCache.put(key, encoded);
+            }
+        }
+
+        if (exceptionReferenceInterval <= 0)
+        {
+            out.key(KEY_EXCEPTION).fragment(encoded.json);
+            return;
+        }
+
+        if (encoded.claimFullWrite(System.currentTimeMillis(), exceptionReferenceInterval))
+        {
+            out.key(KEY_EXCEPTION).fragment(encoded.json);
+        }
+        out.key(KEY_EXCEPTION_HASH).fragment(encoded.hash);
+    }
+
+
+    /**
+     *  Applies the configured filter and frame limit to a rendered stack trace.
+     *  Frame lines start with "\tat "; any line that doesn't start with a tab
+     *  begins a new exception (the original or a cause).
+     */
+    private String[] compactStackTrace(String[] lines)
+    {
+        if ((stackTraceFilterPrefixes == null) && (stackTraceMaxFrames <= 0))
+            return lines;
+
+        List<String> result = new ArrayList<String>(lines.length);
+        int keptFrames = 0;
+        int filteredFrames = 0;
+        int omittedFrames = 0;
+        for (String line : lines)
+        {
+            if (line.startsWith("\tat "))
+            {
+                if (isFilteredFrame(line))
+                {
+                    filteredFrames++;
+                }
+                else if ((stackTraceMaxFrames > 0) && (keptFrames >= stackTraceMaxFrames))
                 {
-                    tags.put(splitdef[0], subs.perform(splitdef[1]));
+                    omittedFrames++;
                 }
                 else
                 {
-                    throw new IllegalArgumentException("invalid tag definition: " + tagdef);
+                    addCompactionMarkers(result, filteredFrames, 0);
+                    filteredFrames = 0;
+                    keptFrames++;
+                    result.add(line);
                 }
             }
+            else
+            {
+                addCompactionMarkers(result, filteredFrames, omittedFrames);
+                filteredFrames = 0;
+                omittedFrames = 0;
+                if (! line.startsWith("\t"))
+                {
+                    keptFrames = 0;
+                }
+                result.add(line);
+            }
         }
+        addCompactionMarkers(result, filteredFrames, omittedFrames);
+        return result.toArray(new String[result.size()]);
     }
 
 
-    @Override
-    public String format(LoggingEvent event)
+    private boolean isFilteredFrame(String line)
     {
-        Map<String,Object> map = new TreeMap<String,Object>();
-        map.put("timestamp",    new Date(event.getTimeStamp()));
-        map.put("thread",       event.getThreadName());
-        map.put("logger",       event.getLogger().getName());
-        map.put("level",        event.getLevel().toString());
-        map.put("message",      event.getRenderedMessage());
+        if (stackTraceFilterPrefixes == null)
+            return false;
 
-        if (event.getThrowableStrRep() != null) map.put("exception",    event.getThrowableStrRep());
-        if (event.getNDC() != null)             map.put("ndc",          event.getNDC());
-        if (tags != null)                       map.put("tags",         tags);
-
-        if ((event.getProperties() != null) && ! event.getProperties().isEmpty())
+        for (String prefix : stackTraceFilterPrefixes)
         {
-            map.put("mdc", event.getProperties());
+            if (line.startsWith(prefix, 4))
+                return true;
         }
+        return false;
+    }
 
 
-        if (processId != null)  map.put("processId", processId);
-        if (hostname != null)   map.put("hostname", hostname);
-        if (instanceId != null) map.put("instanceId", instanceId);
+    private static void addCompactionMarkers(List<String> lines, int filteredFrames, int omittedFrames)
+    {
+        if (filteredFrames > 0)
+            lines.add("\t... " + filteredFrames + " filtered");
+        if (omittedFrames > 0)
+            lines.add("\t... " + omittedFrames + " omitted");
+    }
 
-        if (enableLocation)
+
+    @Override
+    protected byte[] encodeString(String value)
+    {
+        return JsonWriter.encode(value);
+    }
+
+
+    @Override
+    protected byte[] encodeLocation(String className, String fileName, String lineNumber, String methodName)
+    {
+        return new JsonWriter()
+               .beginObject()
+               .key(KEY_CLASSNAME).value(className)
+               .key(KEY_FILENAME).value(fileName)
+               .key(KEY_LINENUMBER).value(lineNumber)
+               .key(KEY_METHODNAME).value(methodName)
+               .endObject()
+               .toByteArray();
+    }
+
+
+    /**
+     *  Returns the encoded MDC, reusing this thread's previous encoding if the
+     *  contents haven't changed. The comparison is against the event's copy of
+     *  the MDC, so is correct even if the event was created on another thread.
+     */
+    private byte[] encodedMdc(Map<?,?> mdc)
+    {
+        EncodedMdc cached = mdcTL.get();
+        if ((cached != null) && cached.matches(mdc))
+            return cached.json;
+
+        EncodedMdc encoded = new EncodedMdc(mdc);
+        mdcTL.set(encoded.isCacheable() ? encoded : null);
+        return encoded.json;
+    }
+
+
+//----------------------------------------------------------------------------
+//  Helper classes
+//----------------------------------------------------------------------------
+
+    /**
+     *  Holds the encoded form of an MDC, along with a snapshot of its contents
+     *  that's used to determine whether a later MDC is the same. Only MDCs that
+     *  contain only strings are cacheable: other objects could change without
+     *  a change to the MDC itself.
+     */
+    private static class EncodedMdc
+    {
+        public final byte[] json;
+        private Map<Object,Object> snapshot;
+
+        public EncodedMdc(Map<?,?> mdc)
+        {
+            json = new JsonWriter().map(mdc).toByteArray();
+            for (Object value : mdc.values())
+            {
+                if (! (value instanceof String))
+                    return;
+            }
+            snapshot = new HashMap<Object,Object>(mdc);
+        }
+
+        public boolean isCacheable()
         {
-            LocationInfo info = event.getLocationInformation();
-            Map<String,Object> location = new TreeMap<String,Object>();
-            location.put("className",  info.getClassName());
-            location.put("methodName", info.getMethodName());
-            location.put("fileName",   info.getFileName());
-            location.put("lineNumber", info.getLineNumber());
-            map.put("locationInfo", location);
+            return snapshot != null;
         }
 
-        return converterTL.get().convert(map);
+        /**
+         *  Determines whether the passed MDC has the same contents as the one used
+         *  to create this object. Values are almost always the same instances, so
+         *  we compare identity before equality.
+         */
+        public boolean matches(Map<?,?> mdc)
+        {
+            if (mdc.size() != snapshot.size())
+                return false;
+
+            for (Map.Entry<?,?> entry : mdc.entrySet())
+            {
+                Object value = entry.getValue();
+                Object cachedValue = snapshot.get(entry.getKey());
+                if ((value != cachedValue) && ((value == null) || ! value.equals(cachedValue)))
+                    return false;
+            }
+            return true;
+        }
     }
 
 
-    @Override
-    public boolean ignoresThrowable()
+    /**
+     *  Holds the encoded form of an exception, along with its hash and the last
+     *  time that it was written in full.
+     */
+    private static class EncodedException
     {
-        return false;
+        public final byte[] json;
+        public final byte[] hash;
+        private AtomicLong lastFullWrite = new AtomicLong(Long.MIN_VALUE);
+
+        public EncodedException(String[] lines)
+        {
+            JsonWriter writer = new JsonWriter().beginArray();
+            for (String line : lines)
+            {
+                writer.value(line);
+            }
+            json = writer.endArray().toByteArray();
+
+            // 64-bit FNV-1a over the encoded trace: cheap, the same in every JVM,
+            // and wide enough that collisions aren't a practical concern
+            long hashValue = 0xcbf29ce484222325L;
+            for (byte b : json)
+            {
+                hashValue ^= (b & 0xFF);
+                hashValue *= 0x100000001b3L;
+            }
+            hash = JsonWriter.encode(String.format("%016x", hashValue));
+        }
+
+        /**
+         *  Returns true if the caller should write the full trace, false if it has
+         *  been written within the interval.
+         */
+        public boolean claimFullWrite(long now, long interval)
+        {
+            long last = lastFullWrite.get();
+            return ((last == Long.MIN_VALUE) || (now - last >= interval))
+                && lastFullWrite.compareAndSet(last, now);
+        }
     }
 }
@@ -3,6 +3,7 @@ package com.kdgregory.log4j.aws;
 
 import java.io.UnsupportedEncodingException;
 import java.util.Date;
+import java.util.regex.Pattern;
 
 import com.kdgregory.log4j.aws.internal.kinesis.KinesisConstants;
 import com.kdgregory.log4j.aws.internal.kinesis.KinesisLogWriter;
@@ -28,13 +29,18 @@ public class KinesisAppender extends AbstractAppender<KinesisWriterConfig>
     private Integer         retentionPeriod;    // we only set if not null
 
     // these variables hold the post-substitution log-group and log-stream names
-    // (held here for testing, as they're passed to the writer for use)
+    // (held here for testing, as they're passed to the writer for use); when
+    // routing, each route has its own names, held only in its writer's config
 
     private String          actualStreamName;
     private String          actualPartitionKey;
 
-    // the length of the actual partition key, after being converted to UTF-8
-    private int             partitionKeyLength;
+    // set once a writer has been configured, after which the names are fixed
+    private volatile boolean configured;
+
+    // the length of the actual partition key, after being converted to UTF-8;
+    // when routing, the longest of any route's key
+    private volatile int    partitionKeyLength;
 
 
     /**
@@ -62,7 +68,9 @@ public class KinesisAppender extends AbstractAppender<KinesisWriterConfig>
 //----------------------------------------------------------------------------
 
     /**
-     *  Sets the Kinesis Stream name associated with this appender.
+     *  Sets the Kinesis Stream name associated with this appender. If the
+     *  appender routes events (see {@link #setRoutingKey}), use <code>{route}</code>
+     *  to give each route its own stream.
      *  <p>
      *  This property is intended for initial configuration only. Once messages
      *  have been sent to the appender, it cannot be changed.
@@ -72,12 +80,13 @@ public class KinesisAppender extends AbstractAppender<KinesisWriterConfig>
      */
     public void setStreamName(String value)
     {
-        if (actualStreamName != null)
+        if (configured)
         {
             throw new IllegalArgumentException("appender cannot be reconfigured after processing messages");
         }
 
         streamName = value;
+        Substitutions.prefetch(value);
     }
 
 
@@ -103,12 +112,13 @@ public class KinesisAppender extends AbstractAppender<KinesisWriterConfig>
      */
     public void setPartitionKey(String value)
     {
-        if (actualStreamName != null)
+        if (configured)
         {
             throw new IllegalArgumentException("appender cannot be reconfigured after processing messages");
         }
 
         partitionKey = value;
+        Substitutions.prefetch(value);
     }
 
 
@@ -183,22 +193,49 @@ public class KinesisAppender extends AbstractAppender<KinesisWriterConfig>
     @Override
     protected KinesisWriterConfig generateWriterConfig()
     {
-        Substitutions subs = new Substitutions(new Date(), sequence.get());
-        actualStreamName  = KinesisConstants.ALLOWED_NAME_REGEX.matcher(subs.perform(streamName)).replaceAll("");
-        actualPartitionKey  = KinesisConstants.ALLOWED_NAME_REGEX.matcher(subs.perform(partitionKey)).replaceAll("");
+        return generateWriterConfig(null);
+    }
+
+
+    @Override
+    protected KinesisWriterConfig generateWriterConfig(String route)
+    {
+        Substitutions subs = new Substitutions(new Date(), sequence.get(), route);
+        String stream = KinesisConstants.ALLOWED_NAME_REGEX.matcher(subs.perform(streamName)).replaceAll("");
+        String key = KinesisConstants.ALLOWED_NAME_REGEX.matcher(subs.perform(partitionKey)).replaceAll("");
 
+        int keyLength;
         try
         {
-            partitionKeyLength = actualPartitionKey.getBytes("UTF-8").length;
+            keyLength = key.getBytes("UTF-8").length;
         }
         catch (UnsupportedEncodingException ex)
         {
             throw new RuntimeException("JVM doesn't support UTF-8 (should never happen)");
         }
 
-        return new KinesisWriterConfig(actualStreamName, shardCount, retentionPeriod,
-                                       actualPartitionKey, partitionKeyLength, batchDelay,
-                                       discardThreshold, discardAction);
+        configured = true;
+        if (route == null)
+        {
+            actualStreamName = stream;
+            actualPartitionKey = key;
+            partitionKeyLength = keyLength;
+        }
+        else if (keyLength > partitionKeyLength)
+        {
+            partitionKeyLength = keyLength;
+        }
+
+        return new KinesisWriterConfig(stream, shardCount, retentionPeriod,
+                                       key, keyLength, batchDelay,
+                                       discardThreshold, discardAction, statistics);
+    }
+
+
+    @Override
+    protected Pattern disallowedRouteCharacters()
+    {
+        return KinesisConstants.ALLOWED_NAME_REGEX;
     }
 
 
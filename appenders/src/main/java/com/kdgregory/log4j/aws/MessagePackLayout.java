@@ -0,0 +1,236 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.log4j.aws;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Map;
+
+import org.apache.log4j.spi.LoggingEvent;
+
+import com.kdgregory.log4j.aws.internal.shared.AbstractLayout;
+import com.kdgregory.log4j.aws.internal.shared.BinaryLayout;
+import com.kdgregory.log4j.aws.internal.shared.MessagePackWriter;
+import com.kdgregory.log4j.aws.internal.shared.ThrowableCache;
+
+
+/**
+ *  Formats a LogMessage as a <a href="https://msgpack.org/">MessagePack</a> map.
+ *  This is intended for Kinesis streams where the consumers are programs: it's
+ *  smaller than JSON, and faster to parse.
+ *  <p>
+ *  The map has the same keys and configuration as {@link JsonLayout} (except
+ *  for the exception compaction properties), with the following differences
+ *  in values:
+ *  <ul>
+ *  <li> <code>timestamp</code>:    milliseconds since the epoch, always written as
+ *                                  a 64-bit signed integer.
+ *  <li> <code>level</code>:        a small integer: Log4J's numeric level divided by
+ *                                  1000 (TRACE = 5, DEBUG = 10, INFO = 20, WARN = 30,
+ *                                  ERROR = 40, FATAL = 50).
+ *  </ul>
+ *  <p>
+ *  {@link com.kdgregory.log4j.aws.internal.shared.MessagePackReader} will decode
+ *  the output into Java objects.
+ *  <p>
+ *  The appenders in this library don't call <code>format()</code>: the bytes are
+ *  written directly, via {@link BinaryLayout}. If you use this layout with another
+ *  appender, <code>format()</code> returns a string with one character per byte
+ *  (ie, the bytes decoded as ISO-8859-1), which must be written using the same
+ *  encoding.
+ *  <p>
+ *  Do not use this layout with <code>CloudWatchAppender</code>: CloudWatch
+ *  requires messages to be valid UTF-8 text.
+ */
+public class MessagePackLayout
+extends AbstractLayout
+{
+    private final static byte[] KEY_DATA            = MessagePackWriter.encode("data");
+    private final static byte[] KEY_EXCEPTION       = MessagePackWriter.encode("exception");
+    private final static byte[] KEY_LEVEL           = MessagePackWriter.encode("level");
+    private final static byte[] KEY_LOCATION        = MessagePackWriter.encode("locationInfo");
+    private final static byte[] KEY_CLASSNAME       = MessagePackWriter.encode("className");
+    private final static byte[] KEY_FILENAME        = MessagePackWriter.encode("fileName");
+    private final static byte[] KEY_LINENUMBER      = MessagePackWriter.encode("lineNumber");
+    private final static byte[] KEY_METHODNAME      = MessagePackWriter.encode("methodName");
+    private final static byte[] KEY_LOGGER          = MessagePackWriter.encode("logger");
+    private final static byte[] KEY_MDC             = MessagePackWriter.encode("mdc");
+    private final static byte[] KEY_MESSAGE         = MessagePackWriter.encode("message");
+    private final static byte[] KEY_NDC             = MessagePackWriter.encode("ndc");
+    private final static byte[] KEY_THREAD          = MessagePackWriter.encode("thread");
+    private final static byte[] KEY_TIMESTAMP       = MessagePackWriter.encode("timestamp");
+
+    // the static values don't change after activation, so are encoded once;
+    // each fragment holds the key-value pairs that are adjacent in the output
+    private volatile Fragment hostFragment;
+    private volatile Fragment processFragment;
+
+    private ThreadLocal<MessagePackWriter> writerTL = new ThreadLocal<MessagePackWriter>()
+    {
+        @Override
+        protected MessagePackWriter initialValue()
+        {
+            return new MessagePackWriter();
+        }
+    };
+
+//----------------------------------------------------------------------------
+//  Layout Overrides
+//----------------------------------------------------------------------------
+
+    @Override
+    protected void encodeStaticContent()
+    {
+        MessagePackWriter fragmentWriter = new MessagePackWriter();
+        int hostCount = 0;
+        if (hostname != null)
+        {
+            fragmentWriter.value("hostname").value(hostname);
+            hostCount++;
+        }
+        if (instanceId != null)
+        {
+            fragmentWriter.value("instanceId").value(instanceId);
+            hostCount++;
+        }
+        hostFragment = new Fragment(fragmentWriter.toByteArray(), hostCount);
+
+        fragmentWriter.reset();
+        int processCount = 0;
+        if (processId != null)
+        {
+            fragmentWriter.value("processId").value(processId);
+            processCount++;
+        }
+        if (tags != null)
+        {
+            fragmentWriter.value("tags").map(tags);
+            processCount++;
+        }
+        processFragment = new Fragment(fragmentWriter.toByteArray(), processCount);
+    }
+
+
+    @Override
+    public String format(LoggingEvent event)
+    {
+        try
+        {
+            return new String(formatAsBytes(event), "ISO-8859-1");
+        }
+        catch (UnsupportedEncodingException ex)
+        {
+            throw new RuntimeException("caught UnsupportedEncodingException for ISO-8859-1; should never happen!");
+        }
+    }
+
+
+    /**
+     *  Writes the event as a MessagePack map. Keys are written in the same order
+     *  as <code>JsonLayout</code>.
+     */
+    @Override
+    public byte[] formatAsBytes(LoggingEvent event)
+    {
+        refreshInstanceId();
+        Fragment hostFragment = this.hostFragment;
+        Fragment processFragment = this.processFragment;
+
+        String[] exception = (event.getThrowableInformation() != null)
+                           ? ThrowableCache.getThrowableStrRep(event)
+                           : null;
+        Map<?,?> mdc = event.getProperties();
+        if ((mdc != null) && mdc.isEmpty())
+            mdc = null;
+        String ndc = event.getNDC();
+        Map<?,?> data = StructuredMessage.dataFor(event);
+        boolean hasText = StructuredMessage.hasText(event);
+
+        // level, logger, thread, and timestamp are always present
+        int numEntries = 4 + hostFragment.count + processFragment.count;
+        if (data != null)       numEntries++;
+        if (exception != null)  numEntries++;
+        if (hasText)            numEntries++;
+        if (enableLocation)     numEntries++;
+        if (mdc != null)        numEntries++;
+        if (ndc != null)        numEntries++;
+
+        MessagePackWriter out = writerTL.get().reset();
+        out.mapHeader(numEntries);
+
+        if (data != null)
+        {
+            out.fragment(KEY_DATA).map(data);
+        }
+
+        if (exception != null)
+        {
+            out.fragment(KEY_EXCEPTION).arrayHeader(exception.length);
+            for (String line : exception)
+            {
+                out.value(line);
+            }
+        }
+
+        out.fragment(hostFragment.bytes);
+        out.fragment(KEY_LEVEL).value(event.getLevel().toInt() / 1000);
+
+        if (enableLocation)
+        {
+            out.fragment(KEY_LOCATION).fragment(encodedLocation(event));
+        }
+
+        out.fragment(KEY_LOGGER).fragment(encodedLoggerName(event.getLoggerName()));
+        if (mdc != null)    out.fragment(KEY_MDC).map(mdc);
+        if (hasText)        out.fragment(KEY_MESSAGE).value(StructuredMessage.textFor(event));
+        if (ndc != null)    out.fragment(KEY_NDC).value(ndc);
+        out.fragment(processFragment.bytes);
+        out.fragment(KEY_THREAD).value(event.getThreadName());
+        out.fragment(KEY_TIMESTAMP).int64(event.getTimeStamp());
+
+        return out.toByteArray();
+    }
+
+
+//----------------------------------------------------------------------------
+//  Internals
+//----------------------------------------------------------------------------
+
+    @Override
+    protected byte[] encodeString(String value)
+    {
+        return MessagePackWriter.encode(value);
+    }
+
+
+    @Override
+    protected byte[] encodeLocation(String className, String fileName, String lineNumber, String methodName)
+    {
+        return new MessagePackWriter()
+               .mapHeader(4)
+               .fragment(KEY_CLASSNAME).value(className)
+               .fragment(KEY_FILENAME).value(fileName)
+               .fragment(KEY_LINENUMBER).value(lineNumber)
+               .fragment(KEY_METHODNAME).value(methodName)
+               .toByteArray();
+    }
+
+
+//----------------------------------------------------------------------------
+//  Helper classes
+//----------------------------------------------------------------------------
+
+    /**
+     *  Holds pre-encoded key-value pairs along with their number, which must
+     *  be replaced together so that the map header matches its contents.
+     */
+    private static class Fragment
+    {
+        public final byte[] bytes;
+        public final int count;
+
+        public Fragment(byte[] bytes, int count)
+        {
+            this.bytes = bytes;
+            this.count = count;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.log4j.aws;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.spi.LoggingEvent;
+
+
+/**
+ *  A log message that carries named values along with (or instead of) text.
+ *  Pass an instance to any of the logger methods:
+ *  <pre>
+ *      logger.info(new StructuredMessage("order placed")
+ *                  .with("orderId", orderId)
+ *                  .with("amount", amount));
+ *  </pre>
+ *  {@link JsonLayout} and {@link MessagePackLayout} write the text as the
+ *  <code>message</code> property, and the values as a child object named
+ *  <code>data</code>; values are converted directly, with no intermediate
+ *  string. Those layouts also accept a plain <code>Map</code> as a message,
+ *  which is written the same way but without <code>message</code>.
+ *  <p>
+ *  Other layouts see the result of {@link #toString}, which appends the values
+ *  to the text.
+ *  <p>
+ *  Instances are not thread-safe, and should not be modified after they're
+ *  passed to a logger.
+ */
+public class StructuredMessage
+{
+    private String text;
+    private Map<String,Object> data = new LinkedHashMap<String,Object>();
+
+
+    public StructuredMessage(String text)
+    {
+        this.text = text;
+    }
+
+
+    public StructuredMessage(String text, Map<String,?> data)
+    {
+        this(text);
+        this.data.putAll(data);
+    }
+
+
+    /**
+     *  Adds a value, returning this object for chaining. Values may be strings,
+     *  numbers, booleans, dates, arrays, collections, or maps; anything else
+     *  will be converted to a string by the layout.
+     */
+    public StructuredMessage with(String key, Object value)
+    {
+        data.put(key, value);
+        return this;
+    }
+
+
+    /**
+     *  Returns the message text, which may be null.
+     */
+    public String getText()
+    {
+        return text;
+    }
+
+
+    /**
+     *  Returns the values, in the order that they were added.
+     */
+    public Map<String,Object> getData()
+    {
+        return data;
+    }
+
+
+    /**
+     *  Returns the text followed by the values, for layouts that don't know
+     *  about this class.
+     */
+    @Override
+    public String toString()
+    {
+        if (data.isEmpty())
+            return String.valueOf(text);
+        if (text == null)
+            return data.toString();
+        return text + " " + data;
+    }
+
+
+//----------------------------------------------------------------------------
+//  Support for layouts
+//----------------------------------------------------------------------------
+
+    /**
+     *  Determines whether the layout should write a <code>message</code> property
+     *  for the event: true unless its message is a <code>Map</code>.
+     */
+    static boolean hasText(LoggingEvent event)
+    {
+        return ! (event.getMessage() instanceof Map);
+    }
+
+
+    /**
+     *  Returns the text of the event's message: for a structured message that's
+     *  its text, for anything else it's the rendered message.
+     */
+    static String textFor(LoggingEvent event)
+    {
+        Object message = event.getMessage();
+        return (message instanceof StructuredMessage)
+             ? ((StructuredMessage)message).getText()
+             : event.getRenderedMessage();
+    }
+
+
+    /**
+     *  Returns the structured data for the event's message, null if it doesn't
+     *  have any.
+     */
+    static Map<?,?> dataFor(LoggingEvent event)
+    {
+        Object message = event.getMessage();
+        if (message instanceof Map)
+            return (Map<?,?>)message;
+        if ((message instanceof StructuredMessage) && ! ((StructuredMessage)message).data.isEmpty())
+            return ((StructuredMessage)message).data;
+        return null;
+    }
+}
@@ -8,6 +8,7 @@ import java.util.List;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.helpers.LogLog;
 
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.regions.Region;
 import com.amazonaws.regions.Regions;
@@ -30,6 +31,9 @@ import com.kdgregory.log4j.aws.internal.shared.LogMessage;
 import com.kdgregory.log4j.aws.internal.shared.Utils;
 
 public class CloudWatchLogWriter extends AbstractLogWriter {
+	// the error code returned when a request is rejected due to throttling
+	private final static String THROTTLING_ERROR_CODE = "ThrottlingException";
+
 	private String groupName;
 	private String streamName;
 	private String accessKey;
@@ -39,7 +43,7 @@ public class CloudWatchLogWriter extends AbstractLogWriter {
 	protected AWSLogs client;
 
 	public CloudWatchLogWriter(CloudWatchWriterConfig config) {
-		super(config.batchDelay, config.discardThreshold, config.discardAction);
+		super(config.batchDelay, config.discardThreshold, config.discardAction, config.statistics);
 		this.groupName = config.logGroup;
 		this.streamName = config.logStream;
 		this.accessKey = config.accessKey;
@@ -122,6 +126,9 @@ public class CloudWatchLogWriter extends AbstractLogWriter {
 			client.putLogEvents(request);
 			return Collections.emptyList();
 		} catch (Exception ex) {
+			if ((ex instanceof AmazonServiceException) && THROTTLING_ERROR_CODE.equals(((AmazonServiceException) ex).getErrorCode())) {
+				getStatistics().recordThrottled();
+			}
 			LogLog.error("failed to send batch", ex);
 			return batch;
 		}
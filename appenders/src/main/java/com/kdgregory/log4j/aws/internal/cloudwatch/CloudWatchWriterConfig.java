@@ -1,6 +1,7 @@
 // Copyright (c) Keith D Gregory, all rights reserved
 package com.kdgregory.log4j.aws.internal.cloudwatch;
 
+import com.kdgregory.log4j.aws.internal.shared.AppenderStatistics;
 import com.kdgregory.log4j.aws.internal.shared.MessageQueue.DiscardAction;
 
 /**
@@ -15,12 +16,13 @@ public class CloudWatchWriterConfig {
 	public long batchDelay;
 	public int discardThreshold;
 	public DiscardAction discardAction;
+	public AppenderStatistics statistics;
 
 	public CloudWatchWriterConfig(String actualLogGroup, String actualLogStream, long batchDelay, int discardThreshold, DiscardAction discardAction) {
-		this(actualLogGroup, actualLogStream, batchDelay, discardThreshold, discardAction, null, null, null);
+		this(actualLogGroup, actualLogStream, batchDelay, discardThreshold, discardAction, null, null, null, null);
 	}
 
-	public CloudWatchWriterConfig(String actualLogGroup, String actualLogStream, long batchDelay, int discardThreshold, DiscardAction discardAction, String accessKey, String secretKey, String region) {
+	public CloudWatchWriterConfig(String actualLogGroup, String actualLogStream, long batchDelay, int discardThreshold, DiscardAction discardAction, String accessKey, String secretKey, String region, AppenderStatistics statistics) {
 		this.logGroup = actualLogGroup;
 		this.logStream = actualLogStream;
 		this.batchDelay = batchDelay;
@@ -29,5 +31,6 @@ public class CloudWatchWriterConfig {
 		this.accessKey = accessKey;
 		this.secretKey = secretKey;
 		this.region = region;
+		this.statistics = statistics;
 	}
 }
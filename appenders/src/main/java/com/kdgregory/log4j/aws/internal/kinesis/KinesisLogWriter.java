@@ -33,6 +33,9 @@ extends AbstractLogWriter
     // and how long we'll sleep between attempts
     private final static int CREATE_RETRY_SLEEP = 5000;
 
+    // the error code for a record that was rejected due to throttling
+    private final static String THROTTLING_ERROR_CODE = "ProvisionedThroughputExceededException";
+
 
     private KinesisWriterConfig config;
     protected AmazonKinesis client;
@@ -40,7 +43,7 @@ extends AbstractLogWriter
 
     public KinesisLogWriter(KinesisWriterConfig config)
     {
-        super(config.batchDelay, config.discardThreshold, config.discardAction);
+        super(config.batchDelay, config.discardThreshold, config.discardAction, config.statistics);
         this.config = config;
     }
 
@@ -248,11 +251,21 @@ extends AbstractLogWriter
                     if (entry.getErrorCode() != null)
                     {
                         failures.add(Integer.valueOf(ii));
+                        if (THROTTLING_ERROR_CODE.equals(entry.getErrorCode()))
+                        {
+                            getStatistics().recordThrottled();
+                        }
                     }
                     ii++;
                 }
                 return failures;
             }
+            catch (ProvisionedThroughputExceededException ex)
+            {
+                getStatistics().recordThrottled();
+                lastException = ex;
+                Utils.sleepQuietly(250 * (attempt + 1));
+            }
             catch (Exception ex)
             {
                 lastException = ex;
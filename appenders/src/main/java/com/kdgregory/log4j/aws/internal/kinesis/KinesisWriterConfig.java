@@ -1,6 +1,7 @@
 // Copyright (c) Keith D Gregory, all rights reserved
 package com.kdgregory.log4j.aws.internal.kinesis;
 
+import com.kdgregory.log4j.aws.internal.shared.AppenderStatistics;
 import com.kdgregory.log4j.aws.internal.shared.MessageQueue.DiscardAction;
 
 /**
@@ -17,6 +18,7 @@ public class KinesisWriterConfig
     public long             batchDelay;
     public int              discardThreshold;
     public DiscardAction    discardAction;
+    public AppenderStatistics statistics;
 
 
     /**
@@ -33,11 +35,14 @@ public class KinesisWriterConfig
      *                              ready to send.
      *  @param discardThreshold     Maximum number of messages to retain if unable to send.
      *  @param discardAction        What to do with unsent messages over the threshold.
+     *  @param statistics           Receives delivery counts; shared by all writers
+     *                              created by an appender.
      */
     public KinesisWriterConfig(
         String streamName, int shardCount, Integer retentionPeriod,
         String partitionKey, int partitionKeyLength, long batchDelay,
-        int discardThreshold, DiscardAction discardAction)
+        int discardThreshold, DiscardAction discardAction,
+        AppenderStatistics statistics)
     {
         this.streamName = streamName;
         this.shardCount = shardCount;
@@ -47,5 +52,6 @@ public class KinesisWriterConfig
         this.batchDelay = batchDelay;
         this.discardThreshold = discardThreshold;
         this.discardAction = discardAction;
+        this.statistics = statistics;
     }
 }
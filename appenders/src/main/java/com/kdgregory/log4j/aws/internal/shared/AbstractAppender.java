@@ -2,12 +2,22 @@
 package com.kdgregory.log4j.aws.internal.shared;
 
 import java.lang.Thread.UncaughtExceptionHandler;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
 
 import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
 import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.spi.Filter;
 import org.apache.log4j.spi.LoggingEvent;
 
+import com.kdgregory.log4j.aws.internal.shared.AppenderStatistics.DiscardReason;
 import com.kdgregory.log4j.aws.internal.shared.MessageQueue.DiscardAction;
 
 /**
@@ -53,6 +63,23 @@ public abstract class AbstractAppender<WriterConfigType> extends AppenderSkeleto
 
 	protected volatile LogWriter writer;
 
+	// when the writer fails, its unsent messages (and any new messages) are held
+	// here until a replacement is started; guarded by the message queue lock
+
+	private final static long MAX_RESTART_DELAY = 60000;
+
+	private MessageQueue writerBacklog;
+	private volatile long writerStartedAt;
+	private long restartDelay;
+	private volatile long nextRestartTimestamp;
+
+	// when routing, the template that selects a route for each event, and the
+	// writers for recently-used routes (in which case the writer above is null);
+	// the cache is only accessed while holding the message queue lock
+
+	protected RouteTemplate routeTemplate;
+	protected LRUCache<String, LogWriter> routes;
+
 	// the last time we rotated the writer
 
 	protected volatile long lastRotationTimestamp;
@@ -65,6 +92,15 @@ public abstract class AbstractAppender<WriterConfigType> extends AppenderSkeleto
 
 	protected volatile Throwable lastWriterException;
 
+	// delivery counters, shared by all writers created by this appender and
+	// exposed via JMX
+
+	protected AppenderStatistics statistics;
+
+	// the last time that we emitted a delivery lag summary
+
+	protected volatile long lastLagReportTimestamp;
+
 	// this object is used for synchronization of initialization and writer
 	// change
 
@@ -79,11 +115,42 @@ public abstract class AbstractAppender<WriterConfigType> extends AppenderSkeleto
 	// all member vars below this point are shared configuration
 
 	protected long batchDelay;
+	protected boolean dispatchWhenIdle;
 	protected int discardThreshold;
 	protected DiscardAction discardAction;
 	protected RotationMode rotationMode;
 	protected long rotationInterval;
 	protected AtomicInteger sequence;
+	protected boolean useShutdownHook;
+	protected long shutdownTimeout;
+	protected long lagReportInterval;
+	protected String routingKey;
+	protected int maxRoutes;
+	protected long routeIdleTimeout;
+	protected String rateLimits;
+	protected RateLimiter rateLimiter;
+	protected long rateLimitReportInterval;
+	protected long dedupWindow;
+	protected Deduplicator deduplicator;
+	protected String sampleKey;
+	protected double sampleRatio;
+	protected Level sampleThreshold;
+	protected TraceSampler sampler;
+	protected Level tailBufferThreshold;
+	protected String tailBufferKey;
+	protected boolean tailBufferLocationInfo;
+	protected int tailBufferSize;
+	protected int tailBufferContexts;
+	protected long tailBufferTimeout;
+	protected TailBuffer tailBuffer;
+	protected int adaptiveHighWatermark;
+	protected int adaptiveLowWatermark;
+	protected long adaptiveMaxLag;
+	protected long adaptiveHoldTime;
+	protected VerbosityController verbosityController;
+	protected long writerRestartDelay;
+	protected long writerStallTimeout;
+	protected boolean sharedWriterThreads;
 
 	// ----------------------------------------------------------------------------
 	// Constructor
@@ -99,6 +166,19 @@ public abstract class AbstractAppender<WriterConfigType> extends AppenderSkeleto
 		rotationMode = RotationMode.none;
 		rotationInterval = -1;
 		sequence = new AtomicInteger();
+		shutdownTimeout = 10000;
+		maxRoutes = 100;
+		routeIdleTimeout = 300000;
+		rateLimitReportInterval = 10000;
+		sampleRatio = 1.0;
+		sampleThreshold = Level.INFO;
+		tailBufferSize = 100;
+		tailBufferContexts = 1000;
+		tailBufferTimeout = 60000;
+		adaptiveLowWatermark = -1;
+		adaptiveHoldTime = 10000;
+		writerRestartDelay = 1000;
+		statistics = new AppenderStatistics();
 	}
 
 	// ----------------------------------------------------------------------------
@@ -119,8 +199,9 @@ public abstract class AbstractAppender<WriterConfigType> extends AppenderSkeleto
 	 */
 	public void setBatchDelay(long value) {
 		this.batchDelay = value;
-		if (writer != null)
-			writer.setBatchDelay(value);
+		for (LogWriter activeWriter : activeWriters()) {
+			activeWriter.setBatchDelay(value);
+		}
 	}
 
 	/**
@@ -131,6 +212,29 @@ public abstract class AbstractAppender<WriterConfigType> extends AppenderSkeleto
 		return batchDelay;
 	}
 
+	/**
+	 * Sets the dispatch policy. If true, the writer sends queued messages as
+	 * soon as it isn't busy sending a previous batch, ignoring the batch delay;
+	 * messages that arrive during a send are accumulated into the next batch.
+	 * This gives low latency when volume is low, and full batches when it's
+	 * high, without tuning the batch delay.
+	 * <p>
+	 * The default is false, which always waits for the batch delay.
+	 */
+	public void setDispatchWhenIdle(boolean value) {
+		this.dispatchWhenIdle = value;
+		for (LogWriter activeWriter : activeWriters()) {
+			activeWriter.setDispatchWhenIdle(value);
+		}
+	}
+
+	/**
+	 * Returns the dispatch policy; see {@link #setDispatchWhenIdle}.
+	 */
+	public boolean getDispatchWhenIdle() {
+		return dispatchWhenIdle;
+	}
+
 	/**
 	 * Sets the number of unsent messages that will trigger message discard. A
 	 * high value is useful when network connectivity is intermittent and/or
@@ -236,157 +340,1386 @@ public abstract class AbstractAppender<WriterConfigType> extends AppenderSkeleto
 		return sequence.get();
 	}
 
-	// ----------------------------------------------------------------------------
-	// Appender overrides
-	// ----------------------------------------------------------------------------
+	/**
+	 * Enables or disables the JVM shutdown hook. When enabled, the appender will
+	 * be closed when the JVM shuts down, and will keep sending queued messages
+	 * until they're all sent or the shutdown timeout expires. It then reports the
+	 * number of messages sent, failed, and dropped to the Log4J internal logger.
+	 * <p>
+	 * The default is <code>false</code>: the writer is stopped by Log4J shutdown
+	 * (if the application calls it), and gets one batch delay to send whatever
+	 * remains.
+	 */
+	public void setUseShutdownHook(boolean value) {
+		this.useShutdownHook = value;
+	}
 
-	@Override
-	protected void append(LoggingEvent event) {
-		if (closed) {
-			throw new IllegalStateException("appender is closed");
-		}
+	/**
+	 * Returns whether the shutdown hook is enabled.
+	 */
+	public boolean getUseShutdownHook() {
+		return useShutdownHook;
+	}
 
-		if (!ready) {
-			initialize();
-		}
+	/**
+	 * Sets the maximum time, in milliseconds, that the shutdown hook will wait for
+	 * this appender to send queued messages. All appenders are drained in parallel,
+	 * so this is also (roughly) the maximum delay to JVM shutdown.
+	 * <p>
+	 * The default is 10000 (10 seconds).
+	 */
+	public void setShutdownTimeout(long value) {
+		this.shutdownTimeout = value;
+	}
 
-		internalAppend(LogMessage.create(event, getLayout()));
+	/**
+	 * Returns the shutdown timeout.
+	 */
+	public long getShutdownTimeout() {
+		return shutdownTimeout;
 	}
 
-	@Override
-	public void close() {
-		synchronized (initializationLock) {
-			if (closed) {
-				// someone already closed us
-				return;
-			}
+	/**
+	 * Sets the interval, in milliseconds, between delivery lag summaries. When
+	 * positive, the appender periodically writes an INFO-level event to its own
+	 * destination, reporting the percentiles of delivery lag and queue time for
+	 * messages delivered since the previous summary. This allows alerting on
+	 * ingestion lag (for example, with a CloudWatch metric filter).
+	 * <p>
+	 * Summaries are generated as part of appending a message, so are not written
+	 * while the application is idle. The default is 0, which disables summaries.
+	 */
+	public void setLagReportInterval(long value) {
+		this.lagReportInterval = value;
+	}
 
-			stopWriter();
-			closed = true;
-		}
+	/**
+	 * Returns the delivery lag summary interval.
+	 */
+	public long getLagReportInterval() {
+		return lagReportInterval;
 	}
 
-	@Override
-	public boolean requiresLayout() {
-		return true;
+	/**
+	 * Sets the routing key, which turns this into a routing appender: rather
+	 * than writing every event to a single destination, it evaluates this
+	 * template for each event and writes the event to a destination whose name
+	 * has the result in place of <code>{route}</code>. The template may use
+	 * <code>{logger}</code> and <code>{mdc:XXX}</code>; see
+	 * {@link RouteTemplate}.
+	 * <p>
+	 * Each route has its own writer, which is started when the route sees its
+	 * first event. Like a non-routing appender's writer, it creates its
+	 * destination on the writer thread, so a new route doesn't block the
+	 * thread that's logging.
+	 * <p>
+	 * The default is null, which disables routing.
+	 */
+	public void setRoutingKey(String value) {
+		this.routingKey = value;
 	}
 
-	// ----------------------------------------------------------------------------
-	// Methods that may be exposed by subclasses
-	// ----------------------------------------------------------------------------
+	/**
+	 * Returns the routing key template.
+	 */
+	public String getRoutingKey() {
+		return routingKey;
+	}
 
 	/**
-	 * Rotates the log writer. This must be exposed by appenders that support
-	 * log rotation; they can simply delegate to the super implementation.
+	 * Sets the maximum number of routes that have an active writer. When a new
+	 * route would exceed this limit, the writer for the least-recently-used
+	 * route is stopped (after sending its queued messages); it will be started
+	 * again if that route sees another event.
+	 * <p>
+	 * The default is 100. Only used when routing.
 	 */
-	protected void rotate() {
-		synchronized (initializationLock) {
-			stopWriter();
-			sequence.incrementAndGet();
-			startWriter();
-		}
+	public void setMaxRoutes(int value) {
+		this.maxRoutes = value;
 	}
 
-	// ----------------------------------------------------------------------------
-	// Subclass hooks
-	// ----------------------------------------------------------------------------
+	/**
+	 * Returns the maximum number of active routes.
+	 */
+	public int getMaxRoutes() {
+		return maxRoutes;
+	}
 
 	/**
-	 * Called just before a writer is created, so that the subclass can perform
-	 * substitutions on the configuration.
+	 * Sets the time, in milliseconds, after which the writer for a route that
+	 * hasn't seen any events will be stopped (after sending its queued messages).
+	 * Idle routes are found while appending, so writers remain running while
+	 * the application isn't logging at all.
+	 * <p>
+	 * The default is 300000 (5 minutes); 0 disables idle eviction. Only used
+	 * when routing.
 	 */
-	protected abstract WriterConfigType generateWriterConfig();
+	public void setRouteIdleTimeout(long value) {
+		this.routeIdleTimeout = value;
+	}
 
 	/**
-	 * Called {@link #append} to ensure that we don't have a single message that
-	 * violates AWS batching rules.
+	 * Returns the route idle timeout.
 	 */
-	protected abstract boolean isMessageTooLarge(LogMessage message);
+	public long getRouteIdleTimeout() {
+		return routeIdleTimeout;
+	}
 
-	// ----------------------------------------------------------------------------
-	// Internals
-	// ----------------------------------------------------------------------------
+	/**
+	 * Sets rate limits by logger name and level, as a comma-separated list of
+	 * <code>KEY=RATE</code> rules, where <code>RATE</code> is events per second.
+	 * The key is either a logger name prefix (each matching logger is limited
+	 * separately), <code>*</code> (all loggers), or <code>level:NAME</code>
+	 * (all events at that level); see {@link RateLimiter}. For example:
+	 * <code>com.example.noisy=100,level:DEBUG=1000</code>.
+	 * <p>
+	 * Events that exceed their limits are discarded before they're formatted.
+	 * <p>
+	 * The default is null, which disables rate limiting. An invalid rule throws.
+	 */
+	public void setRateLimits(String value) {
+		rateLimiter = ((value == null) || (value.trim().length() == 0)) ? null : new RateLimiter(value);
+		rateLimits = value;
+	}
 
 	/**
-	 * Called by {@link #append} to lazily initialize appender.
+	 * Returns the rate limit configuration.
 	 */
-	private void initialize() {
-		synchronized (initializationLock) {
-			if (ready) {
-				// someone else already initialized us
-				return;
-			}
+	public String getRateLimits() {
+		return rateLimits;
+	}
 
-			startWriter();
-			ready = true;
-		}
+	/**
+	 * Sets the minimum interval, in milliseconds, between summaries of events
+	 * suppressed by rate limiting. A summary is a WARN-level event written to
+	 * this appender's destination, and is only written if events have been
+	 * suppressed. The default is 10000 (10 seconds).
+	 */
+	public void setRateLimitReportInterval(long value) {
+		this.rateLimitReportInterval = value;
 	}
 
 	/**
-	 * Called by {@link #initialize} and also {@link #rotate}, to switch to a
-	 * new writer. Does not close the old writer, if any.
+	 * Returns the interval between rate limit summaries.
 	 */
-	private void startWriter() {
-		synchronized (initializationLock) {
-			try {
-				writer = writerFactory.newLogWriter(generateWriterConfig());
-				threadFactory.startLoggingThread(writer, new UncaughtExceptionHandler() {
-					@Override
-					public void uncaughtException(Thread t, Throwable ex) {
-						LogLog.error("LogWriter failure", ex);
-						writer = null;
-						lastWriterException = ex;
-					}
-				});
+	public long getRateLimitReportInterval() {
+		return rateLimitReportInterval;
+	}
 
-				if (layout.getHeader() != null) {
-					internalAppend(LogMessage.create(layout.getHeader()));
-				}
+	/**
+	 * Sets the window, in milliseconds, for coalescing repeated events. When
+	 * enabled, the first of a series of events with the same logger, level, and
+	 * message is written normally; repeats within the window are counted and
+	 * discarded, then reported as a single event that gives the count and the
+	 * times of the first and last repeat; see {@link Deduplicator}.
+	 * <p>
+	 * The default is 0, which disables coalescing.
+	 */
+	public void setDedupWindow(long value) {
+		deduplicator = (value > 0) ? new Deduplicator(value) : null;
+		dedupWindow = value;
+	}
 
-				lastRotationTimestamp = System.currentTimeMillis();
-				lastRotationCount = 0;
-			} catch (Exception ex) {
-				LogLog.error("exception while initializing writer", ex);
-			}
-		}
+	/**
+	 * Returns the window for coalescing repeated events.
+	 */
+	public long getDedupWindow() {
+		return dedupWindow;
 	}
 
 	/**
-	 * Closes the current writer.
+	 * Sets the MDC key that holds a trace ID, enabling trace-based sampling of
+	 * verbose events: an event below the sample threshold is written only if the
+	 * hash of its trace ID falls within the sample ratio, so that a sampled trace
+	 * keeps all of its verbose events; see {@link TraceSampler}. Events below the
+	 * threshold that don't have a trace ID are discarded.
+	 * <p>
+	 * The default is null, which disables sampling.
 	 */
-	private void stopWriter() {
-		synchronized (initializationLock) {
-			if (writer == null)
-				return;
+	public void setSampleKey(String value) {
+		this.sampleKey = ((value == null) || (value.trim().length() == 0)) ? null : value.trim();
+		configureSampler();
+	}
 
-			if (layout.getFooter() != null) {
-				internalAppend(LogMessage.create(layout.getFooter()));
-			}
+	/**
+	 * Returns the MDC key used for trace-based sampling.
+	 */
+	public String getSampleKey() {
+		return sampleKey;
+	}
 
-			writer.stop();
-			writer = null;
+	/**
+	 * Sets the fraction of traces, from 0 to 1, whose verbose events are kept
+	 * (for example, "0.01" for 1%). This is a string because Log4J can't set
+	 * floating-point properties. The default is 1, which keeps all events. An
+	 * invalid ratio throws.
+	 */
+	public void setSampleRatio(String value) {
+		double ratio;
+		try {
+			ratio = Double.parseDouble(value.trim());
+		} catch (NumberFormatException ex) {
+			throw new IllegalArgumentException("invalid sample ratio: " + value);
 		}
+		if ((ratio < 0) || (ratio > 1))
+			throw new IllegalArgumentException("sample ratio must be between 0 and 1: " + value);
+
+		this.sampleRatio = ratio;
+		configureSampler();
 	}
 
-	private void internalAppend(LogMessage message) {
-		if (message == null)
-			return;
+	/**
+	 * Returns the fraction of traces whose verbose events are kept.
+	 */
+	public String getSampleRatio() {
+		return String.valueOf(sampleRatio);
+	}
 
-		if (isMessageTooLarge(message)) {
-			LogLog.warn("attempted to append a message > AWS batch size; ignored");
-			return;
-		}
+	/**
+	 * Sets the lowest level that is exempt from sampling. The default is INFO,
+	 * so that only DEBUG and TRACE events are sampled. An invalid level throws.
+	 */
+	public void setSampleThreshold(String value) {
+		Level level = Level.toLevel(value, null);
+		if (level == null)
+			throw new IllegalArgumentException("invalid sample threshold: " + value);
 
-		rotateIfNeeded(System.currentTimeMillis());
+		this.sampleThreshold = level;
+		configureSampler();
+	}
 
-		synchronized (messageQueueLock) {
-			if (writer == null) {
-				LogLog.warn("appender not properly configured: writer is null");
-			} else {
-				writer.addMessage(message);
-				lastRotationCount++;
-			}
+	/**
+	 * Returns the lowest level that is exempt from sampling.
+	 */
+	public String getSampleThreshold() {
+		return sampleThreshold.toString();
+	}
+
+	/**
+	 * Enables tail buffering: events below this level are held in a buffer for
+	 * their context (thread or MDC value), rather than being written. When the
+	 * context logs an ERROR (or higher), its buffered events are written ahead
+	 * of that event; otherwise they're eventually discarded. See
+	 * {@link TailBuffer}. For example, <code>INFO</code> holds DEBUG and TRACE
+	 * events.
+	 * <p>
+	 * The default is null, which disables buffering. An invalid level throws.
+	 */
+	public void setTailBufferThreshold(String value) {
+		if ((value == null) || (value.trim().length() == 0)) {
+			this.tailBufferThreshold = null;
+		} else {
+			Level level = Level.toLevel(value, null);
+			if (level == null)
+				throw new IllegalArgumentException("invalid tail buffer threshold: " + value);
+			this.tailBufferThreshold = level;
 		}
+		configureTailBuffer();
+	}
+
+	/**
+	 * Returns the level below which events are buffered.
+	 */
+	public String getTailBufferThreshold() {
+		return (tailBufferThreshold != null) ? tailBufferThreshold.toString() : null;
+	}
+
+	/**
+	 * Sets the MDC key that identifies a tail buffer context, such as a request
+	 * ID. Events that don't have this key use their thread as context.
+	 * <p>
+	 * The default is null, which uses the thread for all events.
+	 */
+	public void setTailBufferKey(String value) {
+		this.tailBufferKey = ((value == null) || (value.trim().length() == 0)) ? null : value.trim();
+		configureTailBuffer();
+	}
+
+	/**
+	 * Returns the MDC key that identifies a tail buffer context.
+	 */
+	public String getTailBufferKey() {
+		return tailBufferKey;
+	}
+
+	/**
+	 * Sets whether the tail buffer captures each event's location (class, method,
+	 * file, and line) when it's buffered, as with <code>AsyncAppender</code>'s
+	 * <code>locationInfo</code> property. This is expensive, so it's off by
+	 * default; if off, buffered events are written without location.
+	 */
+	public void setTailBufferLocationInfo(boolean value) {
+		this.tailBufferLocationInfo = value;
+		configureTailBuffer();
+	}
+
+	/**
+	 * Returns whether the tail buffer captures event locations.
+	 */
+	public boolean getTailBufferLocationInfo() {
+		return tailBufferLocationInfo;
+	}
+
+	/**
+	 * Sets the maximum number of events buffered for each context; once full,
+	 * the oldest event is discarded. The default is 100.
+	 */
+	public void setTailBufferSize(int value) {
+		this.tailBufferSize = value;
+		configureTailBuffer();
+	}
+
+	/**
+	 * Returns the maximum number of events buffered for each context.
+	 */
+	public int getTailBufferSize() {
+		return tailBufferSize;
+	}
+
+	/**
+	 * Sets the maximum number of contexts with buffered events; when a new
+	 * context would exceed this, the least recently used context is discarded.
+	 * Together with the buffer size, this bounds the memory used. The default is
+	 * 1000.
+	 */
+	public void setTailBufferContexts(int value) {
+		this.tailBufferContexts = value;
+		configureTailBuffer();
+	}
+
+	/**
+	 * Returns the maximum number of contexts with buffered events.
+	 */
+	public int getTailBufferContexts() {
+		return tailBufferContexts;
+	}
+
+	/**
+	 * Sets the time, in milliseconds, after which a context that hasn't logged
+	 * is discarded along with its buffered events. The default is 60000 (one
+	 * minute); 0 means that contexts are only discarded to make room.
+	 */
+	public void setTailBufferTimeout(long value) {
+		this.tailBufferTimeout = value;
+		configureTailBuffer();
+	}
+
+	/**
+	 * Returns the time after which an unused tail buffer context is discarded.
+	 */
+	public long getTailBufferTimeout() {
+		return tailBufferTimeout;
+	}
+
+	/**
+	 * Enables load-adaptive verbosity, and sets the number of queued messages
+	 * (across all writers) at which the appender raises its effective threshold
+	 * by one step, from ALL to INFO to WARN. Events below the effective threshold
+	 * are discarded before formatting. See {@link VerbosityController}.
+	 * <p>
+	 * The default is 0, which ignores queue depth.
+	 */
+	public void setAdaptiveHighWatermark(int value) {
+		this.adaptiveHighWatermark = value;
+		configureVerbosityController();
+	}
+
+	/**
+	 * Returns the queue depth at which the effective threshold is raised.
+	 */
+	public int getAdaptiveHighWatermark() {
+		return adaptiveHighWatermark;
+	}
+
+	/**
+	 * Sets the number of queued messages at or below which the appender lowers
+	 * its effective threshold by one step. The default, -1, means half of the
+	 * high watermark.
+	 */
+	public void setAdaptiveLowWatermark(int value) {
+		this.adaptiveLowWatermark = value;
+		configureVerbosityController();
+	}
+
+	/**
+	 * Returns the queue depth at which the effective threshold is lowered.
+	 */
+	public int getAdaptiveLowWatermark() {
+		return adaptiveLowWatermark;
+	}
+
+	/**
+	 * Enables load-adaptive verbosity based on delivery lag: the effective
+	 * threshold is raised when the most recently delivered message took at
+	 * least this many milliseconds to be accepted by the service (and there are
+	 * messages queued), and lowered when it took no more than half as long.
+	 * <p>
+	 * The default is 0, which ignores delivery lag.
+	 */
+	public void setAdaptiveMaxLag(long value) {
+		this.adaptiveMaxLag = value;
+		configureVerbosityController();
+	}
+
+	/**
+	 * Returns the delivery lag at which the effective threshold is raised.
+	 */
+	public long getAdaptiveMaxLag() {
+		return adaptiveMaxLag;
+	}
+
+	/**
+	 * Sets the minimum time, in milliseconds, between changes to the effective
+	 * threshold. The default is 10000 (10 seconds).
+	 */
+	public void setAdaptiveHoldTime(long value) {
+		this.adaptiveHoldTime = value;
+		configureVerbosityController();
+	}
+
+	/**
+	 * Returns the minimum time between changes to the effective threshold.
+	 */
+	public long getAdaptiveHoldTime() {
+		return adaptiveHoldTime;
+	}
+
+	/**
+	 * Sets the time, in milliseconds, to wait before replacing a writer that has
+	 * failed. The delay doubles with each consecutive failure, to a maximum of one
+	 * minute (or this value, if larger); it's reset once a writer has run for a
+	 * minute. Messages logged while waiting are held, subject to the discard
+	 * threshold, and given to the replacement along with the failed writer's
+	 * unsent messages. The default is 1000; 0 disables replacement, in which case
+	 * messages logged after a failure are discarded.
+	 */
+	public void setWriterRestartDelay(long value) {
+		this.writerRestartDelay = value;
+	}
+
+	/**
+	 * Returns the initial delay before replacing a failed writer.
+	 */
+	public long getWriterRestartDelay() {
+		return writerRestartDelay;
+	}
+
+	/**
+	 * Sets the time, in milliseconds, that a writer may spend in a single call
+	 * to the destination before it's considered stalled. A stalled writer is told
+	 * to stop, and is replaced as if it had failed; if its call eventually
+	 * completes, the messages in that call are sent. The default is 0, which
+	 * disables stall detection.
+	 */
+	public void setWriterStallTimeout(long value) {
+		this.writerStallTimeout = value;
+	}
+
+	/**
+	 * Returns the time after which a writer is considered stalled.
+	 */
+	public long getWriterStallTimeout() {
+		return writerStallTimeout;
+	}
+
+	/**
+	 * Sets whether this appender's writers run on a small pool of threads shared
+	 * with other appenders (see {@link SharedThreadFactory}), rather than each on
+	 * its own thread. A writer only uses a pool thread while it's sending a batch.
+	 * The default is false. Changes affect writers started afterward.
+	 */
+	public void setSharedWriterThreads(boolean value) {
+		this.sharedWriterThreads = value;
+		if (value) {
+			threadFactory = SharedThreadFactory.getDefaultInstance();
+		} else if (threadFactory instanceof SharedThreadFactory) {
+			threadFactory = new DefaultThreadFactory();
+		}
+	}
+
+	/**
+	 * Returns whether this appender's writers run on shared threads.
+	 */
+	public boolean getSharedWriterThreads() {
+		return sharedWriterThreads;
+	}
+
+	// ----------------------------------------------------------------------------
+	// Appender overrides
+	// ----------------------------------------------------------------------------
+
+	@Override
+	protected void append(LoggingEvent event) {
+		append(event, null);
+	}
+
+	/**
+	 * Determines whether this appender would write the event now, without changing
+	 * any state: checks the threshold, filters, verbosity, sampling, and rate limits
+	 * (without using up the limit), and whether the event would be held by the tail
+	 * buffer. This lets a caller that formats
+	 * events on behalf of this appender, such as a
+	 * {@link com.kdgregory.log4j.aws.FanOutAppender}, avoid formatting events
+	 * that would be discarded. A closed appender doesn't accept any events.
+	 */
+	public boolean wouldAccept(LoggingEvent event) {
+		if (closed || !passesThresholdAndFilters(event)) {
+			return false;
+		}
+
+		if ((verbosityController != null) && !verbosityController.isAllowed(event.getLevel())) {
+			return false;
+		}
+
+		if ((sampler != null) && !sampler.isSampled(event)) {
+			return false;
+		}
+
+		if ((rateLimiter != null) && !rateLimiter.wouldAcquire(event.getLoggerName(), event.getLevel())) {
+			return false;
+		}
+
+		if ((tailBuffer != null) && !event.getLevel().isGreaterOrEqual(tailBufferThreshold)) {
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Appends an event that has already been formatted, for example by a
+	 * {@link com.kdgregory.log4j.aws.FanOutAppender}. The event goes through the
+	 * same threshold, filters, and other checks as one passed to
+	 * <code>doAppend()</code>, but the message bytes are shared rather than
+	 * produced by this appender's layout. If the message is null, or the event
+	 * is held and written later (as with the tail buffer), it's formatted
+	 * normally. As with <code>doAppend()</code>, appending to a closed appender
+	 * is reported to the error handler.
+	 */
+	public synchronized void appendFormatted(LoggingEvent event, LogMessage message) {
+		if (closed) {
+			errorHandler.error("Attempted to append to closed appender named [" + name + "].");
+			return;
+		}
+
+		if (passesThresholdAndFilters(event)) {
+			append(event, message);
+		}
+	}
+
+	private boolean passesThresholdAndFilters(LoggingEvent event) {
+		if (!isAsSevereAsThreshold(event.getLevel())) {
+			return false;
+		}
+
+		for (Filter filter = getFirstFilter(); filter != null; filter = filter.getNext()) {
+			int decision = filter.decide(event);
+			if (decision == Filter.DENY) {
+				return false;
+			}
+			if (decision == Filter.ACCEPT) {
+				break;
+			}
+		}
+
+		return true;
+	}
+
+	private void append(LoggingEvent event, LogMessage preformatted) {
+		if (closed) {
+			throw new IllegalStateException("appender is closed");
+		}
+
+		if (!ready) {
+			initialize();
+		}
+
+		long now = System.currentTimeMillis();
+		if (verbosityController != null) {
+			Level threshold = verbosityController.update(now, statistics.getQueuedMessages(), statistics.getLastDeliveryLag());
+			if (threshold != null) {
+				statistics.recordThresholdChange(threshold);
+				appendInternalEvent(Level.WARN, "effective threshold changed to " + threshold
+								  + " (" + statistics.getQueuedMessages() + " messages queued, last delivery lag "
+								  + statistics.getLastDeliveryLag() + " ms)");
+			}
+
+			if (!verbosityController.isAllowed(event.getLevel())) {
+				statistics.recordDiscarded(DiscardReason.degraded, 1);
+				return;
+			}
+		}
+
+		if ((sampler != null) && !sampler.isSampled(event)) {
+			statistics.recordDiscarded(DiscardReason.sampled, 1);
+			return;
+		}
+
+		if (rateLimiter != null) {
+			String report = rateLimiter.reportIfDue(now, rateLimitReportInterval);
+			if (report != null) {
+				appendInternalEvent(Level.WARN, report);
+			}
+
+			if (!rateLimiter.tryAcquire(event.getLoggerName(), event.getLevel())) {
+				statistics.recordDiscarded(DiscardReason.rateLimited, 1);
+				return;
+			}
+		}
+
+		if (deduplicator != null) {
+			boolean duplicate = deduplicator.isDuplicate(event);
+			dispatchDuplicateSummaries();
+			if (duplicate) {
+				statistics.recordDiscarded(DiscardReason.duplicate, 1);
+				return;
+			}
+		}
+
+		if (tailBuffer != null) {
+			if (!event.getLevel().isGreaterOrEqual(tailBufferThreshold)) {
+				tailBuffer.add(event);
+				return;
+			}
+			if (event.getLevel().isGreaterOrEqual(Level.ERROR)) {
+				for (LoggingEvent buffered : tailBuffer.drain(event)) {
+					dispatchDeferred(buffered, tailBuffer.isLocationCaptured());
+				}
+			}
+		}
+
+		dispatch(event, preformatted);
+		reportLagIfNeeded(now);
+	}
+
+	@Override
+	public void close() {
+		synchronized (initializationLock) {
+			if (closed) {
+				// someone already closed us
+				return;
+			}
+
+			// messages waiting for a replacement writer are given to it now, so
+			// that they're sent (asynchronously) rather than thrown away
+			restartWriter(System.currentTimeMillis(), true);
+
+			if (deduplicator != null) {
+				deduplicator.closeAll();
+				dispatchDuplicateSummaries();
+			}
+			if (tailBuffer != null) {
+				tailBuffer.clear();
+			}
+
+			// set first, so that a concurrent append can't start a new route
+			closed = true;
+			stopWriter();
+			discardWriterBacklog();
+			for (LogWriter routeWriter : detachRoutes()) {
+				routeWriter.stop();
+			}
+		}
+		ShutdownHook.unregister(this);
+		statistics.unregisterMBean();
+	}
+
+	/**
+	 * Asks this appender's writers to send all messages logged so far, without
+	 * waiting for the batch delay, and waits up to the specified number of
+	 * milliseconds for those messages to be accepted by the destination (or
+	 * discarded). Returns <code>true</code> if they were, <code>false</code> if
+	 * the timeout expired or the calling thread was interrupted.
+	 * <p>
+	 * This is intended for short-lived processes that need to know that their
+	 * messages have been delivered before they exit. Unlike {@link #closeAndWait},
+	 * the appender remains usable. See also <code>AWSAppenders.flushAll()</code>.
+	 */
+	public boolean flush(long timeout) {
+		return awaitFlush(requestFlush(), timeout);
+	}
+
+	/**
+	 * Asks this appender's writers to send all messages logged so far, without
+	 * waiting for the batch delay. Returns a latch per writer, which is released
+	 * when that writer's messages have been accepted by the destination or
+	 * discarded. Use this to flush multiple appenders in parallel.
+	 * <p>
+	 * If the writer has failed and its messages are waiting for a replacement,
+	 * the replacement is started immediately, without waiting for the restart
+	 * delay. If it can't be started, the returned latches include one that's
+	 * never released, because those messages can't be sent.
+	 */
+	public List<CountDownLatch> requestFlush() {
+		restartWriter(System.currentTimeMillis(), true);
+
+		List<LogWriter> writers = activeWriters();
+		List<CountDownLatch> latches = new ArrayList<CountDownLatch>(writers.size() + 1);
+		for (LogWriter flushWriter : writers) {
+			latches.add(flushWriter.flush());
+		}
+
+		synchronized (messageQueueLock) {
+			if ((writerBacklog != null) && !writerBacklog.isEmpty()) {
+				latches.add(new CountDownLatch(1));
+			}
+		}
+		return latches;
+	}
+
+	/**
+	 * Waits up to the specified number of milliseconds for all of the passed
+	 * latches to be released. Returns <code>true</code> if they were.
+	 */
+	public static boolean awaitFlush(List<CountDownLatch> latches, long timeout) {
+		long waitUntil = System.currentTimeMillis() + timeout;
+		try {
+			for (CountDownLatch latch : latches) {
+				if (!latch.await(Math.max(0, waitUntil - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+					return false;
+				}
+			}
+			return true;
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Closes the appender and waits up to the shutdown timeout for its writer to
+	 * send all queued messages, then reports delivery counts to the Log4J internal
+	 * logger. This is called by {@link ShutdownHook}, but may also be called by an
+	 * application that wants to ensure delivery before exiting.
+	 */
+	public void closeAndWait() {
+		LogWriter lastWriter;
+		List<LogWriter> lastRoutes;
+		synchronized (initializationLock) {
+			if (closed) {
+				return;
+			}
+
+			// messages waiting for a replacement writer are given to it now, so
+			// that we wait for them along with everything else
+			restartWriter(System.currentTimeMillis(), true);
+
+			if (deduplicator != null) {
+				deduplicator.closeAll();
+				dispatchDuplicateSummaries();
+			}
+			if (tailBuffer != null) {
+				tailBuffer.clear();
+			}
+
+			closed = true;
+			lastWriter = detachWriter();
+			discardWriterBacklog();
+			lastRoutes = detachRoutes();
+		}
+		ShutdownHook.unregister(this);
+		statistics.unregisterMBean();
+
+		// the wait happens outside the lock, so that threads that are still
+		// logging aren't blocked (they'll see that we're closed)
+
+		long waitUntil = System.currentTimeMillis() + shutdownTimeout;
+		boolean finished = (lastWriter == null) || lastWriter.stopAndWait(shutdownTimeout);
+		for (LogWriter routeWriter : lastRoutes) {
+			finished &= routeWriter.stopAndWait(Math.max(0, waitUntil - System.currentTimeMillis()));
+		}
+
+		String report = "appender " + getName() + " shut down: "
+					  + statistics.getMessagesSent() + " messages sent, "
+					  + statistics.getMessagesFailed() + " failed send attempts, "
+					  + statistics.getMessagesDiscarded() + " dropped";
+		if (!finished) {
+			LogLog.warn(report + "; writer did not finish within " + shutdownTimeout + " milliseconds, so counts may be incomplete");
+		} else if (statistics.getMessagesDiscarded() > 0) {
+			LogLog.warn(report);
+		} else {
+			LogLog.debug(report);
+		}
+	}
+
+	@Override
+	public boolean requiresLayout() {
+		return true;
+	}
+
+	// ----------------------------------------------------------------------------
+	// Methods that may be exposed by subclasses
+	// ----------------------------------------------------------------------------
+
+	/**
+	 * Rotates the log writer. This must be exposed by appenders that support
+	 * log rotation; they can simply delegate to the super implementation.
+	 */
+	protected void rotate() {
+		synchronized (initializationLock) {
+			if (routeTemplate != null) {
+				// routes will start new writers on their next event
+				for (LogWriter routeWriter : detachRoutes()) {
+					routeWriter.stop();
+				}
+				sequence.incrementAndGet();
+				lastRotationTimestamp = System.currentTimeMillis();
+				lastRotationCount = 0;
+				return;
+			}
+
+			stopWriter();
+			sequence.incrementAndGet();
+			startWriter();
+		}
+	}
+
+	// ----------------------------------------------------------------------------
+	// Subclass hooks
+	// ----------------------------------------------------------------------------
+
+	/**
+	 * Called just before a writer is created, so that the subclass can perform
+	 * substitutions on the configuration.
+	 */
+	protected abstract WriterConfigType generateWriterConfig();
+
+	/**
+	 * Called just before a writer is created for a route, when routing. The
+	 * subclass should replace <code>{route}</code> in its destination names
+	 * with the passed value. The default implementation ignores the route,
+	 * which means that all routes go to the same destination.
+	 */
+	protected WriterConfigType generateWriterConfig(String route) {
+		return generateWriterConfig();
+	}
+
+	/**
+	 * Returns a pattern that matches characters which can't appear in the
+	 * subclass's destination names, when routing. They're removed from each
+	 * route before it's used to find a writer, so that routes which differ
+	 * only in those characters share one writer (and destination). The default
+	 * implementation returns null, which uses routes as-is.
+	 */
+	protected Pattern disallowedRouteCharacters() {
+		return null;
+	}
+
+	/**
+	 * Called {@link #append} to ensure that we don't have a single message that
+	 * violates AWS batching rules.
+	 */
+	protected abstract boolean isMessageTooLarge(LogMessage message);
+
+	// ----------------------------------------------------------------------------
+	// Internals
+	// ----------------------------------------------------------------------------
+
+	/**
+	 * Called by {@link #append} to lazily initialize appender.
+	 */
+	private void initialize() {
+		synchronized (initializationLock) {
+			if (ready) {
+				// someone else already initialized us
+				return;
+			}
+
+			if ((routingKey != null) && (routingKey.length() > 0)) {
+				startRouting();
+			} else {
+				startWriter();
+			}
+			ready = true;
+
+			statistics.registerMBean(getClass(), getName());
+
+			if (useShutdownHook) {
+				ShutdownHook.register(this);
+			}
+		}
+	}
+
+	/**
+	 * Called by {@link #initialize} and also {@link #rotate}, to switch to a
+	 * new writer. Does not close the old writer, if any.
+	 */
+	private void startWriter() {
+		synchronized (initializationLock) {
+			try {
+				final LogWriter newWriter = writerFactory.newLogWriter(generateWriterConfig());
+				newWriter.setDispatchWhenIdle(dispatchWhenIdle);
+				writer = newWriter;
+				writerStartedAt = System.currentTimeMillis();
+				threadFactory.startLoggingThread(newWriter, new UncaughtExceptionHandler() {
+					@Override
+					public void uncaughtException(Thread t, Throwable ex) {
+						LogLog.error("LogWriter failure", ex);
+						statistics.recordWriterFailure();
+						writerFailed(newWriter);
+						// set last, so that anything waiting for it sees the writer reset
+						lastWriterException = ex;
+					}
+				});
+
+				if (layout.getHeader() != null) {
+					internalAppend(LogMessage.create(layout.getHeader()));
+				}
+
+				synchronized (messageQueueLock) {
+					if ((writerBacklog != null) && (writer == newWriter)) {
+						for (LogMessage message = writerBacklog.dequeue(); message != null; message = writerBacklog.dequeue()) {
+							newWriter.addMessage(message);
+						}
+						writerBacklog = null;
+					}
+				}
+
+				lastRotationTimestamp = System.currentTimeMillis();
+				lastRotationCount = 0;
+			} catch (Exception ex) {
+				LogLog.error("exception while initializing writer", ex);
+			}
+		}
+	}
+
+	/**
+	 * Called when a writer's thread has died or the writer has stalled. Takes the
+	 * writer's unsent messages and, if it's the current writer, detaches it and
+	 * schedules its replacement; the messages are held until then. Messages from
+	 * a writer that has already been replaced go to the current writer. Returns
+	 * true if the passed writer was the current writer.
+	 */
+	private boolean writerFailed(LogWriter failedWriter) {
+		synchronized (initializationLock) {
+			synchronized (messageQueueLock) {
+				boolean wasCurrent = (writer == failedWriter);
+				LogWriter replacement = wasCurrent ? null : writer;
+				if (wasCurrent && !closed && (writerRestartDelay > 0)) {
+					if (writerBacklog == null) {
+						writerBacklog = new MessageQueue(discardThreshold, discardAction, statistics);
+					}
+					scheduleRestart(System.currentTimeMillis());
+				}
+
+				List<LogMessage> unsent = failedWriter.takeQueuedMessages();
+				for (LogMessage message : unsent) {
+					if (replacement != null) {
+						replacement.addMessage(message);
+					} else if (writerBacklog != null) {
+						writerBacklog.enqueue(message);
+					} else {
+						statistics.recordDiscarded(DiscardReason.noWriter, 1);
+					}
+				}
+
+				// cleared last, so that a thread that sees no writer (without taking
+				// the lock) also sees its messages in the backlog
+				if (wasCurrent) {
+					writer = null;
+				}
+				return wasCurrent;
+			}
+		}
+	}
+
+	/**
+	 * Sets the time for the next restart attempt: the delay doubles with each
+	 * consecutive failure, and is reset if the last writer ran long enough.
+	 */
+	private void scheduleRestart(long now) {
+		if ((restartDelay == 0) || (now - writerStartedAt >= MAX_RESTART_DELAY)) {
+			restartDelay = writerRestartDelay;
+		} else {
+			restartDelay = Math.min(restartDelay * 2, Math.max(writerRestartDelay, MAX_RESTART_DELAY));
+		}
+		nextRestartTimestamp = now + restartDelay;
+	}
+
+	/**
+	 * Called for each message, to replace a writer that has stalled or failed.
+	 * The replacement happens on the logging thread, once the restart delay has
+	 * passed (see {@link #restartWriter}).
+	 */
+	private void superviseWriter(long now) {
+		LogWriter current = writer;
+		if ((current != null) && (writerStallTimeout > 0)) {
+			long busySince = current.getBusySince();
+			if ((busySince > 0) && (now - busySince > writerStallTimeout) && writerFailed(current)) {
+				LogLog.error("LogWriter stalled: in call to destination for " + (now - busySince) + " milliseconds");
+				statistics.recordWriterFailure();
+				current.stop();
+			}
+		}
+
+		restartWriter(now, false);
+	}
+
+	/**
+	 * Starts a replacement for a failed writer, if messages are waiting for one.
+	 * This normally waits for the restart delay; flush and close don't wait,
+	 * because they're often the last chance to send those messages.
+	 */
+	private void restartWriter(long now, boolean ignoreDelay) {
+		if ((writer != null) || (writerBacklog == null) || (!ignoreDelay && (now < nextRestartTimestamp))) {
+			return;
+		}
+
+		synchronized (initializationLock) {
+			if (closed || (writer != null) || (writerBacklog == null)) {
+				return;
+			}
+
+			LogLog.debug("restarting LogWriter");
+			statistics.recordWriterRestart();
+			startWriter();
+			if (writer == null) {
+				// unable to create the writer; the backlog remains for the next attempt
+				scheduleRestart(now);
+			}
+		}
+	}
+
+	/**
+	 * Discards any messages held for a replacement writer. Called on close, if
+	 * the replacement couldn't be started.
+	 */
+	private void discardWriterBacklog() {
+		synchronized (messageQueueLock) {
+			if (writerBacklog == null)
+				return;
+
+			int unsent = 0;
+			while (writerBacklog.dequeue() != null) {
+				unsent++;
+			}
+			statistics.recordDiscarded(DiscardReason.shutdown, unsent);
+			writerBacklog = null;
+		}
+	}
+
+	/**
+	 * Closes the current writer.
+	 */
+	private void stopWriter() {
+		synchronized (initializationLock) {
+			LogWriter oldWriter = detachWriter();
+			if (oldWriter != null) {
+				oldWriter.stop();
+			}
+		}
+	}
+
+	/**
+	 * Writes the footer (if any) to the current writer and then disconnects it
+	 * from the appender, without stopping it. Returns the writer, null if there
+	 * wasn't one.
+	 */
+	private LogWriter detachWriter() {
+		synchronized (initializationLock) {
+			if (writer == null)
+				return null;
+
+			if (layout.getFooter() != null) {
+				internalAppend(LogMessage.create(layout.getFooter()));
+			}
+
+			LogWriter oldWriter = writer;
+			writer = null;
+			return oldWriter;
+		}
+	}
+
+	/**
+	 * Called by {@link #initialize} when the appender has a routing key. Writers
+	 * are started for each route as it's used.
+	 */
+	private void startRouting() {
+		if (layout instanceof AbstractLayout) {
+			((AbstractLayout)layout).prepareForRouting();
+		}
+		routeTemplate = new RouteTemplate(routingKey, disallowedRouteCharacters());
+		routes = new LRUCache<String, LogWriter>(maxRoutes) {
+			@Override
+			protected void evicted(String route, LogWriter routeWriter) {
+				LogLog.debug("stopping writer for route: " + route);
+				retireRouteWriter(routeWriter, true);
+			}
+		};
+		lastRotationTimestamp = System.currentTimeMillis();
+		lastRotationCount = 0;
+	}
+
+	/**
+	 * Creates and starts the writer for a route, adding it to the route cache
+	 * (which may evict another route). Must be called while holding the message
+	 * queue lock, with a configuration generated outside that lock. Returns null
+	 * if unable to create the writer.
+	 */
+	private LogWriter startRouteWriter(final String route, WriterConfigType config) {
+		try {
+			final LogWriter routeWriter = writerFactory.newLogWriter(config);
+			routeWriter.setDispatchWhenIdle(dispatchWhenIdle);
+			threadFactory.startLoggingThread(routeWriter, new UncaughtExceptionHandler() {
+				@Override
+				public void uncaughtException(Thread t, Throwable ex) {
+					LogLog.error("LogWriter failure for route " + route, ex);
+					statistics.recordWriterFailure();
+					synchronized (messageQueueLock) {
+						// the next event for this route will start a new writer
+						if (routes.get(route) == routeWriter) {
+							routes.remove(route);
+							statistics.recordRouteClosed(false);
+						}
+						statistics.recordDiscarded(DiscardReason.noWriter, routeWriter.takeQueuedMessages().size());
+					}
+					lastWriterException = ex;
+				}
+			});
+
+			routes.put(route, routeWriter);
+			statistics.recordRouteOpened();
+
+			if (layout.getHeader() != null) {
+				routeWriter.addMessage(LogMessage.create(layout.getHeader()));
+			}
+			return routeWriter;
+		} catch (Exception ex) {
+			LogLog.error("exception while initializing writer for route " + route, ex);
+			return null;
+		}
+	}
+
+	/**
+	 * Writes the footer (if any) to a route's writer and tells it to stop once
+	 * it has sent its queued messages.
+	 */
+	private void retireRouteWriter(LogWriter routeWriter, boolean evicted) {
+		if (layout.getFooter() != null) {
+			routeWriter.addMessage(LogMessage.create(layout.getFooter()));
+		}
+		routeWriter.stop();
+		statistics.recordRouteClosed(evicted);
+	}
+
+	/**
+	 * Removes all routes from the cache, writing the footer to each, and returns
+	 * their writers without stopping them. Returns an empty list if not routing.
+	 */
+	private List<LogWriter> detachRoutes() {
+		if (routes == null)
+			return Collections.emptyList();
+
+		synchronized (messageQueueLock) {
+			List<LogWriter> result = routes.clear();
+			for (LogWriter routeWriter : result) {
+				if (layout.getFooter() != null) {
+					routeWriter.addMessage(LogMessage.create(layout.getFooter()));
+				}
+				statistics.recordRouteClosed(false);
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Formats an event and passes it to the appropriate writer.
+	 */
+	private void dispatch(LoggingEvent event) {
+		dispatch(event, null);
+	}
+
+	/**
+	 * Formats and dispatches an event that wasn't logged by the current call on
+	 * this thread, so that layouts don't look for its location on the current
+	 * stack (see {@link LocationFinder}).
+	 */
+	private void dispatchDeferred(LoggingEvent event, boolean locationCaptured) {
+		LocationFinder.beginDeferred(locationCaptured);
+		try {
+			dispatch(event);
+		} finally {
+			LocationFinder.endDeferred();
+		}
+	}
+
+	/**
+	 * Passes an event to the appropriate writer, formatting it unless it has
+	 * already been formatted. A preformatted message may be shared with other
+	 * appenders, so the writer gets its own instance.
+	 */
+	private void dispatch(LoggingEvent event, LogMessage preformatted) {
+		LogMessage message = (preformatted != null) ? preformatted.share() : LogMessage.create(event, getLayout());
+		if (routeTemplate != null) {
+			routedAppend(routeTemplate.evaluate(event), message);
+		} else {
+			internalAppend(message);
+		}
+	}
+
+	private void routedAppend(String route, LogMessage message) {
+		if ((message == null) || !checkMessageSize(message))
+			return;
+
+		long now = System.currentTimeMillis();
+		rotateIfNeeded(now);
+
+		if (addToRoute(route, message, null, now))
+			return;
+
+		// a new route's configuration is generated without holding the lock,
+		// because substitutions may block (for example, {instanceId}); if two
+		// threads race to start the same route, one configuration is unused
+
+		WriterConfigType config = null;
+		try {
+			config = generateWriterConfig(route);
+		} catch (Exception ex) {
+			LogLog.error("exception while configuring writer for route " + route, ex);
+		}
+
+		if (config == null) {
+			statistics.recordDiscarded(DiscardReason.noWriter, 1);
+			return;
+		}
+
+		addToRoute(route, message, config, now);
+	}
+
+	/**
+	 * Adds a message to its route's writer, starting that writer with the passed
+	 * configuration if necessary. Returns false, without doing anything, if the
+	 * route doesn't have a writer and no configuration was passed.
+	 */
+	private boolean addToRoute(String route, LogMessage message, WriterConfigType config, long now) {
+		synchronized (messageQueueLock) {
+			if (closed) {
+				statistics.recordDiscarded(DiscardReason.noWriter, 1);
+				return true;
+			}
+
+			LogWriter routeWriter = routes.get(route);
+			if (routeWriter == null) {
+				if (config == null)
+					return false;
+				routeWriter = startRouteWriter(route, config);
+			}
+
+			if (routeWriter == null) {
+				statistics.recordDiscarded(DiscardReason.noWriter, 1);
+			} else {
+				routeWriter.addMessage(message);
+				lastRotationCount++;
+			}
+
+			if (routeIdleTimeout > 0) {
+				routes.expireUnusedSince(now - routeIdleTimeout);
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Returns the current writer and all route writers.
+	 */
+	private List<LogWriter> activeWriters() {
+		List<LogWriter> writers = new ArrayList<LogWriter>();
+		synchronized (messageQueueLock) {
+			if (writer != null) {
+				writers.add(writer);
+			}
+			if (routes != null) {
+				writers.addAll(routes.values());
+			}
+		}
+		return writers;
+	}
+
+	/**
+	 * Verifies that the message isn't too large to send, recording it as
+	 * discarded if it is.
+	 */
+	private boolean checkMessageSize(LogMessage message) {
+		if (isMessageTooLarge(message)) {
+			LogLog.warn("attempted to append a message > AWS batch size; ignored");
+			statistics.recordDiscarded(DiscardReason.tooLarge, 1);
+			return false;
+		}
+		return true;
+	}
+
+	private void internalAppend(LogMessage message) {
+		if ((message == null) || !checkMessageSize(message))
+			return;
+
+		long now = System.currentTimeMillis();
+		rotateIfNeeded(now);
+		superviseWriter(now);
+
+		synchronized (messageQueueLock) {
+			if (writer != null) {
+				writer.addMessage(message);
+				lastRotationCount++;
+			} else if (writerBacklog != null) {
+				writerBacklog.enqueue(message);
+			} else {
+				LogLog.warn("appender not properly configured: writer is null");
+				statistics.recordDiscarded(DiscardReason.noWriter, 1);
+			}
+		}
+	}
+
+	/**
+	 * Formats a message generated by the appender itself, such as a statistics
+	 * summary, using the appender's layout, and writes it to the destination.
+	 * When routing, the event is routed like any other: its logger is the
+	 * appender class, and it has the current thread's MDC.
+	 */
+	protected void appendInternalEvent(Level level, String message) {
+		LoggingEvent event = new LoggingEvent(getClass().getName(), Logger.getLogger(getClass()), level, message, null);
+		dispatch(event);
+	}
+
+	private void configureVerbosityController() {
+		long lowWatermark = (adaptiveLowWatermark >= 0) ? adaptiveLowWatermark : adaptiveHighWatermark / 2;
+		verbosityController = ((adaptiveHighWatermark <= 0) && (adaptiveMaxLag <= 0)) ? null
+							: new VerbosityController(adaptiveHighWatermark, lowWatermark, adaptiveMaxLag, adaptiveHoldTime);
+	}
+
+	private void configureTailBuffer() {
+		if (tailBuffer != null) {
+			tailBuffer.clear();
+		}
+		tailBuffer = (tailBufferThreshold == null) ? null
+				   : new TailBuffer(tailBufferKey, tailBufferLocationInfo, tailBufferSize, tailBufferContexts, tailBufferTimeout, statistics);
+	}
+
+	private void configureSampler() {
+		sampler = ((sampleKey == null) || (sampleRatio >= 1)) ? null : new TraceSampler(sampleKey, sampleRatio, sampleThreshold);
+	}
+
+	private void dispatchDuplicateSummaries() {
+		LoggingEvent summary;
+		while ((summary = deduplicator.pollSummary()) != null) {
+			dispatchDeferred(summary, false);
+		}
+	}
+
+	private void reportLagIfNeeded(long now) {
+		if (lagReportInterval <= 0)
+			return;
+
+		if (lastLagReportTimestamp == 0) {
+			// first call starts the interval; there's nothing to report yet
+			lastLagReportTimestamp = now;
+			return;
+		}
+
+		if ((now - lastLagReportTimestamp) < lagReportInterval)
+			return;
+
+		lastLagReportTimestamp = now;
+		appendInternalEvent(Level.INFO, statistics.intervalLagSummary());
 	}
 
 	private void rotateIfNeeded(long now) {
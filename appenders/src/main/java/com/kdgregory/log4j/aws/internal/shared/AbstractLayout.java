@@ -0,0 +1,314 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.log4j.aws.internal.shared;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Layout;
+import org.apache.log4j.spi.LocationInfo;
+import org.apache.log4j.spi.LoggingEvent;
+
+
+/**
+ *  Common implementation code for the layouts that write an event as a map of
+ *  properties (<code>JsonLayout</code> and <code>MessagePackLayout</code>).
+ *  <p>
+ *  This class owns the shared configuration (location, hostname, instance ID,
+ *  and tags), resolves the values that don't change after activation, and
+ *  caches the encoded forms of logger names and call-site locations. Subclasses
+ *  provide the encoding, and pre-encode the static values in whatever form
+ *  suits their output. If the instance ID isn't available at activation, the
+ *  static values are re-encoded when it arrives; subclasses must call
+ *  {@link #refreshInstanceId} before using them.
+ *  <p>
+ *  As with {@link AbstractAppender}, the resolved values are protected so that
+ *  subclasses can use them directly; this is a public API for an internal class.
+ */
+public abstract class AbstractLayout
+extends Layout
+implements BinaryLayout
+{
+    // the number of distinct names that we'll remember per cache; an application
+    // that creates loggers dynamically shouldn't be able to exhaust memory
+    protected final static int MAX_CACHED_NAMES = 1024;
+
+    // and the number of call sites whose encoded location we'll remember
+    protected final static int MAX_CACHED_LOCATIONS = 4096;
+
+    // if enabled and supported, these will be not-null after activation
+    protected String processId;
+    protected String hostname;
+    protected String instanceId;
+    protected Map<String,String> tags;
+
+    // the instance ID lookup may not finish before activation; if so, this
+    // is set and each formatted event checks for it (without waiting)
+    private volatile boolean instanceIdPending;
+
+    // logger names repeat from event to event, so we remember their encoding
+    private ConcurrentHashMap<String,byte[]> loggerNameCache = new ConcurrentHashMap<String,byte[]>();
+
+    // the complete location object, keyed by call site
+    private ConcurrentHashMap<StackTraceElement,byte[]> locationCache = new ConcurrentHashMap<StackTraceElement,byte[]>();
+
+//----------------------------------------------------------------------------
+//  Configuration
+//----------------------------------------------------------------------------
+
+    protected boolean enableLocation;
+    protected boolean enableHostname;
+    protected boolean enableInstanceId;
+    protected String rawTags;
+
+
+    public void setEnableLocation(boolean value)
+    {
+        enableLocation = value;
+    }
+
+
+    public boolean getEnableLocation()
+    {
+        return enableLocation;
+    }
+
+
+    public void setEnableInstanceId(boolean value)
+    {
+        enableInstanceId = value;
+        if (value)
+        {
+            InstanceMetadata.prefetch();
+        }
+    }
+
+
+    public boolean getEnableInstanceId()
+    {
+        return enableInstanceId;
+    }
+
+
+    public void setEnableHostname(boolean value)
+    {
+        enableHostname = value;
+    }
+
+
+    public boolean getEnableHostname()
+    {
+        return enableHostname;
+    }
+
+
+    public void setTags(String value)
+    {
+        rawTags = value;
+        Substitutions.prefetch(value);
+    }
+
+
+    public String getTags()
+    {
+        return rawTags;
+    }
+
+//----------------------------------------------------------------------------
+//  Layout Overrides
+//----------------------------------------------------------------------------
+
+    /**
+     *  Resolves the static values, then calls {@link #encodeStaticContent}.
+     *  Subclasses that have their own options should call this first.
+     */
+    @Override
+    public void activateOptions()
+    {
+        Substitutions subs = new Substitutions(new Date(), 0);
+
+        processId = subs.perform("{pid}");
+        if ("unknown".equals(processId))
+            processId = null;
+
+        hostname = null;
+        if (enableHostname)
+        {
+            hostname = subs.perform("{hostname}");
+            if ("unknown".equals(hostname))
+                hostname = null;
+        }
+
+        instanceId = null;
+        if (enableInstanceId)
+        {
+            instanceId = subs.perform("{instanceId}");
+            if ("{instanceId}".equals(instanceId))
+                instanceId = null;
+        }
+        instanceIdPending = enableInstanceId && (instanceId == null);
+
+        tags = null;
+        if ((rawTags != null) && !rawTags.isEmpty())
+        {
+            tags = new TreeMap<String,String>();
+            for (String tagdef : rawTags.split(","))
+            {
+                String[] splitdef = tagdef.split("=");
+                if (splitdef.length == 2)
+                {
+                    tags.put(splitdef[0], subs.perform(splitdef[1]));
+                }
+                else
+                {
+                    throw new IllegalArgumentException("invalid tag definition: " + tagdef);
+                }
+            }
+        }
+
+        encodeStaticContent();
+    }
+
+
+    @Override
+    public boolean ignoresThrowable()
+    {
+        return false;
+    }
+
+
+    /**
+     *  Called by a routing appender (or a fan-out appender that feeds one) before
+     *  it uses this layout: the formatted events will be split between multiple
+     *  destinations, so the layout must not omit content on the assumption that
+     *  an earlier event already wrote it to the same place. The default does
+     *  nothing, because there's no such content.
+     */
+    public void prepareForRouting()
+    {
+        // nothing here
+    }
+
+//----------------------------------------------------------------------------
+//  Subclass hooks
+//----------------------------------------------------------------------------
+
+    /**
+     *  Called after the static values (process ID, hostname, instance ID, and
+     *  tags) have been resolved, so that the subclass can pre-encode them. This
+     *  is called again if the instance ID arrives after activation, so anything
+     *  that it sets must be safe to replace while other threads are formatting.
+     */
+    protected abstract void encodeStaticContent();
+
+
+    /**
+     *  Returns the encoded form of a single string value (which may be null).
+     */
+    protected abstract byte[] encodeString(String value);
+
+
+    /**
+     *  Returns the encoded form of a location object.
+     */
+    protected abstract byte[] encodeLocation(String className, String fileName, String lineNumber, String methodName);
+
+//----------------------------------------------------------------------------
+//  Helpers for subclasses
+//----------------------------------------------------------------------------
+
+    /**
+     *  Picks up the instance ID if it wasn't available at activation but has been
+     *  retrieved since, re-encoding the static content. This doesn't wait for the
+     *  lookup, and does nothing once the lookup has completed.
+     */
+    protected void refreshInstanceId()
+    {
+        if (! instanceIdPending)
+            return;
+
+        // check completion first: once the lookup is complete, its value is final
+        boolean complete = InstanceMetadata.isLookupComplete();
+        String value = InstanceMetadata.peekInstanceId();
+        if ((value == null) && ! complete)
+            return;
+
+        synchronized (this)
+        {
+            if (! instanceIdPending)
+                return;
+
+            if (value != null)
+            {
+                instanceId = value;
+                encodeStaticContent();
+            }
+            instanceIdPending = false;
+        }
+    }
+
+
+    /**
+     *  Returns the encoded logger name, from the cache if possible.
+     */
+    protected byte[] encodedLoggerName(String value)
+    {
+        return cachedEncoding(loggerNameCache, value);
+    }
+
+
+    /**
+     *  Returns the encoded form of a string, from the passed cache if possible.
+     *  New entries are added only while the cache is below its size limit.
+     */
+    protected byte[] cachedEncoding(ConcurrentHashMap<String,byte[]> cache, String value)
+    {
+        if (value == null)
+            return encodeString(null);
+
+        byte[] encoded = cache.get(value);
+        if (encoded == null)
+        {
+            encoded = encodeString(value);
+            if (cache.size() < MAX_CACHED_NAMES)
+            {
+                cache.put(value, encoded);
+            }
+        }
+        return encoded;
+    }
+
+
+    /**
+     *  Returns the encoded location object for the event. If the event is being
+     *  logged by the current thread, and we can find the caller on the current
+     *  stack, the result is cached; if not, we ask the event for its location
+     *  (which for deferred events is known only if captured when they were logged).
+     */
+    protected byte[] encodedLocation(LoggingEvent event)
+    {
+        StackTraceElement frame = LocationFinder.isCurrentEvent(event)
+                                ? LocationFinder.findCaller(event.fqnOfCategoryClass)
+                                : null;
+        if (frame == null)
+        {
+            LocationInfo info = LocationFinder.isLocationUnavailable()
+                              ? LocationInfo.NA_LOCATION_INFO
+                              : event.getLocationInformation();
+            return encodeLocation(info.getClassName(), info.getFileName(), info.getLineNumber(), info.getMethodName());
+        }
+
+        byte[] encoded = locationCache.get(frame);
+        if (encoded == null)
+        {
+            encoded = encodeLocation(frame.getClassName(), LocationFinder.fileName(frame),
+                                     LocationFinder.lineNumber(frame), frame.getMethodName());
+            if (locationCache.size() < MAX_CACHED_LOCATIONS)
+            {
+                locationCache.put(frame, encoded);
+            }
+        }
+        return encoded;
+    }
+}
@@ -3,30 +3,73 @@ package com.kdgregory.log4j.aws.internal.shared;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
-
+import java.util.Set;
+import java.lang.Thread.UncaughtExceptionHandler;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.kdgregory.log4j.aws.internal.shared.AppenderStatistics.DiscardReason;
 import com.kdgregory.log4j.aws.internal.shared.MessageQueue.DiscardAction;
 
 
 /**
  *  Manages common LogWriter activities.
+ *  <p>
+ *  A writer normally runs on its own thread, via {@link #run}, which waits for
+ *  messages. Alternatively, {@link #start} runs it as a series of tasks on a
+ *  shared executor: each task sends one batch, and the next is scheduled when
+ *  a message arrives (after the batch delay), when the writer is flushed or
+ *  stopped, or immediately if messages remain. At most one task per writer is
+ *  scheduled or running at any time, so messages are sent in order.
  */
 public abstract class AbstractLogWriter
 implements LogWriter
 {
     private MessageQueue messageQueue;
     private long batchDelay;
+    private volatile boolean dispatchWhenIdle;
+    private AppenderStatistics statistics;
 
-    private Thread dispatchThread;
+    private volatile Thread dispatchThread;
+    private CountDownLatch stoppedLatch = new CountDownLatch(1);
 
     private volatile Long shutdownTime;     // this is an actual timestamp, not an elapsed time
+    private volatile long busySince;        // when the current call to the destination started; 0 if none
     private volatile int batchCount;        // can be read via accessor method by other threads
 
-
-    public AbstractLogWriter(long batchDelay, int discardThreshold, DiscardAction discardAction)
+    // messages are numbered as they're added, so that a flush knows what it's waiting for;
+    // only updated by addMessage(), which is called while holding the appender's lock
+    private volatile long lastSequence;
+
+    // these variables coordinate flush requests with the writer thread, and are
+    // guarded by waitLock; see flush() and dequeue()
+    private Object waitLock = new Object();
+    private List<FlushRequest> flushRequests = new ArrayList<FlushRequest>();
+    private boolean waitingForMessages;
+    private boolean interruptedWhileWaiting;
+    private boolean stopped;
+
+    // when running on a shared executor, the executor and the writer's next task;
+    // also guarded by waitLock
+    private ScheduledExecutorService executor;
+    private UncaughtExceptionHandler exceptionHandler;
+    private ScheduledFuture<?> pendingTask;
+    private long pendingTaskTime;
+    private boolean taskRunning;
+    private boolean initialized;
+
+
+    public AbstractLogWriter(long batchDelay, int discardThreshold, DiscardAction discardAction, AppenderStatistics statistics)
     {
         this.batchDelay = batchDelay;
-        messageQueue = new MessageQueue(discardThreshold, discardAction);
+        this.statistics = (statistics != null) ? statistics : new AppenderStatistics();
+        messageQueue = new MessageQueue(discardThreshold, discardAction, this.statistics);
     }
 
 
@@ -52,6 +95,16 @@ implements LogWriter
     }
 
 
+    /**
+     *  Returns the statistics object that this writer updates. Subclasses use
+     *  this to record service-specific events such as throttling.
+     */
+    public AppenderStatistics getStatistics()
+    {
+        return statistics;
+    }
+
+
 //----------------------------------------------------------------------------
 //  Implementation of LogWriter
 //----------------------------------------------------------------------------
@@ -59,7 +112,21 @@ implements LogWriter
     @Override
     public void addMessage(LogMessage message)
     {
+        long sequence = lastSequence + 1;
+        message.setSequence(sequence);
         messageQueue.enqueue(message);
+        lastSequence = sequence;
+
+        if (executor != null)
+        {
+            synchronized (waitLock)
+            {
+                if (! taskRunning && (pendingTask == null))
+                {
+                    scheduleTask(dispatchWhenIdle ? 0 : batchDelay);
+                }
+            }
+        }
     }
 
 
@@ -70,17 +137,101 @@ implements LogWriter
     }
 
 
+    @Override
+    public void setDispatchWhenIdle(boolean value)
+    {
+        this.dispatchWhenIdle = value;
+    }
+
+
     @Override
     public void stop()
     {
-        shutdownTime = new Long(System.currentTimeMillis() + batchDelay);
-        if (dispatchThread != null)
+        initiateShutdown(batchDelay);
+    }
+
+
+    @Override
+    public boolean stopAndWait(long timeout)
+    {
+        initiateShutdown(timeout);
+        try
+        {
+            return stoppedLatch.await(timeout, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException ex)
         {
-            dispatchThread.interrupt();
+            return false;
         }
     }
 
 
+    /**
+     *  Removes and returns all queued messages. This is called after the writer
+     *  thread has died (or when abandoning a stalled writer) so that the messages
+     *  can be given to a replacement. When the writer thread dies with an uncaught
+     *  exception, the batch that it was sending is returned to the queue first;
+     *  some of those messages may have been sent.
+     */
+    @Override
+    public List<LogMessage> takeQueuedMessages()
+    {
+        List<LogMessage> result = new ArrayList<LogMessage>(messageQueue.size());
+        LogMessage message;
+        while ((message = messageQueue.dequeue()) != null)
+        {
+            result.add(message);
+        }
+        return result;
+    }
+
+
+    @Override
+    public long getBusySince()
+    {
+        return busySince;
+    }
+
+
+    /**
+     *  Registers a request that's satisfied once every message added before this
+     *  call has left the queue: sent, or discarded. While a request is pending,
+     *  the writer thread doesn't wait for the batch delay. If the writer thread is
+     *  waiting for messages it's interrupted; it's never interrupted while sending
+     *  a batch, as that would abort the request.
+     *  <p>
+     *  Completion is checked by the writer thread between batches, when it isn't
+     *  holding any messages. Since messages are numbered in the order that they're
+     *  added, and the queue preserves that order (including for requeued messages),
+     *  the request is complete when the first queued message is numbered after it.
+     */
+    @Override
+    public CountDownLatch flush()
+    {
+        FlushRequest request = new FlushRequest(lastSequence);
+        synchronized (waitLock)
+        {
+            if (stopped)
+            {
+                request.latch.countDown();
+                return request.latch;
+            }
+
+            flushRequests.add(request);
+            if (waitingForMessages && (dispatchThread != null))
+            {
+                interruptedWhileWaiting = true;
+                dispatchThread.interrupt();
+            }
+            if ((executor != null) && ! taskRunning)
+            {
+                scheduleTask(0);
+            }
+        }
+        return request.latch;
+    }
+
+
 //----------------------------------------------------------------------------
 //  Implementation of Runnable
 //----------------------------------------------------------------------------
@@ -88,28 +239,86 @@ implements LogWriter
     @Override
     public void run()
     {
-        createAWSClient();
-        if (! ensureDestinationAvailable()) return;
+        boolean exitedNormally = false;
+        List<LogMessage> currentBatch = null;
+        try
+        {
+            if (! initializeDestination())
+            {
+                exitedNormally = true;
+                return;
+            }
+
+            // initialize the dispatch thread here so that an interrupt will only affect the code
+            // that waits for messages; not likely to happen in real world, but does in smoketest
+
+            dispatchThread = Thread.currentThread();
+
+            // the do-while loop ensures that we attempt to process at least one batch, even if
+            // the writer is started and immediately stopped; again, that's not likely to happen
+            // in the real world, but was causing problems with the smoketest
+
+            do
+            {
+                currentBatch = buildBatch();
+                sendBatch(currentBatch);
+                currentBatch = null;
+                completeFlushRequests();
+            } while (keepRunning());
+            exitedNormally = true;
+        }
+        finally
+        {
+            finish(exitedNormally, currentBatch);
+        }
+    }
+
+
+    /**
+     *  Runs the writer as a series of tasks on the passed executor, rather than on
+     *  a dedicated thread; see the class docs. The first task creates the client
+     *  and verifies the destination. If a task throws, the writer stops and the
+     *  passed handler is invoked, as it would be for a dedicated thread.
+     *  <p>
+     *  Tasks don't wait for messages, but do block while talking to the service;
+     *  the executor should have enough threads to cover writers that are sending
+     *  at the same time.
+     */
+    public void start(ScheduledExecutorService exec, UncaughtExceptionHandler handler)
+    {
+        start(exec, null, handler);
+    }
 
-        // initialize the dispatch thread here so that an interrupt will only affect the code
-        // that waits for messages; not likely to happen in real world, but does in smoketest
 
-        dispatchThread = Thread.currentThread();
+    /**
+     *  Runs the writer as a series of tasks on the passed executor, as above, but
+     *  runs the first task (which may take a long time) on the passed setup executor
+     *  if it's not null, so that it doesn't hold a thread that other writers need.
+     */
+    public void start(ScheduledExecutorService exec, Executor setupExec, UncaughtExceptionHandler handler)
+    {
+        synchronized (waitLock)
+        {
+            executor = exec;
+            exceptionHandler = handler;
+            if (setupExec == null)
+            {
+                scheduleTask(0);
+                return;
+            }
 
-        // the do-while loop ensures that we attempt to process at least one batch, even if
-        // the writer is started and immediately stopped; again, that's not likely to happen
-        // in the real world, but was causing problems with the smoketest
+            // nothing else is scheduled until setup finishes
+            taskRunning = true;
+        }
 
-        do
+        setupExec.execute(new Runnable()
         {
-            List<LogMessage> currentBatch = buildBatch();
-            if (currentBatch.size() > 0)
+            @Override
+            public void run()
             {
-                batchCount++;
-                List<LogMessage> failures = processBatch(currentBatch);
-                requeueMessages(failures);
+                runTask();
             }
-        } while (keepRunning());
+        });
     }
 
 
@@ -160,25 +369,47 @@ implements LogWriter
 
     /**
      *  Attempts to read a list of messages from the queue. Will wait "forever"
-     *  (or until shutdown) for the first message, then read as many messages
-     *  as possible within the batch delay.
+     *  for the first message, then read as many messages as possible within the
+     *  batch delay. Once the writer has been stopped, or while a flush is pending,
+     *  it doesn't wait at all: it takes whatever is in the queue, so that a backlog
+     *  drains at full speed.
+     *  <p>
+     *  When dispatching when idle, it also doesn't wait: the batch is whatever
+     *  accumulated while the previous batch was being sent (or just the first
+     *  message, if the writer was idle). This gives low latency when volume is
+     *  low, and large batches when it's high, as with Nagle's algorithm.
      *  <p>
      *  For each message, the subclass is called to determine the effective size
      *  of the message, and whether the aggregate batch size is within the range
      *  accepted by the service.
      */
     protected List<LogMessage> buildBatch()
+    {
+        // we'll wait "forever" unless there's a shutdown timestamp in effect
+        boolean shuttingDown = (shutdownTime != null);
+        long firstMessageTimeout = shuttingDown ? 0 : Long.MAX_VALUE;
+        long batchDelayTimeout = (shuttingDown || dispatchWhenIdle) ? 0 : batchDelay;
+        return buildBatch(firstMessageTimeout, batchDelayTimeout);
+    }
+
+//----------------------------------------------------------------------------
+//  Internals
+//----------------------------------------------------------------------------
+
+    /**
+     *  Implementation of {@link #buildBatch()}: waits up to the first timeout for
+     *  a message, then up to the batch delay (measured from that message) for more.
+     */
+    private List<LogMessage> buildBatch(long firstMessageTimeout, long batchDelayTimeout)
     {
         // presizing to a small-but-possible size to avoid repeated resizes
         List<LogMessage> batch = new ArrayList<LogMessage>(512);
 
-        // we'll wait "forever" unless there's a shutdown timestamp in effect
-        long firstMessageTimeout = (shutdownTime != null) ? shutdownTime.longValue() : Long.MAX_VALUE;
-        LogMessage message = messageQueue.dequeue(firstMessageTimeout);
+        LogMessage message = dequeue(firstMessageTimeout);
         if (message == null)
             return batch;
 
-        long batchTimeout = System.currentTimeMillis() + batchDelay;
+        long batchTimeout = System.currentTimeMillis() + batchDelayTimeout;
         int batchBytes = 0;
         int batchMsgs = 0;
         while (message != null)
@@ -202,20 +433,219 @@ implements LogWriter
     }
 
 
-//----------------------------------------------------------------------------
-//  Internals
-//----------------------------------------------------------------------------
+    /**
+     *  Creates the client and verifies the destination, returning false if the
+     *  destination isn't available (in which case the writer stops).
+     */
+    private boolean initializeDestination()
+    {
+        busySince = System.currentTimeMillis();
+        try
+        {
+            createAWSClient();
+            return ensureDestinationAvailable();
+        }
+        finally
+        {
+            busySince = 0;
+        }
+    }
+
+
+    /**
+     *  Sends a batch (if it isn't empty), recording statistics and requeueing
+     *  any messages that weren't sent.
+     */
+    private void sendBatch(List<LogMessage> batch)
+    {
+        if (batch.isEmpty())
+            return;
+
+        batchCount++;
+        int batchSize = batch.size();
+        long start = System.currentTimeMillis();
+        busySince = start;
+        List<LogMessage> failures = processBatch(batch);
+        busySince = 0;
+        long finish = System.currentTimeMillis();
+        statistics.recordBatch(batchSize, failures.size(), finish - start);
+        recordDeliveries(batch, failures, start, finish);
+        requeueMessages(failures);
+    }
+
+
+    /**
+     *  Called when the writer stops, normally or due to an uncaught exception.
+     */
+    private void finish(boolean exitedNormally, List<LogMessage> currentBatch)
+    {
+        busySince = 0;
+        if (exitedNormally)
+        {
+            // anything left in the queue at this point will never be sent; we empty
+            // the queue so that it's no longer counted as queued
+            int unsent = 0;
+            while (messageQueue.dequeue() != null)
+            {
+                unsent++;
+            }
+            statistics.recordDiscarded(DiscardReason.shutdown, unsent);
+        }
+        else if (currentBatch != null)
+        {
+            // we died with an uncaught exception; the appender may hand our queue to a
+            // replacement writer, so put back the batch that we were trying to send
+            requeueMessages(new ArrayList<LogMessage>(currentBatch));
+        }
+
+        // nothing more will be sent, so nobody should wait for it; but if we died,
+        // our messages may be waiting for a replacement writer, so a pending flush
+        // hasn't succeeded (its caller will time out)
+        synchronized (waitLock)
+        {
+            stopped = true;
+            if (exitedNormally)
+            {
+                for (FlushRequest request : flushRequests)
+                {
+                    request.latch.countDown();
+                }
+            }
+            flushRequests.clear();
+        }
+        stoppedLatch.countDown();
+    }
+
+
+    /**
+     *  Schedules the writer's next task to run after the specified delay, unless
+     *  one is already scheduled to run sooner. Must be called while holding the
+     *  wait lock, and not by a running task (which schedules its successor when
+     *  it's done).
+     */
+    private void scheduleTask(long delay)
+    {
+        if (stopped)
+            return;
+
+        long runAt = System.currentTimeMillis() + delay;
+        if (pendingTask != null)
+        {
+            if ((pendingTaskTime <= runAt) || ! pendingTask.cancel(false))
+                return;
+        }
+
+        pendingTaskTime = runAt;
+        pendingTask = executor.schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                runTask();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+
+    /**
+     *  The body of a task when running on a shared executor: initializes the writer
+     *  or sends a single batch, then schedules the next task if there's anything
+     *  to do. This follows the same sequence as {@link #run}, without waiting.
+     */
+    private void runTask()
+    {
+        synchronized (waitLock)
+        {
+            pendingTask = null;
+            taskRunning = true;
+        }
+
+        List<LogMessage> currentBatch = null;
+        try
+        {
+            if (! initialized)
+            {
+                initialized = true;
+                if (! initializeDestination())
+                {
+                    finish(true, null);
+                    return;
+                }
+                scheduleNextTask(false);
+                return;
+            }
+
+            currentBatch = buildBatch(0, 0);
+            boolean backlog = ! messageQueue.isEmpty();
+            sendBatch(currentBatch);
+            currentBatch = null;
+            completeFlushRequests();
+
+            if (keepRunning())
+                scheduleNextTask(backlog);
+            else
+                finish(true, null);
+        }
+        catch (Throwable ex)
+        {
+            finish(false, currentBatch);
+            exceptionHandler.uncaughtException(Thread.currentThread(), ex);
+        }
+    }
+
+
+    /**
+     *  Called at the end of a task to schedule the next, if there's anything to do.
+     *  Runs immediately if the last batch didn't take everything in the queue, or
+     *  if the writer is shutting down or flushing; otherwise after the batch delay.
+     */
+    private void scheduleNextTask(boolean backlog)
+    {
+        synchronized (waitLock)
+        {
+            taskRunning = false;
+            if ((shutdownTime != null) || ! flushRequests.isEmpty())
+                scheduleTask(0);
+            else if (! messageQueue.isEmpty())
+                scheduleTask((backlog || dispatchWhenIdle) ? 0 : batchDelay);
+        }
+    }
+
 
     /**
      *  A check for whether we should keep running: either we haven't been shut
-     *  down or there's still messages to process
+     *  down, or there's still messages to process and time to process them.
      */
     private boolean keepRunning()
     {
         return (shutdownTime == null)
              ? true
              : shutdownTime.longValue() > System.currentTimeMillis()
-               && messageQueue.isEmpty();
+               && ! messageQueue.isEmpty();
+    }
+
+
+    /**
+     *  Sets the shutdown timestamp and wakes the writer thread if it's waiting
+     *  for messages (or, on a shared executor, schedules a task). As with a flush,
+     *  the thread isn't interrupted while it's sending a batch, as that could abort
+     *  the call; it sees the timestamp before it next waits.
+     */
+    private void initiateShutdown(long timeout)
+    {
+        shutdownTime = new Long(System.currentTimeMillis() + timeout);
+        synchronized (waitLock)
+        {
+            if (waitingForMessages && (dispatchThread != null))
+            {
+                interruptedWhileWaiting = true;
+                dispatchThread.interrupt();
+            }
+            if ((executor != null) && ! taskRunning)
+            {
+                scheduleTask(0);
+            }
+        }
     }
 
 
@@ -226,7 +656,91 @@ implements LogWriter
     private LogMessage waitForMessage(long waitUntil)
     {
         long waitTime = waitUntil - System.currentTimeMillis();
-        return messageQueue.dequeue(waitTime);
+        return dequeue(waitTime);
+    }
+
+
+    /**
+     *  Reads the message queue, waiting no longer than the specified time, and
+     *  not at all if a flush or shutdown is pending. Records that the writer is
+     *  waiting, so that a flush or shutdown knows to interrupt it, and clears any
+     *  such interrupt that arrives after the wait finished.
+     */
+    private LogMessage dequeue(long waitTime)
+    {
+        synchronized (waitLock)
+        {
+            if (! flushRequests.isEmpty() || (shutdownTime != null))
+                waitTime = 0;
+            waitingForMessages = true;
+        }
+
+        try
+        {
+            return messageQueue.dequeue(waitTime);
+        }
+        finally
+        {
+            synchronized (waitLock)
+            {
+                waitingForMessages = false;
+                if (interruptedWhileWaiting)
+                {
+                    Thread.interrupted();
+                    interruptedWhileWaiting = false;
+                }
+            }
+        }
+    }
+
+
+    /**
+     *  Releases any flush requests whose messages have all left the queue. This
+     *  must only be called by the writer thread, when it doesn't hold a batch.
+     */
+    private void completeFlushRequests()
+    {
+        LogMessage first = messageQueue.peek();
+        long firstPending = (first != null) ? first.getSequence() : Long.MAX_VALUE;
+
+        synchronized (waitLock)
+        {
+            for (Iterator<FlushRequest> itx = flushRequests.iterator() ; itx.hasNext() ; )
+            {
+                FlushRequest request = itx.next();
+                if (request.lastSequence < firstPending)
+                {
+                    request.latch.countDown();
+                    itx.remove();
+                }
+            }
+        }
+    }
+
+
+    /**
+     *  Records delivery lag for every message in the batch that wasn't returned
+     *  as a failure.
+     */
+    private void recordDeliveries(List<LogMessage> batch, List<LogMessage> failures, long dequeuedAt, long ackedAt)
+    {
+        if (failures.size() >= batch.size())
+            return;
+
+        Set<LogMessage> failed = Collections.emptySet();
+        if (! failures.isEmpty())
+        {
+            failed = Collections.newSetFromMap(new IdentityHashMap<LogMessage,Boolean>());
+            failed.addAll(failures);
+        }
+
+        for (LogMessage message : batch)
+        {
+            if (! failed.contains(message))
+            {
+                statistics.recordDelivered(message, dequeuedAt, ackedAt);
+            }
+        }
     }
 
 
@@ -243,4 +757,15 @@ implements LogWriter
         }
     }
 
+
+    private static class FlushRequest
+    {
+        public long lastSequence;
+        public CountDownLatch latch = new CountDownLatch(1);
+
+        public FlushRequest(long lastSequence)
+        {
+            this.lastSequence = lastSequence;
+        }
+    }
 }
@@ -0,0 +1,554 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.log4j.aws.internal.shared;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.helpers.LogLog;
+
+
+/**
+ *  Holds delivery counters for a single appender. An instance is created by the
+ *  appender and passed (via the writer configuration) to each writer that it
+ *  creates, so that counts survive log rotation and writer replacement.
+ *  <p>
+ *  Instances are thread-safe without locking: every counter is an atomic (or,
+ *  for single values, volatile), so may be updated by any thread. Some counters
+ *  are updated by the appending thread outside of any lock (for example, events
+ *  discarded by sampling, rate limiting, or duplicate suppression), while others
+ *  are updated by the writer thread. Reads are not an atomic snapshot.
+ */
+public class AppenderStatistics
+implements AppenderStatisticsMXBean
+{
+    /**
+     *  The reasons that a message may be discarded.
+     */
+    public enum DiscardReason
+    {
+        /** The message queue exceeded its discard threshold. */
+        threshold,
+
+        /** The message was too large for the destination. */
+        tooLarge,
+
+        /** The appender didn't have a writer (for example, after writer failure). */
+        noWriter,
+
+        /** The message was still queued when the writer shut down. */
+        shutdown,
+
+        /** The event exceeded the appender's rate limits. */
+        rateLimited,
+
+        /** The event repeated a recent event, and was counted in a summary. */
+        duplicate,
+
+        /** The event was below the sample threshold, and its trace wasn't sampled. */
+        sampled,
+
+        /** The event was held in a tail buffer, and its context didn't report an error. */
+        unflushed,
+
+        /** The event was below the threshold imposed because the writers couldn't keep up. */
+        degraded
+    }
+
+
+    private AtomicLong queuedMessages = new AtomicLong();
+    private AtomicLong queuedBytes = new AtomicLong();
+    private AtomicLong messagesEnqueued = new AtomicLong();
+    private AtomicLong messagesSent = new AtomicLong();
+    private AtomicLong messagesFailed = new AtomicLong();
+    private AtomicLong messagesRequeued = new AtomicLong();
+    private AtomicLongArray messagesDiscarded = new AtomicLongArray(DiscardReason.values().length);
+    private AtomicLong throttlingEvents = new AtomicLong();
+    private AtomicLong writerFailures = new AtomicLong();
+    private AtomicLong writerRestarts = new AtomicLong();
+    private AtomicLong activeRoutes = new AtomicLong();
+    private AtomicLong routesEvicted = new AtomicLong();
+    private AtomicLong thresholdChanges = new AtomicLong();
+    private volatile String effectiveThreshold = "ALL";
+    private volatile long lastDeliveryLag;
+    private Histogram batchSizes = new Histogram();
+    private Histogram batchLatencies = new Histogram();
+    private Histogram deliveryLag = new Histogram();
+    private Histogram queueTime = new Histogram();
+
+    // these are replaced each time an interval summary is generated; a value
+    // recorded concurrently with replacement may be lost from the summary
+    private volatile Histogram intervalDeliveryLag = new Histogram();
+    private volatile Histogram intervalQueueTime = new Histogram();
+    private volatile long intervalStart = System.currentTimeMillis();
+
+    private ObjectName registeredName;
+
+
+//----------------------------------------------------------------------------
+//  JMX registration
+//----------------------------------------------------------------------------
+
+    /**
+     *  Registers this object with the platform MBean server. Failure is reported
+     *  to the Log4J internal logger, but otherwise ignored.
+     */
+    public synchronized void registerMBean(Class<?> appenderClass, String appenderName)
+    {
+        if (registeredName != null)
+            return;
+
+        try
+        {
+            ObjectName name = new ObjectName("com.kdgregory.log4j.aws:type=" + appenderClass.getSimpleName()
+                                              + ",name=" + ObjectName.quote(String.valueOf(appenderName)));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            registeredName = name;
+        }
+        catch (Exception ex)
+        {
+            LogLog.warn("unable to register statistics MBean for appender " + appenderName + ": " + ex);
+        }
+    }
+
+
+    /**
+     *  Removes this object from the platform MBean server, if it was registered.
+     */
+    public synchronized void unregisterMBean()
+    {
+        if (registeredName == null)
+            return;
+
+        try
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(registeredName))
+            {
+                server.unregisterMBean(registeredName);
+            }
+        }
+        catch (Exception ex)
+        {
+            LogLog.warn("unable to unregister statistics MBean " + registeredName + ": " + ex);
+        }
+        registeredName = null;
+    }
+
+
+    /**
+     *  Returns the name that this object is registered under, null if it isn't
+     *  registered. This is intended for testing.
+     */
+    public synchronized ObjectName getRegisteredName()
+    {
+        return registeredName;
+    }
+
+
+//----------------------------------------------------------------------------
+//  Updates
+//----------------------------------------------------------------------------
+
+    /**
+     *  Records a message added to the tail of a queue.
+     */
+    public void recordEnqueued(LogMessage message)
+    {
+        messagesEnqueued.incrementAndGet();
+        queuedMessages.incrementAndGet();
+        queuedBytes.addAndGet(message.size());
+    }
+
+
+    /**
+     *  Records a message returned to the head of a queue.
+     */
+    public void recordRequeued(LogMessage message)
+    {
+        messagesRequeued.incrementAndGet();
+        queuedMessages.incrementAndGet();
+        queuedBytes.addAndGet(message.size());
+    }
+
+
+    /**
+     *  Records a message removed from a queue, whether to be sent or discarded.
+     */
+    public void recordDequeued(LogMessage message)
+    {
+        queuedMessages.decrementAndGet();
+        queuedBytes.addAndGet(- message.size());
+    }
+
+
+    /**
+     *  Records an attempt to send a batch: the number of messages that it held,
+     *  the number that failed, and the time taken.
+     */
+    public void recordBatch(int batchSize, int failures, long elapsed)
+    {
+        batchSizes.record(batchSize);
+        batchLatencies.record(elapsed);
+        if (batchSize > failures) messagesSent.addAndGet(batchSize - failures);
+        if (failures > 0) messagesFailed.addAndGet(failures);
+    }
+
+
+    /**
+     *  Records a message that was accepted by the destination. Delivery lag is
+     *  measured from the event's timestamp to the time that the service accepted
+     *  it; queue time is measured from the message's construction to the time that
+     *  it was taken from the queue for the successful batch (so includes the time
+     *  taken by any failed attempts).
+     */
+    public void recordDelivered(LogMessage message, long dequeuedAt, long ackedAt)
+    {
+        long lag = ackedAt - message.getTimestamp();
+        long queued = dequeuedAt - message.getCreatedAt();
+
+        lastDeliveryLag = lag;
+        deliveryLag.record(lag);
+        queueTime.record(queued);
+        intervalDeliveryLag.record(lag);
+        intervalQueueTime.record(queued);
+    }
+
+
+    /**
+     *  Records messages that will never be sent.
+     */
+    public void recordDiscarded(DiscardReason reason, int count)
+    {
+        if (count > 0) messagesDiscarded.addAndGet(reason.ordinal(), count);
+    }
+
+
+    /**
+     *  Records a throttled request or record.
+     */
+    public void recordThrottled()
+    {
+        throttlingEvents.incrementAndGet();
+    }
+
+
+    /**
+     *  Records the death of a writer thread.
+     */
+    public void recordWriterFailure()
+    {
+        writerFailures.incrementAndGet();
+    }
+
+
+    /**
+     *  Records the start of a writer to replace one that failed.
+     */
+    public void recordWriterRestart()
+    {
+        writerRestarts.incrementAndGet();
+    }
+
+
+    /**
+     *  Records the creation of a writer for a new route.
+     */
+    public void recordRouteOpened()
+    {
+        activeRoutes.incrementAndGet();
+    }
+
+
+    /**
+     *  Records that a route's writer has been stopped, either because it was
+     *  evicted from the appender's route cache or because the appender closed.
+     */
+    public void recordRouteClosed(boolean evicted)
+    {
+        activeRoutes.decrementAndGet();
+        if (evicted) routesEvicted.incrementAndGet();
+    }
+
+
+    /**
+     *  Records a change to the threshold imposed by load-adaptive verbosity.
+     */
+    public void recordThresholdChange(Level threshold)
+    {
+        effectiveThreshold = threshold.toString();
+        thresholdChanges.incrementAndGet();
+    }
+
+
+    /**
+     *  Returns the delivery lag of the most recently delivered message. This is
+     *  used for load-adaptive verbosity, and is not exposed via JMX.
+     */
+    public long getLastDeliveryLag()
+    {
+        return lastDeliveryLag;
+    }
+
+
+//----------------------------------------------------------------------------
+//  Interval summaries
+//----------------------------------------------------------------------------
+
+    /**
+     *  Returns a one-line summary of delivery lag and queue time since the last
+     *  call (or since construction), and resets the interval. Times are in
+     *  milliseconds.
+     */
+    public synchronized String intervalLagSummary()
+    {
+        long now = System.currentTimeMillis();
+        Histogram lag = intervalDeliveryLag;
+        Histogram queued = intervalQueueTime;
+        long elapsed = now - intervalStart;
+
+        intervalDeliveryLag = new Histogram();
+        intervalQueueTime = new Histogram();
+        intervalStart = now;
+
+        return "delivered " + lag.getCount() + " messages in last " + elapsed + " ms;"
+             + " delivery lag p50=" + lag.getPercentile(50)
+             + " p90=" + lag.getPercentile(90)
+             + " p99=" + lag.getPercentile(99)
+             + " max=" + lag.getMax() + ";"
+             + " queue time p50=" + queued.getPercentile(50)
+             + " p90=" + queued.getPercentile(90)
+             + " p99=" + queued.getPercentile(99)
+             + " max=" + queued.getMax();
+    }
+
+
+//----------------------------------------------------------------------------
+//  Implementation of AppenderStatisticsMXBean
+//----------------------------------------------------------------------------
+
+    @Override
+    public long getQueuedMessages()
+    {
+        return queuedMessages.get();
+    }
+
+
+    @Override
+    public long getQueuedBytes()
+    {
+        return queuedBytes.get();
+    }
+
+
+    @Override
+    public long getMessagesEnqueued()
+    {
+        return messagesEnqueued.get();
+    }
+
+
+    @Override
+    public long getMessagesSent()
+    {
+        return messagesSent.get();
+    }
+
+
+    @Override
+    public long getMessagesFailed()
+    {
+        return messagesFailed.get();
+    }
+
+
+    @Override
+    public long getMessagesRequeued()
+    {
+        return messagesRequeued.get();
+    }
+
+
+    @Override
+    public long getMessagesDiscarded()
+    {
+        long total = 0;
+        for (int ii = 0 ; ii < messagesDiscarded.length() ; ii++)
+        {
+            total += messagesDiscarded.get(ii);
+        }
+        return total;
+    }
+
+
+    @Override
+    public Map<String,Long> getMessagesDiscardedByReason()
+    {
+        Map<String,Long> result = new TreeMap<String,Long>();
+        for (DiscardReason reason : DiscardReason.values())
+        {
+            result.put(reason.name(), Long.valueOf(messagesDiscarded.get(reason.ordinal())));
+        }
+        return result;
+    }
+
+
+    @Override
+    public long getBatchesSent()
+    {
+        return batchSizes.getCount();
+    }
+
+
+    @Override
+    public double getMeanBatchSize()
+    {
+        return batchSizes.getMean();
+    }
+
+
+    @Override
+    public long getMaxBatchSize()
+    {
+        return batchSizes.getMax();
+    }
+
+
+    @Override
+    public long getBatchLatency50()
+    {
+        return batchLatencies.getPercentile(50);
+    }
+
+
+    @Override
+    public long getBatchLatency90()
+    {
+        return batchLatencies.getPercentile(90);
+    }
+
+
+    @Override
+    public long getBatchLatency99()
+    {
+        return batchLatencies.getPercentile(99);
+    }
+
+
+    @Override
+    public long getBatchLatencyMax()
+    {
+        return batchLatencies.getMax();
+    }
+
+
+    @Override
+    public long getDeliveryLag50()
+    {
+        return deliveryLag.getPercentile(50);
+    }
+
+
+    @Override
+    public long getDeliveryLag90()
+    {
+        return deliveryLag.getPercentile(90);
+    }
+
+
+    @Override
+    public long getDeliveryLag99()
+    {
+        return deliveryLag.getPercentile(99);
+    }
+
+
+    @Override
+    public long getDeliveryLagMax()
+    {
+        return deliveryLag.getMax();
+    }
+
+
+    @Override
+    public long getQueueTime50()
+    {
+        return queueTime.getPercentile(50);
+    }
+
+
+    @Override
+    public long getQueueTime90()
+    {
+        return queueTime.getPercentile(90);
+    }
+
+
+    @Override
+    public long getQueueTime99()
+    {
+        return queueTime.getPercentile(99);
+    }
+
+
+    @Override
+    public long getQueueTimeMax()
+    {
+        return queueTime.getMax();
+    }
+
+
+    @Override
+    public long getThrottlingEvents()
+    {
+        return throttlingEvents.get();
+    }
+
+
+    @Override
+    public long getWriterFailures()
+    {
+        return writerFailures.get();
+    }
+
+
+    @Override
+    public long getWriterRestarts()
+    {
+        return writerRestarts.get();
+    }
+
+
+    @Override
+    public long getActiveRoutes()
+    {
+        return activeRoutes.get();
+    }
+
+
+    @Override
+    public long getRoutesEvicted()
+    {
+        return routesEvicted.get();
+    }
+
+
+    @Override
+    public String getEffectiveThreshold()
+    {
+        return effectiveThreshold;
+    }
+
+
+    @Override
+    public long getThresholdChanges()
+    {
+        return thresholdChanges.get();
+    }
+}
@@ -0,0 +1,105 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.log4j.aws.internal.shared;
+
+import java.util.Map;
+
+
+/**
+ *  The JMX view of {@link AppenderStatistics}. Each appender registers its
+ *  statistics under the name <code>com.kdgregory.log4j.aws:type=APPENDER_CLASS,name=APPENDER_NAME</code>.
+ *  <p>
+ *  All counters are cumulative from the time that the appender was created. Times
+ *  are in milliseconds.
+ */
+public interface AppenderStatisticsMXBean
+{
+    /** Messages currently waiting to be sent, across all writers. */
+    long getQueuedMessages();
+
+    /** Bytes currently waiting to be sent, across all writers. */
+    long getQueuedBytes();
+
+    /** Messages added to a writer's queue. */
+    long getMessagesEnqueued();
+
+    /** Messages accepted by the destination. */
+    long getMessagesSent();
+
+    /** Messages that were part of a failed send (normally requeued). */
+    long getMessagesFailed();
+
+    /** Messages returned to the head of a queue, either after failure or because they didn't fit in a batch. */
+    long getMessagesRequeued();
+
+    /** Messages that will never be sent, for any reason. */
+    long getMessagesDiscarded();
+
+    /** Messages that will never be sent, broken out by reason. */
+    Map<String,Long> getMessagesDiscardedByReason();
+
+    /** Batches passed to the service. */
+    long getBatchesSent();
+
+    /** Mean number of messages per batch. */
+    double getMeanBatchSize();
+
+    /** Largest number of messages in a batch. */
+    long getMaxBatchSize();
+
+    /** Median time to send a batch, including SDK retries. */
+    long getBatchLatency50();
+
+    /** 90th percentile time to send a batch. */
+    long getBatchLatency90();
+
+    /** 99th percentile time to send a batch. */
+    long getBatchLatency99();
+
+    /** Longest time to send a batch. */
+    long getBatchLatencyMax();
+
+    /** Median time from event creation to acceptance by the service. */
+    long getDeliveryLag50();
+
+    /** 90th percentile time from event creation to acceptance by the service. */
+    long getDeliveryLag90();
+
+    /** 99th percentile time from event creation to acceptance by the service. */
+    long getDeliveryLag99();
+
+    /** Longest time from event creation to acceptance by the service. */
+    long getDeliveryLagMax();
+
+    /** Median time that a delivered message spent in the writer's queue. */
+    long getQueueTime50();
+
+    /** 90th percentile time that a delivered message spent in the writer's queue. */
+    long getQueueTime90();
+
+    /** 99th percentile time that a delivered message spent in the writer's queue. */
+    long getQueueTime99();
+
+    /** Longest time that a delivered message spent in the writer's queue. */
+    long getQueueTimeMax();
+
+    /** Number of times that the service rejected a request or record due to throttling. */
+    long getThrottlingEvents();
+
+    /** Number of times that a writer thread died with an uncaught exception, or stalled. */
+    long getWriterFailures();
+
+    /** Number of times that a writer was started to replace one that failed. */
+    long getWriterRestarts();
+
+    /** Number of routes with a running writer (always 0 unless the appender routes events). */
+    long getActiveRoutes();
+
+    /** Number of routes whose writer was stopped because it was idle or the cache was full. */
+    long getRoutesEvicted();
+
+    /** The level below which events are discarded because the writers can't keep up ("ALL" when not degraded). */
+    String getEffectiveThreshold();
+
+    /** Number of times that the effective threshold has been raised or lowered. */
+    long getThresholdChanges();
+}
@@ -0,0 +1,18 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.log4j.aws.internal.shared;
+
+import org.apache.log4j.spi.LoggingEvent;
+
+
+/**
+ *  Implemented by layouts that can produce the bytes to be written directly,
+ *  without first producing a string. {@link LogMessage#create(LoggingEvent, org.apache.log4j.Layout)}
+ *  uses this method in preference to <code>format()</code> when it's available.
+ *  <p>
+ *  The returned array belongs to the caller, and must not be modified by the
+ *  layout after return.
+ */
+public interface BinaryLayout
+{
+    byte[] formatAsBytes(LoggingEvent event);
+}
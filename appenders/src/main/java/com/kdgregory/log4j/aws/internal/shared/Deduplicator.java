@@ -0,0 +1,227 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.log4j.aws.internal.shared;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+
+
+/**
+ *  Coalesces repeated events. Events are considered duplicates if they have
+ *  the same logger, level, and rendered message. The first event is passed
+ *  through, and starts a window; duplicates within that window are counted
+ *  rather than passed. When the window ends, the count is reported as a single
+ *  summary event, with the logger, level, thread, NDC, and MDC of the event that
+ *  started the window, and a message like this:
+ *  <pre>
+ *      repeated 1234 times from 2017-10-11T12:00:01.234Z to 2017-10-11T12:00:10.987Z: connection refused
+ *  </pre>
+ *  The next duplicate after the window is passed through, starting a new window.
+ *  <p>
+ *  Recent messages are held in a fixed-size table, indexed by hash, so memory
+ *  is bounded. If two different messages map to the same slot, the newer one
+ *  replaces the older (which ends the older's window early). Slots are updated
+ *  with compare-and-swap, so there's no lock. Counts may be off by one or two
+ *  if an event is counted at the same moment that its window is closed.
+ *  <p>
+ *  A window is closed either when another event maps to the same slot, or when
+ *  it's examined by a sweep that looks at one slot for each event. Summaries
+ *  are queued, and the appender retrieves them with {@link #pollSummary}. Since
+ *  summaries are generated while processing events, one for a window that ends
+ *  when the application is idle won't be written until the application logs
+ *  again (or the appender is closed).
+ */
+public class Deduplicator
+{
+    // must be a power of 2
+    private final static int TABLE_SIZE = 1024;
+
+    private long window;
+    private AtomicReferenceArray<Entry> slots = new AtomicReferenceArray<Entry>(TABLE_SIZE);
+    private AtomicInteger sweepIndex = new AtomicInteger();
+    private ConcurrentLinkedQueue<LoggingEvent> summaries = new ConcurrentLinkedQueue<LoggingEvent>();
+
+
+    /**
+     *  @param  window  The length of the window, in milliseconds.
+     */
+    public Deduplicator(long window)
+    {
+        this.window = window;
+    }
+
+
+    /**
+     *  Determines whether the event is a duplicate of a recent event. If not,
+     *  the event starts a new window. In either case, this may queue summaries
+     *  for windows that have ended.
+     */
+    public boolean isDuplicate(LoggingEvent event)
+    {
+        long timestamp = event.getTimeStamp();
+        sweep(timestamp);
+
+        String loggerName = event.getLoggerName();
+        Level level = event.getLevel();
+        String message = event.getRenderedMessage();
+        int hash = hash(loggerName, level, message);
+        int index = hash & (TABLE_SIZE - 1);
+
+        while (true)
+        {
+            Entry current = slots.get(index);
+            if ((current != null) && current.matches(hash, loggerName, level, message)
+                && (timestamp - current.windowStart < window))
+            {
+                current.recordDuplicate(timestamp);
+                return true;
+            }
+
+            if (slots.compareAndSet(index, current, new Entry(hash, event, message)))
+            {
+                queueSummary(current);
+                return false;
+            }
+        }
+    }
+
+
+    /**
+     *  Returns the next queued summary event, null if there aren't any.
+     */
+    public LoggingEvent pollSummary()
+    {
+        return summaries.poll();
+    }
+
+
+    /**
+     *  Ends all windows, queuing summaries for any that have counted duplicates.
+     *  This is called when the appender is closed.
+     */
+    public void closeAll()
+    {
+        for (int ii = 0 ; ii < TABLE_SIZE ; ii++)
+        {
+            queueSummary(slots.getAndSet(ii, null));
+        }
+    }
+
+//----------------------------------------------------------------------------
+//  Internals
+//----------------------------------------------------------------------------
+
+    private static int hash(String loggerName, Level level, String message)
+    {
+        int hash = (loggerName != null) ? loggerName.hashCode() : 0;
+        hash = hash * 31 + level.toInt();
+        hash = hash * 31 + ((message != null) ? message.hashCode() : 0);
+
+        // spread high bits into the bits used for the index
+        return hash ^ (hash >>> 16);
+    }
+
+
+    /**
+     *  Examines the next slot in sequence, closing its window if it has ended.
+     */
+    private void sweep(long timestamp)
+    {
+        int index = sweepIndex.getAndIncrement() & (TABLE_SIZE - 1);
+        Entry entry = slots.get(index);
+        if ((entry != null) && (timestamp - entry.windowStart >= window)
+            && slots.compareAndSet(index, entry, null))
+        {
+            queueSummary(entry);
+        }
+    }
+
+
+    private void queueSummary(Entry entry)
+    {
+        if (entry == null)
+            return;
+
+        long count = entry.count.getAndSet(0);
+        if (count == 0)
+            return;
+
+        // the last timestamp is set before the count is incremented, but the first
+        // may not yet be set if we got here between increment and assignment
+        long lastDuplicate = entry.lastDuplicate;
+        long firstDuplicate = entry.firstDuplicate;
+        if (firstDuplicate == 0)
+            firstDuplicate = lastDuplicate;
+
+        // the summary is written on whatever thread closes the window, so must
+        // carry the context of the original event (for routing and layout)
+        String message = "repeated " + count + " times"
+                       + " from " + TimestampFormatter.format(firstDuplicate)
+                       + " to " + TimestampFormatter.format(lastDuplicate)
+                       + ": " + entry.message;
+        summaries.add(new LoggingEvent(Deduplicator.class.getName(), Logger.getLogger(entry.loggerName),
+                                       lastDuplicate, entry.level, message, entry.threadName, null,
+                                       entry.ndc, null, entry.mdc));
+    }
+
+
+    private static class Entry
+    {
+        public final int hash;
+        public final String loggerName;
+        public final Level level;
+        public final String message;
+        public final long windowStart;
+        public final String threadName;
+        public final String ndc;
+        public final Map<?,?> mdc;
+
+        public final AtomicLong count = new AtomicLong();
+        public volatile long firstDuplicate;
+        public volatile long lastDuplicate;
+
+        public Entry(int hash, LoggingEvent event, String message)
+        {
+            this.hash = hash;
+            this.loggerName = event.getLoggerName();
+            this.level = event.getLevel();
+            this.message = message;
+            this.windowStart = event.getTimeStamp();
+
+            // these are snapshots, so must be taken on the event's thread
+            event.getMDCCopy();
+            this.threadName = event.getThreadName();
+            this.ndc = event.getNDC();
+            this.mdc = event.getProperties();
+        }
+
+        public boolean matches(int otherHash, String otherLoggerName, Level otherLevel, String otherMessage)
+        {
+            return (hash == otherHash)
+                && level.equals(otherLevel)
+                && equal(loggerName, otherLoggerName)
+                && equal(message, otherMessage);
+        }
+
+        public void recordDuplicate(long timestamp)
+        {
+            // set before publishing the count, so that a summary has a timestamp
+            lastDuplicate = timestamp;
+            if (count.incrementAndGet() == 1)
+            {
+                firstDuplicate = timestamp;
+            }
+        }
+
+        private static boolean equal(String s1, String s2)
+        {
+            return (s1 == null) ? (s2 == null) : s1.equals(s2);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.log4j.aws.internal.shared;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ *  A fixed-memory histogram of non-negative long values, in the style of
+ *  HdrHistogram. Values below 128 are recorded exactly; larger values are
+ *  recorded in buckets that are 1/64 of their power of two, so reported
+ *  values are within 1.6% of the actual value. Values of 2^41 or more are
+ *  recorded in the highest bucket.
+ *  <p>
+ *  Instances are thread-safe: any number of threads may record values while
+ *  another thread reads them. Reads are not an atomic snapshot, so counts may
+ *  be slightly inconsistent with each other during concurrent recording.
+ */
+public class Histogram
+{
+    private final static int SUB_BUCKET_BITS = 6;
+    private final static int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private final static int EXACT_COUNT = SUB_BUCKET_COUNT * 2;
+    private final static int MAX_EXPONENT = 40 - SUB_BUCKET_BITS;
+    private final static int BUCKET_COUNT = EXACT_COUNT + MAX_EXPONENT * SUB_BUCKET_COUNT;
+
+    private AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private AtomicLong totalCount = new AtomicLong();
+    private AtomicLong totalSum = new AtomicLong();
+    private AtomicLong maxValue = new AtomicLong();
+
+
+//----------------------------------------------------------------------------
+//  Public methods
+//----------------------------------------------------------------------------
+
+    /**
+     *  Records a single value. Negative values are recorded as 0.
+     */
+    public void record(long value)
+    {
+        if (value < 0) value = 0;
+
+        counts.incrementAndGet(indexFor(value));
+        totalCount.incrementAndGet();
+        totalSum.addAndGet(value);
+
+        long currentMax = maxValue.get();
+        while ((value > currentMax) && ! maxValue.compareAndSet(currentMax, value))
+        {
+            currentMax = maxValue.get();
+        }
+    }
+
+
+    /**
+     *  Returns the number of recorded values.
+     */
+    public long getCount()
+    {
+        return totalCount.get();
+    }
+
+
+    /**
+     *  Returns the mean of all recorded values, 0 if there are none.
+     */
+    public double getMean()
+    {
+        long count = totalCount.get();
+        return (count == 0) ? 0 : (double)totalSum.get() / count;
+    }
+
+
+    /**
+     *  Returns the largest recorded value (exact, not bucketed).
+     */
+    public long getMax()
+    {
+        return maxValue.get();
+    }
+
+
+    /**
+     *  Returns the value at the given percentile (0-100), 0 if there are no
+     *  recorded values. The returned value is the highest value that would be
+     *  recorded in the same bucket, so never understates the actual value by
+     *  more than the bucket precision.
+     */
+    public long getPercentile(double percentile)
+    {
+        long count = totalCount.get();
+        if (count == 0)
+            return 0;
+
+        long target = (long)Math.ceil((percentile / 100.0) * count);
+        if (target < 1) target = 1;
+
+        long cumulative = 0;
+        for (int ii = 0 ; ii < BUCKET_COUNT ; ii++)
+        {
+            cumulative += counts.get(ii);
+            if (cumulative >= target)
+            {
+                // the last bucket is open-ended, so its upper bound is the max
+                return (ii == BUCKET_COUNT - 1)
+                     ? maxValue.get()
+                     : Math.min(highestValueFor(ii), maxValue.get());
+            }
+        }
+
+        // concurrent updates may leave the total ahead of the bucket counts
+        return maxValue.get();
+    }
+
+
+//----------------------------------------------------------------------------
+//  Internals
+//----------------------------------------------------------------------------
+
+    private static int indexFor(long value)
+    {
+        if (value < EXACT_COUNT)
+            return (int)value;
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        if (exponent > MAX_EXPONENT)
+            return BUCKET_COUNT - 1;
+
+        int subBucket = (int)(value >>> exponent) - SUB_BUCKET_COUNT;
+        return EXACT_COUNT + (exponent - 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+
+    private static long highestValueFor(int index)
+    {
+        if (index < EXACT_COUNT)
+            return index;
+
+        int exponent = (index - EXACT_COUNT) / SUB_BUCKET_COUNT + 1;
+        int subBucket = (index - EXACT_COUNT) % SUB_BUCKET_COUNT;
+        long lowest = ((long)(subBucket + SUB_BUCKET_COUNT)) << exponent;
+        return lowest + (1L << exponent) - 1;
+    }
+}
@@ -0,0 +1,286 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.log4j.aws.internal.shared;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.Proxy;
+import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.helpers.LogLog;
+
+
+/**
+ *  Retrieves the EC2 instance ID from the instance metadata service, once per
+ *  process. This replaces <code>EC2MetadataUtils</code>, which retries with long
+ *  timeouts and so blocks for minutes when not running on EC2.
+ *  <p>
+ *  The lookup runs on a daemon thread, started by the first call to either
+ *  {@link #prefetch} or {@link #getInstanceId}. Callers wait no longer than the
+ *  configured timeout; if the lookup hasn't completed by then they get null, but
+ *  later callers will see the value if it eventually arrives. Since the lookup may
+ *  take longer than that wait, callers that cache the value should poll with
+ *  {@link #isLookupComplete} and {@link #peekInstanceId} until it's complete. A
+ *  failed lookup is not retried.
+ *  <p>
+ *  The lookup uses IMDSv2 (a session token retrieved by PUT), falling back to
+ *  IMDSv1 if the token request fails for any reason (including a timeout, which
+ *  is what happens in a container when the metadata hop limit is 1). It always
+ *  connects directly, ignoring any configured HTTP proxy.
+ *  <p>
+ *  Configuration is via system properties, read when the lookup starts:
+ *  <ul>
+ *  <li> <code>com.kdgregory.log4j.aws.metadataTimeout</code>: milliseconds to wait
+ *       for a connection or response (and for callers to wait for the result).
+ *       Default is 1000.
+ *  <li> <code>com.amazonaws.sdk.ec2MetadataServiceEndpointOverride</code>: the base
+ *       URL of the metadata service (this is the same property used by the AWS SDK).
+ *       Default is <code>http://169.254.169.254</code>.
+ *  </ul>
+ */
+public class InstanceMetadata
+{
+    public final static String TIMEOUT_PROPERTY     = "com.kdgregory.log4j.aws.metadataTimeout";
+    public final static String ENDPOINT_PROPERTY    = "com.amazonaws.sdk.ec2MetadataServiceEndpointOverride";
+
+    public final static int DEFAULT_TIMEOUT         = 1000;
+    public final static String DEFAULT_ENDPOINT     = "http://169.254.169.254";
+
+    private final static String TOKEN_PATH          = "/latest/api/token";
+    private final static String INSTANCE_ID_PATH    = "/latest/meta-data/instance-id";
+    private final static String TOKEN_TTL_HEADER    = "X-aws-ec2-metadata-token-ttl-seconds";
+    private final static String TOKEN_HEADER        = "X-aws-ec2-metadata-token";
+    private final static String TOKEN_TTL_SECONDS   = "60";
+
+    // metadata responses are short; anything larger is an error
+    private final static int MAX_RESPONSE_SIZE      = 4096;
+
+    private static Lookup lookup;
+
+
+    /**
+     *  Starts the lookup if it hasn't already been started, without waiting for
+     *  the result.
+     */
+    public static void prefetch()
+    {
+        currentLookup();
+    }
+
+
+    /**
+     *  Returns the instance ID, null if it's not available. Starts the lookup if
+     *  necessary, and waits no longer than the configured timeout for it to
+     *  complete.
+     */
+    public static String getInstanceId()
+    {
+        return currentLookup().await();
+    }
+
+
+    /**
+     *  Returns the instance ID if the lookup has already retrieved it, null
+     *  otherwise. Starts the lookup if necessary, but never waits for it.
+     */
+    public static String peekInstanceId()
+    {
+        return currentLookup().instanceId;
+    }
+
+
+    /**
+     *  Returns true if the lookup has finished, whether or not it succeeded.
+     *  Once this returns true, {@link #peekInstanceId} will not change.
+     */
+    public static boolean isLookupComplete()
+    {
+        return currentLookup().done.getCount() == 0;
+    }
+
+
+    /**
+     *  Discards the current lookup, so that the next call starts a new one using
+     *  the then-current configuration. This is intended for testing.
+     */
+    static synchronized void reset()
+    {
+        lookup = null;
+    }
+
+
+    private static synchronized Lookup currentLookup()
+    {
+        if (lookup == null)
+        {
+            lookup = new Lookup(System.getProperty(ENDPOINT_PROPERTY, DEFAULT_ENDPOINT), configuredTimeout());
+            lookup.start();
+        }
+        return lookup;
+    }
+
+
+    private static int configuredTimeout()
+    {
+        String value = System.getProperty(TIMEOUT_PROPERTY);
+        if (value == null)
+            return DEFAULT_TIMEOUT;
+
+        try
+        {
+            return Math.max(1, Integer.parseInt(value.trim()));
+        }
+        catch (NumberFormatException ex)
+        {
+            LogLog.warn("invalid value for " + TIMEOUT_PROPERTY + ": " + value);
+            return DEFAULT_TIMEOUT;
+        }
+    }
+
+//----------------------------------------------------------------------------
+//  The lookup itself
+//----------------------------------------------------------------------------
+
+    private static class Lookup
+    implements Runnable
+    {
+        private String endpoint;
+        private int timeout;
+
+        private CountDownLatch done = new CountDownLatch(1);
+        private volatile String instanceId;
+
+        public Lookup(String endpoint, int timeout)
+        {
+            this.endpoint = endpoint.endsWith("/")
+                          ? endpoint.substring(0, endpoint.length() - 1)
+                          : endpoint;
+            this.timeout = timeout;
+        }
+
+
+        public void start()
+        {
+            Thread thread = new Thread(this);
+            thread.setName("log4j-aws-metadata");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+
+        public String await()
+        {
+            try
+            {
+                done.await(timeout, TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+            }
+            return instanceId;
+        }
+
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                String token = retrieveToken();
+                String value = (token != null)
+                             ? request("GET", INSTANCE_ID_PATH, TOKEN_HEADER, token)
+                             : request("GET", INSTANCE_ID_PATH, null, null);
+                if ((value != null) && (value.trim().length() > 0))
+                {
+                    instanceId = value.trim();
+                }
+            }
+            catch (Exception ex)
+            {
+                // the expected case when not running on EC2, so not a warning
+                LogLog.debug("unable to retrieve instance metadata: " + ex);
+            }
+            finally
+            {
+                done.countDown();
+            }
+        }
+
+
+        /**
+         *  Returns an IMDSv2 session token, null if unable to retrieve one for
+         *  any reason; in that case the caller uses IMDSv1.
+         */
+        private String retrieveToken()
+        {
+            try
+            {
+                return request("PUT", TOKEN_PATH, TOKEN_TTL_HEADER, TOKEN_TTL_SECONDS);
+            }
+            catch (Exception ex)
+            {
+                LogLog.debug("unable to retrieve metadata token, falling back to IMDSv1: " + ex);
+                return null;
+            }
+        }
+
+
+        /**
+         *  Makes a single request, returning the response body or null if the
+         *  server returned an error status. Connection failures and timeouts
+         *  are thrown.
+         */
+        private String request(String method, String path, String headerName, String headerValue)
+        throws IOException
+        {
+            HttpURLConnection cxt = (HttpURLConnection)new URL(endpoint + path).openConnection(Proxy.NO_PROXY);
+            try
+            {
+                cxt.setRequestMethod(method);
+                cxt.setConnectTimeout(timeout);
+                cxt.setReadTimeout(timeout);
+                cxt.setUseCaches(false);
+                if (headerName != null)
+                {
+                    cxt.setRequestProperty(headerName, headerValue);
+                }
+
+                if (cxt.getResponseCode() != HttpURLConnection.HTTP_OK)
+                    return null;
+
+                return readBody(cxt.getInputStream());
+            }
+            finally
+            {
+                cxt.disconnect();
+            }
+        }
+
+
+        private static String readBody(InputStream in)
+        throws IOException
+        {
+            try
+            {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                byte[] buf = new byte[512];
+                int count;
+                while ((count = in.read(buf)) > 0)
+                {
+                    bos.write(buf, 0, count);
+                    if (bos.size() > MAX_RESPONSE_SIZE)
+                        throw new IOException("metadata response exceeds " + MAX_RESPONSE_SIZE + " bytes");
+                }
+                return bos.toString("UTF-8");
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+    }
+}
@@ -1,11 +1,9 @@
 // Copyright (c) Keith D Gregory, all rights reserved
 package com.kdgregory.log4j.aws.internal.shared;
 
-import java.text.SimpleDateFormat;
 import java.util.Collection;
 import java.util.Date;
 import java.util.Map;
-import java.util.TimeZone;
 
 /**
  *  Transforms a Map into a JSON string. Transforms strings, numbers, booleans,
@@ -13,19 +11,19 @@ import java.util.TimeZone;
  *  (list, set, whatever) become arrays; dates become strings formatted as
  *  ISO-8601 timestamps; anything else is converted to a string.
  *  <p>
- *  Instances are not thread-safe
+ *  Strings are escaped per RFC 8259: quotes, backslashes, and the common control
+ *  characters use their short escapes, while other control characters (including
+ *  DEL and the C1 range) and unpaired surrogates are written as <code>&#92;uXXXX</code>.
+ *  <p>
+ *  {@link com.kdgregory.log4j.aws.JsonLayout} doesn't use this class: it writes
+ *  through {@link JsonWriter}, which shares the escaping tables defined here.
+ *  This class remains for callers that have their content as a map.
+ *  <p>
+ *  Instances are thread-safe: dates are formatted by {@link TimestampFormatter},
+ *  and there's no other state.
  */
 public class JsonConverter
 {
-    private SimpleDateFormat dateFormatter;
-    
-    public JsonConverter()
-    {
-        dateFormatter = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
-        dateFormatter.setTimeZone(TimeZone.getTimeZone("UTC"));
-    }
-    
-    
     public String convert(Map<String,Object> map)
     {
         StringBuilder builder = new StringBuilder(1024);
@@ -63,31 +61,37 @@ public class JsonConverter
         for (int ii = 0 ; ii < len ; ii++)
         {
             char c = value.charAt(ii);
-            if (c == '"')
-                builder.append("\\\"");
-            else if (c == '\\')
-                builder.append("\\\\");
-            else if ((c >= 32) && (c <= 126))
-                builder.append(c);
-            else if ((c >= '\u00A0') && (c <= '\uD7FF'))
-                builder.append(c);
-            else if (c >= '\uE000')
+            if (c < 128)
+            {
+                char escape = ESCAPES[c];
+                if (escape == 0)
+                    builder.append(c);
+                else if (escape != 'u')
+                    builder.append('\\').append(escape);
+                else
+                    appendHexEscape(builder, c);
+            }
+            else if ((c >= '\u00A0') && ((c < '\uD800') || (c > '\uDFFF')))
                 builder.append(c);
-            else if (c == '\u0007')
-                builder.append("\\b");
-            else if (c == '\f')
-                builder.append("\\f");
-            else if (c == '\n')
-                builder.append("\\n");
-            else if (c == '\r')
-                builder.append("\\r");
-            else if (c == '\t')
-                builder.append("\\t");
+            else if (isSurrogatePair(value, ii))
+                builder.append(c).append(value.charAt(++ii));
+            else
+                appendHexEscape(builder, c);
         }
         builder.append("\"");
     }
 
 
+    private void appendHexEscape(StringBuilder builder, char c)
+    {
+        builder.append("\\u")
+               .append(HEX_DIGITS[(c >> 12) & 0xF])
+               .append(HEX_DIGITS[(c >> 8) & 0xF])
+               .append(HEX_DIGITS[(c >> 4) & 0xF])
+               .append(HEX_DIGITS[c & 0xF]);
+    }
+
+
     private void appendNumber(StringBuilder builder, Number value)
     {
         builder.append(value);
@@ -102,8 +106,7 @@ public class JsonConverter
 
     private void appendDate(StringBuilder builder, Date value)
     {
-
-        appendString(builder, dateFormatter.format(value));
+        appendString(builder, TimestampFormatter.format(value.getTime()));
     }
 
 
@@ -153,4 +156,46 @@ public class JsonConverter
         if (builder.charAt(builder.length() - 1) != valueInitiator)
             builder.append(",");
     }
+
+
+//----------------------------------------------------------------------------
+//  Escaping -- shared with JsonWriter
+//----------------------------------------------------------------------------
+
+    /**
+     *  For each ASCII character, the character that follows a backslash in its
+     *  escaped form: 0 if the character doesn't need escaping, 'u' if it must
+     *  be written as a hex escape.
+     */
+    final static char[] ESCAPES = new char[128];
+    static
+    {
+        for (int ii = 0 ; ii < 32 ; ii++)
+        {
+            ESCAPES[ii] = 'u';
+        }
+        ESCAPES['"']  = '"';
+        ESCAPES['\\'] = '\\';
+        ESCAPES['\b'] = 'b';
+        ESCAPES['\f'] = 'f';
+        ESCAPES['\n'] = 'n';
+        ESCAPES['\r'] = 'r';
+        ESCAPES['\t'] = 't';
+        ESCAPES[127]  = 'u';
+    }
+
+    final static char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+
+    /**
+     *  Determines whether the character at the given index starts a valid surrogate
+     *  pair. Unpaired surrogates can't be represented in UTF-8, so are written as
+     *  hex escapes.
+     */
+    static boolean isSurrogatePair(String value, int index)
+    {
+        return Character.isHighSurrogate(value.charAt(index))
+            && (index + 1 < value.length())
+            && Character.isLowSurrogate(value.charAt(index + 1));
+    }
 }
@@ -0,0 +1,426 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.log4j.aws.internal.shared;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
+
+
+/**
+ *  Writes JSON directly into a reusable buffer of UTF-8 bytes. This is the
+ *  streaming counterpart to {@link JsonConverter}: rather than building a map
+ *  and converting it, the caller emits keys and values in order. String escaping
+ *  and value conversion follow the same rules as <code>JsonConverter</code>,
+ *  so the two produce identical output for the same content.
+ *  <p>
+ *  The writer tracks whether a comma is needed before the next key or value,
+ *  so callers simply alternate between {@link #key} and one of the value methods
+ *  (or {@link #beginObject} / {@link #beginArray} for nested structures).
+ *  <p>
+ *  Content that doesn't change between documents can be encoded once, using
+ *  {@link #encode} or a separate writer, and then copied into each document
+ *  with {@link #key(byte[])} or {@link #fragment}.
+ *  <p>
+ *  Instances are not thread-safe, and are intended to be held in a thread-local
+ *  and reused via {@link #reset}.
+ */
+public class JsonWriter
+{
+    // buffers that grow past this size are discarded on reset, so that one huge
+    // message doesn't pin memory for the life of the thread
+    private final static int INITIAL_SIZE = 1024;
+    private final static int RETAINED_SIZE = 65536;
+
+    private final static byte[] TRUE_BYTES = { 't', 'r', 'u', 'e' };
+    private final static byte[] FALSE_BYTES = { 'f', 'a', 'l', 's', 'e' };
+    private final static byte[] NULL_BYTES = { 'n', 'u', 'l', 'l' };
+
+    private byte[] buf = new byte[INITIAL_SIZE];
+    private int count;
+    private boolean needsComma;
+
+
+//----------------------------------------------------------------------------
+//  Pre-encoding
+//----------------------------------------------------------------------------
+
+    /**
+     *  Returns the quoted and escaped UTF-8 representation of the passed string,
+     *  for use with {@link #key(byte[])} or {@link #fragment}.
+     */
+    public static byte[] encode(String value)
+    {
+        return new JsonWriter().value(value).toByteArray();
+    }
+
+
+//----------------------------------------------------------------------------
+//  Buffer management
+//----------------------------------------------------------------------------
+
+    /**
+     *  Discards any content, preparing the writer for a new document.
+     */
+    public JsonWriter reset()
+    {
+        if (buf.length > RETAINED_SIZE)
+            buf = new byte[INITIAL_SIZE];
+        count = 0;
+        needsComma = false;
+        return this;
+    }
+
+
+    /**
+     *  Returns the number of bytes written since the last reset.
+     */
+    public int size()
+    {
+        return count;
+    }
+
+
+    /**
+     *  Returns a copy of the bytes written since the last reset.
+     */
+    public byte[] toByteArray()
+    {
+        return Arrays.copyOf(buf, count);
+    }
+
+
+//----------------------------------------------------------------------------
+//  Structure
+//----------------------------------------------------------------------------
+
+    public JsonWriter beginObject()
+    {
+        optWriteComma();
+        writeByte('{');
+        needsComma = false;
+        return this;
+    }
+
+
+    public JsonWriter endObject()
+    {
+        writeByte('}');
+        needsComma = true;
+        return this;
+    }
+
+
+    public JsonWriter beginArray()
+    {
+        optWriteComma();
+        writeByte('[');
+        needsComma = false;
+        return this;
+    }
+
+
+    public JsonWriter endArray()
+    {
+        writeByte(']');
+        needsComma = true;
+        return this;
+    }
+
+
+    /**
+     *  Writes an object key; must be followed by a value.
+     */
+    public JsonWriter key(String key)
+    {
+        optWriteComma();
+        writeQuoted(key);
+        writeByte(':');
+        needsComma = false;
+        return this;
+    }
+
+
+    /**
+     *  Writes an object key that was produced by {@link #encode}; must be
+     *  followed by a value.
+     */
+    public JsonWriter key(byte[] encodedKey)
+    {
+        optWriteComma();
+        writeBytes(encodedKey);
+        writeByte(':');
+        needsComma = false;
+        return this;
+    }
+
+
+    /**
+     *  Writes pre-encoded content: either a single value (such as one produced by
+     *  {@link #encode}), or one or more comma-separated key-value pairs (such as
+     *  produced by another writer). The writer adds a leading comma if needed, but
+     *  does not validate the content.
+     */
+    public JsonWriter fragment(byte[] encoded)
+    {
+        optWriteComma();
+        writeBytes(encoded);
+        needsComma = true;
+        return this;
+    }
+
+
+//----------------------------------------------------------------------------
+//  Values
+//----------------------------------------------------------------------------
+
+    public JsonWriter value(String value)
+    {
+        if (value == null)
+            return nullValue();
+
+        optWriteComma();
+        writeQuoted(value);
+        needsComma = true;
+        return this;
+    }
+
+
+    public JsonWriter value(long value)
+    {
+        optWriteComma();
+        writeAscii(String.valueOf(value));
+        needsComma = true;
+        return this;
+    }
+
+
+    public JsonWriter value(boolean value)
+    {
+        optWriteComma();
+        writeBytes(value ? TRUE_BYTES : FALSE_BYTES);
+        needsComma = true;
+        return this;
+    }
+
+
+    public JsonWriter nullValue()
+    {
+        optWriteComma();
+        writeBytes(NULL_BYTES);
+        needsComma = true;
+        return this;
+    }
+
+
+    /**
+     *  Writes a millisecond timestamp as an ISO-8601 string in UTC.
+     */
+    public JsonWriter timestamp(long millis)
+    {
+        optWriteComma();
+        ensureCapacity(34);
+        buf[count++] = '"';
+        count += TimestampFormatter.formatInto(buf, count, millis);
+        buf[count++] = '"';
+        needsComma = true;
+        return this;
+    }
+
+
+    /**
+     *  Writes an arbitrary value, using the same conversions as {@link JsonConverter}.
+     */
+    @SuppressWarnings("unchecked")
+    public JsonWriter value(Object value)
+    {
+        if (value instanceof String)            return value((String)value);
+        else if (value instanceof Number)       return number((Number)value);
+        else if (value instanceof Boolean)      return value(((Boolean)value).booleanValue());
+        else if (value instanceof Date)         return timestamp(((Date)value).getTime());
+        else if (value instanceof Object[])     return array(Arrays.asList((Object[])value));
+        else if (value instanceof Collection)   return array((Collection<Object>)value);
+        else if (value instanceof Map)          return map((Map<Object,Object>)value);
+        else if (value == null)                 return nullValue();
+        else                                    return value(String.valueOf(value));
+    }
+
+
+    /**
+     *  Writes a map as a nested object, in the map's iteration order.
+     */
+    public JsonWriter map(Map<?,?> map)
+    {
+        beginObject();
+        for (Map.Entry<?,?> entry : map.entrySet())
+        {
+            key(String.valueOf(entry.getKey()));
+            value(entry.getValue());
+        }
+        return endObject();
+    }
+
+
+    private JsonWriter number(Number value)
+    {
+        optWriteComma();
+        writeAscii(String.valueOf(value));
+        needsComma = true;
+        return this;
+    }
+
+
+    private JsonWriter array(Collection<Object> values)
+    {
+        beginArray();
+        for (Object value : values)
+        {
+            value(value);
+        }
+        return endArray();
+    }
+
+
+//----------------------------------------------------------------------------
+//  Low-level output
+//----------------------------------------------------------------------------
+
+    private void optWriteComma()
+    {
+        if (needsComma)
+            writeByte(',');
+    }
+
+
+    private void ensureCapacity(int additional)
+    {
+        int required = count + additional;
+        if (required > buf.length)
+        {
+            buf = Arrays.copyOf(buf, Math.max(required, buf.length * 2));
+        }
+    }
+
+
+    private void writeByte(int b)
+    {
+        ensureCapacity(1);
+        buf[count++] = (byte)b;
+    }
+
+
+    private void writeBytes(byte[] bytes)
+    {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buf, count, bytes.length);
+        count += bytes.length;
+    }
+
+
+    /**
+     *  Writes a string that's known to contain only ASCII characters that
+     *  don't need escaping (such as a number).
+     */
+    private void writeAscii(String value)
+    {
+        int len = value.length();
+        ensureCapacity(len);
+        for (int ii = 0 ; ii < len ; ii++)
+        {
+            buf[count++] = (byte)value.charAt(ii);
+        }
+    }
+
+
+    /**
+     *  Writes a quoted and escaped string, encoding as UTF-8.
+     */
+    private void writeQuoted(String value)
+    {
+        int len = value.length();
+
+        // this covers the worst case for characters that are copied (3 bytes
+        // per char, or 4 for a surrogate pair) or have short escapes; hex
+        // escapes take 6, so reserve additional space when writing them
+        ensureCapacity(len * 3 + 2);
+
+        buf[count++] = '"';
+        for (int ii = 0 ; ii < len ; ii++)
+        {
+            char c = value.charAt(ii);
+            if (c < 128)
+            {
+                char escape = JsonConverter.ESCAPES[c];
+                if (escape == 0)
+                {
+                    buf[count++] = (byte)c;
+                }
+                else if (escape != 'u')
+                {
+                    buf[count++] = '\\';
+                    buf[count++] = (byte)escape;
+                }
+                else
+                {
+                    writeHexEscape(c, len - ii);
+                }
+            }
+            else if ((c >= '\u00A0') && ((c < '\uD800') || (c > '\uDFFF')))
+            {
+                writeUtf8(c);
+            }
+            else if (JsonConverter.isSurrogatePair(value, ii))
+            {
+                writeUtf8(Character.toCodePoint(c, value.charAt(++ii)));
+            }
+            else
+            {
+                writeHexEscape(c, len - ii);
+            }
+        }
+        buf[count++] = '"';
+    }
+
+
+    /**
+     *  Writes a character as <code>&#92;uXXXX</code>, first ensuring capacity for it
+     *  and the remaining characters of the string (including the current one).
+     */
+    private void writeHexEscape(char c, int remaining)
+    {
+        ensureCapacity(remaining * 3 + 4);
+        buf[count++] = '\\';
+        buf[count++] = 'u';
+        buf[count++] = (byte)JsonConverter.HEX_DIGITS[(c >> 12) & 0xF];
+        buf[count++] = (byte)JsonConverter.HEX_DIGITS[(c >> 8) & 0xF];
+        buf[count++] = (byte)JsonConverter.HEX_DIGITS[(c >> 4) & 0xF];
+        buf[count++] = (byte)JsonConverter.HEX_DIGITS[c & 0xF];
+    }
+
+
+    /**
+     *  Encodes a single codepoint, which must be at least 0x80 and not a
+     *  surrogate. Capacity must already have been ensured.
+     */
+    private void writeUtf8(int c)
+    {
+        if (c < 0x800)
+        {
+            buf[count++] = (byte)(0xC0 | (c >> 6));
+            buf[count++] = (byte)(0x80 | (c & 0x3F));
+        }
+        else if (c < 0x10000)
+        {
+            buf[count++] = (byte)(0xE0 | (c >> 12));
+            buf[count++] = (byte)(0x80 | ((c >> 6) & 0x3F));
+            buf[count++] = (byte)(0x80 | (c & 0x3F));
+        }
+        else
+        {
+            buf[count++] = (byte)(0xF0 | (c >> 18));
+            buf[count++] = (byte)(0x80 | ((c >> 12) & 0x3F));
+            buf[count++] = (byte)(0x80 | ((c >> 6) & 0x3F));
+            buf[count++] = (byte)(0x80 | (c & 0x3F));
+        }
+    }
+}
@@ -0,0 +1,172 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.log4j.aws.internal.shared;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ *  A size-bounded map that discards its least-recently-used entry when full.
+ *  Entries may also be discarded when they haven't been used for some time,
+ *  by calling {@link #expireUnusedSince}.
+ *  <p>
+ *  Subclasses that need to clean up discarded values (for example, stopping a
+ *  writer) can override {@link #evicted}.
+ *  <p>
+ *  Instances are thread-safe, using simple synchronization. They're intended
+ *  for caches that are consulted relatively rarely (for example, once per event
+ *  that has an exception), so contention isn't a concern.
+ */
+public class LRUCache<K,V>
+{
+    private Map<K,Entry<V>> map;
+
+
+    public LRUCache(final int maxSize)
+    {
+        map = new LinkedHashMap<K,Entry<V>>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K,Entry<V>> eldest)
+            {
+                if (size() <= maxSize)
+                    return false;
+
+                evicted(eldest.getKey(), eldest.getValue().value);
+                return true;
+            }
+        };
+    }
+
+
+    /**
+     *  Returns the value associated with the key, null if there isn't one.
+     *  This makes the entry the most recently used.
+     */
+    public synchronized V get(K key)
+    {
+        Entry<V> entry = map.get(key);
+        if (entry == null)
+            return null;
+
+        entry.lastUsed = System.currentTimeMillis();
+        return entry.value;
+    }
+
+
+    /**
+     *  Adds or replaces an entry, discarding the least-recently-used entry if
+     *  the cache is full.
+     */
+    public synchronized void put(K key, V value)
+    {
+        map.put(key, new Entry<V>(value));
+    }
+
+
+    /**
+     *  Removes and returns the value associated with the key, null if there
+     *  isn't one. This does not call {@link #evicted}.
+     */
+    public synchronized V remove(K key)
+    {
+        Entry<V> entry = map.remove(key);
+        return (entry != null) ? entry.value : null;
+    }
+
+
+    /**
+     *  Removes all entries, returning their values from least to most recently
+     *  used. This does not call {@link #evicted}.
+     */
+    public synchronized List<V> clear()
+    {
+        List<V> result = new ArrayList<V>(map.size());
+        for (Entry<V> entry : map.values())
+        {
+            result.add(entry.value);
+        }
+        map.clear();
+        return result;
+    }
+
+
+    /**
+     *  Returns the current values, from least to most recently used, without
+     *  changing their order.
+     */
+    public synchronized List<V> values()
+    {
+        List<V> result = new ArrayList<V>(map.size());
+        for (Entry<V> entry : map.values())
+        {
+            result.add(entry.value);
+        }
+        return result;
+    }
+
+
+    /**
+     *  Discards all entries that were last used before the specified timestamp,
+     *  calling {@link #evicted} for each. Returns the number of entries discarded.
+     *  <p>
+     *  Since entries are ordered by use, this only examines the entries that it
+     *  discards, plus one.
+     */
+    public synchronized int expireUnusedSince(long timestamp)
+    {
+        int count = 0;
+        for (Iterator<Map.Entry<K,Entry<V>>> itx = map.entrySet().iterator() ; itx.hasNext() ; )
+        {
+            Map.Entry<K,Entry<V>> entry = itx.next();
+            if (entry.getValue().lastUsed >= timestamp)
+                break;
+
+            itx.remove();
+            evicted(entry.getKey(), entry.getValue().value);
+            count++;
+        }
+        return count;
+    }
+
+
+    /**
+     *  Returns the number of entries in the cache.
+     */
+    public synchronized int size()
+    {
+        return map.size();
+    }
+
+
+    /**
+     *  Called when an entry is discarded, either because the cache is full or
+     *  because it has expired. This is called while holding the cache's lock,
+     *  so should not block. The default implementation does nothing.
+     */
+    protected void evicted(K key, V value)
+    {
+        // default does nothing
+    }
+
+//----------------------------------------------------------------------------
+//  Internals
+//----------------------------------------------------------------------------
+
+    private static class Entry<V>
+    {
+        public V value;
+        public long lastUsed;
+
+        public Entry(V value)
+        {
+            this.value = value;
+            this.lastUsed = System.currentTimeMillis();
+        }
+    }
+}
@@ -0,0 +1,261 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.log4j.aws.internal.shared;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.spi.LoggingEvent;
+
+
+/**
+ *  Identifies the code that invoked a logger, as a replacement for Log4J's
+ *  <code>LocationInfo</code>. That class materializes the entire stack trace
+ *  (via reflection or, on older JVMs, by parsing a printed stack trace), and
+ *  builds several strings that we don't use. This class returns just the
+ *  caller's frame, which may then be used as a cache key for the formatted
+ *  location.
+ *  <p>
+ *  On Java 9 and later, frames are retrieved with <code>StackWalker</code>,
+ *  which only examines the frames that it needs. Since this library is built
+ *  for Java 6, that class is accessed reflectively (with a dynamic proxy to
+ *  implement the <code>Function</code> that it calls). On earlier JVMs, or if
+ *  the walker fails for any reason, we fall back to <code>Throwable.getStackTrace()</code>.
+ *  <p>
+ *  This only works when called on the thread that invoked the logger, for the
+ *  event that it's logging. Finding the logger class on the stack doesn't prove
+ *  that: an appender may write events that it held (such as a tail buffer) or
+ *  created (such as a duplicate summary) while handling a later event, and the
+ *  search would return that event's call site. So {@link #isCurrentEvent} must
+ *  be checked first; appenders that write such events call {@link #beginDeferred}
+ *  and {@link #endDeferred} around them.
+ *  <p>
+ *  If the event isn't current, or the logger's class isn't on the current stack,
+ *  the caller should use <code>LoggingEvent.getLocationInformation()</code>,
+ *  unless {@link #isLocationUnavailable} says otherwise.
+ */
+public class LocationFinder
+{
+    // all of these will be null if StackWalker isn't available
+    private static Object stackWalker;
+    private static Method walkMethod;
+    private static Constructor<?> functionCtor;
+    private static Method iteratorMethod;
+    private static Method getClassNameMethod;
+    private static Method toStackTraceElementMethod;
+
+    // the walker functions are stateless, so we keep one per logger class
+    private final static int MAX_CACHED_FUNCTIONS = 64;
+    private static ConcurrentHashMap<String,Object> functions = new ConcurrentHashMap<String,Object>();
+
+    // set while an appender writes events that weren't logged by the current call;
+    // the value indicates whether their location was captured when they were logged
+    private static ThreadLocal<Boolean> deferred = new ThreadLocal<Boolean>();
+
+    static
+    {
+        try
+        {
+            Class<?> walkerClass = Class.forName("java.lang.StackWalker");
+            Class<?> frameClass = Class.forName("java.lang.StackWalker$StackFrame");
+            Class<?> functionClass = Class.forName("java.util.function.Function");
+            Class<?> streamClass = Class.forName("java.util.stream.BaseStream");
+
+            walkMethod = walkerClass.getMethod("walk", functionClass);
+            iteratorMethod = streamClass.getMethod("iterator");
+            getClassNameMethod = frameClass.getMethod("getClassName");
+            toStackTraceElementMethod = frameClass.getMethod("toStackTraceElement");
+            functionCtor = Proxy.getProxyClass(LocationFinder.class.getClassLoader(), functionClass)
+                                .getConstructor(InvocationHandler.class);
+
+            // reflection frames are hidden by default, but Throwable includes them
+            Class<?> optionClass = Class.forName("java.lang.StackWalker$Option");
+            Object showReflectFrames = optionClass.getMethod("valueOf", String.class).invoke(null, "SHOW_REFLECT_FRAMES");
+
+            // this must be last, because it indicates that everything is ready
+            stackWalker = walkerClass.getMethod("getInstance", optionClass).invoke(null, showReflectFrames);
+        }
+        catch (Throwable ignored)
+        {
+            stackWalker = null;
+        }
+    }
+
+
+    /**
+     *  Called by an appender before it writes events that weren't logged by the
+     *  current call on this thread. If their location wasn't captured when they
+     *  were logged, layouts won't report one.
+     */
+    public static void beginDeferred(boolean locationCaptured)
+    {
+        deferred.set(Boolean.valueOf(locationCaptured));
+    }
+
+
+    /**
+     *  Called by an appender after writing deferred events; must be called in a
+     *  <code>finally</code> block.
+     */
+    public static void endDeferred()
+    {
+        deferred.remove();
+    }
+
+
+    /**
+     *  Determines whether the passed event is being logged by the current thread,
+     *  so that its caller is on the current stack: the event has this thread's
+     *  name, and the appender hasn't said that it's writing deferred events.
+     */
+    public static boolean isCurrentEvent(LoggingEvent event)
+    {
+        return (deferred.get() == null)
+            && Thread.currentThread().getName().equals(event.getThreadName());
+    }
+
+
+    /**
+     *  Returns true if the appender is writing deferred events whose location wasn't
+     *  captured when they were logged. For such events, <code>getLocationInformation()</code>
+     *  would search the current stack, and report the call site of the current event.
+     */
+    public static boolean isLocationUnavailable()
+    {
+        return Boolean.FALSE.equals(deferred.get());
+    }
+
+
+    /**
+     *  Returns the stack frame that called the logger, null if it can't be found.
+     *  As with <code>LocationInfo</code>, this is the frame after the outermost
+     *  invocation of the logger class. Callers must check {@link #isCurrentEvent}.
+     *
+     *  @param  fqnOfLoggerClass    The fully-qualified name of the logger class,
+     *                              from <code>LoggingEvent.fqnOfCategoryClass</code>.
+     */
+    public static StackTraceElement findCaller(String fqnOfLoggerClass)
+    {
+        if (fqnOfLoggerClass == null)
+            return null;
+
+        if (stackWalker != null)
+        {
+            try
+            {
+                return (StackTraceElement)walkMethod.invoke(stackWalker, walkerFunction(fqnOfLoggerClass));
+            }
+            catch (Exception ignored)
+            {
+                // fall through to the old way
+            }
+        }
+
+        StackTraceElement[] frames = new Throwable().getStackTrace();
+
+        // same search as LocationInfo: the caller is the frame after the outermost
+        // invocation of the logger class
+        for (int ii = frames.length - 1 ; ii >= 0 ; ii--)
+        {
+            if (fqnOfLoggerClass.equals(frames[ii].getClassName()))
+            {
+                int caller = ii + 1;
+                return (caller < frames.length) ? frames[caller] : null;
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     *  Returns the frame's file name in the form reported by <code>LocationInfo</code>.
+     */
+    public static String fileName(StackTraceElement frame)
+    {
+        String fileName = frame.getFileName();
+        return (fileName != null) ? fileName : "?";
+    }
+
+
+    /**
+     *  Returns the frame's line number in the form reported by <code>LocationInfo</code>.
+     */
+    public static String lineNumber(StackTraceElement frame)
+    {
+        int lineNumber = frame.getLineNumber();
+        return (lineNumber >= 0) ? String.valueOf(lineNumber) : "?";
+    }
+
+
+//----------------------------------------------------------------------------
+//  Internals
+//----------------------------------------------------------------------------
+
+    private static Object walkerFunction(String fqnOfLoggerClass)
+    throws Exception
+    {
+        Object function = functions.get(fqnOfLoggerClass);
+        if (function == null)
+        {
+            function = functionCtor.newInstance(new WalkerFunction(fqnOfLoggerClass));
+            if (functions.size() < MAX_CACHED_FUNCTIONS)
+            {
+                functions.put(fqnOfLoggerClass, function);
+            }
+        }
+        return function;
+    }
+
+
+    /**
+     *  Implements <code>Function&lt;Stream&lt;StackFrame&gt;,StackTraceElement&gt;</code>
+     *  for <code>StackWalker.walk()</code>. The walker goes from innermost frame
+     *  outward, so the caller is the frame after the last run of logger frames;
+     *  that means examining every frame (but not materializing them).
+     */
+    private static class WalkerFunction
+    implements InvocationHandler
+    {
+        private String fqnOfLoggerClass;
+
+        public WalkerFunction(String fqnOfLoggerClass)
+        {
+            this.fqnOfLoggerClass = fqnOfLoggerClass;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args)
+        throws Throwable
+        {
+            if (! "apply".equals(method.getName()))
+            {
+                // only Object methods remain; identity semantics are appropriate
+                if ("equals".equals(method.getName()))  return Boolean.valueOf(proxy == args[0]);
+                if ("hashCode".equals(method.getName()))  return Integer.valueOf(System.identityHashCode(proxy));
+                return "WalkerFunction(" + fqnOfLoggerClass + ")";
+            }
+
+            boolean inLogger = false;
+            Object caller = null;
+            Iterator<?> frames = (Iterator<?>)iteratorMethod.invoke(args[0]);
+            while (frames.hasNext())
+            {
+                Object frame = frames.next();
+                if (fqnOfLoggerClass.equals(getClassNameMethod.invoke(frame)))
+                {
+                    inLogger = true;
+                }
+                else if (inLogger)
+                {
+                    inLogger = false;
+                    caller = frame;
+                }
+            }
+            // if the outermost logger frame is the bottom of the stack, it has no caller
+            return ((caller != null) && ! inLogger) ? toStackTraceElementMethod.invoke(caller) : null;
+        }
+    }
+}
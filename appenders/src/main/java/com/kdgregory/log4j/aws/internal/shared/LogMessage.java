@@ -16,6 +16,9 @@ import org.apache.log4j.spi.LoggingEvent;
  *  event or time of construction). Instances are comparable based on timestamp,
  *  but <code>compareTo()</code> is not  consistent with <code>equals()</code>.
  *  <p>
+ *  Instances also record the time that they were constructed, which is used to
+ *  measure how long they wait in the writer's queue.
+ *  <p>
  *  Instances are normally constructed using one of the provided factory methods,
  *  rather than the constructor. These methods will log any exceptions using the
  *  Log4J internal logger, and return null if unable to construct an instance.
@@ -44,19 +47,26 @@ implements Comparable<LogMessage>
 
     /**
      *  Creates an instance from a Log4J LoggingEvent, applying the provided
-     *  Log4J layout.
+     *  Log4J layout. If the layout implements {@link BinaryLayout}, its bytes
+     *  are used directly.
      */
     public static LogMessage create(LoggingEvent event, Layout layout)
     {
         try
         {
+            if ((layout instanceof BinaryLayout) &&
+                ((event.getThrowableInformation() == null) || ! layout.ignoresThrowable()))
+            {
+                return new LogMessage(event.getTimeStamp(), ((BinaryLayout)layout).formatAsBytes(event));
+            }
+
             ByteArrayOutputStream bos = new ByteArrayOutputStream();
             OutputStreamWriter out = new OutputStreamWriter(bos, "UTF-8");
 
             out.write(layout.format(event));
             if ((event.getThrowableInformation() != null) && layout.ignoresThrowable())
             {
-                for (String traceline : event.getThrowableStrRep())
+                for (String traceline : ThrowableCache.getThrowableStrRep(event))
                 {
                     out.write(traceline);
                     out.write(Layout.LINE_SEP);
@@ -79,17 +89,32 @@ implements Comparable<LogMessage>
 //----------------------------------------------------------------------------
 
     private long timestamp;
+    private long createdAt;
     private byte[] messageBytes;
+    private long sequence;          // assigned by the writer; see AbstractLogWriter.flush()
 
 
     public LogMessage(long timestamp, byte[] messageBytes)
     {
         this.timestamp = timestamp;
+        this.createdAt = System.currentTimeMillis();
         this.messageBytes = messageBytes;
     }
 
 
 
+    /**
+     *  Returns a new instance with the same timestamp and the same (not copied)
+     *  bytes. This is used to give one formatted message to multiple writers:
+     *  the bytes are never modified, but each writer records its own queue
+     *  state in the instance that it holds.
+     */
+    public LogMessage share()
+    {
+        return new LogMessage(timestamp, messageBytes);
+    }
+
+
     /**
      *  Returns the timestamp of the original logging event.
      */
@@ -99,6 +124,36 @@ implements Comparable<LogMessage>
     }
 
 
+    /**
+     *  Returns the time that this object was constructed. Since messages are
+     *  constructed immediately before being queued, this is used to measure
+     *  time spent in the queue.
+     */
+    public long getCreatedAt()
+    {
+        return createdAt;
+    }
+
+
+    /**
+     *  Returns the sequence number assigned when this message was added to a
+     *  writer. Used to determine when a flush has completed.
+     */
+    long getSequence()
+    {
+        return sequence;
+    }
+
+
+    /**
+     *  Sets the sequence number. Called by the writer when adding the message.
+     */
+    void setSequence(long value)
+    {
+        this.sequence = value;
+    }
+
+
     /**
      *  Returns the size of the message after conversion to UTF-8.
      */
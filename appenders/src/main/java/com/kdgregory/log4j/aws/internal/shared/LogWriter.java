@@ -1,6 +1,9 @@
 // Copyright (c) Keith D Gregory, all rights reserved
 package com.kdgregory.log4j.aws.internal.shared;
 
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
 
 /**
  *  Defines the contract between appenders and writers.
@@ -30,10 +33,58 @@ extends Runnable
     void setBatchDelay(long value);
 
 
+    /**
+     *  Controls whether the writer sends messages as soon as it's idle. If true,
+     *  the writer sends whatever is queued as soon as it's not busy sending a
+     *  previous batch, rather than waiting for the batch delay; messages that
+     *  arrive while a batch is being sent are accumulated into the next batch.
+     *  <p>
+     *  If the writer doesn't support batching, this will be a no-op.
+     */
+    void setDispatchWhenIdle(boolean value);
+
+
     /**
      *  Signals the writer that it will no longer receive batches. It should, however,
      *  make a best effort to send any batches that it already has before exiting its
-     *  <code>run()</code> method.
+     *  <code>run()</code> method. This method does not wait for the writer to exit.
      */
     void stop();
+
+
+    /**
+     *  Signals the writer that it will no longer receive batches, and waits for it
+     *  to send any messages that it already has. The writer should send batches as
+     *  quickly as it can, without waiting for the batch delay, and give up on any
+     *  messages that remain unsent once the timeout expires.
+     *  <p>
+     *  Returns <code>true</code> if the writer's <code>run()</code> method exited
+     *  within the timeout, <code>false</code> if it's still running.
+     */
+    boolean stopAndWait(long timeout);
+
+
+    /**
+     *  Asks the writer to send all messages that it has been given so far, without
+     *  waiting for the batch delay. Returns a latch that is released when those
+     *  messages have either been accepted by the destination or discarded (for
+     *  example, because the writer stopped). Messages that fail and are retried
+     *  are still outstanding, so the caller should wait with a timeout.
+     */
+    CountDownLatch flush();
+
+
+    /**
+     *  Removes and returns all messages that the writer hasn't sent. This is used
+     *  to transfer messages to a new writer after this writer has failed.
+     */
+    List<LogMessage> takeQueuedMessages();
+
+
+    /**
+     *  Returns the time (in millis since epoch) at which the writer started its
+     *  current call to the destination, 0 if it isn't in such a call. This is
+     *  used to detect stalled writers.
+     */
+    long getBusySince();
 }
@@ -0,0 +1,214 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.log4j.aws.internal.shared;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ *  Decodes MessagePack, such as that produced by {@link MessagePackWriter}, into
+ *  Java objects. This is intended for consumers of <code>MessagePackLayout</code>
+ *  output (and for tests); it's not a general-purpose library, but does handle
+ *  every MessagePack type except extensions:
+ *  <ul>
+ *  <li> Maps become a <code>LinkedHashMap</code>, preserving the order of entries.
+ *       Keys are converted to strings.
+ *  <li> Arrays become an <code>ArrayList</code>.
+ *  <li> Strings become <code>String</code>.
+ *  <li> Integers become <code>Long</code>. Unsigned 64-bit values greater than
+ *       <code>Long.MAX_VALUE</code> wrap to negative numbers.
+ *  <li> Floats become <code>Double</code>.
+ *  <li> Booleans become <code>Boolean</code>.
+ *  <li> Nil becomes null.
+ *  <li> Binary becomes <code>byte[]</code>.
+ *  </ul>
+ *  Malformed input results in an <code>IllegalArgumentException</code>.
+ *  <p>
+ *  Instances are not thread-safe, but are cheap to create.
+ */
+public class MessagePackReader
+{
+    private byte[] buf;
+    private int offset;
+    private int limit;
+
+
+    public MessagePackReader(byte[] buf)
+    {
+        this(buf, 0, buf.length);
+    }
+
+
+    public MessagePackReader(byte[] buf, int offset, int length)
+    {
+        this.buf = buf;
+        this.offset = offset;
+        this.limit = offset + length;
+    }
+
+
+    /**
+     *  Decodes a single value from the passed bytes, which must not contain
+     *  anything else.
+     */
+    public static Object decode(byte[] bytes)
+    {
+        MessagePackReader reader = new MessagePackReader(bytes);
+        Object value = reader.read();
+        if (reader.hasMore())
+            throw new IllegalArgumentException("unexpected content after value at offset " + reader.offset);
+        return value;
+    }
+
+
+    /**
+     *  Returns true if there's more content to read.
+     */
+    public boolean hasMore()
+    {
+        return offset < limit;
+    }
+
+
+    /**
+     *  Reads the next value.
+     */
+    public Object read()
+    {
+        int b = readByte();
+
+        if (b <= 0x7f)  return Long.valueOf(b);
+        if (b <= 0x8f)  return readMap(b & 0x0f);
+        if (b <= 0x9f)  return readArray(b & 0x0f);
+        if (b <= 0xbf)  return readString(b & 0x1f);
+        if (b >= 0xe0)  return Long.valueOf((byte)b);
+
+        switch (b)
+        {
+            case 0xc0 : return null;
+            case 0xc2 : return Boolean.FALSE;
+            case 0xc3 : return Boolean.TRUE;
+            case 0xc4 : return readBytes((int)readUnsigned(1));
+            case 0xc5 : return readBytes((int)readUnsigned(2));
+            case 0xc6 : return readBytes(readLength(4));
+            case 0xca : return Double.valueOf(Float.intBitsToFloat((int)readUnsigned(4)));
+            case 0xcb : return Double.valueOf(Double.longBitsToDouble(readUnsigned(8)));
+            case 0xcc : return Long.valueOf(readUnsigned(1));
+            case 0xcd : return Long.valueOf(readUnsigned(2));
+            case 0xce : return Long.valueOf(readUnsigned(4));
+            case 0xcf : return Long.valueOf(readUnsigned(8));
+            case 0xd0 : return Long.valueOf((byte)readUnsigned(1));
+            case 0xd1 : return Long.valueOf((short)readUnsigned(2));
+            case 0xd2 : return Long.valueOf((int)readUnsigned(4));
+            case 0xd3 : return Long.valueOf(readUnsigned(8));
+            case 0xd9 : return readString((int)readUnsigned(1));
+            case 0xda : return readString((int)readUnsigned(2));
+            case 0xdb : return readString(readLength(4));
+            case 0xdc : return readArray((int)readUnsigned(2));
+            case 0xdd : return readArray(readLength(4));
+            case 0xde : return readMap((int)readUnsigned(2));
+            case 0xdf : return readMap(readLength(4));
+            default :
+                throw new IllegalArgumentException(
+                        String.format("unsupported type 0x%02x at offset %d", b, offset - 1));
+        }
+    }
+
+//----------------------------------------------------------------------------
+//  Internals
+//----------------------------------------------------------------------------
+
+    private int readByte()
+    {
+        require(1);
+        return buf[offset++] & 0xFF;
+    }
+
+
+    private long readUnsigned(int numBytes)
+    {
+        require(numBytes);
+        long value = 0;
+        for (int ii = 0 ; ii < numBytes ; ii++)
+        {
+            value = (value << 8) | (buf[offset++] & 0xFF);
+        }
+        return value;
+    }
+
+
+    /**
+     *  Reads a 32-bit length, which Java can't represent if it's over 2GB (and
+     *  which couldn't be valid for an in-memory buffer anyway).
+     */
+    private int readLength(int numBytes)
+    {
+        long length = readUnsigned(numBytes);
+        if (length > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("invalid length " + length + " at offset " + (offset - numBytes));
+        return (int)length;
+    }
+
+
+    private void require(int numBytes)
+    {
+        if (limit - offset < numBytes)
+            throw new IllegalArgumentException("unexpected end of content at offset " + offset);
+    }
+
+
+    private byte[] readBytes(int length)
+    {
+        require(length);
+        byte[] result = Arrays.copyOfRange(buf, offset, offset + length);
+        offset += length;
+        return result;
+    }
+
+
+    private String readString(int length)
+    {
+        require(length);
+        try
+        {
+            String result = new String(buf, offset, length, "UTF-8");
+            offset += length;
+            return result;
+        }
+        catch (UnsupportedEncodingException ex)
+        {
+            throw new RuntimeException("caught UnsupportedEncodingException for UTF-8; should never happen!");
+        }
+    }
+
+
+    private List<Object> readArray(int size)
+    {
+        // each element takes at least one byte; this prevents a corrupt size from
+        // causing a huge allocation
+        require(size);
+        List<Object> result = new ArrayList<Object>(size);
+        for (int ii = 0 ; ii < size ; ii++)
+        {
+            result.add(read());
+        }
+        return result;
+    }
+
+
+    private Map<String,Object> readMap(int size)
+    {
+        require(size);
+        Map<String,Object> result = new LinkedHashMap<String,Object>();
+        for (int ii = 0 ; ii < size ; ii++)
+        {
+            Object key = read();
+            result.put(String.valueOf(key), read());
+        }
+        return result;
+    }
+}
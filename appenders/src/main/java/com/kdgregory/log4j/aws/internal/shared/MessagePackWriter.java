@@ -0,0 +1,406 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.log4j.aws.internal.shared;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
+
+
+/**
+ *  Writes <a href="https://github.com/msgpack/msgpack/blob/master/spec.md">MessagePack</a>
+ *  into a reusable byte buffer. This is the binary counterpart to {@link JsonWriter},
+ *  and converts values the same way, except that dates are written as integer
+ *  milliseconds rather than ISO-8601 strings, and numbers retain their type.
+ *  <p>
+ *  MessagePack prefixes maps and arrays with their size, so callers must know
+ *  the number of entries before writing them. Integers are written in the
+ *  smallest form that holds them, except where the caller asks for a specific
+ *  width with {@link #int64}.
+ *  <p>
+ *  Content that doesn't change between documents can be encoded once, with a
+ *  separate writer or {@link #encode}, and copied into each document with
+ *  {@link #fragment}.
+ *  <p>
+ *  Instances are not thread-safe, and are intended to be held in a thread-local
+ *  and reused via {@link #reset}.
+ */
+public class MessagePackWriter
+{
+    // buffers that grow past this size are discarded on reset, so that one huge
+    // message doesn't pin memory for the life of the thread
+    private final static int INITIAL_SIZE = 1024;
+    private final static int RETAINED_SIZE = 65536;
+
+    private byte[] buf = new byte[INITIAL_SIZE];
+    private int count;
+
+
+//----------------------------------------------------------------------------
+//  Pre-encoding
+//----------------------------------------------------------------------------
+
+    /**
+     *  Returns the encoded form of the passed string, for use with {@link #fragment}.
+     */
+    public static byte[] encode(String value)
+    {
+        return new MessagePackWriter().value(value).toByteArray();
+    }
+
+
+//----------------------------------------------------------------------------
+//  Buffer management
+//----------------------------------------------------------------------------
+
+    /**
+     *  Discards any content, preparing the writer for a new document.
+     */
+    public MessagePackWriter reset()
+    {
+        if (buf.length > RETAINED_SIZE)
+            buf = new byte[INITIAL_SIZE];
+        count = 0;
+        return this;
+    }
+
+
+    /**
+     *  Returns the number of bytes written since the last reset.
+     */
+    public int size()
+    {
+        return count;
+    }
+
+
+    /**
+     *  Returns a copy of the bytes written since the last reset.
+     */
+    public byte[] toByteArray()
+    {
+        return Arrays.copyOf(buf, count);
+    }
+
+
+//----------------------------------------------------------------------------
+//  Structure
+//----------------------------------------------------------------------------
+
+    /**
+     *  Starts a map with the given number of entries; must be followed by that
+     *  many key-value pairs.
+     */
+    public MessagePackWriter mapHeader(int size)
+    {
+        writeContainerHeader(size, 0x80, 0xde, 0xdf);
+        return this;
+    }
+
+
+    /**
+     *  Starts an array with the given number of elements; must be followed by
+     *  that many values.
+     */
+    public MessagePackWriter arrayHeader(int size)
+    {
+        writeContainerHeader(size, 0x90, 0xdc, 0xdd);
+        return this;
+    }
+
+
+    /**
+     *  Writes pre-encoded content: one or more values (or key-value pairs) that
+     *  were produced by {@link #encode} or another writer. The caller is responsible
+     *  for including them in the count passed to the enclosing header.
+     */
+    public MessagePackWriter fragment(byte[] encoded)
+    {
+        ensureCapacity(encoded.length);
+        System.arraycopy(encoded, 0, buf, count, encoded.length);
+        count += encoded.length;
+        return this;
+    }
+
+
+//----------------------------------------------------------------------------
+//  Values
+//----------------------------------------------------------------------------
+
+    public MessagePackWriter value(String value)
+    {
+        if (value == null)
+            return nullValue();
+
+        writeStringHeader(utf8Length(value), 0xa0, 0xd9, 0xda, 0xdb);
+        writeUtf8(value);
+        return this;
+    }
+
+
+    public MessagePackWriter value(long value)
+    {
+        ensureCapacity(9);
+        if ((value >= -32) && (value <= 127))
+        {
+            buf[count++] = (byte)value;
+        }
+        else if ((value >= Byte.MIN_VALUE) && (value <= Byte.MAX_VALUE))
+        {
+            buf[count++] = (byte)0xd0;
+            buf[count++] = (byte)value;
+        }
+        else if ((value >= Short.MIN_VALUE) && (value <= Short.MAX_VALUE))
+        {
+            buf[count++] = (byte)0xd1;
+            writeBigEndian(value, 2);
+        }
+        else if ((value >= Integer.MIN_VALUE) && (value <= Integer.MAX_VALUE))
+        {
+            buf[count++] = (byte)0xd2;
+            writeBigEndian(value, 4);
+        }
+        else
+        {
+            buf[count++] = (byte)0xd3;
+            writeBigEndian(value, 8);
+        }
+        return this;
+    }
+
+
+    /**
+     *  Writes an integer as a full 64-bit value, regardless of its magnitude. This
+     *  is used for timestamps, so that consumers can rely on their representation.
+     */
+    public MessagePackWriter int64(long value)
+    {
+        ensureCapacity(9);
+        buf[count++] = (byte)0xd3;
+        writeBigEndian(value, 8);
+        return this;
+    }
+
+
+    public MessagePackWriter value(double value)
+    {
+        ensureCapacity(9);
+        buf[count++] = (byte)0xcb;
+        writeBigEndian(Double.doubleToLongBits(value), 8);
+        return this;
+    }
+
+
+    public MessagePackWriter value(boolean value)
+    {
+        ensureCapacity(1);
+        buf[count++] = (byte)(value ? 0xc3 : 0xc2);
+        return this;
+    }
+
+
+    public MessagePackWriter nullValue()
+    {
+        ensureCapacity(1);
+        buf[count++] = (byte)0xc0;
+        return this;
+    }
+
+
+    /**
+     *  Writes an arbitrary value, using the same conversions as {@link JsonWriter}
+     *  except for dates and numbers (see class docs).
+     */
+    @SuppressWarnings("unchecked")
+    public MessagePackWriter value(Object value)
+    {
+        if (value instanceof String)            return value((String)value);
+        else if (value instanceof Number)       return number((Number)value);
+        else if (value instanceof Boolean)      return value(((Boolean)value).booleanValue());
+        else if (value instanceof Date)         return int64(((Date)value).getTime());
+        else if (value instanceof Object[])     return array(Arrays.asList((Object[])value));
+        else if (value instanceof Collection)   return array((Collection<Object>)value);
+        else if (value instanceof Map)          return map((Map<Object,Object>)value);
+        else if (value == null)                 return nullValue();
+        else                                    return value(String.valueOf(value));
+    }
+
+
+    /**
+     *  Writes a map, in the map's iteration order. Keys are converted to strings.
+     */
+    public MessagePackWriter map(Map<?,?> map)
+    {
+        mapHeader(map.size());
+        for (Map.Entry<?,?> entry : map.entrySet())
+        {
+            value(String.valueOf(entry.getKey()));
+            value(entry.getValue());
+        }
+        return this;
+    }
+
+
+    private MessagePackWriter number(Number value)
+    {
+        if ((value instanceof Double) || (value instanceof Float))
+            return value(value.doubleValue());
+        if ((value instanceof Long) || (value instanceof Integer) || (value instanceof Short) || (value instanceof Byte))
+            return value(value.longValue());
+        // BigInteger, BigDecimal, and the like may not fit; keep them exact
+        return value(String.valueOf(value));
+    }
+
+
+    private MessagePackWriter array(Collection<Object> values)
+    {
+        arrayHeader(values.size());
+        for (Object value : values)
+        {
+            value(value);
+        }
+        return this;
+    }
+
+
+//----------------------------------------------------------------------------
+//  Low-level output
+//----------------------------------------------------------------------------
+
+    private void ensureCapacity(int additional)
+    {
+        int required = count + additional;
+        if (required > buf.length)
+        {
+            buf = Arrays.copyOf(buf, Math.max(required, buf.length * 2));
+        }
+    }
+
+
+    private void writeBigEndian(long value, int numBytes)
+    {
+        for (int shift = (numBytes - 1) * 8 ; shift >= 0 ; shift -= 8)
+        {
+            buf[count++] = (byte)(value >>> shift);
+        }
+    }
+
+
+    /**
+     *  Writes a map or array header, which has a "fix" form for sizes under 16,
+     *  and 16- or 32-bit forms otherwise.
+     */
+    private void writeContainerHeader(int size, int fixPrefix, int prefix16, int prefix32)
+    {
+        ensureCapacity(5);
+        if (size < 16)
+        {
+            buf[count++] = (byte)(fixPrefix | size);
+        }
+        else if (size <= 0xFFFF)
+        {
+            buf[count++] = (byte)prefix16;
+            writeBigEndian(size, 2);
+        }
+        else
+        {
+            buf[count++] = (byte)prefix32;
+            writeBigEndian(size, 4);
+        }
+    }
+
+
+    /**
+     *  Writes a string header, which has a "fix" form for lengths under 32, and
+     *  8-, 16-, or 32-bit forms otherwise.
+     */
+    private void writeStringHeader(int length, int fixPrefix, int prefix8, int prefix16, int prefix32)
+    {
+        ensureCapacity(5);
+        if (length < 32)
+        {
+            buf[count++] = (byte)(fixPrefix | length);
+        }
+        else if (length <= 0xFF)
+        {
+            buf[count++] = (byte)prefix8;
+            writeBigEndian(length, 1);
+        }
+        else if (length <= 0xFFFF)
+        {
+            buf[count++] = (byte)prefix16;
+            writeBigEndian(length, 2);
+        }
+        else
+        {
+            buf[count++] = (byte)prefix32;
+            writeBigEndian(length, 4);
+        }
+    }
+
+
+    /**
+     *  Returns the number of bytes needed to encode the string as UTF-8. Like
+     *  <code>String.getBytes()</code>, unpaired surrogates are replaced by '?'.
+     */
+    private static int utf8Length(String value)
+    {
+        int len = value.length();
+        int result = len;
+        for (int ii = 0 ; ii < len ; ii++)
+        {
+            char c = value.charAt(ii);
+            if (c < 0x80)
+                continue;
+            else if (c < 0x800)
+                result += 1;
+            else if ((c < 0xD800) || (c > 0xDFFF))
+                result += 2;
+            else if (JsonConverter.isSurrogatePair(value, ii))
+            {
+                // two chars become four bytes
+                result += 2;
+                ii++;
+            }
+        }
+        return result;
+    }
+
+
+    private void writeUtf8(String value)
+    {
+        int len = value.length();
+        ensureCapacity(len * 3);
+        for (int ii = 0 ; ii < len ; ii++)
+        {
+            char c = value.charAt(ii);
+            if (c < 0x80)
+            {
+                buf[count++] = (byte)c;
+            }
+            else if (c < 0x800)
+            {
+                buf[count++] = (byte)(0xC0 | (c >> 6));
+                buf[count++] = (byte)(0x80 | (c & 0x3F));
+            }
+            else if ((c < 0xD800) || (c > 0xDFFF))
+            {
+                buf[count++] = (byte)(0xE0 | (c >> 12));
+                buf[count++] = (byte)(0x80 | ((c >> 6) & 0x3F));
+                buf[count++] = (byte)(0x80 | (c & 0x3F));
+            }
+            else if (JsonConverter.isSurrogatePair(value, ii))
+            {
+                int cp = Character.toCodePoint(c, value.charAt(++ii));
+                buf[count++] = (byte)(0xF0 | (cp >> 18));
+                buf[count++] = (byte)(0x80 | ((cp >> 12) & 0x3F));
+                buf[count++] = (byte)(0x80 | ((cp >> 6) & 0x3F));
+                buf[count++] = (byte)(0x80 | (cp & 0x3F));
+            }
+            else
+            {
+                buf[count++] = '?';
+            }
+        }
+    }
+}
@@ -7,6 +7,8 @@ import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import com.kdgregory.log4j.aws.internal.shared.AppenderStatistics.DiscardReason;
+
 
 /**
  *  A thread-safe message queue that keeps track of the current number of entries
@@ -59,12 +61,27 @@ public class MessageQueue
 
     private int discardThreshold;
     private DiscardAction discardAction;
+    private AppenderStatistics statistics;      // may be null
 
 
+    /**
+     *  Constructs an instance that doesn't record queue activity.
+     */
     public MessageQueue(int discardThreshold, DiscardAction discardAction)
+    {
+        this(discardThreshold, discardAction, null);
+    }
+
+
+    /**
+     *  Constructs an instance that records queue activity (including discarded
+     *  messages) in the provided statistics object, if it's not null.
+     */
+    public MessageQueue(int discardThreshold, DiscardAction discardAction, AppenderStatistics statistics)
     {
         this.discardThreshold = discardThreshold;
         this.discardAction = discardAction;
+        this.statistics = statistics;
     }
 
 
@@ -92,6 +109,8 @@ public class MessageQueue
     {
         messageQueue.addLast(message);
         messageCount.incrementAndGet();
+        if (statistics != null)
+            statistics.recordEnqueued(message);
         applyDiscard();
     }
 
@@ -107,6 +126,8 @@ public class MessageQueue
     {
         messageQueue.addFirst(message);
         messageCount.incrementAndGet();
+        if (statistics != null)
+            statistics.recordRequeued(message);
         applyDiscard();
     }
 
@@ -120,6 +141,8 @@ public class MessageQueue
         if (message != null)
         {
             messageCount.decrementAndGet();
+            if (statistics != null)
+                statistics.recordDequeued(message);
         }
         return message;
     }
@@ -141,6 +164,8 @@ public class MessageQueue
             if (message != null)
             {
                 messageCount.decrementAndGet();
+                if (statistics != null)
+                    statistics.recordDequeued(message);
             }
             return message;
         }
@@ -151,6 +176,16 @@ public class MessageQueue
     }
 
 
+    /**
+     *  Returns the message at the front of the queue without removing it, null
+     *  if the queue is empty.
+     */
+    public LogMessage peek()
+    {
+        return messageQueue.peekFirst();
+    }
+
+
     /**
      *  Returns the current number of elements in the queue, as recorded by the atomic
      *  counter. This is an O(1) operation, but might not be exact.
@@ -205,6 +240,11 @@ public class MessageQueue
             if (discarded != null)
             {
                 messageCount.decrementAndGet();
+                if (statistics != null)
+                {
+                    statistics.recordDequeued(discarded);
+                    statistics.recordDiscarded(DiscardReason.threshold, 1);
+                }
             }
         }
     }
@@ -0,0 +1,300 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.log4j.aws.internal.shared;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Level;
+
+
+/**
+ *  Limits the rate of events by logger name and level. Configured with a comma-
+ *  separated list of rules, each of the form <code>KEY=RATE</code>, where
+ *  <code>RATE</code> is events per second and <code>KEY</code> is one of:
+ *  <ul>
+ *  <li> A logger name prefix: each logger whose name starts with the prefix
+ *       (at a dot boundary) has its own limit. Where several prefixes match,
+ *       the longest wins; <code>*</code> matches all loggers.
+ *  <li> <code>level:NAME</code>: all events at that level share the limit.
+ *  </ul>
+ *  An event must be within both its logger and level limits (if any). Each limit
+ *  allows a burst of one second's worth of events.
+ *  <p>
+ *  Limits are implemented with the "generic cell rate algorithm", which is a
+ *  token bucket that needs only a single timestamp: each bucket is an atomic
+ *  variable, updated with compare-and-swap. The table of per-logger buckets is
+ *  a concurrent map, populated on the first event from each limited logger; it's
+ *  bounded, and once full any new loggers share a single bucket per rule. Loggers
+ *  that don't match any rule are remembered in a separate bounded set, so that
+ *  they can't use up the space for limited loggers.
+ *  <p>
+ *  Suppressed events are counted, and {@link #reportIfDue} returns a summary.
+ */
+public class RateLimiter
+{
+    // the number of loggers that can have their own bucket
+    private final static int MAX_LOGGER_BUCKETS = 4096;
+
+    // the number of unlimited loggers that we remember; beyond this, they're
+    // checked against the rules for every event
+    private final static int MAX_UNLIMITED_LOGGERS = 4096;
+
+    private final static long NANOS_PER_SECOND = 1000000000L;
+
+    // a placeholder for loggers that don't match any rule
+    private final static Bucket UNLIMITED = new Bucket("unlimited", 0, 0);
+
+    private List<Rule> loggerRules = new ArrayList<Rule>();
+    private Map<Level,Bucket> levelBuckets = new HashMap<Level,Bucket>();
+
+    private ConcurrentHashMap<String,Bucket> loggerBuckets = new ConcurrentHashMap<String,Bucket>();
+    private ConcurrentHashMap<String,Boolean> unlimitedLoggers = new ConcurrentHashMap<String,Boolean>();
+    private AtomicLong lastReport = new AtomicLong(System.currentTimeMillis());
+
+
+    /**
+     *  Parses the configuration, throwing <code>IllegalArgumentException</code>
+     *  if it's invalid.
+     */
+    public RateLimiter(String config)
+    {
+        long now = System.nanoTime();
+        for (String ruledef : config.split(","))
+        {
+            ruledef = ruledef.trim();
+            if (ruledef.length() == 0)
+                continue;
+
+            int eqIdx = ruledef.lastIndexOf('=');
+            if (eqIdx <= 0)
+                throw new IllegalArgumentException("invalid rate limit: " + ruledef);
+
+            String key = ruledef.substring(0, eqIdx).trim();
+            int rate;
+            try
+            {
+                rate = Integer.parseInt(ruledef.substring(eqIdx + 1).trim());
+            }
+            catch (NumberFormatException ex)
+            {
+                throw new IllegalArgumentException("invalid rate limit: " + ruledef);
+            }
+            if (rate <= 0)
+                throw new IllegalArgumentException("rate limit must be positive: " + ruledef);
+
+            if (key.startsWith("level:"))
+            {
+                Level level = Level.toLevel(key.substring(6), null);
+                if (level == null)
+                    throw new IllegalArgumentException("invalid level in rate limit: " + ruledef);
+                levelBuckets.put(level, new Bucket("level " + level, rate, now));
+            }
+            else
+            {
+                loggerRules.add(new Rule(key.equals("*") ? "" : key, rate, now));
+            }
+        }
+    }
+
+
+    /**
+     *  Determines whether an event from the given logger at the given level is
+     *  within its limits, counting it as suppressed if not.
+     */
+    public boolean tryAcquire(String loggerName, Level level)
+    {
+        long now = System.nanoTime();
+
+        Bucket loggerBucket = loggerBucket(loggerName);
+        if (! loggerBucket.tryAcquire(now))
+            return false;
+
+        Bucket levelBucket = levelBuckets.get(level);
+        return (levelBucket == null) || levelBucket.tryAcquire(now);
+    }
+
+
+    /**
+     *  Determines whether an event from the given logger at the given level would
+     *  currently be within its limits, without using up the limit or counting the
+     *  event as suppressed.
+     */
+    public boolean wouldAcquire(String loggerName, Level level)
+    {
+        long now = System.nanoTime();
+
+        if (! loggerBucket(loggerName).wouldAcquire(now))
+            return false;
+
+        Bucket levelBucket = levelBuckets.get(level);
+        return (levelBucket == null) || levelBucket.wouldAcquire(now);
+    }
+
+
+    /**
+     *  If the interval has elapsed since the last report, and events have been
+     *  suppressed since then, returns a summary and resets the counts. Otherwise
+     *  returns null. If called concurrently, only one caller gets the summary.
+     */
+    public String reportIfDue(long now, long interval)
+    {
+        long last = lastReport.get();
+        if ((now - last < interval) || ! lastReport.compareAndSet(last, now))
+            return null;
+
+        StringBuilder sb = new StringBuilder(128);
+        for (Bucket bucket : loggerBuckets.values())
+        {
+            bucket.appendReport(sb);
+        }
+        for (Rule rule : loggerRules)
+        {
+            rule.sharedBucket.appendReport(sb);
+        }
+        for (Bucket bucket : levelBuckets.values())
+        {
+            bucket.appendReport(sb);
+        }
+
+        return (sb.length() > 0) ? sb.toString() : null;
+    }
+
+//----------------------------------------------------------------------------
+//  Internals
+//----------------------------------------------------------------------------
+
+    private Bucket loggerBucket(String loggerName)
+    {
+        if (loggerRules.isEmpty())
+            return UNLIMITED;
+
+        Bucket bucket = loggerBuckets.get(loggerName);
+        if (bucket != null)
+            return bucket;
+
+        if (unlimitedLoggers.containsKey(loggerName))
+            return UNLIMITED;
+
+        Rule rule = findRule(loggerName);
+        if (rule == null)
+        {
+            if (unlimitedLoggers.size() < MAX_UNLIMITED_LOGGERS)
+            {
+                unlimitedLoggers.put(loggerName, Boolean.TRUE);
+            }
+            return UNLIMITED;
+        }
+
+        if (loggerBuckets.size() >= MAX_LOGGER_BUCKETS)
+            return rule.sharedBucket;
+
+        bucket = new Bucket("logger " + loggerName, rule.rate, System.nanoTime());
+        Bucket existing = loggerBuckets.putIfAbsent(loggerName, bucket);
+        return (existing != null) ? existing : bucket;
+    }
+
+
+    private Rule findRule(String loggerName)
+    {
+        Rule result = null;
+        for (Rule rule : loggerRules)
+        {
+            if (rule.matches(loggerName) && ((result == null) || (rule.prefix.length() > result.prefix.length())))
+            {
+                result = rule;
+            }
+        }
+        return result;
+    }
+
+
+    private static class Rule
+    {
+        public String prefix;
+        public int rate;
+        public Bucket sharedBucket;
+
+        public Rule(String prefix, int rate, long now)
+        {
+            this.prefix = prefix;
+            this.rate = rate;
+            this.sharedBucket = new Bucket("loggers " + (prefix.length() > 0 ? prefix : "*") + " (shared)", rate, now);
+        }
+
+        public boolean matches(String loggerName)
+        {
+            if (prefix.length() == 0)
+                return true;
+
+            return loggerName.startsWith(prefix)
+                && ((loggerName.length() == prefix.length()) || (loggerName.charAt(prefix.length()) == '.'));
+        }
+    }
+
+
+    /**
+     *  A single limit. The "theoretical arrival time" is when the bucket would be
+     *  full if no more events arrived; an event is allowed if that time is no more
+     *  than the burst tolerance in the future, and advances it by one interval.
+     */
+    private static class Bucket
+    {
+        private String name;
+        private long interval;
+        private long tolerance;
+        private AtomicLong arrivalTime;
+        private AtomicLong suppressed = new AtomicLong();
+
+        public Bucket(String name, int rate, long now)
+        {
+            this.name = name;
+            this.interval = (rate > 0) ? NANOS_PER_SECOND / rate : 0;
+            this.tolerance = (rate - 1) * interval;
+            this.arrivalTime = new AtomicLong(now);
+        }
+
+        public boolean tryAcquire(long now)
+        {
+            if (interval == 0)
+                return true;
+
+            while (true)
+            {
+                long current = arrivalTime.get();
+                long base = (current - now > 0) ? current : now;
+                if (base - now > tolerance)
+                {
+                    suppressed.incrementAndGet();
+                    return false;
+                }
+                if (arrivalTime.compareAndSet(current, base + interval))
+                    return true;
+            }
+        }
+
+        public boolean wouldAcquire(long now)
+        {
+            if (interval == 0)
+                return true;
+
+            long current = arrivalTime.get();
+            long base = (current - now > 0) ? current : now;
+            return base - now <= tolerance;
+        }
+
+        public void appendReport(StringBuilder sb)
+        {
+            long count = suppressed.getAndSet(0);
+            if (count == 0)
+                return;
+
+            if (sb.length() > 0)
+                sb.append("; ");
+            sb.append("suppressed ").append(count).append(" messages from ").append(name);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.log4j.aws.internal.shared;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.spi.LoggingEvent;
+
+
+/**
+ *  Computes a routing key from a logging event. The template is literal text
+ *  combined with the following brace-delimited variables:
+ *  <ul>
+ *  <li> <code>{logger}</code>:     the name of the event's logger.
+ *  <li> <code>{mdc:XXX}</code>:    the value of MDC entry <code>XXX</code>, or an
+ *                                  empty string if there isn't one.
+ *  </ul>
+ *  Anything else in braces is treated as literal text. If the result is empty,
+ *  the key is {@link #DEFAULT_ROUTE}.
+ *  <p>
+ *  An appender may also give a pattern of characters that can't appear in its
+ *  destination names. These are removed from the result, so that routes that
+ *  would write to the same destination have the same key.
+ *  <p>
+ *  The template is parsed once, at construction, so evaluation involves only
+ *  lookups and concatenation. Instances are thread-safe.
+ */
+public class RouteTemplate
+{
+    /**
+     *  The routing key used when the template evaluates to an empty string.
+     */
+    public final static String DEFAULT_ROUTE = "default";
+
+    // each entry is either a literal string or a Variable
+    private List<Object> parts = new ArrayList<Object>();
+
+    // may be null, in which case the result is used as-is
+    private Pattern disallowed;
+
+
+    public RouteTemplate(String template)
+    {
+        this(template, null);
+    }
+
+
+    public RouteTemplate(String template, Pattern disallowed)
+    {
+        this.disallowed = disallowed;
+
+        int pos = 0;
+        while (pos < template.length())
+        {
+            int start = template.indexOf('{', pos);
+            int end = (start >= 0) ? template.indexOf('}', start) : -1;
+            if (end < 0)
+            {
+                parts.add(template.substring(pos));
+                break;
+            }
+
+            Variable var = Variable.parse(template.substring(start + 1, end));
+            if (var == null)
+            {
+                // not one of ours; keep the braces and look for a tag after them
+                parts.add(template.substring(pos, start + 1));
+                pos = start + 1;
+                continue;
+            }
+
+            if (start > pos)
+            {
+                parts.add(template.substring(pos, start));
+            }
+            parts.add(var);
+            pos = end + 1;
+        }
+    }
+
+
+    /**
+     *  Returns the routing key for the given event.
+     */
+    public String evaluate(LoggingEvent event)
+    {
+        String result;
+        if ((parts.size() == 1) && (parts.get(0) instanceof Variable))
+        {
+            // the common case, so skip the builder
+            result = ((Variable)parts.get(0)).evaluate(event);
+        }
+        else
+        {
+            StringBuilder sb = new StringBuilder(64);
+            for (Object part : parts)
+            {
+                sb.append((part instanceof Variable) ? ((Variable)part).evaluate(event) : (String)part);
+            }
+            result = sb.toString();
+        }
+
+        if (disallowed != null)
+        {
+            result = disallowed.matcher(result).replaceAll("");
+        }
+
+        return result.length() > 0 ? result : DEFAULT_ROUTE;
+    }
+
+//----------------------------------------------------------------------------
+//  Internals
+//----------------------------------------------------------------------------
+
+    private static class Variable
+    {
+        private String mdcKey;      // null means logger name
+
+        private Variable(String mdcKey)
+        {
+            this.mdcKey = mdcKey;
+        }
+
+        public static Variable parse(String tag)
+        {
+            if (tag.equals("logger"))
+                return new Variable(null);
+            if (tag.startsWith("mdc:") && (tag.length() > 4))
+                return new Variable(tag.substring(4));
+            return null;
+        }
+
+        public String evaluate(LoggingEvent event)
+        {
+            Object value = (mdcKey == null) ? event.getLoggerName() : event.getMDC(mdcKey);
+            return (value != null) ? value.toString() : "";
+        }
+    }
+}
@@ -0,0 +1,131 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.log4j.aws.internal.shared;
+
+import java.lang.Thread.UncaughtExceptionHandler;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.helpers.LogLog;
+
+
+/**
+ *  A {@link ThreadFactory} that runs writers as tasks on a small, shared pool of
+ *  threads, rather than giving each writer its own thread. Writers that don't
+ *  extend {@link AbstractLogWriter} are given their own thread, as with
+ *  {@link DefaultThreadFactory}.
+ *  <p>
+ *  A writer only occupies a pool thread while it's sending a batch, so the pool
+ *  should be large enough to cover writers that are sending at the same time
+ *  (including retries, which may wait between attempts). A stalled writer holds
+ *  its thread until its call returns. The default instance's pool size may be
+ *  set with the system property <code>com.kdgregory.log4j.aws.sharedWriterThreads</code>.
+ *  <p>
+ *  Creating the client and verifying (or creating) the destination can take
+ *  minutes, so doesn't happen on the pool: each writer does it on a separate
+ *  thread, which is discarded once it has been idle for a minute.
+ *  <p>
+ *  The pool's threads are daemon threads, and the pool is never shut down. As
+ *  with dedicated threads, messages that haven't been sent when the JVM exits
+ *  are lost unless the appender is closed with <code>closeAndWait()</code> (or
+ *  uses a shutdown hook).
+ */
+public class SharedThreadFactory
+implements ThreadFactory
+{
+    public final static String POOL_SIZE_PROPERTY = "com.kdgregory.log4j.aws.sharedWriterThreads";
+
+    /** The number of threads in the default instance's pool, unless overridden by the property. */
+    public final static int DEFAULT_POOL_SIZE = 2;
+
+    private static SharedThreadFactory defaultInstance;
+
+    /**
+     *  Returns the instance shared by all appenders that are configured to use
+     *  shared writer threads, creating it if necessary.
+     */
+    public static synchronized SharedThreadFactory getDefaultInstance()
+    {
+        if (defaultInstance == null)
+        {
+            defaultInstance = new SharedThreadFactory(configuredPoolSize());
+        }
+        return defaultInstance;
+    }
+
+
+    private static int configuredPoolSize()
+    {
+        String value = System.getProperty(POOL_SIZE_PROPERTY);
+        if (value == null)
+            return DEFAULT_POOL_SIZE;
+
+        try
+        {
+            return Math.max(1, Integer.parseInt(value.trim()));
+        }
+        catch (NumberFormatException ex)
+        {
+            LogLog.warn("invalid value for " + POOL_SIZE_PROPERTY + ": " + value);
+            return DEFAULT_POOL_SIZE;
+        }
+    }
+
+//----------------------------------------------------------------------------
+//  Instance
+//----------------------------------------------------------------------------
+
+    private ScheduledExecutorService executor;
+    private ExecutorService setupExecutor;
+    private ThreadFactory fallback = new DefaultThreadFactory();
+
+
+    public SharedThreadFactory(int poolSize)
+    {
+        executor = new ScheduledThreadPoolExecutor(poolSize, new NamedDaemonThreadFactory("log4j-aws-shared-writer-"));
+        setupExecutor = Executors.newCachedThreadPool(new NamedDaemonThreadFactory("log4j-aws-writer-setup-"));
+    }
+
+
+    @Override
+    public void startLoggingThread(LogWriter writer, UncaughtExceptionHandler exceptionHandler)
+    {
+        if (writer instanceof AbstractLogWriter)
+        {
+            ((AbstractLogWriter)writer).start(executor, setupExecutor, exceptionHandler);
+        }
+        else
+        {
+            fallback.startLoggingThread(writer, exceptionHandler);
+        }
+    }
+
+
+//----------------------------------------------------------------------------
+//  Internals
+//----------------------------------------------------------------------------
+
+    private static class NamedDaemonThreadFactory
+    implements java.util.concurrent.ThreadFactory
+    {
+        private String prefix;
+        private AtomicInteger threadNumber = new AtomicInteger();
+
+        public NamedDaemonThreadFactory(String prefix)
+        {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable task)
+        {
+            Thread thread = new Thread(task);
+            thread.setName(prefix + threadNumber.getAndIncrement());
+            thread.setPriority(Thread.NORM_PRIORITY);
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
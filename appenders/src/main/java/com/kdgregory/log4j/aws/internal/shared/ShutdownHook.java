@@ -0,0 +1,124 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.log4j.aws.internal.shared;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.log4j.helpers.LogLog;
+
+
+/**
+ *  A JVM shutdown hook that drains appenders before the JVM exits.
+ *  <p>
+ *  Appenders that enable the <code>useShutdownHook</code> property register
+ *  themselves when they start their first writer, and unregister when closed.
+ *  The hook itself is installed lazily, on first registration, and remains
+ *  installed for the life of the JVM.
+ *  <p>
+ *  At shutdown, each registered appender is drained on its own thread, so the
+ *  total delay is bounded by the longest appender timeout rather than the sum
+ *  of all timeouts.
+ */
+public class ShutdownHook
+{
+    private static Set<AbstractAppender<?>> appenders = new LinkedHashSet<AbstractAppender<?>>();
+    private static Thread hookThread;
+
+
+    /**
+     *  Adds an appender to the set that will be drained at shutdown. Installs
+     *  the hook if it isn't already installed.
+     */
+    public static synchronized void register(AbstractAppender<?> appender)
+    {
+        if (hookThread == null)
+        {
+            hookThread = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    drainAll();
+                }
+            });
+            hookThread.setName("log4j-aws-shutdown");
+
+            try
+            {
+                Runtime.getRuntime().addShutdownHook(hookThread);
+            }
+            catch (IllegalStateException ex)
+            {
+                // JVM is already shutting down; nothing we can do
+                LogLog.warn("unable to install shutdown hook: JVM is shutting down");
+                return;
+            }
+        }
+
+        appenders.add(appender);
+    }
+
+
+    /**
+     *  Removes an appender from the set that will be drained at shutdown. This
+     *  is a no-op if the appender was never registered.
+     */
+    public static synchronized void unregister(AbstractAppender<?> appender)
+    {
+        appenders.remove(appender);
+    }
+
+
+    /**
+     *  Returns the currently registered appenders. This is intended for testing.
+     */
+    public static synchronized List<AbstractAppender<?>> getRegisteredAppenders()
+    {
+        return new ArrayList<AbstractAppender<?>>(appenders);
+    }
+
+
+    /**
+     *  Drains all registered appenders in parallel, returning when they have all
+     *  finished (or timed out). Called from the hook thread; exposed for testing.
+     */
+    public static void drainAll()
+    {
+        // appenders unregister themselves as part of closing, so we work from a copy
+        List<AbstractAppender<?>> toDrain = getRegisteredAppenders();
+
+        long maxTimeout = 0;
+        List<Thread> threads = new ArrayList<Thread>(toDrain.size());
+        for (final AbstractAppender<?> appender : toDrain)
+        {
+            maxTimeout = Math.max(maxTimeout, appender.getShutdownTimeout());
+            Thread thread = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    appender.closeAndWait();
+                }
+            });
+            thread.setName("log4j-aws-shutdown-" + appender.getName());
+            thread.start();
+            threads.add(thread);
+        }
+
+        // each appender bounds its own wait; the extra second covers reporting
+        long joinUntil = System.currentTimeMillis() + maxTimeout + 1000;
+        for (Thread thread : threads)
+        {
+            try
+            {
+                thread.join(Math.max(1, joinUntil - System.currentTimeMillis()));
+            }
+            catch (InterruptedException ignored)
+            {
+                return;
+            }
+        }
+    }
+}
@@ -4,75 +4,436 @@ package com.kdgregory.log4j.aws.internal.shared;
 import java.lang.management.ManagementFactory;
 import java.lang.management.RuntimeMXBean;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.TimeZone;
 
-import com.amazonaws.util.EC2MetadataUtils;
-
 
 /**
- *  Handles the standard substitution variables. You create a new instance whenever
- *  performing substitutions; instances are not thread-safe.
+ *  Handles the standard substitution variables. There are two ways to use this
+ *  class:
+ *  <ul>
+ *  <li> Create an instance, with the current date and sequence number, and call
+ *       {@link #perform}. This is intended for one-time substitutions, such as
+ *       destination names; instances are not thread-safe.
+ *  <li> Call {@link #compile} to turn a string into a {@link Template}, then call
+ *       {@link Template#evaluate} as often as needed. Compiling resolves every
+ *       substitution that doesn't depend on time or sequence number; evaluating
+ *       fills in the rest. Templates are thread-safe, and cheap enough to evaluate
+ *       for every event.
+ *  </ul>
+ *  Values that are fixed for the life of the process (such as PID and hostname)
+ *  are computed once. Date and time values are computed at most once per second.
  */
 public class Substitutions
 {
-    // we precompute all substitution values and cache them for future use; we don't
-    // expect to be called in any sort of tight loop
+    // process-level values; these are retrieved on first use
+
+    private static String pid;
+    private static String hostname;
+    private static String startupTimestamp;
+
+    // the formatted date/time values for the most recently requested second;
+    // this is replaced rather than updated, so is safe to share between threads
+
+    private static volatile TimeValues timeCache = new TimeValues(0);
+
+    private long currentTime;
+    private int sequence;
+    private String route;
+
+
+    public Substitutions(Date currentDate, int sequence)
+    {
+        this(currentDate, sequence, null);
+    }
+
+
+    /**
+     *  Constructs an instance for a routing appender: <code>{route}</code> will
+     *  be replaced by the passed value. This replacement happens after all other
+     *  substitutions, so the route value is never itself substituted.
+     */
+    public Substitutions(Date currentDate, int sequence, String route)
+    {
+        this.currentTime = currentDate.getTime();
+        this.sequence = sequence;
+        this.route = route;
+    }
+
+
+    /**
+     *  Applies all substitutions.
+     */
+    public String perform(String input)
+    {
+        if (input == null)
+            return "";
+
+        String result = compile(input).evaluate(currentTime, sequence);
+        return (route != null)
+             ? result.replace("{route}", route)
+             : result;
+    }
+
+
+    /**
+     *  Compiles a template string. This resolves all substitutions that don't
+     *  vary with time or sequence number, including environment variables and
+     *  system properties (so changes to either after compilation will not be
+     *  reflected in the output).
+     */
+    public static Template compile(String input)
+    {
+        return new Template(input);
+    }
 
-    private String date;
-    private String timestamp;
-    private String hourlyTimestamp;
-    private String startupTimestamp;
-    private String pid;
-    private String hostname;
-    private String sequence;
 
+    /**
+     *  Starts retrieving any values used by the input that are slow to obtain
+     *  (currently just the instance ID), so that they're likely to be available
+     *  when the input is compiled. Configuration setters call this.
+     */
+    public static void prefetch(String input)
+    {
+        if ((input != null) && (input.indexOf("{instanceId}") >= 0))
+        {
+            InstanceMetadata.prefetch();
+        }
+    }
+
+
+//----------------------------------------------------------------------------
+//  Templates
+//----------------------------------------------------------------------------
 
-    public Substitutions(Date curremtDate, int sequence)
+    /**
+     *  A pre-parsed substitution string: a list of tokens, which are either
+     *  literal text (including the values of substitutions that have already
+     *  been resolved) or a reference to a value that changes over time.
+     *  <p>
+     *  A few unusual strings can't be represented this way: those where the
+     *  result of one substitution is part of another (for example, a system
+     *  property that names an environment variable: <code>{env:{sysprop:foo}}</code>),
+     *  or where the value of a substitution contains a brace. Those strings
+     *  are evaluated with the original substitute-until-unchanged algorithm.
+     */
+    public static class Template
     {
+        private final static int LITERAL            = 0;
+        private final static int DATE               = 1;
+        private final static int TIMESTAMP          = 2;
+        private final static int HOURLY_TIMESTAMP   = 3;
+        private final static int SEQUENCE           = 4;
+
+        private int[] tokenTypes;
+        private String[] tokenValues;
+
+        // exactly one of these will be non-null if the template can't be tokenized
+        // (legacyInput) or doesn't depend on time or sequence (constantValue)
+        private String legacyInput;
+        private String constantValue;
+
+        private volatile CachedOutput lastOutput;
+
+        private Template(String input)
+        {
+            List<Integer> types = new ArrayList<Integer>();
+            List<String> values = new ArrayList<String>();
+            StringBuilder literal = new StringBuilder();
+
+            int len = input.length();
+            int ii = 0;
+            while (ii < len)
+            {
+                int open = input.indexOf('{', ii);
+                int close = (open >= 0) ? input.indexOf('}', open) : -1;
+                if (close < 0)
+                {
+                    literal.append(input, ii, len);
+                    break;
+                }
+
+                literal.append(input, ii, open);
+                int nextOpen = input.indexOf('{', open + 1);
+                if ((nextOpen >= 0) && (nextOpen < close))
+                {
+                    // nested braces: something inside might produce a tag
+                    legacyInput = input;
+                    return;
+                }
+
+                String tag = input.substring(open + 1, close);
+                int type = dynamicType(tag);
+                if (type != LITERAL)
+                {
+                    addToken(types, values, LITERAL, literal.toString());
+                    literal.setLength(0);
+                    addToken(types, values, type, null);
+                }
+                else
+                {
+                    String value = resolveStatic(tag);
+                    if (value == null)
+                    {
+                        literal.append(input, open, close + 1);
+                    }
+                    else if ((value.indexOf('{') >= 0) || (value.indexOf('}') >= 0))
+                    {
+                        // the value might produce a tag
+                        legacyInput = input;
+                        return;
+                    }
+                    else
+                    {
+                        literal.append(value);
+                    }
+                }
+                ii = close + 1;
+            }
+            addToken(types, values, LITERAL, literal.toString());
+
+            if (types.isEmpty())
+            {
+                constantValue = "";
+            }
+            else if ((types.size() == 1) && (types.get(0).intValue() == LITERAL))
+            {
+                constantValue = values.get(0);
+            }
+            else
+            {
+                tokenTypes = new int[types.size()];
+                tokenValues = values.toArray(new String[values.size()]);
+                for (int jj = 0 ; jj < tokenTypes.length ; jj++)
+                {
+                    tokenTypes[jj] = types.get(jj).intValue();
+                }
+            }
+        }
+
+
+        /**
+         *  Returns true if the template's output is the same regardless of time
+         *  or sequence number.
+         */
+        public boolean isConstant()
+        {
+            return constantValue != null;
+        }
+
+
+        /**
+         *  Returns the result of applying substitutions at the given time, with
+         *  the given sequence number.
+         */
+        public String evaluate(long millis, int sequence)
+        {
+            if (constantValue != null)
+                return constantValue;
+
+            if (legacyInput != null)
+                return legacyPerform(legacyInput, timeValues(millis), String.valueOf(sequence));
+
+            long second = TimestampFormatter.floorDiv(millis, 1000);
+            CachedOutput cached = lastOutput;
+            if ((cached != null) && (cached.second == second) && (cached.sequence == sequence))
+                return cached.value;
+
+            TimeValues time = timeValues(millis);
+            StringBuilder sb = new StringBuilder(64);
+            for (int ii = 0 ; ii < tokenTypes.length ; ii++)
+            {
+                switch (tokenTypes[ii])
+                {
+                    case DATE :             sb.append(time.date); break;
+                    case TIMESTAMP :        sb.append(time.timestamp); break;
+                    case HOURLY_TIMESTAMP : sb.append(time.hourlyTimestamp); break;
+                    case SEQUENCE :         sb.append(sequence); break;
+                    default :               sb.append(tokenValues[ii]);
+                }
+            }
+
+            String result = sb.toString();
+            lastOutput = new CachedOutput(second, sequence, result);
+            return result;
+        }
+
+
+        private static void addToken(List<Integer> types, List<String> values, int type, String value)
+        {
+            if ((type == LITERAL) && value.isEmpty())
+                return;
+
+            types.add(Integer.valueOf(type));
+            values.add(value);
+        }
+
+
+        private static int dynamicType(String tag)
+        {
+            if ("date".equals(tag))             return DATE;
+            if ("timestamp".equals(tag))        return TIMESTAMP;
+            if ("hourlyTimestamp".equals(tag))  return HOURLY_TIMESTAMP;
+            if ("sequence".equals(tag))         return SEQUENCE;
+            return LITERAL;
+        }
+
+
+        /**
+         *  Returns the value of a tag that doesn't vary over time, null if the
+         *  tag is unknown or has no value.
+         */
+        private static String resolveStatic(String tag)
+        {
+            if ("pid".equals(tag))              return pid();
+            if ("hostname".equals(tag))         return hostname();
+            if ("startupTimestamp".equals(tag)) return startupTimestamp();
+            if ("instanceId".equals(tag))       return instanceId();
+            if (tag.startsWith("env:"))         return System.getenv(tag.substring(4));
+            if (tag.startsWith("sysprop:"))     return System.getProperty(tag.substring(8));
+            return null;
+        }
+    }
+
+
+    /**
+     *  The output of a template for a specific second and sequence number.
+     */
+    private static class CachedOutput
+    {
+        public final long second;
+        public final int sequence;
+        public final String value;
+
+        public CachedOutput(long second, int sequence, String value)
+        {
+            this.second = second;
+            this.sequence = sequence;
+            this.value = value;
+        }
+    }
+
+//----------------------------------------------------------------------------
+//  Value sources
+//----------------------------------------------------------------------------
+
+    private static synchronized void initProcessValues()
+    {
+        if (pid != null)
+            return;
+
         RuntimeMXBean runtimeMx = ManagementFactory.getRuntimeMXBean();
         String vmName = runtimeMx.getName();
 
+        hostname = (vmName.indexOf('@') > 0)
+                 ? vmName.substring(vmName.indexOf('@') + 1, vmName.length())
+                 : "unknown";
+
+        startupTimestamp = timeValues(runtimeMx.getStartTime()).timestamp;
+
+        // this must be last, since it indicates that the values are ready
         pid = (vmName.indexOf('@') > 0)
             ? vmName.substring(0, vmName.indexOf('@'))
             : "unknown";
+    }
 
-        hostname = (vmName.indexOf('@') > 0)
-                 ? vmName.substring(vmName.indexOf('@') + 1, vmName.length())
-                 : "unknown";
 
-        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMdd");
-        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
-        date = dateFormat.format(curremtDate);
+    private static String pid()
+    {
+        initProcessValues();
+        return pid;
+    }
 
-        SimpleDateFormat timestampFormat = new SimpleDateFormat("yyyyMMddHHmmss");
-        timestampFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
-        timestamp = timestampFormat.format(curremtDate);
-        hourlyTimestamp = timestamp.substring(0, 10) + "0000";  // yeah, it's a hack
-        startupTimestamp = timestampFormat.format(new Date(runtimeMx.getStartTime()));
 
-        this.sequence = String.valueOf(sequence);
+    private static String hostname()
+    {
+        initProcessValues();
+        return hostname;
+    }
+
+
+    private static String startupTimestamp()
+    {
+        initProcessValues();
+        return startupTimestamp;
     }
 
 
     /**
-     *  Applies all substitutions.
+     *  Retrieves the EC2 instance ID, null if not available. This waits for at
+     *  most the metadata timeout, but it's still only called when a string uses
+     *  the tag.
      */
-    public String perform(String input)
+    private static String instanceId()
     {
-        if (input == null)
-            return "";
+        return InstanceMetadata.getInstanceId();
+    }
+
+
+    private static TimeValues timeValues(long millis)
+    {
+        long second = TimestampFormatter.floorDiv(millis, 1000);
+        TimeValues cached = timeCache;
+        if (cached.second != second)
+        {
+            cached = new TimeValues(second);
+            timeCache = cached;
+        }
+        return cached;
+    }
+
 
+    /**
+     *  Holds the formatted date and time values for a single second.
+     */
+    private static class TimeValues
+    {
+        public final long second;
+        public final String date;
+        public final String timestamp;
+        public final String hourlyTimestamp;
+
+        public TimeValues(long second)
+        {
+            this.second = second;
+
+            // TimestampFormatter gives us "yyyy-MM-ddTHH:mm:ss.SSSZ"; we just need the digits
+            String formatted = TimestampFormatter.format(second * 1000);
+            if (formatted.length() == TimestampFormatter.LENGTH)
+            {
+                timestamp = formatted.substring(0, 4) + formatted.substring(5, 7) + formatted.substring(8, 10)
+                          + formatted.substring(11, 13) + formatted.substring(14, 16) + formatted.substring(17, 19);
+            }
+            else
+            {
+                SimpleDateFormat timestampFormat = new SimpleDateFormat("yyyyMMddHHmmss");
+                timestampFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+                timestamp = timestampFormat.format(new Date(second * 1000));
+            }
+
+            date = timestamp.substring(0, 8);
+            hourlyTimestamp = timestamp.substring(0, 10) + "0000";  // yeah, it's a hack
+        }
+    }
+
+//----------------------------------------------------------------------------
+//  The original algorithm, for templates that can't be tokenized
+//----------------------------------------------------------------------------
+
+    private static String legacyPerform(String input, TimeValues time, String sequence)
+    {
         String output = input;
         do
         {
             input = output;
-            output = substitute("{date}",            date,
-                     substitute("{timestamp}",       timestamp,
-                     substitute("{hourlyTimestamp}", hourlyTimestamp,
-                     substitute("{startupTimestamp}", startupTimestamp,
-                     substitute("{pid}",             pid,
-                     substitute("{hostname}",        hostname,
+            output = substitute("{date}",            time.date,
+                     substitute("{timestamp}",       time.timestamp,
+                     substitute("{hourlyTimestamp}", time.hourlyTimestamp,
+                     substitute("{startupTimestamp}", startupTimestamp(),
+                     substitute("{pid}",             pid(),
+                     substitute("{hostname}",        hostname(),
                      substitute("{sequence}",        sequence,
                      substituteInstanceId(
                      substituteSysprop(
@@ -87,7 +448,7 @@ public class Substitutions
     /**
      *  Performs simple subsitutions, where the tag fully describes the substitution.
      */
-    private String substitute(String tag, String value, String input)
+    private static String substitute(String tag, String value, String input)
     {
         if (input == null)
             return "";
@@ -103,29 +464,19 @@ public class Substitutions
     }
 
 
-    /**
-     *  Substitutes the EC2 instance ID. If not running on EC2 we won't be able
-     *  to retrieve instance metadata (and it takes a long time to learn that,
-     *  waiting for a timeout) so this isn't handled as a "simple" substitution.
-     */
-    private String substituteInstanceId(String input)
+    private static String substituteInstanceId(String input)
     {
-        int index = input.indexOf("{instanceId}");
-        if (index < 0)
-            return input;
-
-        String instanceId = EC2MetadataUtils.getInstanceId();
-        if ((instanceId == null) || (instanceId.length() == 0))
+        if (input.indexOf("{instanceId}") < 0)
             return input;
 
-        return substitute("{instanceId}", instanceId, input);
+        return substitute("{instanceId}", instanceId(), input);
     }
 
 
     /**
      *  Substitutes system properties, where the property depends on the tag.
      */
-    private String substituteSysprop(String input)
+    private static String substituteSysprop(String input)
     {
         String propName = extractPropName("sysprop", input);
         if (propName == null)
@@ -138,7 +489,7 @@ public class Substitutions
     /**
      *  Substitutes environment variables, where the variable depends on the tag.
      */
-    private String substituteEnvar(String input)
+    private static String substituteEnvar(String input)
     {
         String propName = extractPropName("env", input);
         if (propName == null)
@@ -152,7 +503,7 @@ public class Substitutions
      *  Extracts the property name for a colon-delimited tag, null if unable to
      *  do so.
      */
-    private String extractPropName(String tagType, String input)
+    private static String extractPropName(String tagType, String input)
     {
         String tagForm = "{" + tagType + ":";
         int index1 = input.indexOf(tagForm);
@@ -0,0 +1,220 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.log4j.aws.internal.shared;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.log4j.spi.LoggingEvent;
+
+import com.kdgregory.log4j.aws.internal.shared.AppenderStatistics.DiscardReason;
+
+
+/**
+ *  Holds recent verbose events for each "context" (a thread, or a value from the
+ *  MDC), so that they can be written if the context later reports an error, and
+ *  discarded if it doesn't.
+ *  <p>
+ *  Each context has a ring buffer of fixed size: once full, adding an event
+ *  discards the oldest. Contexts are held in an {@link LRUCache} of fixed size,
+ *  so the total number of buffered events is bounded by the product of the two
+ *  sizes. A context is discarded, with its events, when it hasn't been used for
+ *  the configured time, or when the cache is full and it's the least recently
+ *  used. All discarded events are reported to the appender's statistics.
+ *  <p>
+ *  Events are buffered after taking a snapshot of their thread-dependent data
+ *  (thread name, NDC, MDC), as with <code>AsyncAppender</code>. Location info
+ *  is expensive, so is only captured if enabled; if not, the appender writes
+ *  buffered events without location (see {@link LocationFinder}).
+ *  <p>
+ *  Instances are thread-safe. The cache is consulted once per buffered event;
+ *  each ring buffer has its own lock.
+ */
+public class TailBuffer
+{
+    private String mdcKey;
+    private boolean locationInfo;
+    private int contextSize;
+    private long maxAge;
+    private AppenderStatistics statistics;
+    private LRUCache<String,Ring> contexts;
+
+
+    /**
+     *  @param  mdcKey          The MDC key that identifies a context. If null, or
+     *                          if an event doesn't have this key, the context is
+     *                          the event's thread.
+     *  @param  contextSize     The maximum number of events held for a context.
+     *  @param  maxContexts     The maximum number of contexts.
+     *  @param  maxAge          The time, in milliseconds, after which an unused
+     *                          context is discarded; 0 means no limit.
+     *  @param  statistics      Used to report discarded events.
+     */
+    public TailBuffer(String mdcKey, int contextSize, int maxContexts, long maxAge, AppenderStatistics statistics)
+    {
+        this(mdcKey, false, contextSize, maxContexts, maxAge, statistics);
+    }
+
+
+    /**
+     *  @param  mdcKey          The MDC key that identifies a context. If null, or
+     *                          if an event doesn't have this key, the context is
+     *                          the event's thread.
+     *  @param  locationInfo    If true, each event's location is captured when
+     *                          it's buffered.
+     *  @param  contextSize     The maximum number of events held for a context.
+     *  @param  maxContexts     The maximum number of contexts.
+     *  @param  maxAge          The time, in milliseconds, after which an unused
+     *                          context is discarded; 0 means no limit.
+     *  @param  statistics      Used to report discarded events.
+     */
+    public TailBuffer(String mdcKey, boolean locationInfo, int contextSize, int maxContexts, long maxAge, AppenderStatistics statistics)
+    {
+        this.mdcKey = mdcKey;
+        this.locationInfo = locationInfo;
+        this.contextSize = Math.max(1, contextSize);
+        this.maxAge = maxAge;
+        this.statistics = statistics;
+        this.contexts = new LRUCache<String,Ring>(Math.max(1, maxContexts))
+        {
+            @Override
+            protected void evicted(String key, Ring ring)
+            {
+                TailBuffer.this.discard(ring.drain());
+            }
+        };
+    }
+
+
+    /**
+     *  Returns true if buffered events have their location.
+     */
+    public boolean isLocationCaptured()
+    {
+        return locationInfo;
+    }
+
+
+    /**
+     *  Returns the context for the passed event.
+     */
+    public String contextKey(LoggingEvent event)
+    {
+        Object value = (mdcKey != null) ? event.getMDC(mdcKey) : null;
+        return (value != null) ? value.toString() : event.getThreadName();
+    }
+
+
+    /**
+     *  Adds an event to the buffer for its context, discarding the context's
+     *  oldest event if the buffer is full.
+     */
+    public void add(LoggingEvent event)
+    {
+        // capture everything that depends on the logging thread
+        event.getThreadName();
+        event.getNDC();
+        event.getMDCCopy();
+        event.getRenderedMessage();
+        if (locationInfo)
+        {
+            event.getLocationInformation();
+        }
+
+        String key = contextKey(event);
+        Ring ring;
+        synchronized (contexts)
+        {
+            ring = contexts.get(key);
+            if (ring == null)
+            {
+                ring = new Ring(contextSize);
+                contexts.put(key, ring);
+            }
+            if (maxAge > 0)
+            {
+                contexts.expireUnusedSince(event.getTimeStamp() - maxAge);
+            }
+        }
+
+        if (! ring.add(event))
+        {
+            statistics.recordDiscarded(DiscardReason.unflushed, 1);
+        }
+    }
+
+
+    /**
+     *  Removes and returns the buffered events for the passed event's context,
+     *  oldest first. Returns an empty list if there aren't any.
+     */
+    public List<LoggingEvent> drain(LoggingEvent event)
+    {
+        Ring ring = contexts.get(contextKey(event));
+        return (ring != null) ? ring.drain() : Collections.<LoggingEvent>emptyList();
+    }
+
+
+    /**
+     *  Discards all buffered events. This is called when the appender is closed.
+     */
+    public void clear()
+    {
+        for (Ring ring : contexts.clear())
+        {
+            discard(ring.drain());
+        }
+    }
+
+//----------------------------------------------------------------------------
+//  Internals
+//----------------------------------------------------------------------------
+
+    private void discard(List<LoggingEvent> events)
+    {
+        if (events.size() > 0)
+        {
+            statistics.recordDiscarded(DiscardReason.unflushed, events.size());
+        }
+    }
+
+
+    private static class Ring
+    {
+        private LoggingEvent[] events;
+        private int next;
+        private int count;
+
+        public Ring(int size)
+        {
+            events = new LoggingEvent[size];
+        }
+
+        /**
+         *  Adds an event, returning false if that overwrote an older event.
+         */
+        public synchronized boolean add(LoggingEvent event)
+        {
+            boolean overwrote = (count == events.length);
+            events[next] = event;
+            next = (next + 1) % events.length;
+            if (! overwrote)
+                count++;
+            return ! overwrote;
+        }
+
+        public synchronized List<LoggingEvent> drain()
+        {
+            List<LoggingEvent> result = new ArrayList<LoggingEvent>(count);
+            int start = (next - count + events.length) % events.length;
+            for (int ii = 0 ; ii < count ; ii++)
+            {
+                int idx = (start + ii) % events.length;
+                result.add(events[idx]);
+                events[idx] = null;
+            }
+            count = 0;
+            return result;
+        }
+    }
+}
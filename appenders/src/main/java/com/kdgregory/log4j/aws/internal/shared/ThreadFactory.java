@@ -7,6 +7,9 @@ import java.lang.Thread.UncaughtExceptionHandler;
 /**
  *  Creates and starts a new thread for running the LogWriter.
  *  <p>
+ *  {@link SharedThreadFactory} is an exception: rather than starting a thread,
+ *  it runs the writer as a series of tasks on a shared pool.
+ *  <p>
  *  Appenders are constructed with an instance of {@link DefaultThreadFactory}
  *  (or  perhaps an appender-specific factory), and lazily call this factory on
  *  first append. The thread is not returned by the factory; it should exit
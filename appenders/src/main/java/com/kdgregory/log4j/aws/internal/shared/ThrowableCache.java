@@ -0,0 +1,183 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.log4j.aws.internal.shared;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.log4j.spi.LoggingEvent;
+import org.apache.log4j.spi.ThrowableInformation;
+
+
+/**
+ *  Caches the rendered form of exceptions. Log4J renders an exception by printing
+ *  its stack trace and splitting the result into lines, for every event. When an
+ *  application logs the same exception over and over (for example, in a retry
+ *  loop), that's a lot of repeated work.
+ *  <p>
+ *  Cache entries are identified by a {@link Key}, which holds everything that
+ *  contributes to the printed trace: the class and message of the exception and
+ *  each of its causes, along with their stack frames and any suppressed exceptions.
+ *  Building a key requires retrieving the stack frames, but that's much cheaper
+ *  than rendering them.
+ *  <p>
+ *  There's a single, bounded, cache for the JVM. Layouts that want to cache their
+ *  own representation of an exception can use the key for their own cache.
+ */
+public class ThrowableCache
+{
+    private final static int MAX_ENTRIES = 256;
+
+    private static LRUCache<Key,String[]> cache = new LRUCache<Key,String[]>(MAX_ENTRIES);
+
+    // Throwable.getSuppressed() was added in Java 7; this is null on earlier JVMs
+    private static Method getSuppressedMethod;
+
+    static
+    {
+        try
+        {
+            getSuppressedMethod = Throwable.class.getMethod("getSuppressed");
+        }
+        catch (Throwable ignored)
+        {
+            getSuppressedMethod = null;
+        }
+    }
+
+
+    /**
+     *  Returns the key for the passed event's exception, null if the event doesn't
+     *  have an exception, or if that exception isn't available (as happens for
+     *  deserialized events).
+     */
+    public static Key keyFor(LoggingEvent event)
+    {
+        ThrowableInformation info = event.getThrowableInformation();
+        if ((info == null) || (info.getThrowable() == null))
+            return null;
+
+        return new Key(info.getThrowable());
+    }
+
+
+    /**
+     *  Returns the rendered form of the event's exception, null if it doesn't
+     *  have one. This is equivalent to <code>LoggingEvent.getThrowableStrRep()</code>,
+     *  but uses the cached rendering if one is available.
+     */
+    public static String[] getThrowableStrRep(LoggingEvent event)
+    {
+        Key key = keyFor(event);
+        return (key == null)
+             ? event.getThrowableStrRep()
+             : getThrowableStrRep(event, key);
+    }
+
+
+    /**
+     *  Returns the rendered form of the event's exception, given a key that has
+     *  already been generated for that event.
+     */
+    public static String[] getThrowableStrRep(LoggingEvent event, Key key)
+    {
+        String[] rep = cache.get(key);
+        if (rep == null)
+        {
+            rep = event.getThrowableStrRep();
+            cache.put(key, rep);
+        }
+        return rep;
+    }
+
+
+    /**
+     *  Identifies an exception by the information that appears in its printed form.
+     *  On Java 7 and later this includes suppressed exceptions, which are retrieved
+     *  reflectively because we're built for Java 6.
+     */
+    public static class Key
+    {
+        // limits recursion through suppressed exceptions, which may form a loop
+        private final static int MAX_SUPPRESSED_DEPTH = 8;
+
+        private List<String> descriptions = new ArrayList<String>();
+        private List<StackTraceElement[]> traces = new ArrayList<StackTraceElement[]>();
+        private List<Key> suppressed = new ArrayList<Key>();
+        private List<Integer> suppressedCounts = new ArrayList<Integer>();
+        private int hashCode;
+
+        public Key(Throwable throwable)
+        {
+            this(throwable, 0);
+        }
+
+        private Key(Throwable throwable, int depth)
+        {
+            // a cause loop is possible, if unlikely, so we limit the depth
+            for (Throwable t = throwable ; (t != null) && (descriptions.size() < 64) ; t = t.getCause())
+            {
+                String description = t.toString();
+                StackTraceElement[] trace = t.getStackTrace();
+                descriptions.add(description);
+                traces.add(trace);
+                hashCode = hashCode * 31 + description.hashCode();
+                hashCode = hashCode * 31 + Arrays.hashCode(trace);
+
+                // the count keeps suppressed exceptions attached to the right level of the chain
+                Throwable[] suppressedAtLevel = suppressedExceptions(t, depth);
+                suppressedCounts.add(Integer.valueOf(suppressedAtLevel.length));
+                hashCode = hashCode * 31 + suppressedAtLevel.length;
+                for (Throwable s : suppressedAtLevel)
+                {
+                    Key key = new Key(s, depth + 1);
+                    suppressed.add(key);
+                    hashCode = hashCode * 31 + key.hashCode;
+                }
+            }
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (this == obj)
+                return true;
+            if (! (obj instanceof Key))
+                return false;
+
+            Key that = (Key)obj;
+            if ((this.hashCode != that.hashCode) || ! this.descriptions.equals(that.descriptions))
+                return false;
+
+            for (int ii = 0 ; ii < traces.size() ; ii++)
+            {
+                if (! Arrays.equals(this.traces.get(ii), that.traces.get(ii)))
+                    return false;
+            }
+            return this.suppressedCounts.equals(that.suppressedCounts)
+                && this.suppressed.equals(that.suppressed);
+        }
+
+        private static Throwable[] suppressedExceptions(Throwable t, int depth)
+        {
+            if ((getSuppressedMethod == null) || (depth >= MAX_SUPPRESSED_DEPTH))
+                return new Throwable[0];
+
+            try
+            {
+                return (Throwable[])getSuppressedMethod.invoke(t);
+            }
+            catch (Exception ignored)
+            {
+                return new Throwable[0];
+            }
+        }
+    }
+}
@@ -0,0 +1,165 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.log4j.aws.internal.shared;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+
+/**
+ *  Formats millisecond timestamps as ISO-8601 strings in UTC, with the same
+ *  output as the <code>SimpleDateFormat</code> pattern <code>yyyy-MM-dd'T'HH:mm:ss.SSS'Z'</code>.
+ *  <p>
+ *  Logging events arrive in (roughly) timestamp order, so consecutive calls
+ *  usually fall within the same second. This class caches the formatted date
+ *  and time for the most recent second, and only needs to write milliseconds
+ *  for subsequent calls. On a cache miss, the date and time are calculated
+ *  arithmetically rather than with a <code>Calendar</code>.
+ *  <p>
+ *  This class is thread-safe: the cache is an immutable object that's replaced
+ *  (not updated) on a miss, so concurrent callers may at worst duplicate work.
+ */
+public class TimestampFormatter
+{
+    /** The length of a formatted timestamp. */
+    public final static int LENGTH = 24;
+
+    private final static int PREFIX_LENGTH = 19;
+
+    // SimpleDateFormat switches to the Julian calendar before the Gregorian
+    // cutover, and years after 9999 don't fit the fixed-width format
+    private final static long MIN_SUPPORTED = -12219292800000L;     // 1582-10-15T00:00:00.000Z
+    private final static long MAX_SUPPORTED = 253402300799999L;     // 9999-12-31T23:59:59.999Z
+
+    private static volatile CachedSecond cache = new CachedSecond(0);
+
+
+    /**
+     *  Returns the formatted timestamp.
+     */
+    public static String format(long millis)
+    {
+        if ((millis < MIN_SUPPORTED) || (millis > MAX_SUPPORTED))
+            return fallbackFormat(millis);
+
+        byte[] buf = new byte[LENGTH];
+        formatInto(buf, 0, millis);
+
+        char[] chars = new char[LENGTH];
+        for (int ii = 0 ; ii < LENGTH ; ii++)
+        {
+            chars[ii] = (char)buf[ii];
+        }
+        return new String(chars);
+    }
+
+
+    /**
+     *  Writes the formatted timestamp into the provided buffer as ASCII bytes,
+     *  starting at the given offset. Returns the number of bytes written, which
+     *  will be {@link #LENGTH} except for timestamps before the Gregorian cutover
+     *  or after the year 9999. The buffer must have space for at least 32 bytes.
+     */
+    public static int formatInto(byte[] buf, int offset, long millis)
+    {
+        if ((millis < MIN_SUPPORTED) || (millis > MAX_SUPPORTED))
+        {
+            String value = fallbackFormat(millis);
+            for (int ii = 0 ; ii < value.length() ; ii++)
+            {
+                buf[offset + ii] = (byte)value.charAt(ii);
+            }
+            return value.length();
+        }
+
+        long second = floorDiv(millis, 1000);
+        int millisOfSecond = (int)(millis - second * 1000);
+
+        CachedSecond cached = cache;
+        if (cached.second != second)
+        {
+            cached = new CachedSecond(second);
+            cache = cached;
+        }
+
+        System.arraycopy(cached.prefix, 0, buf, offset, PREFIX_LENGTH);
+        buf[offset + 19] = '.';
+        buf[offset + 20] = (byte)('0' + millisOfSecond / 100);
+        buf[offset + 21] = (byte)('0' + (millisOfSecond / 10) % 10);
+        buf[offset + 22] = (byte)('0' + millisOfSecond % 10);
+        buf[offset + 23] = 'Z';
+        return LENGTH;
+    }
+
+
+//----------------------------------------------------------------------------
+//  Internals
+//----------------------------------------------------------------------------
+
+    /**
+     *  Holds the formatted "yyyy-MM-ddTHH:mm:ss" for a single second.
+     */
+    private static class CachedSecond
+    {
+        public final long second;
+        public final byte[] prefix = new byte[PREFIX_LENGTH];
+
+        public CachedSecond(long second)
+        {
+            this.second = second;
+
+            long day = floorDiv(second, 86400);
+            int secondOfDay = (int)(second - day * 86400);
+
+            // civil-from-days algorithm, from http://howardhinnant.github.io/date_algorithms.html
+            long z = day + 719468;
+            long era = floorDiv(z, 146097);
+            long dayOfEra = z - era * 146097;
+            long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+            long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+            long mp = (5 * dayOfYear + 2) / 153;
+            int dayOfMonth = (int)(dayOfYear - (153 * mp + 2) / 5 + 1);
+            int month = (int)(mp < 10 ? mp + 3 : mp - 9);
+            int year = (int)(yearOfEra + era * 400 + (month <= 2 ? 1 : 0));
+
+            write4(year, 0);
+            prefix[4] = '-';
+            write2(month, 5);
+            prefix[7] = '-';
+            write2(dayOfMonth, 8);
+            prefix[10] = 'T';
+            write2(secondOfDay / 3600, 11);
+            prefix[13] = ':';
+            write2((secondOfDay / 60) % 60, 14);
+            prefix[16] = ':';
+            write2(secondOfDay % 60, 17);
+        }
+
+        private void write2(int value, int offset)
+        {
+            prefix[offset]     = (byte)('0' + value / 10);
+            prefix[offset + 1] = (byte)('0' + value % 10);
+        }
+
+        private void write4(int value, int offset)
+        {
+            write2(value / 100, offset);
+            write2(value % 100, offset + 2);
+        }
+    }
+
+
+    static long floorDiv(long x, long y)
+    {
+        long q = x / y;
+        return ((x % y != 0) && ((x < 0) != (y < 0))) ? q - 1 : q;
+    }
+
+
+    private static String fallbackFormat(long millis)
+    {
+        SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        formatter.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return formatter.format(new Date(millis));
+    }
+}
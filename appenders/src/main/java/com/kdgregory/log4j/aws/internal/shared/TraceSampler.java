@@ -0,0 +1,119 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.log4j.aws.internal.shared;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.spi.LoggingEvent;
+
+
+/**
+ *  Samples verbose events by trace: an event below the threshold level is kept
+ *  only if the hash of its trace ID (taken from the MDC) falls within the sample
+ *  ratio. Since the decision depends only on the trace ID, a sampled request
+ *  keeps all of its verbose events, in every service that uses the same key and
+ *  ratio. Events below the threshold that don't have a trace ID are discarded.
+ *  <p>
+ *  The hash is 64-bit FNV-1a, applied to the UTF-8 bytes of the trace ID, then
+ *  mixed with the MurmurHash3 64-bit finalizer (without which, IDs that differ
+ *  only in their last few characters have similar high bits). The trace is
+ *  sampled if the hash, treated as an unsigned number and divided by 2^64, is
+ *  less than the ratio. This is simple to reproduce in other languages.
+ *  <p>
+ *  Instances are immutable, and therefore thread-safe.
+ */
+public class TraceSampler
+{
+    private final static long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private final static long FNV_PRIME = 0x100000001b3L;
+
+    private String mdcKey;
+    private Level threshold;
+    private long cutoff;            // compared to the hash shifted right one bit
+    private boolean keepAll;
+
+
+    /**
+     *  @param  mdcKey      The MDC key that holds the trace ID.
+     *  @param  ratio       The fraction of traces to keep, from 0 to 1.
+     *  @param  threshold   Events at or above this level are always kept.
+     */
+    public TraceSampler(String mdcKey, double ratio, Level threshold)
+    {
+        if ((ratio < 0) || (ratio > 1))
+            throw new IllegalArgumentException("sample ratio must be between 0 and 1: " + ratio);
+
+        this.mdcKey = mdcKey;
+        this.threshold = threshold;
+        this.keepAll = (ratio >= 1);
+        this.cutoff = (long)(ratio * Long.MAX_VALUE);
+    }
+
+
+    /**
+     *  Determines whether the event should be kept.
+     */
+    public boolean isSampled(LoggingEvent event)
+    {
+        if (keepAll || event.getLevel().isGreaterOrEqual(threshold))
+            return true;
+
+        Object traceId = event.getMDC(mdcKey);
+        if (traceId == null)
+            return false;
+
+        return (mix(hash(traceId.toString())) >>> 1) < cutoff;
+    }
+
+
+    /**
+     *  Returns the 64-bit FNV-1a hash of the UTF-8 representation of the passed
+     *  string. This is exposed for testing.
+     */
+    public static long hash(String value)
+    {
+        long hash = FNV_OFFSET_BASIS;
+        for (int ii = 0 ; ii < value.length() ; ii++)
+        {
+            int c = value.charAt(ii);
+            if (c < 0x80)
+            {
+                hash = (hash ^ c) * FNV_PRIME;
+            }
+            else if (c < 0x800)
+            {
+                hash = (hash ^ (0xC0 | (c >> 6))) * FNV_PRIME;
+                hash = (hash ^ (0x80 | (c & 0x3F))) * FNV_PRIME;
+            }
+            else if (Character.isHighSurrogate((char)c) && (ii + 1 < value.length())
+                     && Character.isLowSurrogate(value.charAt(ii + 1)))
+            {
+                int cp = Character.toCodePoint((char)c, value.charAt(++ii));
+                hash = (hash ^ (0xF0 | (cp >> 18))) * FNV_PRIME;
+                hash = (hash ^ (0x80 | ((cp >> 12) & 0x3F))) * FNV_PRIME;
+                hash = (hash ^ (0x80 | ((cp >> 6) & 0x3F))) * FNV_PRIME;
+                hash = (hash ^ (0x80 | (cp & 0x3F))) * FNV_PRIME;
+            }
+            else
+            {
+                // note: unpaired surrogates are hashed as-is, where String.getBytes() would substitute
+                hash = (hash ^ (0xE0 | (c >> 12))) * FNV_PRIME;
+                hash = (hash ^ (0x80 | ((c >> 6) & 0x3F))) * FNV_PRIME;
+                hash = (hash ^ (0x80 | (c & 0x3F))) * FNV_PRIME;
+            }
+        }
+        return hash;
+    }
+
+
+    /**
+     *  The MurmurHash3 64-bit finalizer. This is exposed for testing.
+     */
+    public static long mix(long value)
+    {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+}
@@ -0,0 +1,119 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.log4j.aws.internal.shared;
+
+import org.apache.log4j.Level;
+
+
+/**
+ *  Raises the appender's effective threshold when its writers can't keep up,
+ *  and lowers it again when they catch up. The threshold moves one step at a
+ *  time, from {@link Level#ALL} to {@link Level#INFO} to {@link Level#WARN}.
+ *  <p>
+ *  Pressure is measured by the number of queued messages and, optionally, the
+ *  most recent delivery lag. The threshold is raised when either exceeds its
+ *  high watermark, and lowered when both are at or below their low watermarks.
+ *  The gap between watermarks, plus a minimum time between changes, prevents
+ *  the threshold from flapping. Lag is ignored when nothing is queued, since
+ *  the last recorded value may be stale.
+ *  <p>
+ *  Checking the threshold takes a volatile read; only a thread that sees a
+ *  need to change it takes a lock.
+ */
+public class VerbosityController
+{
+    private final static Level[] STEPS = new Level[] { Level.ALL, Level.INFO, Level.WARN };
+
+    private long highWatermark;
+    private long lowWatermark;
+    private long maxLag;
+    private long holdTime;
+
+    private volatile int step;
+    private volatile long lastChange;
+
+
+    /**
+     *  @param  highWatermark   Queue depth at which the threshold is raised; 0
+     *                          to ignore queue depth.
+     *  @param  lowWatermark    Queue depth at which the threshold is lowered.
+     *  @param  maxLag          Delivery lag, in milliseconds, at which the
+     *                          threshold is raised; it's lowered when lag is at
+     *                          or below half this value. 0 to ignore lag.
+     *  @param  holdTime        Minimum time, in milliseconds, between changes.
+     */
+    public VerbosityController(long highWatermark, long lowWatermark, long maxLag, long holdTime)
+    {
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+        this.maxLag = maxLag;
+        this.holdTime = holdTime;
+    }
+
+
+    /**
+     *  Returns the current threshold.
+     */
+    public Level getThreshold()
+    {
+        return STEPS[step];
+    }
+
+
+    /**
+     *  Determines whether an event at the given level passes the current threshold.
+     */
+    public boolean isAllowed(Level level)
+    {
+        int current = step;
+        return (current == 0) || level.isGreaterOrEqual(STEPS[current]);
+    }
+
+
+    /**
+     *  Updates the threshold based on current pressure. Returns the new threshold
+     *  if it changed, null if not. When called concurrently, only one caller will
+     *  see a given change.
+     */
+    public Level update(long now, long queuedMessages, long deliveryLag)
+    {
+        if (now - lastChange < holdTime)
+            return null;
+
+        int current = step;
+        int next = current;
+        if (isHighPressure(queuedMessages, deliveryLag) && (current < STEPS.length - 1))
+            next = current + 1;
+        else if (isLowPressure(queuedMessages, deliveryLag) && (current > 0))
+            next = current - 1;
+
+        if (next == current)
+            return null;
+
+        synchronized (this)
+        {
+            if ((step != current) || (now - lastChange < holdTime))
+                return null;
+
+            step = next;
+            lastChange = now;
+            return STEPS[next];
+        }
+    }
+
+//----------------------------------------------------------------------------
+//  Internals
+//----------------------------------------------------------------------------
+
+    private boolean isHighPressure(long queuedMessages, long deliveryLag)
+    {
+        return ((highWatermark > 0) && (queuedMessages >= highWatermark))
+            || ((maxLag > 0) && (queuedMessages > 0) && (deliveryLag >= maxLag));
+    }
+
+
+    private boolean isLowPressure(long queuedMessages, long deliveryLag)
+    {
+        return ((highWatermark <= 0) || (queuedMessages <= lowWatermark))
+            && ((maxLag <= 0) || (queuedMessages == 0) || (deliveryLag <= maxLag / 2));
+    }
+}
@@ -1,9 +1,17 @@
 // Copyright (c) Keith D Gregory, all rights reserved
 package com.kdgregory.log4j.aws;
 
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Semaphore;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.junit.After;
 import org.junit.Before;
@@ -14,6 +22,7 @@ import static net.sf.kdgcommons.test.StringAsserts.*;
 
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
+import org.apache.log4j.MDC;
 import org.apache.log4j.PropertyConfigurator;
 import org.apache.log4j.helpers.LogLog;
 
@@ -25,8 +34,14 @@ import com.amazonaws.services.logs.model.PutLogEventsRequest;
 import com.amazonaws.services.logs.model.PutLogEventsResult;
 
 import com.kdgregory.log4j.aws.internal.cloudwatch.CloudWatchWriterConfig;
+import com.kdgregory.log4j.aws.internal.shared.AppenderStatistics;
 import com.kdgregory.log4j.aws.internal.shared.DefaultThreadFactory;
 import com.kdgregory.log4j.aws.internal.shared.LogMessage;
+import com.kdgregory.log4j.aws.internal.shared.LogWriter;
+import com.kdgregory.log4j.aws.internal.shared.MessageQueue.DiscardAction;
+import com.kdgregory.log4j.aws.internal.shared.SharedThreadFactory;
+import com.kdgregory.log4j.aws.internal.shared.ShutdownHook;
+import com.kdgregory.log4j.aws.internal.shared.WriterFactory;
 import com.kdgregory.log4j.testhelpers.*;
 import com.kdgregory.log4j.testhelpers.aws.*;
 import com.kdgregory.log4j.testhelpers.aws.cloudwatch.*;
@@ -103,6 +118,9 @@ public class TestCloudWatchAppender
         assertEquals("rotation interval",   -1,                   appender.getRotationInterval());
         assertEquals("discard threshold",   10000,                appender.getDiscardThreshold());
         assertEquals("discard action",      "oldest",               appender.getDiscardAction());
+        assertFalse("use shutdown hook",                            appender.getUseShutdownHook());
+        assertEquals("shutdown timeout",    10000L,               appender.getShutdownTimeout());
+        assertEquals("lag report interval", 0L,                   appender.getLagReportInterval());
     }
 
 
@@ -544,4 +562,1061 @@ public class TestCloudWatchAppender
         assertEquals("oldest message", "message 0\n", messages.get(0).getMessage());
         assertEquals("newest message", "message 19\n", messages.get(19).getMessage());
     }
+
+
+    @Test
+    public void testShutdownHookRegistration() throws Exception
+    {
+        initialize("TestCloudWatchAppender/testShutdownHook.properties");
+
+        assertFalse("not registered before first append",   ShutdownHook.getRegisteredAppenders().contains(appender));
+
+        logger.debug("this should trigger writer creation");
+        MockCloudWatchWriter writer = appender.getWriter();
+
+        assertTrue("registered after first append",         ShutdownHook.getRegisteredAppenders().contains(appender));
+
+        ShutdownHook.drainAll();
+
+        assertTrue("writer was stopped",                    writer.stopped);
+        assertNull("writer was detached from appender",     appender.getWriter());
+        assertFalse("unregistered after drain",             ShutdownHook.getRegisteredAppenders().contains(appender));
+    }
+
+
+    @Test
+    public void testShutdownDrainsBacklog() throws Exception
+    {
+        initialize("TestCloudWatchAppender/testShutdownHook.properties");
+
+        MockCloudwatchClient mockClient = new MockCloudwatchClient()
+        {
+            @Override
+            protected PutLogEventsResult putLogEvents(PutLogEventsRequest request)
+            {
+                invocationCount++;
+                return new PutLogEventsResult();
+            }
+        };
+        mockClient.releaseWriterThread();
+
+        appender.setThreadFactory(new DefaultThreadFactory());
+        appender.setWriterFactory(mockClient.newWriterFactory());
+
+        for (int ii = 0 ; ii < 20 ; ii++)
+        {
+            logger.debug("message " + ii);
+        }
+
+        // the batch delay is a minute, so if we're not draining at full speed
+        // we'll time out with unsent messages
+
+        long start = System.currentTimeMillis();
+        appender.closeAndWait();
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertTrue("drain completed before timeout (was " + elapsed + ")",  elapsed < appender.getShutdownTimeout());
+        assertEquals("messages sent",       20,     appender.getStatistics().getMessagesSent());
+        assertEquals("messages failed",     0,      appender.getStatistics().getMessagesFailed());
+        assertEquals("messages dropped",    0,      appender.getStatistics().getMessagesDiscarded());
+    }
+
+
+    @Test
+    public void testShutdownDoesntInterruptSend() throws Exception
+    {
+        initialize("TestCloudWatchAppender/testShutdownHook.properties");
+
+        final Semaphore inCall = new Semaphore(0);
+        final boolean[] interrupted = new boolean[1];
+        MockCloudwatchClient mockClient = new MockCloudwatchClient()
+        {
+            @Override
+            protected PutLogEventsResult putLogEvents(PutLogEventsRequest request)
+            {
+                invocationCount++;
+                inCall.release();
+                try
+                {
+                    Thread.sleep(200);
+                }
+                catch (InterruptedException ex)
+                {
+                    interrupted[0] = true;
+                }
+                return new PutLogEventsResult();
+            }
+        };
+        mockClient.releaseWriterThread();
+
+        appender.setThreadFactory(new DefaultThreadFactory());
+        appender.setWriterFactory(mockClient.newWriterFactory());
+
+        logger.debug("message 0");
+
+        // the batch delay is a minute, so a flush starts the send
+        appender.requestFlush();
+        inCall.acquire();
+        appender.closeAndWait();
+
+        assertFalse("call was not interrupted",     interrupted[0]);
+        assertEquals("messages sent",       1,      appender.getStatistics().getMessagesSent());
+        assertEquals("messages dropped",    0,      appender.getStatistics().getMessagesDiscarded());
+    }
+
+
+    @Test
+    public void testStatisticsMBean() throws Exception
+    {
+        initialize("TestCloudWatchAppender/testAppend.properties");
+
+        // we need the real writer (and its queue) to count messages, but don't want to run it
+        MockCloudwatchClient mockClient = new MockCloudwatchClient()
+        {
+            @Override
+            protected PutLogEventsResult putLogEvents(PutLogEventsRequest request)
+            {
+                throw new IllegalStateException("should never be called");
+            }
+        };
+
+        appender.setThreadFactory(new NullThreadFactory());
+        appender.setWriterFactory(mockClient.newWriterFactory());
+
+        logger.debug("this should trigger writer creation");
+
+        ObjectName name = appender.getStatistics().getRegisteredName();
+        assertNotNull("registered after first append", name);
+        assertEquals("object name",
+                     "com.kdgregory.log4j.aws:type=TestableCloudWatchAppender,name=\"default\"",
+                     name.toString());
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        assertEquals("enqueued count via JMX",  Long.valueOf(1),    server.getAttribute(name, "MessagesEnqueued"));
+        assertEquals("queue depth via JMX",     Long.valueOf(1),    server.getAttribute(name, "QueuedMessages"));
+
+        appender.close();
+
+        assertFalse("unregistered after close", server.isRegistered(name));
+    }
+
+
+    @Test
+    public void testStatisticsForDiscardedMessages() throws Exception
+    {
+        initialize("TestCloudWatchAppender/testMaximumMessageSize.properties");
+
+        logger.debug(StringUtil.repeat('A', 1048576));
+
+        assertEquals("discarded as too large", 1L, appender.getStatistics().getMessagesDiscardedByReason().get("tooLarge").longValue());
+        assertEquals("nothing enqueued",       0L, appender.getStatistics().getMessagesEnqueued());
+    }
+
+
+    @Test
+    public void testDeliveryLagStatistics() throws Exception
+    {
+        initialize("TestCloudWatchAppender/testShutdownHook.properties");
+
+        MockCloudwatchClient mockClient = new MockCloudwatchClient()
+        {
+            @Override
+            protected PutLogEventsResult putLogEvents(PutLogEventsRequest request)
+            {
+                invocationCount++;
+                return new PutLogEventsResult();
+            }
+        };
+        mockClient.releaseWriterThread();
+
+        appender.setThreadFactory(new DefaultThreadFactory());
+        appender.setWriterFactory(mockClient.newWriterFactory());
+
+        for (int ii = 0 ; ii < 10 ; ii++)
+        {
+            logger.debug("message " + ii);
+        }
+
+        // the batch delay is a minute, so messages stay in the queue until we shut down
+        Thread.sleep(100);
+        appender.closeAndWait();
+
+        AppenderStatistics stats = appender.getStatistics();
+        assertEquals("messages sent",                           10,     stats.getMessagesSent());
+        assertTrue("queue time reflects wait",                          stats.getQueueTime50() >= 100);
+        assertTrue("delivery lag includes queue time",                  stats.getDeliveryLag50() >= stats.getQueueTime50());
+        assertTrue("max delivery lag is at least median",               stats.getDeliveryLagMax() >= stats.getDeliveryLag50());
+    }
+
+
+    @Test
+    public void testLagReport() throws Exception
+    {
+        initialize("TestCloudWatchAppender/testLagReport.properties");
+
+        logger.debug("first message");
+        MockCloudWatchWriter writer = appender.getWriter();
+        assertEquals("first message does not trigger report", 1, writer.messages.size());
+
+        Thread.sleep(100);
+        logger.debug("second message");
+
+        assertEquals("second message triggers report", 3, writer.messages.size());
+        assertRegex("report written via layout",
+                    "INFO " + TestableCloudWatchAppender.class.getName() + " - delivered 0 messages in last \\d+ ms; delivery lag p50=0 .*",
+                    writer.messages.get(2).getMessage().trim());
+
+        logger.debug("third message");
+        assertEquals("third message does not trigger report", 4, writer.messages.size());
+    }
+
+
+    @Test
+    public void testRouting() throws Exception
+    {
+        initialize("TestCloudWatchAppender/testRouting.properties");
+        MockCloudWatchWriterFactory writerFactory = appender.getWriterFactory();
+        AppenderStatistics stats = appender.getStatistics();
+
+        try
+        {
+            MDC.put("tenant", "foo");
+            logger.debug("message 1");
+            MDC.put("tenant", "bar");
+            logger.debug("message 2");
+            MDC.put("tenant", "foo");
+            logger.debug("message 3");
+
+            assertNull("no default writer",                     appender.getWriter());
+            assertEquals("writers created",                     2,              writerFactory.invocationCount);
+
+            MockCloudWatchWriter fooWriter = writerFactory.writers.get(0);
+            MockCloudWatchWriter barWriter = writerFactory.writers.get(1);
+            assertEquals("first route log group",               "argle",        fooWriter.logGroup);
+            assertEquals("first route log stream",              "tenant-foo",   fooWriter.logStream);
+            assertEquals("second route log stream",             "tenant-bar",   barWriter.logStream);
+            assertEquals("messages for first route",            2,              fooWriter.messages.size());
+            assertEquals("messages for second route",           1,              barWriter.messages.size());
+            assertEquals("first route, second message",         "message 3",    fooWriter.getMessage(1));
+
+            // no MDC value goes to the default route, and exceeds the route limit;
+            // "bar" is the least-recently used, so is evicted
+
+            MDC.remove("tenant");
+            logger.debug("message 4");
+
+            MockCloudWatchWriter defaultWriter = writerFactory.writers.get(2);
+            assertEquals("default route log stream",            "tenant-default", defaultWriter.logStream);
+            assertTrue("evicted writer was stopped",                            barWriter.stopped);
+            assertFalse("retained writer was not stopped",                      fooWriter.stopped);
+            assertEquals("active routes",                       2,              stats.getActiveRoutes());
+            assertEquals("evicted routes",                      1,              stats.getRoutesEvicted());
+
+            // an evicted route gets a new writer
+            MDC.put("tenant", "bar");
+            logger.debug("message 5");
+
+            assertEquals("writers created",                     4,              writerFactory.invocationCount);
+            assertEquals("replacement writer log stream",       "tenant-bar",   writerFactory.writers.get(3).logStream);
+            assertEquals("messages sent to old writer",         1,              barWriter.messages.size());
+
+            // configuration changes apply to running route writers
+            appender.setBatchDelay(1234);
+            appender.setDispatchWhenIdle(true);
+            assertEquals("route writer batch delay",            1234,           defaultWriter.batchDelay);
+            assertTrue("route writer dispatch policy",                          defaultWriter.dispatchWhenIdle);
+            assertEquals("evicted writer batch delay unchanged", 2000,          fooWriter.batchDelay);
+
+            appender.close();
+            assertTrue("writer stopped by close",                               writerFactory.writers.get(3).stopped);
+            assertEquals("active routes after close",           0,              stats.getActiveRoutes());
+        }
+        finally
+        {
+            MDC.remove("tenant");
+        }
+    }
+
+
+    @Test
+    public void testRoutesWithDisallowedCharacters() throws Exception
+    {
+        initialize("TestCloudWatchAppender/testRouting.properties");
+        MockCloudWatchWriterFactory writerFactory = appender.getWriterFactory();
+
+        try
+        {
+            MDC.put("tenant", "foo");
+            logger.debug("message 1");
+            MDC.put("tenant", "f.o/o");
+            logger.debug("message 2");
+
+            // both routes write to the same stream, so they must share a writer
+            assertEquals("writers created",                     1,              writerFactory.invocationCount);
+
+            MockCloudWatchWriter fooWriter = writerFactory.writers.get(0);
+            assertEquals("log stream",                          "tenant-foo",   fooWriter.logStream);
+            assertEquals("messages written",                    2,              fooWriter.messages.size());
+        }
+        finally
+        {
+            MDC.remove("tenant");
+        }
+    }
+
+
+    @Test
+    public void testRoutingDisablesExceptionReferences() throws Exception
+    {
+        initialize("TestCloudWatchAppender/testRoutingWithExceptionReferences.properties");
+        MockCloudWatchWriterFactory writerFactory = appender.getWriterFactory();
+
+        JsonLayout layout = (JsonLayout)appender.getLayout();
+        assertEquals("reference interval before first event",  60000L,         layout.getExceptionReferenceInterval());
+
+        Exception ex = new Exception("shared");
+        try
+        {
+            MDC.put("tenant", "foo");
+            logger.error("message 1", ex);
+            MDC.put("tenant", "bar");
+            logger.error("message 2", ex);
+
+            assertEquals("reference interval after routing",   0L,             layout.getExceptionReferenceInterval());
+
+            MockCloudWatchWriter fooWriter = writerFactory.writers.get(0);
+            MockCloudWatchWriter barWriter = writerFactory.writers.get(1);
+            assertRegex("first route has full trace",          ".*\"exception\":\\[\"java.lang.Exception: shared\".*",  fooWriter.getMessage(0));
+            assertRegex("second route has full trace",         ".*\"exception\":\\[\"java.lang.Exception: shared\".*",  barWriter.getMessage(0));
+        }
+        finally
+        {
+            MDC.remove("tenant");
+        }
+    }
+
+
+    @Test
+    public void testRouteIdleTimeout() throws Exception
+    {
+        initialize("TestCloudWatchAppender/testRouteIdleTimeout.properties");
+        MockCloudWatchWriterFactory writerFactory = appender.getWriterFactory();
+
+        Logger.getLogger("foo").debug("message 1");
+        Thread.sleep(100);
+        Logger.getLogger("bar").debug("message 2");
+
+        MockCloudWatchWriter fooWriter = writerFactory.writers.get(0);
+        MockCloudWatchWriter barWriter = writerFactory.writers.get(1);
+        assertEquals("first route log stream",      "foo",  fooWriter.logStream);
+        assertEquals("second route log stream",     "bar",  barWriter.logStream);
+        assertTrue("idle writer was stopped",               fooWriter.stopped);
+        assertFalse("active writer was not stopped",        barWriter.stopped);
+
+        // each route has its own header and footer
+        assertEquals("idle writer messages",        3,      fooWriter.messages.size());
+        assertEquals("idle writer header",          HeaderFooterLayout.HEADER,  fooWriter.getMessage(0));
+        assertEquals("idle writer footer",          HeaderFooterLayout.FOOTER,  fooWriter.getMessage(2));
+        assertEquals("active writer header",        HeaderFooterLayout.HEADER,  barWriter.getMessage(0));
+
+        assertEquals("active routes",               1,      appender.getStatistics().getActiveRoutes());
+        assertEquals("evicted routes",              1,      appender.getStatistics().getRoutesEvicted());
+    }
+
+
+    @Test
+    public void testRateLimits() throws Exception
+    {
+        initialize("TestCloudWatchAppender/testRateLimits.properties");
+
+        for (int ii = 0 ; ii < 20 ; ii++)
+        {
+            logger.debug("message " + ii);
+        }
+
+        // unlimited logger
+        Logger.getLogger("argle").debug("not limited");
+
+        MockCloudWatchWriter writer = appender.getWriter();
+        assertEquals("messages written",            6,      writer.messages.size());
+        assertEquals("last message",                "DEBUG argle - not limited",    writer.getMessage(5));
+        assertEquals("discarded by rate limit",     Long.valueOf(15),
+                     appender.getStatistics().getMessagesDiscardedByReason().get("rateLimited"));
+
+        Thread.sleep(250);
+        logger.debug("after pause");
+
+        assertEquals("summary and message written", 8,      writer.messages.size());
+        assertEquals("summary",
+                     "WARN " + TestableCloudWatchAppender.class.getName()
+                     + " - suppressed 15 messages from logger " + getClass().getName(),
+                     writer.getMessage(6));
+        assertEquals("message after pause",         "DEBUG " + getClass().getName() + " - after pause",
+                     writer.getMessage(7));
+    }
+
+
+    @Test
+    public void testDedupWindow() throws Exception
+    {
+        initialize("TestCloudWatchAppender/testDedupWindow.properties");
+
+        for (int ii = 0 ; ii < 10 ; ii++)
+        {
+            logger.debug("connection refused");
+        }
+        logger.info("connection refused");
+        logger.debug("something else");
+
+        MockCloudWatchWriter writer = appender.getWriter();
+        assertEquals("messages written",            3,      writer.messages.size());
+        assertEquals("first message",               "DEBUG " + getClass().getName() + " - connection refused",
+                     writer.getMessage(0));
+        assertEquals("different level not coalesced", "INFO " + getClass().getName() + " - connection refused",
+                     writer.getMessage(1));
+        assertEquals("discarded as duplicates",     Long.valueOf(9),
+                     appender.getStatistics().getMessagesDiscardedByReason().get("duplicate"));
+
+        Thread.sleep(250);
+        logger.debug("connection refused");
+
+        assertEquals("summary and message written", 5,      writer.messages.size());
+        assertRegex("summary",
+                    "DEBUG " + getClass().getName() + " - repeated 9 times from 20.*Z to 20.*Z: connection refused",
+                    writer.getMessage(3));
+        assertEquals("message after window",        "DEBUG " + getClass().getName() + " - connection refused",
+                     writer.getMessage(4));
+
+        logger.debug("connection refused");
+        appender.close();
+
+        assertEquals("summary written at close",    6,      writer.messages.size());
+        assertRegex("summary",
+                    "DEBUG " + getClass().getName() + " - repeated 1 times from .*: connection refused",
+                    writer.getMessage(5));
+    }
+
+
+    @Test
+    public void testSampling() throws Exception
+    {
+        initialize("TestCloudWatchAppender/testSampling.properties");
+
+        try
+        {
+            for (int ii = 0 ; ii < 100 ; ii++)
+            {
+                MDC.put("traceId", "trace-" + ii);
+                logger.debug("first " + ii);
+                logger.info("info " + ii);
+                logger.debug("second " + ii);
+            }
+        }
+        finally
+        {
+            MDC.remove("traceId");
+        }
+        logger.debug("no trace");
+        logger.info("no trace");
+
+        MockCloudWatchWriter writer = appender.getWriter();
+        List<String> messages = new ArrayList<String>();
+        for (int ii = 0 ; ii < writer.messages.size() ; ii++)
+        {
+            messages.add(writer.getMessage(ii));
+        }
+
+        int sampledTraces = 0;
+        for (int ii = 0 ; ii < 100 ; ii++)
+        {
+            boolean first = messages.contains("DEBUG " + getClass().getName() + " - first " + ii);
+            boolean second = messages.contains("DEBUG " + getClass().getName() + " - second " + ii);
+            assertEquals("trace " + ii + " sampled consistently", first, second);
+            assertTrue("info always written", messages.contains("INFO " + getClass().getName() + " - info " + ii));
+            if (first) sampledTraces++;
+        }
+        assertTrue("sampled traces within reason (was " + sampledTraces + ")", (sampledTraces > 25) && (sampledTraces < 75));
+
+        assertFalse("debug without trace discarded",    messages.contains("DEBUG " + getClass().getName() + " - no trace"));
+        assertTrue("info without trace written",        messages.contains("INFO " + getClass().getName() + " - no trace"));
+
+        assertEquals("discarded by sampling",       Long.valueOf(2 * (100 - sampledTraces) + 1),
+                     appender.getStatistics().getMessagesDiscardedByReason().get("sampled"));
+    }
+
+
+    @Test
+    public void testTailBuffer() throws Exception
+    {
+        initialize("TestCloudWatchAppender/testTailBuffer.properties");
+
+        String prefix = getClass().getName() + " - ";
+        try
+        {
+            MDC.put("requestId", "r1");
+            for (int ii = 1 ; ii <= 5 ; ii++)
+            {
+                logger.debug("r1 debug " + ii);
+            }
+            logger.info("r1 info");
+
+            MDC.put("requestId", "r2");
+            logger.debug("r2 debug");
+            logger.info("r2 info");
+
+            MDC.put("requestId", "r1");
+            logger.error("r1 error");
+        }
+        finally
+        {
+            MDC.remove("requestId");
+        }
+
+        MockCloudWatchWriter writer = appender.getWriter();
+        assertEquals("messages written",            6,      writer.messages.size());
+        assertEquals("message 0",                   "INFO " + prefix + "r1 info",       writer.getMessage(0));
+        assertEquals("message 1",                   "INFO " + prefix + "r2 info",       writer.getMessage(1));
+        assertEquals("message 2",                   "DEBUG " + prefix + "r1 debug 3",   writer.getMessage(2));
+        assertEquals("message 3",                   "DEBUG " + prefix + "r1 debug 4",   writer.getMessage(3));
+        assertEquals("message 4",                   "DEBUG " + prefix + "r1 debug 5",   writer.getMessage(4));
+        assertEquals("message 5",                   "ERROR " + prefix + "r1 error",     writer.getMessage(5));
+        assertEquals("overwritten in buffer",       Long.valueOf(2),
+                     appender.getStatistics().getMessagesDiscardedByReason().get("unflushed"));
+
+        appender.close();
+        assertEquals("messages written after close", 6,     writer.messages.size());
+        assertEquals("discarded at close",          Long.valueOf(3),
+                     appender.getStatistics().getMessagesDiscardedByReason().get("unflushed"));
+    }
+
+
+    @Test
+    public void testTailBufferLocation() throws Exception
+    {
+        initialize("TestCloudWatchAppender/testTailBufferLocation.properties");
+
+        assertTrue("configured to capture location",    appender.getTailBufferLocationInfo());
+
+        // the line numbers must be taken on the same line as the call
+        logger.debug("buffered");   int debugLine = new Throwable().getStackTrace()[0].getLineNumber();
+        logger.error("error");      int errorLine = new Throwable().getStackTrace()[0].getLineNumber();
+
+        MockCloudWatchWriter writer = appender.getWriter();
+        assertEquals("messages written",                2,  writer.messages.size());
+
+        String debugJson = writer.getMessage(0);
+        String errorJson = writer.getMessage(1);
+        assertTrue("buffered event: " + debugJson,      debugJson.contains("\"message\":\"buffered\""));
+        assertTrue("buffered event location: " + debugJson,
+                   debugJson.contains("\"locationInfo\":{\"className\":\"" + getClass().getName() + "\","
+                                      + "\"fileName\":\"TestCloudWatchAppender.java\","
+                                      + "\"lineNumber\":\"" + debugLine + "\","
+                                      + "\"methodName\":\"testTailBufferLocation\"}"));
+        assertTrue("error event location: " + errorJson,
+                   errorJson.contains("\"lineNumber\":\"" + errorLine + "\""));
+
+        // without capture, buffered events don't have a location (rather than the error's)
+        appender.setTailBufferLocationInfo(false);
+        logger.debug("buffered");
+        logger.error("error");
+
+        debugJson = writer.getMessage(2);
+        assertTrue("buffered event without location: " + debugJson,
+                   debugJson.contains("\"locationInfo\":{\"className\":\"?\",\"fileName\":\"?\",\"lineNumber\":\"?\",\"methodName\":\"?\"}"));
+    }
+
+
+    @Test
+    public void testAdaptiveVerbosity() throws Exception
+    {
+        initialize("TestCloudWatchAppender/testAdaptiveVerbosity.properties");
+
+        String prefix = getClass().getName() + " - ";
+        String internalPrefix = "WARN " + TestableCloudWatchAppender.class.getName() + " - ";
+        AppenderStatistics stats = appender.getStatistics();
+
+        logger.debug("before pressure");
+        MockCloudWatchWriter writer = appender.getWriter();
+
+        // the mock writer doesn't report its queue, so simulate a backlog
+        LogMessage queued = LogMessage.create("queued");
+        for (int ii = 0 ; ii < 10 ; ii++)
+        {
+            stats.recordEnqueued(queued);
+        }
+
+        logger.debug("discarded at INFO");
+        logger.info("discarded at WARN");
+        logger.warn("written at WARN");
+
+        for (int ii = 0 ; ii < 10 ; ii++)
+        {
+            stats.recordDequeued(queued);
+        }
+
+        logger.info("written at INFO");
+        logger.debug("written at ALL");
+
+        assertEquals("messages written",            8,      writer.messages.size());
+        assertEquals("message 0",   "DEBUG " + prefix + "before pressure",                                  writer.getMessage(0));
+        assertEquals("message 1",   internalPrefix + "effective threshold changed to INFO (10 messages queued, last delivery lag 0 ms)",
+                                                                                                            writer.getMessage(1));
+        assertEquals("message 2",   internalPrefix + "effective threshold changed to WARN (10 messages queued, last delivery lag 0 ms)",
+                                                                                                            writer.getMessage(2));
+        assertEquals("message 3",   "WARN " + prefix + "written at WARN",                                   writer.getMessage(3));
+        assertEquals("message 4",   internalPrefix + "effective threshold changed to INFO (0 messages queued, last delivery lag 0 ms)",
+                                                                                                            writer.getMessage(4));
+        assertEquals("message 5",   "INFO " + prefix + "written at INFO",                                   writer.getMessage(5));
+        assertEquals("message 6",   internalPrefix + "effective threshold changed to ALL (0 messages queued, last delivery lag 0 ms)",
+                                                                                                            writer.getMessage(6));
+        assertEquals("message 7",   "DEBUG " + prefix + "written at ALL",                                   writer.getMessage(7));
+
+        assertEquals("discarded",                   Long.valueOf(2),    stats.getMessagesDiscardedByReason().get("degraded"));
+        assertEquals("threshold changes",           4,                  stats.getThresholdChanges());
+        assertEquals("effective threshold",         "ALL",              stats.getEffectiveThreshold());
+    }
+
+
+    @Test
+    public void testFlush() throws Exception
+    {
+        initialize("TestCloudWatchAppender/testFlush.properties");
+
+        MockCloudwatchClient mockClient = new MockCloudwatchClient()
+        {
+            @Override
+            protected PutLogEventsResult putLogEvents(PutLogEventsRequest request)
+            {
+                invocationCount++;
+                return new PutLogEventsResult();
+            }
+        };
+
+        appender.setThreadFactory(new DefaultThreadFactory());
+        appender.setWriterFactory(mockClient.newWriterFactory());
+        mockClient.releaseWriterThread();
+
+        for (int ii = 0 ; ii < 5 ; ii++)
+        {
+            logger.debug("message " + ii);
+        }
+
+        // without a flush, the writer would wait for the batch delay
+        long start = System.currentTimeMillis();
+        assertTrue("flush succeeded",                   appender.flush(2000));
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue("flush bypassed batch delay (was " + elapsed + " ms)", elapsed < 2000);
+        assertEquals("batches sent after first flush",  1,  mockClient.invocationCount);
+        assertEquals("messages in batch",               5,  mockClient.mostRecentEvents.size());
+
+        assertTrue("flush with nothing queued",         appender.flush(2000));
+        assertEquals("batches sent after empty flush",  1,  mockClient.invocationCount);
+
+        logger.debug("message 5");
+        logger.debug("message 6");
+        assertTrue("flushAll succeeded",                AWSAppenders.flushAll(2000));
+        assertEquals("batches sent after flushAll",     2,  mockClient.invocationCount);
+        assertEquals("messages in batch",               2,  mockClient.mostRecentEvents.size());
+        assertEquals("statistics: messages sent",       7,  appender.getStatistics().getMessagesSent());
+
+        appender.close();
+        assertTrue("flush after close",                 appender.flush(100));
+    }
+
+
+    @Test
+    public void testDispatchWhenIdle() throws Exception
+    {
+        initialize("TestCloudWatchAppender/testDispatchWhenIdle.properties");
+
+        MockCloudwatchClient mockClient = new MockCloudwatchClient()
+        {
+            @Override
+            protected PutLogEventsResult putLogEvents(PutLogEventsRequest request)
+            {
+                invocationCount++;
+                return new PutLogEventsResult();
+            }
+        };
+
+        appender.setThreadFactory(new DefaultThreadFactory());
+        appender.setWriterFactory(mockClient.newWriterFactory());
+
+        // the writer is idle, so sends the first message immediately; the mock client
+        // holds that request "in flight" until we allow it to proceed
+        logger.debug("message 0");
+        Thread.sleep(100);
+        for (int ii = 1 ; ii < 6 ; ii++)
+        {
+            logger.debug("message " + ii);
+        }
+
+        mockClient.allowWriterThread();
+        assertEquals("first batch: number of events",   1,  mockClient.mostRecentEvents.size());
+
+        // messages that arrived during the first request are sent together, without waiting for the batch delay
+        mockClient.allowWriterThread();
+        assertEquals("second batch: number of events",  5,  mockClient.mostRecentEvents.size());
+        assertEquals("number of requests",              2,  mockClient.invocationCount);
+    }
+
+
+    @Test
+    public void testWriterRestart() throws Exception
+    {
+        initialize("TestCloudWatchAppender/testWriterSupervision.properties");
+
+        final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+        MockCloudwatchClient mockClient = new MockCloudwatchClient()
+        {
+            @Override
+            protected PutLogEventsResult putLogEvents(PutLogEventsRequest request)
+            {
+                // the writer doesn't catch Errors, so this kills its thread
+                if (invocationCount++ == 0)
+                    throw new Error("simulated writer failure");
+
+                for (InputLogEvent event : request.getLogEvents())
+                {
+                    sent.add(event.getMessage());
+                }
+                return new PutLogEventsResult();
+            }
+        };
+        mockClient.releaseWriterThread();
+
+        appender.setThreadFactory(new DefaultThreadFactory());
+        appender.setWriterFactory(mockClient.newWriterFactory());
+
+        logger.debug("message 0");
+        logger.debug("message 1");
+
+        for (int ii = 0 ; (ii < 100) && (appender.getLogWriter() != null) ; ii++)
+        {
+            Thread.sleep(10);
+        }
+
+        AppenderStatistics stats = appender.getStatistics();
+        assertNull("writer has failed",                 appender.getLogWriter());
+        assertEquals("writer failures",                 1,  stats.getWriterFailures());
+        assertEquals("failed batch held for restart",   2,  stats.getQueuedMessages());
+
+        // the first message after the restart delay starts a new writer
+        Thread.sleep(150);
+        logger.debug("message 2");
+
+        assertNotNull("writer restarted",               appender.getLogWriter());
+        assertEquals("writer restarts",                 1,  stats.getWriterRestarts());
+
+        appender.closeAndWait();
+
+        assertEquals("messages sent, in order",         Arrays.asList("message 0", "message 1", "message 2"), sent);
+        assertEquals("messages discarded",              0,  stats.getMessagesDiscarded());
+    }
+
+
+    @Test
+    public void testFlushAndCloseDontStrandBacklog() throws Exception
+    {
+        initialize("TestCloudWatchAppender/testWriterSupervision.properties");
+
+        final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+        MockCloudwatchClient mockClient = new MockCloudwatchClient()
+        {
+            @Override
+            protected PutLogEventsResult putLogEvents(PutLogEventsRequest request)
+            {
+                // the writer doesn't catch Errors, so this kills its thread
+                if (invocationCount++ == 0)
+                    throw new Error("simulated writer failure");
+
+                for (InputLogEvent event : request.getLogEvents())
+                {
+                    sent.add(event.getMessage());
+                }
+                return new PutLogEventsResult();
+            }
+        };
+        mockClient.releaseWriterThread();
+
+        // the replacement writer can't be created until we allow it
+        final WriterFactory<CloudWatchWriterConfig> mockFactory = mockClient.newWriterFactory();
+        final boolean[] allowCreate = new boolean[] { true };
+        appender.setThreadFactory(new DefaultThreadFactory());
+        appender.setWriterFactory(new WriterFactory<CloudWatchWriterConfig>()
+        {
+            @Override
+            public LogWriter newLogWriter(CloudWatchWriterConfig config)
+            {
+                if (! allowCreate[0])
+                    throw new IllegalStateException("simulated creation failure");
+                return mockFactory.newLogWriter(config);
+            }
+        });
+
+        logger.debug("message 0");
+        logger.debug("message 1");
+
+        for (int ii = 0 ; (ii < 100) && (appender.getLogWriter() != null) ; ii++)
+        {
+            Thread.sleep(10);
+        }
+
+        AppenderStatistics stats = appender.getStatistics();
+        assertNull("writer has failed",                         appender.getLogWriter());
+        assertEquals("failed batch held for restart",           2,  stats.getQueuedMessages());
+
+        allowCreate[0] = false;
+        assertFalse("flush fails if backlog can't be sent",     appender.flush(200));
+        assertEquals("backlog still held",                      2,  stats.getQueuedMessages());
+
+        // no need to wait for the restart delay
+        allowCreate[0] = true;
+        assertTrue("flush succeeds once writer replaced",       appender.flush(1000));
+        assertNotNull("writer restarted",                       appender.getLogWriter());
+        assertEquals("messages sent by flush",                  Arrays.asList("message 0", "message 1"), sent);
+
+        // and now repeat, with the backlog sent on close
+        sent.clear();
+        mockClient.invocationCount = 0;
+
+        logger.debug("message 2");
+        for (int ii = 0 ; (ii < 100) && (appender.getLogWriter() != null) ; ii++)
+        {
+            Thread.sleep(10);
+        }
+        assertNull("writer has failed again",                   appender.getLogWriter());
+
+        appender.closeAndWait();
+
+        assertEquals("message sent by close",                   Arrays.asList("message 2"), sent);
+        assertEquals("messages discarded",                      0,  stats.getMessagesDiscarded());
+    }
+
+
+    @Test
+    public void testWriterStall() throws Exception
+    {
+        initialize("TestCloudWatchAppender/testWriterSupervision.properties");
+
+        final Semaphore stuck = new Semaphore(0);
+        final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+        MockCloudwatchClient mockClient = new MockCloudwatchClient()
+        {
+            @Override
+            protected PutLogEventsResult putLogEvents(PutLogEventsRequest request)
+            {
+                // simulates a call that never returns, and can't be interrupted
+                if (invocationCount++ == 0)
+                    stuck.acquireUninterruptibly();
+
+                for (InputLogEvent event : request.getLogEvents())
+                {
+                    sent.add(event.getMessage());
+                }
+                return new PutLogEventsResult();
+            }
+        };
+        mockClient.releaseWriterThread();
+
+        appender.setThreadFactory(new DefaultThreadFactory());
+        appender.setWriterFactory(mockClient.newWriterFactory());
+
+        logger.debug("message 0");
+        Thread.sleep(400);
+
+        AppenderStatistics stats = appender.getStatistics();
+        assertEquals("no failures before next message", 0,  stats.getWriterFailures());
+
+        logger.debug("message 1");
+
+        assertNull("stalled writer replaced",           appender.getLogWriter());
+        assertEquals("writer failures",                 1,  stats.getWriterFailures());
+
+        Thread.sleep(150);
+        logger.debug("message 2");
+
+        assertNotNull("writer restarted",               appender.getLogWriter());
+        assertEquals("writer restarts",                 1,  stats.getWriterRestarts());
+
+        // the stalled call eventually completes, sending its batch
+        stuck.release();
+        appender.closeAndWait();
+        for (int ii = 0 ; (ii < 100) && (sent.size() < 3) ; ii++)
+        {
+            Thread.sleep(10);
+        }
+
+        assertEquals("messages sent",                   3,  sent.size());
+        assertTrue("all messages sent",                 sent.containsAll(Arrays.asList("message 0", "message 1", "message 2")));
+    }
+
+
+    @Test
+    public void testSharedWriterThreads() throws Exception
+    {
+        initialize("TestCloudWatchAppender/testSharedWriterThreads.properties");
+
+        assertTrue("configured for shared threads",     appender.getSharedWriterThreads());
+
+        final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> threadNames = Collections.synchronizedList(new ArrayList<String>());
+        MockCloudwatchClient mockClient = new MockCloudwatchClient()
+        {
+            @Override
+            protected PutLogEventsResult putLogEvents(PutLogEventsRequest request)
+            {
+                invocationCount++;
+                threadNames.add(Thread.currentThread().getName());
+                for (InputLogEvent event : request.getLogEvents())
+                {
+                    sent.add(event.getMessage());
+                }
+                return new PutLogEventsResult();
+            }
+        };
+        mockClient.releaseWriterThread();
+
+        // initialize() replaced the shared factory; a private pool lets us check thread names
+        appender.setThreadFactory(new SharedThreadFactory(1));
+        appender.setWriterFactory(mockClient.newWriterFactory());
+
+        List<String> expected = new ArrayList<String>();
+        for (int ii = 0 ; ii < 5 ; ii++)
+        {
+            logger.debug("message " + ii);
+            expected.add("message " + ii);
+        }
+
+        // messages are batched as with a dedicated thread: nothing is sent until the batch delay expires
+        Thread.sleep(50);
+        assertEquals("nothing sent before batch delay", 0,  sent.size());
+        Thread.sleep(250);
+        assertEquals("messages sent after batch delay", expected, sent);
+        assertEquals("sent in one batch",               1,  mockClient.invocationCount);
+        assertTrue("sent from shared thread",           threadNames.get(0).startsWith("log4j-aws-shared-writer-"));
+
+        // flushing doesn't wait for the batch delay
+        for (int ii = 5 ; ii < 8 ; ii++)
+        {
+            logger.debug("message " + ii);
+            expected.add("message " + ii);
+        }
+        assertTrue("flush completed",                   appender.flush(50));
+        assertEquals("messages sent after flush",       expected, sent);
+
+        // and neither does shutdown
+        for (int ii = 8 ; ii < 10 ; ii++)
+        {
+            logger.debug("message " + ii);
+            expected.add("message " + ii);
+        }
+        appender.closeAndWait();
+        assertEquals("messages sent after close",       expected, sent);
+        assertEquals("messages discarded",              0,  appender.getStatistics().getMessagesDiscarded());
+    }
+
+
+    @Test
+    public void testSharedWriterThreadSetup() throws Exception
+    {
+        initialize("TestCloudWatchAppender/testSharedWriterThreads.properties");
+
+        // a writer whose destination check doesn't return until we let it
+        final Semaphore stuck = new Semaphore(0);
+        MockCloudwatchClient stuckClient = new MockCloudwatchClient()
+        {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+            {
+                if (method.getName().equals("describeLogGroups"))
+                    stuck.acquireUninterruptibly();
+                return super.invoke(proxy, method, args);
+            }
+
+            @Override
+            protected PutLogEventsResult putLogEvents(PutLogEventsRequest request)
+            {
+                return new PutLogEventsResult();
+            }
+        };
+        stuckClient.releaseWriterThread();
+
+        final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+        MockCloudwatchClient mockClient = new MockCloudwatchClient()
+        {
+            @Override
+            protected PutLogEventsResult putLogEvents(PutLogEventsRequest request)
+            {
+                for (InputLogEvent event : request.getLogEvents())
+                {
+                    sent.add(event.getMessage());
+                }
+                return new PutLogEventsResult();
+            }
+        };
+        mockClient.releaseWriterThread();
+
+        // the stuck writer would hold the pool's only thread if setup ran there
+        SharedThreadFactory threadFactory = new SharedThreadFactory(1);
+        LogWriter stuckWriter = stuckClient.newWriterFactory().newLogWriter(
+                                    new CloudWatchWriterConfig("argle", "bargle", 50, 10000, DiscardAction.oldest));
+        threadFactory.startLoggingThread(stuckWriter, null);
+
+        appender.setThreadFactory(threadFactory);
+        appender.setWriterFactory(mockClient.newWriterFactory());
+
+        logger.debug("message 0");
+        assertTrue("flush completed",                   appender.flush(1000));
+        assertEquals("message sent",                    Arrays.asList("message 0"), sent);
+
+        stuck.release();
+        stuckWriter.stop();
+        appender.closeAndWait();
+    }
+
+
+    @Test
+    public void testSharedWriterThreadFailure() throws Exception
+    {
+        initialize("TestCloudWatchAppender/testSharedWriterThreads.properties");
+
+        final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+        MockCloudwatchClient mockClient = new MockCloudwatchClient()
+        {
+            @Override
+            protected PutLogEventsResult putLogEvents(PutLogEventsRequest request)
+            {
+                if (invocationCount++ == 0)
+                    throw new Error("simulated writer failure");
+
+                for (InputLogEvent event : request.getLogEvents())
+                {
+                    sent.add(event.getMessage());
+                }
+                return new PutLogEventsResult();
+            }
+        };
+        mockClient.releaseWriterThread();
+
+        appender.setThreadFactory(new SharedThreadFactory(1));
+        appender.setWriterFactory(mockClient.newWriterFactory());
+
+        logger.debug("message 0");
+        for (int ii = 0 ; (ii < 100) && (appender.getLogWriter() != null) ; ii++)
+        {
+            Thread.sleep(10);
+        }
+
+        // a task that throws is reported like a dying thread, and the pool thread survives to run the replacement
+        assertNull("writer has failed",                 appender.getLogWriter());
+        assertEquals("writer failures",                 1,  appender.getStatistics().getWriterFailures());
+        assertNotNull("exception reported",             appender.getLastWriterException());
+
+        Thread.sleep(150);
+        logger.debug("message 1");
+        appender.closeAndWait();
+
+        assertEquals("messages sent",                   Arrays.asList("message 0", "message 1"), sent);
+    }
 }
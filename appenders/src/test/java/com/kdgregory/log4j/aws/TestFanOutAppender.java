@@ -0,0 +1,170 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.log4j.aws;
+
+import java.net.URL;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+import org.apache.log4j.spi.LoggingEvent;
+import org.apache.log4j.xml.DOMConfigurator;
+import org.apache.log4j.helpers.LogLog;
+
+import com.kdgregory.log4j.testhelpers.InlineThreadFactory;
+import com.kdgregory.log4j.testhelpers.aws.cloudwatch.MockCloudWatchWriter;
+import com.kdgregory.log4j.testhelpers.aws.cloudwatch.MockCloudWatchWriterFactory;
+import com.kdgregory.log4j.testhelpers.aws.cloudwatch.TestableCloudWatchAppender;
+import com.kdgregory.log4j.testhelpers.aws.kinesis.MockKinesisWriter;
+import com.kdgregory.log4j.testhelpers.aws.kinesis.MockKinesisWriterFactory;
+import com.kdgregory.log4j.testhelpers.aws.kinesis.TestableKinesisAppender;
+
+
+public class TestFanOutAppender
+{
+    private Logger logger;
+    private FanOutAppender appender;
+    private TestableCloudWatchAppender cloudwatch;
+    private TestableKinesisAppender kinesis;
+
+
+    private void initialize(String configName)
+    throws Exception
+    {
+        URL config = ClassLoader.getSystemResource(configName);
+        DOMConfigurator.configure(config);
+
+        logger = Logger.getLogger(getClass());
+
+        Logger rootLogger = Logger.getRootLogger();
+        appender = (FanOutAppender)rootLogger.getAppender("fanout");
+
+        cloudwatch = (TestableCloudWatchAppender)appender.getAppender("cloudwatch");
+        cloudwatch.setThreadFactory(new InlineThreadFactory());
+        cloudwatch.setWriterFactory(new MockCloudWatchWriterFactory(cloudwatch));
+
+        kinesis = (TestableKinesisAppender)appender.getAppender("kinesis");
+        kinesis.setThreadFactory(new InlineThreadFactory());
+        kinesis.setWriterFactory(new MockKinesisWriterFactory(kinesis));
+    }
+
+
+    @Before
+    public void setUp()
+    {
+        LogLog.setQuietMode(true);
+    }
+
+
+    @After
+    public void tearDown()
+    {
+        LogLog.setQuietMode(false);
+    }
+
+//----------------------------------------------------------------------------
+//  Tests
+//----------------------------------------------------------------------------
+
+    @Test
+    public void testConfiguration() throws Exception
+    {
+        initialize("TestFanOutAppender/testFanOut.xml");
+
+        assertNotNull("cloudwatch attached",                    cloudwatch);
+        assertNotNull("kinesis attached",                       kinesis);
+        assertNotSame("cloudwatch keeps its own layout",        appender.getLayout(), cloudwatch.getLayout());
+        assertSame("kinesis inherits fan-out layout",           appender.getLayout(), kinesis.getLayout());
+    }
+
+
+    @Test
+    public void testFanOut() throws Exception
+    {
+        initialize("TestFanOutAppender/testFanOut.xml");
+
+        logger.debug("argle");
+        logger.info("bargle");
+
+        MockCloudWatchWriter cloudwatchWriter = cloudwatch.getWriter();
+        MockKinesisWriter kinesisWriter = kinesis.getWriter();
+
+        assertEquals("cloudwatch applies its own threshold",    1,                  cloudwatchWriter.messages.size());
+        assertEquals("cloudwatch uses fan-out layout",          "INFO  - bargle\n", cloudwatchWriter.getMessage(0));
+
+        assertEquals("kinesis gets all messages",               2,                  kinesisWriter.messages.size());
+        assertEquals("kinesis message 0",                       "DEBUG - argle\n",  kinesisWriter.getMessage(0));
+        assertEquals("kinesis message 1",                       "INFO  - bargle\n", kinesisWriter.getMessage(1));
+
+        assertNotSame("each writer has its own message",        cloudwatchWriter.messages.get(0), kinesisWriter.messages.get(1));
+        assertSame("message bytes are shared",                  cloudwatchWriter.messages.get(0).getBytes(), kinesisWriter.messages.get(1).getBytes());
+    }
+
+
+    @Test
+    public void testFormatsOnlyWhenAccepted() throws Exception
+    {
+        initialize("TestFanOutAppender/testFanOut.xml");
+
+        final int[] formatCount = new int[1];
+        appender.setLayout(new PatternLayout("%-5p - %m%n")
+        {
+            @Override
+            public String format(LoggingEvent event)
+            {
+                formatCount[0]++;
+                return super.format(event);
+            }
+        });
+        kinesis.setThreshold(Level.WARN);
+
+        logger.debug("argle");
+        assertEquals("not formatted when no appender takes event", 0, formatCount[0]);
+
+        logger.warn("bargle");
+        assertEquals("formatted once for both appenders",         1, formatCount[0]);
+
+        assertEquals("cloudwatch messages",                       1, cloudwatch.getWriter().messages.size());
+        assertEquals("kinesis messages",                          1, kinesis.getWriter().messages.size());
+    }
+
+
+    @Test
+    public void testClosedAttachedAppender() throws Exception
+    {
+        initialize("TestFanOutAppender/testFanOut.xml");
+
+        logger.info("argle");
+        MockCloudWatchWriter cloudwatchWriter = cloudwatch.getWriter();
+
+        cloudwatch.close();
+
+        // this would throw if the closed appender didn't go through its error handler
+        logger.info("bargle");
+
+        assertEquals("closed appender didn't get message",        1,                  cloudwatchWriter.messages.size());
+        assertEquals("other appender got message",                2,                  kinesis.getWriter().messages.size());
+        assertEquals("other appender message",                    "INFO  - bargle\n", kinesis.getWriter().getMessage(1));
+    }
+
+
+    @Test
+    public void testClose() throws Exception
+    {
+        initialize("TestFanOutAppender/testFanOut.xml");
+
+        logger.info("argle");
+
+        MockCloudWatchWriter cloudwatchWriter = cloudwatch.getWriter();
+        MockKinesisWriter kinesisWriter = kinesis.getWriter();
+
+        appender.close();
+
+        assertTrue("cloudwatch writer stopped",                 cloudwatchWriter.stopped);
+        assertTrue("kinesis writer stopped",                    kinesisWriter.stopped);
+    }
+}
@@ -4,21 +4,28 @@ package com.kdgregory.log4j.aws;
 import java.io.StringWriter;
 import java.net.URL;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.TimeZone;
+import java.util.TreeMap;
 
 import org.w3c.dom.Document;
 
 import org.junit.Ignore;
 import org.junit.Test;
 import static org.junit.Assert.*;
+import static net.sf.kdgcommons.test.StringAsserts.*;
 
+import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 import org.apache.log4j.MDC;
 import org.apache.log4j.NDC;
 import org.apache.log4j.PropertyConfigurator;
 import org.apache.log4j.WriterAppender;
+import org.apache.log4j.spi.LocationInfo;
+import org.apache.log4j.spi.LoggingEvent;
 
 // I know of a nice library for making XPath-based assertions against a DOM, so convert
 // the generated JSON into XML ... sue me
@@ -26,6 +33,9 @@ import net.sf.practicalxml.converter.JsonConverter;
 import net.sf.practicalxml.junit.DomAsserts;
 import net.sf.practicalxml.xpath.XPathWrapper;
 
+import com.kdgregory.log4j.aws.internal.shared.LocationFinder;
+import com.kdgregory.log4j.aws.internal.shared.Substitutions;
+
 
 
 public class TestJsonLayout
@@ -43,6 +53,60 @@ public class TestJsonLayout
 //  Support functions
 //----------------------------------------------------------------------------
 
+    /**
+     *  Creates events as if it were a logger class, so that the location is the
+     *  line that calls it. Location is only available while this class is on the
+     *  stack, so it also formats the event (or, for Log4J, retrieves the location).
+     */
+    private static class EventFactory
+    {
+        public static LoggingEvent lastEvent;
+
+        public static String createAndFormat(Logger logger, JsonLayout layout)
+        {
+            lastEvent = new LoggingEvent(EventFactory.class.getName(), logger, Level.INFO, TEST_MESSAGE, null);
+            String result = layout.format(lastEvent);
+            lastEvent.getLocationInformation();
+            return result;
+        }
+
+        public static String format(LoggingEvent event, JsonLayout layout)
+        {
+            return layout.format(event);
+        }
+
+        public static String createAndFormatNested(final Logger logger, final JsonLayout layout)
+        {
+            // the inner call's caller is this anonymous class, but the outer call's is the test
+            final String[] result = new String[1];
+            new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    result[0] = createAndFormat(logger, layout);
+                }
+            }.run();
+            return result[0];
+        }
+
+        public static LoggingEvent createWithLocation(Logger logger)
+        {
+            LoggingEvent event = new LoggingEvent(EventFactory.class.getName(), logger, Level.INFO, TEST_MESSAGE, null);
+            event.getLocationInformation();
+            return event;
+        }
+    }
+
+
+    private static String extractLocation(String json)
+    {
+        int start = json.indexOf("\"locationInfo\":");
+        int end = json.indexOf("}", start);
+        return json.substring(start, end + 1);
+    }
+
+
     private void initialize(String propsName)
     throws Exception
     {
@@ -176,6 +240,128 @@ public class TestJsonLayout
     }
 
 
+    @Test
+    public void testMDCChanges() throws Exception
+    {
+        // the layout caches the encoded MDC per thread; output must track changes
+        final JsonLayout layout = new JsonLayout();
+        layout.activateOptions();
+
+        Logger myLogger = Logger.getLogger(getClass());
+
+        try
+        {
+            MDC.put("requestId", "abc");
+            String first = layout.format(new LoggingEvent(getClass().getName(), myLogger, Level.INFO, TEST_MESSAGE, null));
+            String second = layout.format(new LoggingEvent(getClass().getName(), myLogger, Level.INFO, TEST_MESSAGE, null));
+            assertTrue("initial MDC: " + first,         first.contains("\"mdc\":{\"requestId\":\"abc\"}"));
+            assertTrue("unchanged MDC: " + second,      second.contains("\"mdc\":{\"requestId\":\"abc\"}"));
+
+            MDC.put("requestId", "def");
+            String changed = layout.format(new LoggingEvent(getClass().getName(), myLogger, Level.INFO, TEST_MESSAGE, null));
+            assertTrue("changed value: " + changed,     changed.contains("\"mdc\":{\"requestId\":\"def\"}"));
+
+            MDC.put("userId", "me");
+            MDC.remove("requestId");
+            String replaced = layout.format(new LoggingEvent(getClass().getName(), myLogger, Level.INFO, TEST_MESSAGE, null));
+            assertTrue("replaced key: " + replaced,     replaced.contains("\"mdc\":{\"userId\":\"me\"}"));
+
+            // a non-string value can change without the MDC changing, so isn't cached
+            StringBuilder mutable = new StringBuilder("foo");
+            MDC.put("userId", mutable);
+            String beforeMutation = layout.format(new LoggingEvent(getClass().getName(), myLogger, Level.INFO, TEST_MESSAGE, null));
+            mutable.append("bar");
+            String afterMutation = layout.format(new LoggingEvent(getClass().getName(), myLogger, Level.INFO, TEST_MESSAGE, null));
+            assertTrue("before mutation: " + beforeMutation,    beforeMutation.contains("\"mdc\":{\"userId\":\"foo\"}"));
+            assertTrue("after mutation: " + afterMutation,      afterMutation.contains("\"mdc\":{\"userId\":\"foobar\"}"));
+
+            MDC.remove("userId");
+            String empty = layout.format(new LoggingEvent(getClass().getName(), myLogger, Level.INFO, TEST_MESSAGE, null));
+            assertFalse("empty MDC: " + empty,          empty.contains("\"mdc\""));
+        }
+        finally
+        {
+            MDC.clear();
+        }
+    }
+
+
+    @Test
+    public void testMDCFromAnotherThread() throws Exception
+    {
+        final JsonLayout layout = new JsonLayout();
+        layout.activateOptions();
+
+        final Logger myLogger = Logger.getLogger(getClass());
+        final LoggingEvent[] holder = new LoggingEvent[1];
+
+        try
+        {
+            MDC.put("requestId", "mine");
+            String mine = layout.format(new LoggingEvent(getClass().getName(), myLogger, Level.INFO, TEST_MESSAGE, null));
+
+            // like AsyncAppender, the event is created (and copies the MDC) on the
+            // originating thread, but is formatted on this one
+            Thread thread = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    MDC.put("requestId", "theirs");
+                    holder[0] = new LoggingEvent(getClass().getName(), myLogger, Level.INFO, TEST_MESSAGE, null);
+                    holder[0].getMDCCopy();
+                }
+            });
+            thread.start();
+            thread.join();
+
+            String theirs = layout.format(holder[0]);
+            assertTrue("this thread's MDC: " + mine,        mine.contains("\"mdc\":{\"requestId\":\"mine\"}"));
+            assertTrue("other thread's MDC: " + theirs,     theirs.contains("\"mdc\":{\"requestId\":\"theirs\"}"));
+        }
+        finally
+        {
+            MDC.clear();
+        }
+    }
+
+
+    @Test
+    public void testStructuredMessage() throws Exception
+    {
+        initialize("TestJsonLayout/default.properties");
+
+        logger.debug(new StructuredMessage(TEST_MESSAGE)
+                     .with("orderId", Integer.valueOf(123))
+                     .with("amount", Double.valueOf(12.5))
+                     .with("items", Arrays.asList("foo", "bar")));
+
+        captureLoggingOutput();
+        assertCommonElements(TEST_MESSAGE);
+
+        assertTrue("data written directly (was: " + rawJson + ")",
+                   rawJson.contains("\"data\":{\"orderId\":123,\"amount\":12.5,\"items\":[\"foo\",\"bar\"]}"));
+    }
+
+
+    @Test
+    public void testMapMessage() throws Exception
+    {
+        initialize("TestJsonLayout/default.properties");
+
+        Map<String,Object> message = new TreeMap<String,Object>();
+        message.put("argle", "bargle");
+        message.put("count", Integer.valueOf(3));
+        logger.debug(message);
+
+        captureLoggingOutput();
+
+        assertTrue("data written directly (was: " + rawJson + ")",
+                   rawJson.contains("\"data\":{\"argle\":\"bargle\",\"count\":3}"));
+        assertFalse("no message (was: " + rawJson + ")", rawJson.contains("\"message\""));
+    }
+
+
     @Test
     public void testLocation() throws Exception
     {
@@ -259,4 +445,300 @@ public class TestJsonLayout
 
         DomAsserts.assertCount("tags not present",  0, dom, "/data/tags/*");
     }
+
+
+    @Test
+    public void testOutputMatchesMapConversion() throws Exception
+    {
+        // this reproduces the map-based implementation that preceded streaming output
+
+        JsonLayout layout = new JsonLayout();
+        layout.setEnableLocation(true);
+        layout.setEnableHostname(true);
+        layout.setTags("argle=bargle,foo=b\u00e4r \"baz\"");
+        layout.activateOptions();
+
+        Logger myLogger = Logger.getLogger(getClass());
+        Substitutions subs = new Substitutions(new Date(), 0);
+        LoggingEvent event;
+        String actual;
+        String expected;
+
+        NDC.push("frist");
+        MDC.put("foo", "bar");
+        try
+        {
+            event = new LoggingEvent(getClass().getName(), myLogger, System.currentTimeMillis(),
+                                     Level.WARN, "m\u00e9ssage with \"quotes\"\n\u20ac",
+                                     new RuntimeException("oops"));
+            actual = layout.format(event);
+
+            Map<String,Object> map = new TreeMap<String,Object>();
+            map.put("timestamp",    new Date(event.getTimeStamp()));
+            map.put("thread",       event.getThreadName());
+            map.put("logger",       event.getLogger().getName());
+            map.put("level",        event.getLevel().toString());
+            map.put("message",      event.getRenderedMessage());
+            map.put("exception",    event.getThrowableStrRep());
+            map.put("ndc",          event.getNDC());
+            map.put("mdc",          event.getProperties());
+            map.put("processId",    subs.perform("{pid}"));
+            map.put("hostname",     subs.perform("{hostname}"));
+
+            Map<String,Object> tags = new TreeMap<String,Object>();
+            tags.put("argle", "bargle");
+            tags.put("foo", "b\u00e4r \"baz\"");
+            map.put("tags", tags);
+
+            LocationInfo info = event.getLocationInformation();
+            Map<String,Object> location = new TreeMap<String,Object>();
+            location.put("className",  info.getClassName());
+            location.put("methodName", info.getMethodName());
+            location.put("fileName",   info.getFileName());
+            location.put("lineNumber", info.getLineNumber());
+            map.put("locationInfo", location);
+
+            // note: name conflicts with the XML converter used by other tests
+            expected = new com.kdgregory.log4j.aws.internal.shared.JsonConverter().convert(map);
+        }
+        finally
+        {
+            NDC.clear();
+            MDC.clear();
+        }
+
+        assertEquals("streaming output", expected, actual);
+        assertArrayEquals("byte output", expected.getBytes("UTF-8"), layout.formatAsBytes(event));
+    }
+
+
+    @Test
+    public void testManyLoggerNames() throws Exception
+    {
+        // enough distinct names to fill the layout's cache, which must not affect output
+        JsonLayout layout = new JsonLayout();
+        layout.activateOptions();
+
+        for (int ii = 0 ; ii < 1500 ; ii++)
+        {
+            Logger myLogger = Logger.getLogger("TestJsonLayout.logger" + (ii % 1200));
+            LoggingEvent event = new LoggingEvent(getClass().getName(), myLogger, Level.INFO, TEST_MESSAGE, null);
+            String json = layout.format(event);
+            assertTrue("logger name " + ii + ": " + json,
+                       json.contains("\"logger\":\"TestJsonLayout.logger" + (ii % 1200) + "\","));
+        }
+    }
+
+
+    @Test
+    public void testLocationUsesOutermostLoggerCall() throws Exception
+    {
+        JsonLayout layout = new JsonLayout();
+        layout.setEnableLocation(true);
+        layout.activateOptions();
+
+        String location = extractLocation(EventFactory.createAndFormatNested(Logger.getLogger(getClass()), layout));
+        LocationInfo info = EventFactory.lastEvent.getLocationInformation();
+
+        assertEquals("Log4J method name",           "testLocationUsesOutermostLoggerCall",  info.getMethodName());
+        assertTrue("location matches Log4J: " + location,
+                   location.contains("\"methodName\":\"testLocationUsesOutermostLoggerCall\"")
+                   && location.contains("\"lineNumber\":\"" + info.getLineNumber() + "\""));
+    }
+
+
+    @Test
+    public void testLocationOfEventFromOtherThread() throws Exception
+    {
+        JsonLayout layout = new JsonLayout();
+        layout.setEnableLocation(true);
+        layout.activateOptions();
+
+        final Logger myLogger = Logger.getLogger(getClass());
+        final LoggingEvent[] event = new LoggingEvent[1];
+        Thread thread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                // as with any appender that defers events, take a snapshot of the thread name
+                event[0] = EventFactory.createWithLocation(myLogger);
+                event[0].getThreadName();
+            }
+        });
+        thread.start();
+        thread.join();
+
+        // the event factory is on the stack when formatting, but isn't the event's caller
+        String location = extractLocation(EventFactory.format(event[0], layout));
+        assertTrue("location from event: " + location,
+                   location.contains("\"methodName\":\"run\""));
+    }
+
+
+    @Test
+    public void testLocationOfDeferredEvent() throws Exception
+    {
+        JsonLayout layout = new JsonLayout();
+        layout.setEnableLocation(true);
+        layout.activateOptions();
+
+        LoggingEvent event = new LoggingEvent(EventFactory.class.getName(), Logger.getLogger(getClass()), Level.INFO, TEST_MESSAGE, null);
+
+        String location;
+        LocationFinder.beginDeferred(false);
+        try
+        {
+            location = extractLocation(EventFactory.format(event, layout));
+        }
+        finally
+        {
+            LocationFinder.endDeferred();
+        }
+
+        assertEquals("location not available",
+                     "\"locationInfo\":{\"className\":\"?\",\"fileName\":\"?\",\"lineNumber\":\"?\",\"methodName\":\"?\"}",
+                     location);
+    }
+
+
+    @Test
+    public void testLocationIsPerCallSite() throws Exception
+    {
+        JsonLayout layout = new JsonLayout();
+        layout.setEnableLocation(true);
+        layout.activateOptions();
+
+        Logger myLogger = Logger.getLogger(getClass());
+
+        String[] locations = new String[3];
+        LoggingEvent[] events = new LoggingEvent[3];
+        for (int ii = 0 ; ii < 2 ; ii++)
+        {
+            locations[ii] = extractLocation(EventFactory.createAndFormat(myLogger, layout));
+            events[ii] = EventFactory.lastEvent;
+        }
+        locations[2] = extractLocation(EventFactory.createAndFormat(myLogger, layout));
+        events[2] = EventFactory.lastEvent;
+
+        assertEquals("same call site, same location", locations[0], locations[1]);
+        assertFalse("different call site, different location", locations[0].equals(locations[2]));
+
+        for (int ii = 0 ; ii < 3 ; ii++)
+        {
+            LocationInfo info = events[ii].getLocationInformation();
+            assertEquals("location " + ii + " matches Log4J",
+                         "\"locationInfo\":{"
+                         + "\"className\":\"" + info.getClassName() + "\","
+                         + "\"fileName\":\"" + info.getFileName() + "\","
+                         + "\"lineNumber\":\"" + info.getLineNumber() + "\","
+                         + "\"methodName\":\"" + info.getMethodName() + "\"}",
+                         locations[ii]);
+        }
+    }
+
+
+    @Test
+    public void testLocationFromAnotherThread() throws Exception
+    {
+        JsonLayout layout = new JsonLayout();
+        layout.setEnableLocation(true);
+        layout.activateOptions();
+
+        final Logger myLogger = Logger.getLogger(getClass());
+        final LoggingEvent[] holder = new LoggingEvent[1];
+
+        // like AsyncAppender, we capture location on the originating thread
+        Thread thread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                holder[0] = EventFactory.createWithLocation(myLogger);
+            }
+        });
+        thread.start();
+        thread.join();
+
+        String location = extractLocation(layout.format(holder[0]));
+        assertTrue("location from event (was: " + location + ")", location.contains("\"methodName\":\"run\""));
+    }
+
+
+    @Test
+    public void testStackTraceCompaction() throws Exception
+    {
+        JsonLayout layout = new JsonLayout();
+        layout.setStackTraceFilter("org.junit.,sun.reflect.");
+        layout.setStackTraceMaxFrames(2);
+        layout.activateOptions();
+
+        Exception ex = new RuntimeException("outer", new IllegalStateException("inner"));
+        LoggingEvent event = new LoggingEvent(getClass().getName(), Logger.getLogger(getClass()), Level.ERROR, TEST_MESSAGE, ex);
+
+        dom = JsonConverter.convertToXml(layout.format(event), "");
+        List<String> lines = new XPathWrapper("/data/exception/data").evaluateAsStringList(dom);
+
+        assertTrue("first line is exception",       lines.get(0).contains("RuntimeException: outer"));
+        assertTrue("second line is test method",    lines.get(1).contains("testStackTraceCompaction"));
+
+        int causeIndex = -1;
+        int framesInSection = 0;
+        boolean sawFiltered = false;
+        boolean sawOmitted = false;
+        for (String line : lines)
+        {
+            assertFalse("no JUnit frames: " + line, line.contains("at org.junit."));
+            if (line.startsWith("\tat "))
+            {
+                framesInSection++;
+                assertTrue("no more than 2 frames per section", framesInSection <= 2);
+            }
+            else if (! line.startsWith("\t"))
+            {
+                framesInSection = 0;
+            }
+
+            sawFiltered |= line.matches("\t\\.\\.\\. \\d+ filtered");
+            sawOmitted  |= line.matches("\t\\.\\.\\. \\d+ omitted");
+            if (line.startsWith("Caused by"))
+                causeIndex = lines.indexOf(line);
+        }
+
+        assertTrue("filtered marker present",       sawFiltered);
+        assertTrue("omitted marker present",        sawOmitted);
+        assertTrue("cause is present",              causeIndex > 0);
+    }
+
+
+    @Test
+    public void testExceptionReferences() throws Exception
+    {
+        JsonLayout layout = new JsonLayout();
+        layout.setExceptionReferenceInterval(60000);
+        layout.activateOptions();
+
+        String[] outputs = new String[3];
+        for (int ii = 0 ; ii < 2 ; ii++)
+        {
+            Exception ex = new RuntimeException("repeated");
+            outputs[ii] = layout.format(new LoggingEvent(getClass().getName(), Logger.getLogger(getClass()), Level.ERROR, TEST_MESSAGE, ex));
+        }
+        outputs[2] = layout.format(new LoggingEvent(getClass().getName(), Logger.getLogger(getClass()), Level.ERROR, TEST_MESSAGE, new RuntimeException("different")));
+
+        String[] hashes = new String[3];
+        for (int ii = 0 ; ii < 3 ; ii++)
+        {
+            dom = JsonConverter.convertToXml(outputs[ii], "");
+            hashes[ii] = new XPathWrapper("/data/exceptionHash").evaluateAsString(dom);
+            assertRegex("hash " + ii, "[0-9a-f]{16}", hashes[ii]);
+        }
+
+        assertEquals("repeated exception has same hash",        hashes[0], hashes[1]);
+        assertFalse("different exception has different hash",  hashes[0].equals(hashes[2]));
+
+        assertTrue("first occurrence has trace",                outputs[0].contains("\"exception\":["));
+        assertFalse("repeated occurrence doesn't have trace",   outputs[1].contains("\"exception\":["));
+        assertTrue("different exception has trace",            outputs[2].contains("\"exception\":["));
+    }
 }
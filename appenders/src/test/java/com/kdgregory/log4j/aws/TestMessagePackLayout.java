@@ -0,0 +1,243 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.log4j.aws;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.MDC;
+import org.apache.log4j.NDC;
+import org.apache.log4j.spi.LoggingEvent;
+
+import com.kdgregory.log4j.aws.internal.shared.MessagePackReader;
+
+
+public class TestMessagePackLayout
+{
+    private final static String TEST_MESSAGE = "test message";
+
+    private Logger logger = Logger.getLogger(getClass());
+    private MessagePackLayout layout = new MessagePackLayout();
+
+//----------------------------------------------------------------------------
+//  Support functions
+//----------------------------------------------------------------------------
+
+    /**
+     *  Creates events as if it were a logger class, so that the location is the
+     *  line that calls it. Location is only available while this class is on the
+     *  stack, so it also formats the event.
+     */
+    private static class EventFactory
+    {
+        public static byte[] createAndFormat(Logger logger, Level level, Throwable ex, MessagePackLayout layout)
+        {
+            LoggingEvent event = new LoggingEvent(EventFactory.class.getName(), logger, level, TEST_MESSAGE, ex);
+            return layout.formatAsBytes(event);
+        }
+    }
+
+
+    @SuppressWarnings("unchecked")
+    private Map<String,Object> formatAndDecode(Level level, Throwable ex)
+    {
+        layout.activateOptions();
+        byte[] bytes = EventFactory.createAndFormat(logger, level, ex, layout);
+        return (Map<String,Object>)MessagePackReader.decode(bytes);
+    }
+
+
+    private void assertCommonElements(Map<String,Object> decoded, long minTimestamp, long maxTimestamp)
+    {
+        assertEquals("thread",  Thread.currentThread().getName(),           decoded.get("thread"));
+        assertEquals("logger",  "com.kdgregory.log4j.aws.TestMessagePackLayout", decoded.get("logger"));
+        assertEquals("message", TEST_MESSAGE,                               decoded.get("message"));
+
+        long timestamp = ((Long)decoded.get("timestamp")).longValue();
+        assertTrue("timestamp in range", (timestamp >= minTimestamp) && (timestamp <= maxTimestamp));
+    }
+
+//----------------------------------------------------------------------------
+//  Testcases
+//----------------------------------------------------------------------------
+
+    @After
+    public void tearDown()
+    {
+        MDC.clear();
+        NDC.clear();
+    }
+
+
+    @Test
+    public void testSimpleMessage() throws Exception
+    {
+        long start = System.currentTimeMillis();
+        Map<String,Object> decoded = formatAndDecode(Level.DEBUG, null);
+        long finish = System.currentTimeMillis();
+
+        assertCommonElements(decoded, start, finish);
+        assertEquals("level",                   Long.valueOf(10),   decoded.get("level"));
+        assertNull("no exception",                                  decoded.get("exception"));
+        assertNull("no MDC",                                        decoded.get("mdc"));
+        assertNull("no NDC",                                        decoded.get("ndc"));
+        assertNull("no location",                                   decoded.get("locationInfo"));
+        assertNull("no hostname",                                   decoded.get("hostname"));
+        assertNull("no instanceId",                                 decoded.get("instanceId"));
+        assertNull("no tags",                                       decoded.get("tags"));
+
+        // since we're never running on an unsupported platform, this is always present
+        assertNotNull("processId",                                  decoded.get("processId"));
+    }
+
+
+    @Test
+    public void testTimestampIsInt64() throws Exception
+    {
+        layout.activateOptions();
+        LoggingEvent event = new LoggingEvent(getClass().getName(), logger, 12345L, Level.INFO, TEST_MESSAGE, null);
+        byte[] bytes = layout.formatAsBytes(event);
+
+        // the timestamp is the last value in the map, and takes 9 bytes
+        byte[] tail = Arrays.copyOfRange(bytes, bytes.length - 9, bytes.length);
+        assertArrayEquals(new byte[] { (byte)0xd3, 0, 0, 0, 0, 0, 0, 0x30, 0x39 }, tail);
+    }
+
+
+    @Test
+    public void testLevels() throws Exception
+    {
+        assertEquals("trace",   Long.valueOf(5),  formatAndDecode(Level.TRACE, null).get("level"));
+        assertEquals("info",    Long.valueOf(20), formatAndDecode(Level.INFO, null).get("level"));
+        assertEquals("warn",    Long.valueOf(30), formatAndDecode(Level.WARN, null).get("level"));
+        assertEquals("error",   Long.valueOf(40), formatAndDecode(Level.ERROR, null).get("level"));
+        assertEquals("fatal",   Long.valueOf(50), formatAndDecode(Level.FATAL, null).get("level"));
+    }
+
+
+    @Test
+    public void testException() throws Exception
+    {
+        Exception ex = new Exception("boo!");
+        Map<String,Object> decoded = formatAndDecode(Level.ERROR, ex);
+
+        List<?> trace = (List<?>)decoded.get("exception");
+        assertEquals("first line",  "java.lang.Exception: boo!", trace.get(0));
+        assertTrue("has frames",    trace.size() > 1);
+        assertTrue("frame format",  ((String)trace.get(1)).startsWith("\tat com.kdgregory.log4j.aws.TestMessagePackLayout"));
+    }
+
+
+    @Test
+    public void testMDCAndNDC() throws Exception
+    {
+        MDC.put("foo", "bar");
+        MDC.put("argle", "bargle");
+        NDC.push("frist");
+        NDC.push("second");
+
+        Map<String,Object> decoded = formatAndDecode(Level.DEBUG, null);
+
+        Map<?,?> mdc = (Map<?,?>)decoded.get("mdc");
+        assertEquals("MDC size",    2,          mdc.size());
+        assertEquals("MDC entry",   "bar",      mdc.get("foo"));
+        assertEquals("MDC entry",   "bargle",   mdc.get("argle"));
+        assertEquals("NDC",         "frist second", decoded.get("ndc"));
+    }
+
+
+    @Test
+    public void testStructuredMessage() throws Exception
+    {
+        layout.activateOptions();
+        LoggingEvent event = new LoggingEvent(getClass().getName(), logger, Level.INFO,
+                                              new StructuredMessage(TEST_MESSAGE).with("orderId", Integer.valueOf(123)),
+                                              null);
+
+        @SuppressWarnings("unchecked")
+        Map<String,Object> decoded = (Map<String,Object>)MessagePackReader.decode(layout.formatAsBytes(event));
+        assertEquals("message", TEST_MESSAGE, decoded.get("message"));
+
+        Map<?,?> data = (Map<?,?>)decoded.get("data");
+        assertEquals("data", Long.valueOf(123), data.get("orderId"));
+    }
+
+
+    @Test
+    public void testMapMessage() throws Exception
+    {
+        layout.activateOptions();
+        Map<String,Object> message = new TreeMap<String,Object>();
+        message.put("argle", "bargle");
+        LoggingEvent event = new LoggingEvent(getClass().getName(), logger, Level.INFO, message, null);
+
+        @SuppressWarnings("unchecked")
+        Map<String,Object> decoded = (Map<String,Object>)MessagePackReader.decode(layout.formatAsBytes(event));
+        assertFalse("no message",   decoded.containsKey("message"));
+        assertEquals("data",        message, decoded.get("data"));
+    }
+
+
+    @Test
+    public void testLocation() throws Exception
+    {
+        layout.setEnableLocation(true);
+        Map<String,Object> decoded = formatAndDecode(Level.DEBUG, null);
+
+        Map<?,?> location = (Map<?,?>)decoded.get("locationInfo");
+        assertEquals("className",   getClass().getName(),           location.get("className"));
+        assertEquals("methodName",  "formatAndDecode",              location.get("methodName"));
+        assertEquals("fileName",    "TestMessagePackLayout.java",   location.get("fileName"));
+        assertNotNull("lineNumber",                                 location.get("lineNumber"));
+    }
+
+
+    @Test
+    public void testHostnameAndTags() throws Exception
+    {
+        layout.setEnableHostname(true);
+        layout.setTags("argle=bargle,foo={pid}");
+        Map<String,Object> decoded = formatAndDecode(Level.DEBUG, null);
+
+        assertNotNull("hostname", decoded.get("hostname"));
+
+        Map<?,?> tags = (Map<?,?>)decoded.get("tags");
+        assertEquals("tag count",           2,                          tags.size());
+        assertEquals("explicit tag",        "bargle",                   tags.get("argle"));
+        assertEquals("substituted tag",     decoded.get("processId"),   tags.get("foo"));
+    }
+
+
+    @Test
+    public void testKeyOrderMatchesJsonLayout() throws Exception
+    {
+        layout.setEnableHostname(true);
+        layout.setEnableLocation(true);
+        layout.setTags("argle=bargle");
+        MDC.put("foo", "bar");
+        NDC.push("baz");
+
+        Map<String,Object> decoded = formatAndDecode(Level.DEBUG, new Exception());
+        assertEquals(Arrays.asList("exception", "hostname", "level", "locationInfo", "logger", "mdc",
+                                   "message", "ndc", "processId", "tags", "thread", "timestamp"),
+                     Arrays.asList(decoded.keySet().toArray()));
+    }
+
+
+    @Test
+    public void testFormatIsOneCharPerByte() throws Exception
+    {
+        layout.activateOptions();
+        LoggingEvent event = new LoggingEvent(getClass().getName(), logger, Level.INFO, "\u00e9\u20ac", null);
+
+        byte[] bytes = layout.formatAsBytes(event);
+        assertArrayEquals(bytes, layout.format(event).getBytes("ISO-8859-1"));
+    }
+}
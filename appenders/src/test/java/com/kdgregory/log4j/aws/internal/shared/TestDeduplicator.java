@@ -0,0 +1,212 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.log4j.aws.internal.shared;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.MDC;
+import org.apache.log4j.NDC;
+import org.apache.log4j.spi.LoggingEvent;
+
+
+public class TestDeduplicator
+{
+    private final static long BASE_TIMESTAMP = 1496088000000L;  // 2017-05-29T20:00:00Z
+
+    private static LoggingEvent event(String loggerName, Level level, String message, long offset)
+    {
+        return new LoggingEvent(TestDeduplicator.class.getName(), Logger.getLogger(loggerName),
+                                BASE_TIMESTAMP + offset, level, message, null);
+    }
+
+
+    @Test
+    public void testBasicOperation() throws Exception
+    {
+        Deduplicator dedup = new Deduplicator(1000);
+
+        assertFalse("first event",              dedup.isDuplicate(event("foo", Level.INFO, "argle", 0)));
+        assertTrue("repeat",                    dedup.isDuplicate(event("foo", Level.INFO, "argle", 10)));
+        assertTrue("repeat",                    dedup.isDuplicate(event("foo", Level.INFO, "argle", 20)));
+        assertFalse("different message",        dedup.isDuplicate(event("foo", Level.INFO, "bargle", 30)));
+        assertFalse("different level",          dedup.isDuplicate(event("foo", Level.WARN, "argle", 40)));
+        assertFalse("different logger",         dedup.isDuplicate(event("bar", Level.INFO, "argle", 50)));
+        assertNull("no summary while in window", dedup.pollSummary());
+
+        assertFalse("after window",             dedup.isDuplicate(event("foo", Level.INFO, "argle", 1000)));
+
+        LoggingEvent summary = dedup.pollSummary();
+        assertNotNull("summary after window",   summary);
+        assertEquals("summary logger",          "foo",              summary.getLoggerName());
+        assertEquals("summary level",           Level.INFO,         summary.getLevel());
+        assertEquals("summary timestamp",       BASE_TIMESTAMP + 20, summary.getTimeStamp());
+        assertEquals("summary message",
+                     "repeated 2 times from 2017-05-29T20:00:00.010Z to 2017-05-29T20:00:00.020Z: argle",
+                     summary.getRenderedMessage());
+        assertNull("only one summary",          dedup.pollSummary());
+    }
+
+
+    @Test
+    public void testSummaryHasContextOfFirstEvent() throws Exception
+    {
+        final Deduplicator dedup = new Deduplicator(1000);
+
+        // the window is opened on another thread, with its own context
+        Thread opener = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                MDC.put("tenant", "A");
+                NDC.push("opener");
+                try
+                {
+                    dedup.isDuplicate(event("foo", Level.INFO, "argle", 0));
+                    dedup.isDuplicate(event("foo", Level.INFO, "argle", 10));
+                }
+                finally
+                {
+                    NDC.remove();
+                    MDC.remove("tenant");
+                }
+            }
+        });
+        opener.setName("window-opener");
+        opener.start();
+        opener.join();
+
+        MDC.put("tenant", "B");
+        try
+        {
+            dedup.isDuplicate(event("foo", Level.INFO, "argle", 1000));
+        }
+        finally
+        {
+            MDC.remove("tenant");
+        }
+
+        LoggingEvent summary = dedup.pollSummary();
+        assertNotNull("summary after window",   summary);
+        assertEquals("summary MDC",             "A",                summary.getMDC("tenant"));
+        assertEquals("summary NDC",             "opener",           summary.getNDC());
+        assertEquals("summary thread",          "window-opener",    summary.getThreadName());
+    }
+
+
+    @Test
+    public void testNoSummaryWithoutRepeats() throws Exception
+    {
+        Deduplicator dedup = new Deduplicator(1000);
+
+        assertFalse("first event",              dedup.isDuplicate(event("foo", Level.INFO, "argle", 0)));
+        assertFalse("after window",             dedup.isDuplicate(event("foo", Level.INFO, "argle", 2000)));
+        dedup.closeAll();
+        assertNull("no summary",                dedup.pollSummary());
+    }
+
+
+    @Test
+    public void testCloseAll() throws Exception
+    {
+        Deduplicator dedup = new Deduplicator(1000);
+
+        dedup.isDuplicate(event("foo", Level.INFO, "argle", 0));
+        dedup.isDuplicate(event("foo", Level.INFO, "argle", 10));
+        dedup.isDuplicate(event("bar", Level.INFO, "bargle", 20));
+        dedup.isDuplicate(event("bar", Level.INFO, "bargle", 30));
+        dedup.isDuplicate(event("bar", Level.INFO, "bargle", 40));
+        dedup.closeAll();
+
+        int count = 0;
+        while (dedup.pollSummary() != null)
+            count++;
+        assertEquals("summaries", 2, count);
+
+        assertFalse("window was closed",        dedup.isDuplicate(event("foo", Level.INFO, "argle", 50)));
+    }
+
+
+    @Test
+    public void testSweep() throws Exception
+    {
+        Deduplicator dedup = new Deduplicator(1000);
+
+        dedup.isDuplicate(event("foo", Level.INFO, "argle", 0));
+        dedup.isDuplicate(event("foo", Level.INFO, "argle", 10));
+
+        // each event sweeps one slot, so enough unrelated events will find the expired window
+        for (int ii = 0 ; ii < 2048 ; ii++)
+        {
+            dedup.isDuplicate(event("bar", Level.INFO, "bargle", 2000));
+        }
+
+        LoggingEvent summary = dedup.pollSummary();
+        assertNotNull("summary", summary);
+        assertEquals("summary message",
+                     "repeated 1 times from 2017-05-29T20:00:00.010Z to 2017-05-29T20:00:00.010Z: argle",
+                     summary.getRenderedMessage());
+    }
+
+
+    @Test
+    public void testConcurrentRepeats() throws Exception
+    {
+        final int numThreads = 8;
+        final int eventsPerThread = 10000;
+
+        final Deduplicator dedup = new Deduplicator(Long.MAX_VALUE / 2);
+        final AtomicInteger passed = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(numThreads);
+
+        for (int ii = 0 ; ii < numThreads ; ii++)
+        {
+            new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                        for (int jj = 0 ; jj < eventsPerThread ; jj++)
+                        {
+                            if (! dedup.isDuplicate(event("foo", Level.INFO, "argle", jj)))
+                                passed.incrementAndGet();
+                        }
+                    }
+                    catch (InterruptedException ignored)
+                    {
+                        // fall through
+                    }
+                    finally
+                    {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        start.countDown();
+        done.await();
+
+        // a thread that loses the race to start the window sees the winner's entry
+        assertEquals("passed through", 1, passed.get());
+
+        dedup.closeAll();
+        long total = passed.get();
+        LoggingEvent summary;
+        while ((summary = dedup.pollSummary()) != null)
+        {
+            String message = summary.getRenderedMessage();
+            total += Long.parseLong(message.substring(9, message.indexOf(' ', 9)));
+        }
+        assertEquals("all events accounted for", numThreads * eventsPerThread, total);
+    }
+}
@@ -0,0 +1,108 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.log4j.aws.internal.shared;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+public class TestHistogram
+{
+    @Test
+    public void testEmpty() throws Exception
+    {
+        Histogram histogram = new Histogram();
+
+        assertEquals("count",           0,      histogram.getCount());
+        assertEquals("mean",            0.0,    histogram.getMean(), 0.0);
+        assertEquals("max",             0,      histogram.getMax());
+        assertEquals("median",          0,      histogram.getPercentile(50));
+    }
+
+
+    @Test
+    public void testSmallValuesAreExact() throws Exception
+    {
+        Histogram histogram = new Histogram();
+        for (int ii = 1 ; ii <= 100 ; ii++)
+        {
+            histogram.record(ii);
+        }
+
+        assertEquals("count",           100,    histogram.getCount());
+        assertEquals("mean",            50.5,   histogram.getMean(), 0.001);
+        assertEquals("max",             100,    histogram.getMax());
+        assertEquals("median",          50,     histogram.getPercentile(50));
+        assertEquals("90th percentile", 90,     histogram.getPercentile(90));
+        assertEquals("99th percentile", 99,     histogram.getPercentile(99));
+        assertEquals("100th percentile",100,    histogram.getPercentile(100));
+    }
+
+
+    @Test
+    public void testLargeValuesAreWithinPrecision() throws Exception
+    {
+        long[] values = new long[] { 128, 1000, 12345, 1000000, 86400000L, 1L << 40 };
+        for (long value : values)
+        {
+            Histogram histogram = new Histogram();
+            histogram.record(value);
+            histogram.record(value * 2);
+
+            long reported = histogram.getPercentile(50);
+            assertTrue("value " + value + " reported as " + reported,
+                       (reported >= value) && (reported <= value + value / 64));
+        }
+    }
+
+
+    @Test
+    public void testNegativeAndHugeValues() throws Exception
+    {
+        Histogram histogram = new Histogram();
+        histogram.record(-10);
+        histogram.record(Long.MAX_VALUE);
+
+        assertEquals("negative value recorded as zero",     0,              histogram.getPercentile(50));
+        assertEquals("huge value reported as max",          Long.MAX_VALUE, histogram.getPercentile(100));
+    }
+
+
+    @Test
+    public void testConcurrentRecording() throws Exception
+    {
+        final int numThreads = 8;
+        final int valuesPerThread = 10000;
+        final Histogram histogram = new Histogram();
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int ii = 0 ; ii < numThreads ; ii++)
+        {
+            threads.add(new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    for (int jj = 0 ; jj < valuesPerThread ; jj++)
+                    {
+                        histogram.record(jj % 1000);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads)
+        {
+            thread.start();
+        }
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+
+        assertEquals("count",   numThreads * valuesPerThread,   histogram.getCount());
+        assertEquals("max",     999,                            histogram.getMax());
+        assertEquals("mean",    499.5,                          histogram.getMean(), 0.001);
+    }
+}
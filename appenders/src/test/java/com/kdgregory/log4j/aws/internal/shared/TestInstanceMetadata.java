@@ -0,0 +1,277 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.log4j.aws.internal.shared;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import com.kdgregory.log4j.aws.MessagePackLayout;
+
+
+/**
+ *  Runs lookups against a local stand-in for the metadata service.
+ */
+public class TestInstanceMetadata
+{
+    private final static String TEST_TOKEN = "AQAEAExampleToken==";
+    private final static String TEST_INSTANCE_ID = "i-0123456789abcdef0";
+
+    private HttpServer server;
+
+    // configured per-test; the handler is shared
+    private volatile boolean supportTokens = true;
+    private volatile long responseDelay = 0;
+    private volatile long tokenDelay = 0;
+    private AtomicInteger tokenRequests = new AtomicInteger();
+    private AtomicInteger instanceIdRequests = new AtomicInteger();
+
+//----------------------------------------------------------------------------
+//  Support code
+//----------------------------------------------------------------------------
+
+    private class MetadataHandler
+    implements HttpHandler
+    {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException
+        {
+            try
+            {
+                String path = exchange.getRequestURI().getPath();
+                String method = exchange.getRequestMethod();
+                if (path.equals("/latest/api/token") && method.equals("PUT"))
+                {
+                    tokenRequests.incrementAndGet();
+                    sleep(tokenDelay);
+                    if (supportTokens && (exchange.getRequestHeaders().getFirst("X-aws-ec2-metadata-token-ttl-seconds") != null))
+                        respond(exchange, 200, TEST_TOKEN);
+                    else
+                        respond(exchange, 403, "");
+                }
+                else if (path.equals("/latest/meta-data/instance-id") && method.equals("GET"))
+                {
+                    instanceIdRequests.incrementAndGet();
+                    String token = exchange.getRequestHeaders().getFirst("X-aws-ec2-metadata-token");
+                    if (supportTokens && ! TEST_TOKEN.equals(token))
+                        respond(exchange, 401, "");
+                    else
+                        respond(exchange, 200, TEST_INSTANCE_ID);
+                }
+                else
+                {
+                    respond(exchange, 404, "");
+                }
+            }
+            finally
+            {
+                exchange.close();
+            }
+        }
+
+        private void respond(HttpExchange exchange, int status, String body) throws IOException
+        {
+            sleep(responseDelay);
+
+            byte[] bytes = body.getBytes("UTF-8");
+            exchange.sendResponseHeaders(status, (bytes.length > 0) ? bytes.length : -1);
+            if (bytes.length > 0)
+            {
+                OutputStream out = exchange.getResponseBody();
+                out.write(bytes);
+                out.close();
+            }
+        }
+    }
+
+
+    private static void sleep(long millis)
+    {
+        if (millis <= 0)
+            return;
+
+        try
+        {
+            Thread.sleep(millis);
+        }
+        catch (InterruptedException ignored)
+        {
+            // fall through
+        }
+    }
+
+
+    private void startServer(int timeout) throws Exception
+    {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new MetadataHandler());
+
+        // a slow request mustn't hold up the ones that follow it
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        configure("http://127.0.0.1:" + server.getAddress().getPort() + "/", timeout);
+    }
+
+
+    private static void configure(String endpoint, int timeout)
+    {
+        System.setProperty(InstanceMetadata.ENDPOINT_PROPERTY, endpoint);
+        System.setProperty(InstanceMetadata.TIMEOUT_PROPERTY, String.valueOf(timeout));
+        InstanceMetadata.reset();
+    }
+
+//----------------------------------------------------------------------------
+//  Testcases
+//----------------------------------------------------------------------------
+
+    @After
+    public void tearDown()
+    {
+        if (server != null)
+        {
+            server.stop(0);
+        }
+        System.clearProperty(InstanceMetadata.ENDPOINT_PROPERTY);
+        System.clearProperty(InstanceMetadata.TIMEOUT_PROPERTY);
+        InstanceMetadata.reset();
+    }
+
+
+    @Test
+    public void testIMDSv2() throws Exception
+    {
+        startServer(1000);
+
+        assertEquals("instance ID",         TEST_INSTANCE_ID,   InstanceMetadata.getInstanceId());
+        assertEquals("token requests",      1,                  tokenRequests.get());
+        assertEquals("instance ID requests",1,                  instanceIdRequests.get());
+    }
+
+
+    @Test
+    public void testFallbackToIMDSv1() throws Exception
+    {
+        supportTokens = false;
+        startServer(1000);
+
+        assertEquals("instance ID",         TEST_INSTANCE_ID,   InstanceMetadata.getInstanceId());
+        assertEquals("token requests",      1,                  tokenRequests.get());
+        assertEquals("instance ID requests",1,                  instanceIdRequests.get());
+    }
+
+
+    @Test
+    public void testFallbackToIMDSv1WhenTokenRequestTimesOut() throws Exception
+    {
+        // emulates a container where the token response can't reach us
+        supportTokens = false;
+        tokenDelay = 1000;
+        startServer(200);
+
+        assertNull("caller doesn't wait for fallback",  InstanceMetadata.getInstanceId());
+
+        for (int ii = 0 ; (ii < 50) && ! InstanceMetadata.isLookupComplete() ; ii++)
+        {
+            Thread.sleep(20);
+        }
+
+        assertTrue("lookup completed",                  InstanceMetadata.isLookupComplete());
+        assertEquals("instance ID",                     TEST_INSTANCE_ID,   InstanceMetadata.peekInstanceId());
+        assertEquals("instance ID requests",            1,                  instanceIdRequests.get());
+    }
+
+
+    @Test
+    public void testLayoutPicksUpLateValue() throws Exception
+    {
+        supportTokens = false;
+        tokenDelay = 300;
+        startServer(100);
+
+        MessagePackLayout layout = new MessagePackLayout();
+        layout.setEnableInstanceId(true);
+        layout.activateOptions();
+
+        Logger logger = Logger.getLogger(getClass());
+        LoggingEvent event = new LoggingEvent(getClass().getName(), logger, Level.INFO, "test", null);
+
+        Map<?,?> initial = (Map<?,?>)MessagePackReader.decode(layout.formatAsBytes(event));
+        assertNull("instance ID not available at activation", initial.get("instanceId"));
+
+        for (int ii = 0 ; (ii < 100) && ! InstanceMetadata.isLookupComplete() ; ii++)
+        {
+            Thread.sleep(20);
+        }
+
+        Map<?,?> later = (Map<?,?>)MessagePackReader.decode(layout.formatAsBytes(event));
+        assertEquals("instance ID after lookup completes", TEST_INSTANCE_ID, later.get("instanceId"));
+    }
+
+
+    @Test
+    public void testValueIsCached() throws Exception
+    {
+        startServer(1000);
+
+        InstanceMetadata.prefetch();
+        assertEquals("first call",          TEST_INSTANCE_ID,   InstanceMetadata.getInstanceId());
+        assertEquals("second call",         TEST_INSTANCE_ID,   InstanceMetadata.getInstanceId());
+        assertEquals("token requests",      1,                  tokenRequests.get());
+        assertEquals("instance ID requests",1,                  instanceIdRequests.get());
+    }
+
+
+    @Test
+    public void testNoService() throws Exception
+    {
+        // start and stop a server to find a port that isn't listening
+        HttpServer temp = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        int port = temp.getAddress().getPort();
+        temp.stop(0);
+        configure("http://127.0.0.1:" + port, 1000);
+
+        long start = System.currentTimeMillis();
+        assertNull("instance ID", InstanceMetadata.getInstanceId());
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue("returned within timeout (was " + elapsed + " ms)", elapsed < 1500);
+    }
+
+
+    @Test
+    public void testSlowServiceDoesNotBlockCaller() throws Exception
+    {
+        responseDelay = 2000;
+        startServer(200);
+
+        long start = System.currentTimeMillis();
+        assertNull("instance ID", InstanceMetadata.getInstanceId());
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue("returned within timeout (was " + elapsed + " ms)", elapsed < 1000);
+    }
+
+
+    @Test
+    public void testSubstitution() throws Exception
+    {
+        startServer(1000);
+        assertEquals("available", "x-" + TEST_INSTANCE_ID, new Substitutions(new Date(), 0).perform("x-{instanceId}"));
+
+        configure("http://127.0.0.1:1", 200);
+        assertEquals("unavailable", "x-{instanceId}", new Substitutions(new Date(), 0).perform("x-{instanceId}"));
+    }
+}
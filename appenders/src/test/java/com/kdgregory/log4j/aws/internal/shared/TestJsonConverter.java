@@ -53,7 +53,28 @@ public class TestJsonConverter
         String json = converter.convert(new MapBuilder<String,Object>(new TreeMap<String,Object>())
                                             .put("f\u00f6\u00f6\u0001", "\"\n\r\t\u0007\u0019\f\\")
                                             .toMap());
-        assertEquals("{\"f\u00f6\u00f6\":\"\\\"\\n\\r\\t\\b\\f\\\\\"}", json);
+        assertEquals("{\"f\u00f6\u00f6\\u0001\":\"\\\"\\n\\r\\t\\u0007\\u0019\\f\\\\\"}", json);
+    }
+
+
+    @Test
+    public void testEscapedControlCharacters() throws Exception
+    {
+        String json = converter.convert(new MapBuilder<String,Object>(new TreeMap<String,Object>())
+                                            .put("foo", "a\bb\u007fc\u0085d\u00a0e")
+                                            .toMap());
+        assertEquals("{\"foo\":\"a\\bb\\u007fc\\u0085d\u00a0e\"}", json);
+    }
+
+
+    @Test
+    public void testSurrogates() throws Exception
+    {
+        // a valid pair is retained, unpaired surrogates are escaped
+        String json = converter.convert(new MapBuilder<String,Object>(new TreeMap<String,Object>())
+                                            .put("foo", "a\ud83d\ude00b\ud83dc\ude00")
+                                            .toMap());
+        assertEquals("{\"foo\":\"a\ud83d\ude00b\\ud83dc\\ude00\"}", json);
     }
 
 
@@ -0,0 +1,161 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.log4j.aws.internal.shared;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import net.sf.kdgcommons.collections.MapBuilder;
+import net.sf.kdgcommons.lang.StringUtil;
+
+
+public class TestJsonWriter
+{
+    private JsonWriter writer = new JsonWriter();
+
+    private String asString(JsonWriter w) throws Exception
+    {
+        return new String(w.toByteArray(), "UTF-8");
+    }
+
+//----------------------------------------------------------------------------
+//  Testcases
+//----------------------------------------------------------------------------
+
+    @Test
+    public void testEmptyObject() throws Exception
+    {
+        writer.beginObject().endObject();
+        assertEquals("{}", asString(writer));
+    }
+
+
+    @Test
+    public void testCommaPlacement() throws Exception
+    {
+        writer.beginObject()
+              .key("a").value("b")
+              .key("c").beginArray().value(1).value(true).nullValue().beginObject().endObject().endArray()
+              .key("d").beginObject().key("e").value(false).endObject()
+              .key("f").value(-12)
+              .endObject();
+        assertEquals("{\"a\":\"b\",\"c\":[1,true,null,{}],\"d\":{\"e\":false},\"f\":-12}", asString(writer));
+    }
+
+
+    @Test
+    public void testEscapedStrings() throws Exception
+    {
+        writer.beginObject().key("f\u00f6\u00f6\u0001").value("\"\n\r\t\u0007\u0019\f\\").endObject();
+        assertEquals("{\"f\u00f6\u00f6\\u0001\":\"\\\"\\n\\r\\t\\u0007\\u0019\\f\\\\\"}", asString(writer));
+    }
+
+
+    @Test
+    public void testEscapedControlCharacters() throws Exception
+    {
+        writer.value("a\bb\u007fc\u0085d\u00a0e");
+        assertEquals("\"a\\bb\\u007fc\\u0085d\u00a0e\"", asString(writer));
+    }
+
+
+    @Test
+    public void testSurrogates() throws Exception
+    {
+        // a valid pair is encoded as a single 4-byte sequence, unpaired surrogates are escaped
+        writer.value("a\ud83d\ude00b\ud83dc\ude00");
+        assertArrayEquals("\"a\ud83d\ude00b\\ud83dc\\ude00\"".getBytes("UTF-8"), writer.toByteArray());
+    }
+
+
+    @Test
+    public void testBufferGrowsForHexEscapes() throws Exception
+    {
+        StringBuilder sb = new StringBuilder();
+        StringBuilder expected = new StringBuilder("\"");
+        for (int ii = 0 ; ii < 5000 ; ii++)
+        {
+            sb.append('\u0001');
+            expected.append("\\u0001");
+        }
+        expected.append("\"");
+
+        writer.value(sb.toString());
+        assertEquals(expected.toString(), asString(writer));
+    }
+
+
+    @Test
+    public void testUtf8Encoding() throws Exception
+    {
+        String value = "$\u00a2\u20ac\uffe1";
+        writer.value(value);
+        assertArrayEquals(("\"" + value + "\"").getBytes("UTF-8"), writer.toByteArray());
+    }
+
+
+    @Test
+    public void testTimestamp() throws Exception
+    {
+        writer.timestamp(1507764490123L);
+        assertEquals("\"2017-10-11T23:28:10.123Z\"", asString(writer));
+    }
+
+
+    @Test
+    public void testMatchesJsonConverter() throws Exception
+    {
+        Map<String,Object> nested = new TreeMap<String,Object>();
+        nested.put("bar", "baz");
+
+        Map<String,Object> map = new MapBuilder<String,Object>(new TreeMap<String,Object>())
+                                 .put("string", "f\u00f6\u00f6 \"bar\"\n")
+                                 .put("number", Integer.valueOf(123))
+                                 .put("double", Double.valueOf(1.5))
+                                 .put("boolean", Boolean.TRUE)
+                                 .put("date", new Date(1507764490123L))
+                                 .put("null", null)
+                                 .put("array", new String[] {"bar", "123", null})
+                                 .put("list", Arrays.asList("bar", 123, null))
+                                 .put("map", nested)
+                                 .put("bogus", String.class)
+                                 .toMap();
+
+        writer.map(map);
+        assertEquals(new JsonConverter().convert(map), asString(writer));
+    }
+
+
+    @Test
+    public void testPreEncodedContent() throws Exception
+    {
+        byte[] fragment = new JsonWriter().key("a").value("b").key("c").value(1).toByteArray();
+
+        writer.beginObject()
+              .key(JsonWriter.encode("x")).fragment(JsonWriter.encode("y\n"))
+              .fragment(fragment)
+              .key("z").beginArray().fragment(JsonWriter.encode("q")).fragment(JsonWriter.encode(null)).endArray()
+              .endObject();
+        assertEquals("{\"x\":\"y\\n\",\"a\":\"b\",\"c\":1,\"z\":[\"q\",null]}", asString(writer));
+    }
+
+
+    @Test
+    public void testResetAndGrowth() throws Exception
+    {
+        String bigValue = StringUtil.repeat('x', 100000);
+
+        writer.value(bigValue);
+        assertEquals("size after big value", 100002, writer.size());
+
+        writer.reset();
+        assertEquals("size after reset", 0, writer.size());
+
+        writer.beginObject().key("foo").value("bar").endObject();
+        assertEquals("reused writer", "{\"foo\":\"bar\"}", asString(writer));
+    }
+}
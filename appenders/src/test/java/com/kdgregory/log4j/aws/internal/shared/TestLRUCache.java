@@ -0,0 +1,89 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.log4j.aws.internal.shared;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+public class TestLRUCache
+{
+    @Test
+    public void testEviction() throws Exception
+    {
+        LRUCache<String,Integer> cache = new LRUCache<String,Integer>(2);
+
+        cache.put("foo", 1);
+        cache.put("bar", 2);
+        assertEquals("before eviction, size",   2,                  cache.size());
+
+        // access makes foo most recently used, so bar is evicted
+        assertEquals("retrieve foo",            Integer.valueOf(1), cache.get("foo"));
+        cache.put("baz", 3);
+
+        assertEquals("after eviction, size",    2,                  cache.size());
+        assertEquals("foo retained",            Integer.valueOf(1), cache.get("foo"));
+        assertNull("bar evicted",                                   cache.get("bar"));
+        assertEquals("baz added",               Integer.valueOf(3), cache.get("baz"));
+    }
+
+
+    @Test
+    public void testEvictionHook() throws Exception
+    {
+        final List<String> evicted = new ArrayList<String>();
+        LRUCache<String,Integer> cache = new LRUCache<String,Integer>(2)
+        {
+            @Override
+            protected void evicted(String key, Integer value)
+            {
+                evicted.add(key + "=" + value);
+            }
+        };
+
+        cache.put("foo", 1);
+        cache.put("bar", 2);
+        cache.put("baz", 3);
+        assertEquals("evicted by size",     Arrays.asList("foo=1"),     evicted);
+
+        assertEquals("explicit remove",     Integer.valueOf(2),         cache.remove("bar"));
+        assertEquals("remove doesn't call hook", 1,                     evicted.size());
+
+        assertEquals("clear returns values", Arrays.asList(3),          cache.clear());
+        assertEquals("clear doesn't call hook", 1,                      evicted.size());
+        assertEquals("size after clear",    0,                          cache.size());
+    }
+
+
+    @Test
+    public void testExpiration() throws Exception
+    {
+        final List<String> evicted = new ArrayList<String>();
+        LRUCache<String,Integer> cache = new LRUCache<String,Integer>(10)
+        {
+            @Override
+            protected void evicted(String key, Integer value)
+            {
+                evicted.add(key);
+            }
+        };
+
+        cache.put("foo", 1);
+        cache.put("bar", 2);
+        Thread.sleep(20);
+        long cutoff = System.currentTimeMillis();
+        Thread.sleep(20);
+
+        // access makes foo recently used, so only bar expires
+        cache.get("foo");
+        cache.put("baz", 3);
+
+        assertEquals("number expired",      1,                          cache.expireUnusedSince(cutoff));
+        assertEquals("expired entries",     Arrays.asList("bar"),       evicted);
+        assertEquals("size after expire",   2,                          cache.size());
+        assertNull("bar is gone",                                       cache.get("bar"));
+    }
+}
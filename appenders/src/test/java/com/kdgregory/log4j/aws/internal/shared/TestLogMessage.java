@@ -4,6 +4,7 @@ package com.kdgregory.log4j.aws.internal.shared;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
+import org.apache.log4j.Layout;
 import org.apache.log4j.Logger;
 import org.apache.log4j.PatternLayout;
 import org.apache.log4j.Priority;
@@ -122,4 +123,45 @@ public class TestLogMessage
         assertEquals("message as string",   expectedText,   message.getMessage());
         assertEquals("explicit timestamp",  timestamp,      message.getTimestamp());
     }
+
+
+    @Test
+    public void testBinaryLayout() throws Exception
+    {
+        final byte[] bytes = new byte[] { 1, 2, 3 };
+
+        class MyLayout
+        extends Layout
+        implements BinaryLayout
+        {
+            @Override
+            public byte[] formatAsBytes(LoggingEvent event)
+            {
+                return bytes;
+            }
+
+            @Override
+            public String format(LoggingEvent event)
+            {
+                throw new IllegalStateException("should not be called");
+            }
+
+            @Override
+            public boolean ignoresThrowable()
+            {
+                return false;
+            }
+
+            @Override
+            public void activateOptions()
+            {
+                // nothing here
+            }
+        }
+
+        LoggingEvent event = createLoggingEvent(System.currentTimeMillis(), "test", new Exception());
+        LogMessage message = LogMessage.create(event, new MyLayout());
+
+        assertSame("layout bytes used directly", bytes, message.getBytes());
+    }
 }
@@ -0,0 +1,255 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.log4j.aws.internal.shared;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import net.sf.kdgcommons.lang.StringUtil;
+
+
+/**
+ *  Tests both MessagePackWriter and MessagePackReader: specific encodings are
+ *  checked against the spec, everything else by round-trip.
+ */
+public class TestMessagePack
+{
+    private MessagePackWriter writer = new MessagePackWriter();
+
+    private static byte[] bytes(int... values)
+    {
+        byte[] result = new byte[values.length];
+        for (int ii = 0 ; ii < values.length ; ii++)
+        {
+            result[ii] = (byte)values[ii];
+        }
+        return result;
+    }
+
+
+    private Object roundTrip()
+    {
+        return MessagePackReader.decode(writer.toByteArray());
+    }
+
+//----------------------------------------------------------------------------
+//  Testcases
+//----------------------------------------------------------------------------
+
+    @Test
+    public void testIntegerEncodings() throws Exception
+    {
+        assertArrayEquals("positive fixint", bytes(0x7f),                   writer.reset().value(127).toByteArray());
+        assertArrayEquals("negative fixint", bytes(0xe0),                   writer.reset().value(-32).toByteArray());
+        assertArrayEquals("int8",            bytes(0xd0, 0x80),             writer.reset().value(-128).toByteArray());
+        assertArrayEquals("int16",           bytes(0xd1, 0x01, 0x00),       writer.reset().value(256).toByteArray());
+        assertArrayEquals("int32",           bytes(0xd2, 0xff, 0xfe, 0x79, 0x60),
+                                                                            writer.reset().value(-100000).toByteArray());
+        assertArrayEquals("int64",           bytes(0xd3, 0, 0, 0x01, 0x5f, 0x0d, 0xc4, 0x50, 0x7b),
+                                                                            writer.reset().value(1507764490363L).toByteArray());
+        assertArrayEquals("forced int64",    bytes(0xd3, 0, 0, 0, 0, 0, 0, 0, 0x01),
+                                                                            writer.reset().int64(1).toByteArray());
+    }
+
+
+    @Test
+    public void testIntegerRoundTrip() throws Exception
+    {
+        long[] values = { 0, 1, -1, 127, 128, -32, -33, 255, 32767, 32768, -32768, -32769,
+                          Integer.MAX_VALUE, Integer.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE };
+        for (long value : values)
+        {
+            writer.reset().value(value);
+            assertEquals(String.valueOf(value), Long.valueOf(value), roundTrip());
+        }
+    }
+
+
+    @Test
+    public void testStringEncodings() throws Exception
+    {
+        assertArrayEquals("fixstr",     bytes(0xa3, 'a', 'b', 'c'),    writer.reset().value("abc").toByteArray());
+
+        byte[] str8 = writer.reset().value(StringUtil.repeat('x', 32)).toByteArray();
+        assertArrayEquals("str8 header", bytes(0xd9, 32), Arrays.copyOf(str8, 2));
+
+        byte[] str16 = writer.reset().value(StringUtil.repeat('x', 256)).toByteArray();
+        assertArrayEquals("str16 header", bytes(0xda, 0x01, 0x00), Arrays.copyOf(str16, 3));
+
+        byte[] str32 = writer.reset().value(StringUtil.repeat('x', 65536)).toByteArray();
+        assertArrayEquals("str32 header", bytes(0xdb, 0x00, 0x01, 0x00, 0x00), Arrays.copyOf(str32, 5));
+        assertEquals("str32 length", 65541, str32.length);
+    }
+
+
+    @Test
+    public void testStringRoundTrip() throws Exception
+    {
+        String[] values = { "", "abc", "f\u00f6\u00f6", "\u20ac\uffe1", "a\ud83d\ude00b", "\"\n\t\\",
+                            StringUtil.repeat('x', 300), StringUtil.repeat('\u20ac', 30000) };
+        for (String value : values)
+        {
+            writer.reset().value(value);
+            assertEquals(value, roundTrip());
+            assertEquals("encoded length for: " + value,
+                         value.getBytes("UTF-8").length, writer.size() - headerLength(writer.toByteArray()));
+        }
+    }
+
+
+    @Test
+    public void testUnpairedSurrogate() throws Exception
+    {
+        writer.value("a\ud83db");
+        assertEquals("a?b", roundTrip());
+    }
+
+
+    @Test
+    public void testSimpleValues() throws Exception
+    {
+        assertArrayEquals("nil",    bytes(0xc0),    writer.reset().nullValue().toByteArray());
+        assertArrayEquals("true",   bytes(0xc3),    writer.reset().value(true).toByteArray());
+        assertArrayEquals("false",  bytes(0xc2),    writer.reset().value(false).toByteArray());
+
+        writer.reset().value(12.5);
+        assertEquals("double", Double.valueOf(12.5), roundTrip());
+    }
+
+
+    @Test
+    public void testObjectConversions() throws Exception
+    {
+        Map<String,Object> nested = new LinkedHashMap<String,Object>();
+        nested.put("foo", "bar");
+
+        Map<String,Object> map = new LinkedHashMap<String,Object>();
+        map.put("string", "abc");
+        map.put("int", Integer.valueOf(12));
+        map.put("float", Float.valueOf(1.5f));
+        map.put("boolean", Boolean.TRUE);
+        map.put("date", new Date(1507764490363L));
+        map.put("array", new Object[] { "x", Integer.valueOf(1) });
+        map.put("list", Arrays.asList("y", null));
+        map.put("map", nested);
+        map.put("null", null);
+        map.put("other", new StringBuilder("zzz"));
+
+        writer.value((Object)map);
+
+        @SuppressWarnings("unchecked")
+        Map<String,Object> result = (Map<String,Object>)roundTrip();
+
+        assertEquals("keys, in order",  Arrays.asList(map.keySet().toArray()), Arrays.asList(result.keySet().toArray()));
+        assertEquals("string",          "abc",                              result.get("string"));
+        assertEquals("int",             Long.valueOf(12),                   result.get("int"));
+        assertEquals("float",           Double.valueOf(1.5),                result.get("float"));
+        assertEquals("boolean",         Boolean.TRUE,                       result.get("boolean"));
+        assertEquals("date",            Long.valueOf(1507764490363L),       result.get("date"));
+        assertEquals("array",           Arrays.asList("x", Long.valueOf(1)), result.get("array"));
+        assertEquals("list",            Arrays.asList("y", null),           result.get("list"));
+        assertEquals("map",             nested,                             result.get("map"));
+        assertNull("null",                                                  result.get("null"));
+        assertEquals("other",           "zzz",                              result.get("other"));
+    }
+
+
+    @Test
+    public void testContainerHeaders() throws Exception
+    {
+        assertArrayEquals("fixmap",     bytes(0x8f),                writer.reset().mapHeader(15).toByteArray());
+        assertArrayEquals("map16",      bytes(0xde, 0x00, 0x10),    writer.reset().mapHeader(16).toByteArray());
+        assertArrayEquals("map32",      bytes(0xdf, 0x00, 0x01, 0x00, 0x00),
+                                                                    writer.reset().mapHeader(65536).toByteArray());
+        assertArrayEquals("fixarray",   bytes(0x90),                writer.reset().arrayHeader(0).toByteArray());
+        assertArrayEquals("array16",    bytes(0xdc, 0x00, 0x10),    writer.reset().arrayHeader(16).toByteArray());
+
+        Object[] values = new Object[20];
+        Arrays.fill(values, "x");
+        writer.reset().value((Object)values);
+        assertEquals("array16 round trip", Arrays.asList(values), roundTrip());
+    }
+
+
+    @Test
+    public void testFragments() throws Exception
+    {
+        byte[] fragment = new MessagePackWriter().value("a").value(1).value("b").value(2).toByteArray();
+        writer.mapHeader(3).fragment(fragment).fragment(MessagePackWriter.encode("c")).value(3);
+
+        @SuppressWarnings("unchecked")
+        Map<String,Object> result = (Map<String,Object>)roundTrip();
+        assertEquals(Arrays.asList("a", "b", "c"), Arrays.asList(result.keySet().toArray()));
+        assertEquals(Long.valueOf(3), result.get("c"));
+    }
+
+
+    @Test
+    public void testReaderHandlesOtherEncodings() throws Exception
+    {
+        // formats that the writer doesn't produce, but other implementations may
+        assertEquals("uint8",   Long.valueOf(200),          MessagePackReader.decode(bytes(0xcc, 200)));
+        assertEquals("uint16",  Long.valueOf(65535),        MessagePackReader.decode(bytes(0xcd, 0xff, 0xff)));
+        assertEquals("uint32",  Long.valueOf(4294967295L),  MessagePackReader.decode(bytes(0xce, 0xff, 0xff, 0xff, 0xff)));
+        assertEquals("float32", Double.valueOf(1.5),        MessagePackReader.decode(bytes(0xca, 0x3f, 0xc0, 0, 0)));
+        assertArrayEquals("bin8", bytes(1, 2, 3), (byte[])MessagePackReader.decode(bytes(0xc4, 3, 1, 2, 3)));
+
+        List<?> list = (List<?>)MessagePackReader.decode(bytes(0x92, 0xc0, 0x01));
+        assertEquals("array with nil", Arrays.asList(null, Long.valueOf(1)), list);
+    }
+
+
+    @Test
+    public void testReaderRejectsBadInput() throws Exception
+    {
+        byte[][] badInputs = new byte[][]
+        {
+            bytes(0xa5, 'a', 'b'),              // truncated string
+            bytes(0xd2, 0x00),                  // truncated int
+            bytes(0xdd, 0x7f, 0xff, 0xff, 0xff), // array far larger than content
+            bytes(0xc1),                        // never used
+            bytes(0xd4, 0x01, 0x02),            // fixext, not supported
+            bytes(0x01, 0x02),                  // trailing content
+        };
+
+        for (byte[] input : badInputs)
+        {
+            try
+            {
+                MessagePackReader.decode(input);
+                fail("decoded invalid input: " + Arrays.toString(input));
+            }
+            catch (IllegalArgumentException ex)
+            {
+                // success
+            }
+        }
+    }
+
+
+    @Test
+    public void testReset() throws Exception
+    {
+        writer.value(StringUtil.repeat('x', 100000));
+        writer.reset().value("abc");
+        assertEquals("abc", roundTrip());
+    }
+
+//----------------------------------------------------------------------------
+//  Helpers
+//----------------------------------------------------------------------------
+
+    private static int headerLength(byte[] encoded)
+    {
+        int b = encoded[0] & 0xFF;
+        if ((b & 0xE0) == 0xA0) return 1;
+        if (b == 0xd9)          return 2;
+        if (b == 0xda)          return 3;
+        return 5;
+    }
+}
@@ -201,4 +201,30 @@ public class TestMessageQueue
         assertEquals("first message in queue",  "0", messages.get(0).getMessage());
         assertEquals("last message in queue",   "9", messages.get(discardThreshold - 1).getMessage());
     }
+
+
+    @Test
+    public void testStatistics() throws Exception
+    {
+        AppenderStatistics stats = new AppenderStatistics();
+        MessageQueue queue = new MessageQueue(2, DiscardAction.oldest, stats);
+
+        queue.enqueue(m1);
+        queue.enqueue(m2);
+        queue.enqueue(m3);
+
+        assertEquals("enqueued",                3,  stats.getMessagesEnqueued());
+        assertEquals("discarded",               1,  stats.getMessagesDiscarded());
+        assertEquals("discarded for threshold", 1L, stats.getMessagesDiscardedByReason().get("threshold").longValue());
+        assertEquals("queued messages",         2,  stats.getQueuedMessages());
+        assertEquals("queued bytes",            4,  stats.getQueuedBytes());
+
+        LogMessage message = queue.dequeue();
+        queue.requeue(message);
+        queue.dequeue(10L);
+
+        assertEquals("requeued",                1,  stats.getMessagesRequeued());
+        assertEquals("queued after dequeue",    1,  stats.getQueuedMessages());
+        assertEquals("bytes after dequeue",     2,  stats.getQueuedBytes());
+    }
 }
@@ -0,0 +1,149 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.log4j.aws.internal.shared;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import static net.sf.kdgcommons.test.StringAsserts.*;
+
+import org.apache.log4j.Level;
+
+
+public class TestRateLimiter
+{
+    private static int countAcquired(RateLimiter limiter, String loggerName, Level level, int attempts)
+    {
+        int count = 0;
+        for (int ii = 0 ; ii < attempts ; ii++)
+        {
+            if (limiter.tryAcquire(loggerName, level))
+                count++;
+        }
+        return count;
+    }
+
+
+    @Test
+    public void testLoggerPrefix() throws Exception
+    {
+        RateLimiter limiter = new RateLimiter("com.example=10");
+
+        // each logger has its own bucket, with a burst of one second's worth
+        assertEquals("first logger",        10,     countAcquired(limiter, "com.example.Foo", Level.INFO, 100));
+        assertEquals("second logger",       10,     countAcquired(limiter, "com.example.Bar", Level.INFO, 100));
+        assertEquals("exact match",         10,     countAcquired(limiter, "com.example", Level.INFO, 100));
+        assertEquals("not at dot boundary", 100,    countAcquired(limiter, "com.examples.Foo", Level.INFO, 100));
+        assertEquals("no match",            100,    countAcquired(limiter, "org.example.Foo", Level.INFO, 100));
+    }
+
+
+    @Test
+    public void testLongestPrefixWins() throws Exception
+    {
+        RateLimiter limiter = new RateLimiter("*=50, com.example=20, com.example.noisy=5");
+
+        assertEquals("most specific",       5,      countAcquired(limiter, "com.example.noisy.Foo", Level.INFO, 100));
+        assertEquals("intermediate",        20,     countAcquired(limiter, "com.example.Foo", Level.INFO, 100));
+        assertEquals("wildcard",            50,     countAcquired(limiter, "org.example.Foo", Level.INFO, 100));
+    }
+
+
+    @Test
+    public void testUnmatchedLoggersDontUseBuckets() throws Exception
+    {
+        RateLimiter limiter = new RateLimiter("com.example=10");
+
+        // more unmatched loggers than there are buckets
+        for (int ii = 0 ; ii < 10000 ; ii++)
+        {
+            assertTrue("unmatched logger " + ii, limiter.tryAcquire("org.example.Logger" + ii, Level.INFO));
+        }
+
+        // if these shared a bucket, the second would be suppressed
+        assertEquals("first limited logger",    10,     countAcquired(limiter, "com.example.Foo", Level.INFO, 100));
+        assertEquals("second limited logger",   10,     countAcquired(limiter, "com.example.Bar", Level.INFO, 100));
+    }
+
+
+    @Test
+    public void testWouldAcquireDoesntUseLimit() throws Exception
+    {
+        RateLimiter limiter = new RateLimiter("com.example=10");
+
+        for (int ii = 0 ; ii < 100 ; ii++)
+        {
+            assertTrue("would acquire, check " + ii, limiter.wouldAcquire("com.example.Foo", Level.INFO));
+        }
+
+        assertEquals("limit still available",  10,     countAcquired(limiter, "com.example.Foo", Level.INFO, 100));
+        assertFalse("would not acquire after limit used", limiter.wouldAcquire("com.example.Foo", Level.INFO));
+        assertEquals("checks not counted as suppressed",
+                     "suppressed 90 messages from logger com.example.Foo",
+                     limiter.reportIfDue(System.currentTimeMillis(), 0));
+    }
+
+
+    @Test
+    public void testLevel() throws Exception
+    {
+        RateLimiter limiter = new RateLimiter("level:DEBUG=10");
+
+        // the level bucket is shared by all loggers
+        assertEquals("first logger",        10,     countAcquired(limiter, "com.example.Foo", Level.DEBUG, 100));
+        assertEquals("second logger",       0,      countAcquired(limiter, "com.example.Bar", Level.DEBUG, 100));
+        assertEquals("other level",         100,    countAcquired(limiter, "com.example.Bar", Level.INFO, 100));
+    }
+
+
+    @Test
+    public void testRefill() throws Exception
+    {
+        RateLimiter limiter = new RateLimiter("com.example=20");
+
+        assertEquals("initial burst",       20,     countAcquired(limiter, "com.example", Level.INFO, 100));
+        Thread.sleep(120);
+        int refilled = countAcquired(limiter, "com.example", Level.INFO, 100);
+        assertTrue("refilled at configured rate (was " + refilled + ")", (refilled >= 2) && (refilled <= 4));
+    }
+
+
+    @Test
+    public void testReport() throws Exception
+    {
+        RateLimiter limiter = new RateLimiter("com.example=5,level:DEBUG=5");
+        long now = System.currentTimeMillis();
+
+        assertNull("nothing suppressed",            limiter.reportIfDue(now + 1000, 100));
+
+        countAcquired(limiter, "com.example.Foo", Level.INFO, 12);
+        countAcquired(limiter, "org.example.Foo", Level.DEBUG, 8);
+
+        assertNull("not due",                       limiter.reportIfDue(now + 1050, 100));
+
+        String report = limiter.reportIfDue(now + 1200, 100);
+        assertRegex("report (was: " + report + ")",
+                    "suppressed 7 messages from logger com.example.Foo; suppressed 3 messages from level DEBUG",
+                    report);
+
+        assertNull("counts reset",                  limiter.reportIfDue(now + 2000, 100));
+    }
+
+
+    @Test
+    public void testInvalidConfiguration() throws Exception
+    {
+        String[] configs = { "com.example", "com.example=abc", "com.example=0", "level:BOGUS=10", "=10" };
+        for (String config : configs)
+        {
+            try
+            {
+                new RateLimiter(config);
+                fail("accepted invalid config: " + config);
+            }
+            catch (IllegalArgumentException ex)
+            {
+                // success
+            }
+        }
+    }
+}
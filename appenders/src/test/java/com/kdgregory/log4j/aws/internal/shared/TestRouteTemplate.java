@@ -0,0 +1,82 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.log4j.aws.internal.shared;
+
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.MDC;
+import org.apache.log4j.spi.LoggingEvent;
+
+
+public class TestRouteTemplate
+{
+    private LoggingEvent event = new LoggingEvent(getClass().getName(), Logger.getLogger("com.example.Foo"), Level.INFO, "message", null);
+
+
+    @After
+    public void tearDown()
+    {
+        MDC.remove("tenant");
+    }
+
+
+    @Test
+    public void testLogger() throws Exception
+    {
+        assertEquals("com.example.Foo", new RouteTemplate("{logger}").evaluate(event));
+    }
+
+
+    @Test
+    public void testMDC() throws Exception
+    {
+        MDC.put("tenant", "argle");
+        assertEquals("argle", new RouteTemplate("{mdc:tenant}").evaluate(event));
+    }
+
+
+    @Test
+    public void testCombined() throws Exception
+    {
+        MDC.put("tenant", "argle");
+        assertEquals("x-argle-com.example.Foo-y", new RouteTemplate("x-{mdc:tenant}-{logger}-y").evaluate(event));
+    }
+
+
+    @Test
+    public void testMissingValues() throws Exception
+    {
+        assertEquals("missing MDC within text", "x--y",     new RouteTemplate("x-{mdc:tenant}-y").evaluate(event));
+        assertEquals("missing MDC alone",       RouteTemplate.DEFAULT_ROUTE,
+                                                            new RouteTemplate("{mdc:tenant}").evaluate(event));
+    }
+
+
+    @Test
+    public void testDisallowedCharacters() throws Exception
+    {
+        Pattern disallowed = Pattern.compile("[^A-Za-z0-9-_]");
+
+        MDC.put("tenant", "ar/gle");
+        assertEquals("disallowed characters removed",   "argle",    new RouteTemplate("{mdc:tenant}", disallowed).evaluate(event));
+        assertEquals("removed from literal text",       "x-argle",  new RouteTemplate("x.-{mdc:tenant}", disallowed).evaluate(event));
+
+        MDC.put("tenant", "//");
+        assertEquals("nothing left",                    RouteTemplate.DEFAULT_ROUTE,
+                                                                    new RouteTemplate("{mdc:tenant}", disallowed).evaluate(event));
+    }
+
+
+    @Test
+    public void testOtherBracesAreLiteral() throws Exception
+    {
+        assertEquals("{date}-com.example.Foo-{mdc:}", new RouteTemplate("{date}-{logger}-{mdc:}").evaluate(event));
+        assertEquals("{com.example.Foo", new RouteTemplate("{{logger}").evaluate(event));
+        assertEquals("unclosed {logger", new RouteTemplate("unclosed {logger").evaluate(event));
+    }
+}
@@ -169,4 +169,117 @@ public class TestSubstitutions
 
         assertEquals("2017052920170529", subs.perform("{date}{date}"));
     }
+
+
+    @Test
+    public void testRoute() throws Exception
+    {
+        // the route is substituted last, so isn't itself subject to substitution
+        Substitutions subs = new Substitutions(TEST_DATE, 0, "{pid}");
+        assertEquals("foo-{pid}-20170529", subs.perform("foo-{route}-{date}"));
+
+        assertEquals("not routing", "foo-{route}", new Substitutions(TEST_DATE, 0).perform("foo-{route}"));
+    }
+
+
+    @Test
+    public void testMultipleVariableSubstitutions() throws Exception
+    {
+        System.setProperty("TestSubstitutions.testMultipleVariableSubstitutions", "foo");
+
+        Substitutions subs = new Substitutions(TEST_DATE, 0);
+        assertEquals("{env:frobulator}-" + System.getenv("HOME") + "-foo",
+                     subs.perform("{env:frobulator}-{env:HOME}-{sysprop:TestSubstitutions.testMultipleVariableSubstitutions}"));
+    }
+
+
+    @Test
+    public void testNestedSubstitution() throws Exception
+    {
+        // the sysprop's value names an environment variable
+        System.setProperty("TestSubstitutions.testNestedSubstitution", "HOME");
+
+        Substitutions subs = new Substitutions(TEST_DATE, 0);
+        assertEquals(System.getenv("HOME"), subs.perform("{env:{sysprop:TestSubstitutions.testNestedSubstitution}}"));
+    }
+
+
+    @Test
+    public void testSubstitutedValueContainsTag() throws Exception
+    {
+        System.setProperty("TestSubstitutions.testSubstitutedValueContainsTag", "log-{date}");
+
+        Substitutions subs = new Substitutions(TEST_DATE, 0);
+        assertEquals("log-20170529-foo", subs.perform("{sysprop:TestSubstitutions.testSubstitutedValueContainsTag}-foo"));
+    }
+
+
+    @Test
+    public void testCompiledTemplate() throws Exception
+    {
+        System.setProperty("TestSubstitutions.testCompiledTemplate", "prod");
+
+        Substitutions.Template template = Substitutions.compile("{sysprop:TestSubstitutions.testCompiledTemplate}-{date}-{timestamp}-{sequence}");
+        assertFalse("not constant", template.isConstant());
+
+        // the property is resolved at compile time
+        System.setProperty("TestSubstitutions.testCompiledTemplate", "test");
+
+        assertEquals("prod-20170529-20170529182102-0",  template.evaluate(TEST_DATE.getTime(), 0));
+        assertEquals("prod-20170529-20170529182102-3",  template.evaluate(TEST_DATE.getTime() + 999, 3));
+        assertEquals("prod-20170529-20170529182103-3",  template.evaluate(TEST_DATE.getTime() + 1000, 3));
+        assertEquals("prod-20170530-20170530000000-3",  template.evaluate(1496102400000L, 3));
+        assertEquals("prod-20170529-20170529182102-0",  template.evaluate(TEST_DATE.getTime(), 0));
+    }
+
+
+    @Test
+    public void testConstantTemplate() throws Exception
+    {
+        Substitutions.Template template = Substitutions.compile("{pid}-{bogus}-{date");
+        assertTrue("constant", template.isConstant());
+        assertEquals(new Substitutions(TEST_DATE, 0).perform("{pid}-{bogus}-{date"), template.evaluate(0, 0));
+        assertSame("same value each time", template.evaluate(0, 0), template.evaluate(123456789, 12));
+    }
+
+
+    @Test
+    public void testTemplateIsThreadSafe() throws Exception
+    {
+        final Substitutions.Template template = Substitutions.compile("{timestamp}-{sequence}");
+        final String[] failures = new String[4];
+
+        Thread[] threads = new Thread[failures.length];
+        for (int ii = 0 ; ii < threads.length ; ii++)
+        {
+            final int threadNum = ii;
+            threads[ii] = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    SimpleDateFormat formatter = new SimpleDateFormat("yyyyMMddHHmmss");
+                    formatter.setTimeZone(TimeZone.getTimeZone("UTC"));
+                    for (int jj = 0 ; jj < 10000 ; jj++)
+                    {
+                        long millis = TEST_DATE.getTime() + (jj % 7) * 86401000L + threadNum * 1000;
+                        String expected = formatter.format(new Date(millis)) + "-" + threadNum;
+                        String actual = template.evaluate(millis, threadNum);
+                        if (! expected.equals(actual))
+                        {
+                            failures[threadNum] = "expected " + expected + ", was " + actual;
+                            return;
+                        }
+                    }
+                }
+            });
+            threads[ii].start();
+        }
+
+        for (int ii = 0 ; ii < threads.length ; ii++)
+        {
+            threads[ii].join();
+            assertNull("thread " + ii, failures[ii]);
+        }
+    }
 }
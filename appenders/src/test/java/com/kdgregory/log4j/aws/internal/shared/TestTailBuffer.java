@@ -0,0 +1,166 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.log4j.aws.internal.shared;
+
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.MDC;
+import org.apache.log4j.spi.LoggingEvent;
+
+
+public class TestTailBuffer
+{
+    private AppenderStatistics stats = new AppenderStatistics();
+
+
+    private static LoggingEvent event(String requestId, String message, long timestamp)
+    {
+        if (requestId != null)
+            MDC.put("requestId", requestId);
+        else
+            MDC.remove("requestId");
+
+        return new LoggingEvent(TestTailBuffer.class.getName(), Logger.getLogger("foo"), timestamp, Level.DEBUG, message, null);
+    }
+
+
+    private static void assertMessages(String desc, List<LoggingEvent> events, String... expected)
+    {
+        assertEquals(desc + ": count", expected.length, events.size());
+        for (int ii = 0 ; ii < expected.length ; ii++)
+        {
+            assertEquals(desc + ": message " + ii, expected[ii], events.get(ii).getRenderedMessage());
+        }
+    }
+
+
+    private long unflushed()
+    {
+        Long value = stats.getMessagesDiscardedByReason().get("unflushed");
+        return (value != null) ? value.longValue() : 0;
+    }
+
+
+    @After
+    public void tearDown()
+    {
+        MDC.remove("requestId");
+    }
+
+
+    @Test
+    public void testBufferingByMDC() throws Exception
+    {
+        long now = System.currentTimeMillis();
+        TailBuffer buffer = new TailBuffer("requestId", 3, 10, 0, stats);
+
+        buffer.add(event("r1", "a1", now));
+        buffer.add(event("r2", "b1", now));
+        buffer.add(event("r1", "a2", now));
+
+        // MDC is captured when the event is buffered, not when it's drained
+        MDC.put("requestId", "r3");
+
+        assertMessages("r1", buffer.drain(event("r1", "error", now)), "a1", "a2");
+        assertMessages("r1 after drain", buffer.drain(event("r1", "error", now)));
+        assertMessages("r2", buffer.drain(event("r2", "error", now)), "b1");
+        assertEquals("discarded", 0, unflushed());
+    }
+
+
+    @Test
+    public void testBufferingByThread() throws Exception
+    {
+        long now = System.currentTimeMillis();
+        TailBuffer buffer = new TailBuffer(null, 3, 10, 0, stats);
+
+        buffer.add(event("r1", "a1", now));
+        buffer.add(event("r2", "a2", now));
+
+        assertEquals("context", Thread.currentThread().getName(), buffer.contextKey(event("r1", "x", now)));
+        assertMessages("thread", buffer.drain(event(null, "error", now)), "a1", "a2");
+    }
+
+
+    @Test
+    public void testMissingKeyUsesThread() throws Exception
+    {
+        long now = System.currentTimeMillis();
+        TailBuffer buffer = new TailBuffer("requestId", 3, 10, 0, stats);
+
+        buffer.add(event(null, "a1", now));
+        buffer.add(event("r1", "b1", now));
+
+        assertMessages("thread", buffer.drain(event(null, "error", now)), "a1");
+    }
+
+
+    @Test
+    public void testRingOverflow() throws Exception
+    {
+        long now = System.currentTimeMillis();
+        TailBuffer buffer = new TailBuffer("requestId", 3, 10, 0, stats);
+
+        for (int ii = 1 ; ii <= 7 ; ii++)
+        {
+            buffer.add(event("r1", "a" + ii, now));
+        }
+
+        assertMessages("r1", buffer.drain(event("r1", "error", now)), "a5", "a6", "a7");
+        assertEquals("discarded", 4, unflushed());
+    }
+
+
+    @Test
+    public void testContextLimit() throws Exception
+    {
+        long now = System.currentTimeMillis();
+        TailBuffer buffer = new TailBuffer("requestId", 3, 2, 0, stats);
+
+        buffer.add(event("r1", "a1", now));
+        buffer.add(event("r1", "a2", now));
+        buffer.add(event("r2", "b1", now));
+        buffer.add(event("r3", "c1", now));
+
+        assertMessages("r1 evicted", buffer.drain(event("r1", "error", now)));
+        assertMessages("r2", buffer.drain(event("r2", "error", now)), "b1");
+        assertMessages("r3", buffer.drain(event("r3", "error", now)), "c1");
+        assertEquals("discarded", 2, unflushed());
+    }
+
+
+    @Test
+    public void testExpiration() throws Exception
+    {
+        TailBuffer buffer = new TailBuffer("requestId", 3, 10, 100, stats);
+
+        buffer.add(event("r1", "a1", System.currentTimeMillis()));
+        Thread.sleep(150);
+        buffer.add(event("r2", "b1", System.currentTimeMillis()));
+
+        assertMessages("r1 expired", buffer.drain(event("r1", "error", System.currentTimeMillis())));
+        assertMessages("r2", buffer.drain(event("r2", "error", System.currentTimeMillis())), "b1");
+        assertEquals("discarded", 1, unflushed());
+    }
+
+
+    @Test
+    public void testClear() throws Exception
+    {
+        long now = System.currentTimeMillis();
+        TailBuffer buffer = new TailBuffer("requestId", 3, 10, 0, stats);
+
+        buffer.add(event("r1", "a1", now));
+        buffer.add(event("r2", "b1", now));
+        buffer.add(event("r2", "b2", now));
+        buffer.clear();
+
+        assertMessages("r2", buffer.drain(event("r2", "error", now)));
+        assertEquals("discarded", 3, unflushed());
+    }
+}
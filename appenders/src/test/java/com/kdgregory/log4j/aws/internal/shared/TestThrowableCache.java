@@ -0,0 +1,99 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.log4j.aws.internal.shared;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+
+
+public class TestThrowableCache
+{
+    private Logger logger = Logger.getLogger(getClass());
+
+
+    private static Exception createException(String message, Throwable cause)
+    {
+        return new RuntimeException(message, cause);
+    }
+
+
+    private LoggingEvent createEvent(Throwable ex)
+    {
+        return new LoggingEvent(getClass().getName(), logger, Level.ERROR, "test", ex);
+    }
+
+//----------------------------------------------------------------------------
+//  Testcases
+//----------------------------------------------------------------------------
+
+    @Test
+    public void testKeyEquality() throws Exception
+    {
+        ThrowableCache.Key[] keys = new ThrowableCache.Key[2];
+        for (int ii = 0 ; ii < 2 ; ii++)
+        {
+            keys[ii] = new ThrowableCache.Key(createException("foo", null));
+        }
+
+        assertEquals("same site and message",       keys[0],            keys[1]);
+        assertEquals("same site, same hashcode",    keys[0].hashCode(), keys[1].hashCode());
+
+        ThrowableCache.Key differentSite = new ThrowableCache.Key(createException("foo", null));
+        ThrowableCache.Key differentMessage = new ThrowableCache.Key(createException("bar", null));
+        ThrowableCache.Key differentCause = new ThrowableCache.Key(createException("foo", new Exception()));
+
+        assertFalse("different site",       keys[0].equals(differentSite));
+        assertFalse("different message",    keys[0].equals(differentMessage));
+        assertFalse("different cause",      keys[0].equals(differentCause));
+    }
+
+
+    @Test
+    public void testKeyIncludesSuppressedExceptions() throws Exception
+    {
+        ThrowableCache.Key[] keys = new ThrowableCache.Key[3];
+        Exception[] exceptions = new Exception[3];
+        for (int ii = 0 ; ii < 3 ; ii++)
+        {
+            exceptions[ii] = createException("foo", null);
+        }
+        exceptions[1].addSuppressed(new IllegalStateException("suppressed"));
+        exceptions[2].addSuppressed(new IllegalArgumentException("suppressed"));
+
+        for (int ii = 0 ; ii < 3 ; ii++)
+        {
+            keys[ii] = new ThrowableCache.Key(exceptions[ii]);
+        }
+
+        assertFalse("with and without suppressed",  keys[0].equals(keys[1]));
+        assertFalse("different suppressed",         keys[1].equals(keys[2]));
+    }
+
+
+    @Test
+    public void testCachedRendering() throws Exception
+    {
+        String[][] reps = new String[2][];
+        for (int ii = 0 ; ii < 2 ; ii++)
+        {
+            LoggingEvent event = createEvent(createException("test", new IllegalStateException("cause")));
+            reps[ii] = ThrowableCache.getThrowableStrRep(event);
+        }
+
+        assertSame("second rendering came from cache", reps[0], reps[1]);
+        assertTrue("rendering includes exception",     reps[0][0].contains("RuntimeException: test"));
+    }
+
+
+    @Test
+    public void testNoException() throws Exception
+    {
+        LoggingEvent event = createEvent(null);
+
+        assertNull("no key",        ThrowableCache.keyFor(event));
+        assertNull("no rendering",  ThrowableCache.getThrowableStrRep(event));
+    }
+}
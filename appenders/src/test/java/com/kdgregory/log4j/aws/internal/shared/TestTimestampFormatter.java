@@ -0,0 +1,138 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.log4j.aws.internal.shared;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+public class TestTimestampFormatter
+{
+    private SimpleDateFormat reference;
+
+    {
+        reference = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        reference.setTimeZone(TimeZone.getTimeZone("UTC"));
+    }
+
+
+    private void assertFormat(long millis)
+    {
+        String expected = reference.format(new Date(millis));
+        assertEquals("format(" + millis + ")", expected, TimestampFormatter.format(millis));
+
+        byte[] buf = new byte[40];
+        int len = TimestampFormatter.formatInto(buf, 3, millis);
+        assertEquals("formatInto(" + millis + ")", expected, new String(buf, 3, len));
+    }
+
+//----------------------------------------------------------------------------
+//  Testcases
+//----------------------------------------------------------------------------
+
+    @Test
+    public void testKnownValue() throws Exception
+    {
+        assertEquals("2017-10-11T23:28:10.123Z", TimestampFormatter.format(1507764490123L));
+    }
+
+
+    @Test
+    public void testSecondAndDayBoundaries() throws Exception
+    {
+        // 2016-12-31T23:59:59.000Z, a leap year
+        long base = 1483228799000L;
+        for (long millis = base - 1500 ; millis < base + 2500 ; millis++)
+        {
+            assertFormat(millis);
+        }
+    }
+
+
+    @Test
+    public void testOutOfOrderCalls() throws Exception
+    {
+        // alternating seconds defeat the cache on every call
+        for (int ii = 0 ; ii < 100 ; ii++)
+        {
+            assertFormat(1507764490123L + ii);
+            assertFormat(1507764490123L - 86400000L + ii);
+        }
+    }
+
+
+    @Test
+    public void testSpecialDates() throws Exception
+    {
+        assertFormat(0);
+        assertFormat(-1);
+        assertFormat(-999);
+        assertFormat(-1000);
+        assertFormat(951782400000L);        // 2000-02-29
+        assertFormat(4107542400000L);       // 2100-03-01
+        assertFormat(253402300799999L);     // 9999-12-31T23:59:59.999
+        assertFormat(253402300800000L);     // year 10000, uses fallback
+        assertFormat(-12219292800000L);     // Gregorian cutover
+        assertFormat(-12219292800001L);     // Julian, uses fallback
+    }
+
+
+    @Test
+    public void testRandomDates() throws Exception
+    {
+        Random rnd = new Random(12345);
+        for (int ii = 0 ; ii < 100000 ; ii++)
+        {
+            // +/- 300 years around epoch
+            long millis = (long)((rnd.nextDouble() - 0.5) * 2 * 300 * 365.25 * 86400000L);
+            assertFormat(millis);
+        }
+    }
+
+
+    @Test
+    public void testConcurrentUse() throws Exception
+    {
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int tt = 0 ; tt < 4 ; tt++)
+        {
+            final long base = 1507764490000L + tt * 86400000L;
+            Thread thread = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    SimpleDateFormat myReference = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+                    myReference.setTimeZone(TimeZone.getTimeZone("UTC"));
+                    for (long millis = base ; millis < base + 20000 ; millis += 7)
+                    {
+                        String expected = myReference.format(new Date(millis));
+                        String actual = TimestampFormatter.format(millis);
+                        if (! expected.equals(actual))
+                        {
+                            failure.compareAndSet(null, "expected " + expected + ", was " + actual);
+                            return;
+                        }
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+
+        assertNull(failure.get(), failure.get());
+    }
+}
@@ -0,0 +1,127 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.log4j.aws.internal.shared;
+
+import java.util.UUID;
+
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.MDC;
+import org.apache.log4j.spi.LoggingEvent;
+
+
+public class TestTraceSampler
+{
+    private static LoggingEvent event(Level level, String traceId)
+    {
+        if (traceId != null)
+            MDC.put("traceId", traceId);
+        else
+            MDC.remove("traceId");
+
+        LoggingEvent event = new LoggingEvent(TestTraceSampler.class.getName(), Logger.getLogger("foo"), level, "message", null);
+        event.getMDCCopy();
+        return event;
+    }
+
+
+    private static long referenceHash(byte[] bytes)
+    {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : bytes)
+        {
+            hash = (hash ^ (b & 0xFF)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+
+    @After
+    public void tearDown()
+    {
+        MDC.remove("traceId");
+    }
+
+
+    @Test
+    public void testHash() throws Exception
+    {
+        // published FNV-1a test vectors
+        assertEquals("empty",       0xcbf29ce484222325L,    TraceSampler.hash(""));
+        assertEquals("a",           0xaf63dc4c8601ec8cL,    TraceSampler.hash("a"));
+        assertEquals("foobar",      0x85944171f73967e8L,    TraceSampler.hash("foobar"));
+
+        // multi-byte characters are hashed as UTF-8
+        String value = "träce-€-😀";
+        assertEquals("non-ASCII",   referenceHash(value.getBytes("UTF-8")), TraceSampler.hash(value));
+
+        // the finalizer maps zero to zero, and spreads small differences
+        assertEquals("mix zero",    0L,                     TraceSampler.mix(0L));
+        assertTrue("mix spreads",   (TraceSampler.mix(1L) >>> 60) != (TraceSampler.mix(2L) >>> 60));
+    }
+
+
+    @Test
+    public void testSampling() throws Exception
+    {
+        TraceSampler sampler = new TraceSampler("traceId", 0.1, Level.INFO);
+
+        int sampled = 0;
+        for (int ii = 0 ; ii < 10000 ; ii++)
+        {
+            String traceId = UUID.randomUUID().toString();
+            boolean debug = sampler.isSampled(event(Level.DEBUG, traceId));
+            boolean trace = sampler.isSampled(event(Level.TRACE, traceId));
+            assertEquals("consistent within trace", debug, trace);
+            assertTrue("INFO always passes", sampler.isSampled(event(Level.INFO, traceId)));
+            if (debug) sampled++;
+        }
+        assertTrue("sampled about 10% (was " + sampled + ")", (sampled > 800) && (sampled < 1200));
+    }
+
+
+    @Test
+    public void testThreshold() throws Exception
+    {
+        TraceSampler sampler = new TraceSampler("traceId", 0, Level.WARN);
+
+        assertFalse("DEBUG",        sampler.isSampled(event(Level.DEBUG, "abc")));
+        assertFalse("INFO",         sampler.isSampled(event(Level.INFO, "abc")));
+        assertTrue("WARN",          sampler.isSampled(event(Level.WARN, "abc")));
+        assertTrue("ERROR",         sampler.isSampled(event(Level.ERROR, "abc")));
+    }
+
+
+    @Test
+    public void testMissingTraceId() throws Exception
+    {
+        TraceSampler sampler = new TraceSampler("traceId", 0.99, Level.INFO);
+
+        assertFalse("DEBUG without trace ID",   sampler.isSampled(event(Level.DEBUG, null)));
+        assertTrue("INFO without trace ID",     sampler.isSampled(event(Level.INFO, null)));
+    }
+
+
+    @Test
+    public void testRatioEndpoints() throws Exception
+    {
+        TraceSampler none = new TraceSampler("traceId", 0, Level.INFO);
+        TraceSampler all = new TraceSampler("traceId", 1, Level.INFO);
+        for (int ii = 0 ; ii < 1000 ; ii++)
+        {
+            String traceId = UUID.randomUUID().toString();
+            assertFalse("ratio 0",  none.isSampled(event(Level.DEBUG, traceId)));
+            assertTrue("ratio 1",   all.isSampled(event(Level.DEBUG, traceId)));
+        }
+    }
+
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testInvalidRatio() throws Exception
+    {
+        new TraceSampler("traceId", 1.5, Level.INFO);
+    }
+}
@@ -0,0 +1,68 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.log4j.aws.internal.shared;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import org.apache.log4j.Level;
+
+
+public class TestVerbosityController
+{
+    @Test
+    public void testQueueDepth() throws Exception
+    {
+        VerbosityController controller = new VerbosityController(100, 50, 0, 0);
+
+        assertNull("below high watermark",          controller.update(1000, 99, 0));
+        assertTrue("DEBUG allowed",                 controller.isAllowed(Level.DEBUG));
+
+        assertEquals("first step",      Level.INFO, controller.update(1001, 100, 0));
+        assertFalse("DEBUG rejected",               controller.isAllowed(Level.DEBUG));
+        assertTrue("INFO allowed",                  controller.isAllowed(Level.INFO));
+
+        assertEquals("second step",     Level.WARN, controller.update(1002, 100, 0));
+        assertFalse("INFO rejected",                controller.isAllowed(Level.INFO));
+        assertTrue("WARN allowed",                  controller.isAllowed(Level.WARN));
+        assertTrue("ERROR allowed",                 controller.isAllowed(Level.ERROR));
+
+        assertNull("already at top",                controller.update(1003, 1000, 0));
+
+        // hysteresis: between the watermarks, nothing changes
+        assertNull("between watermarks",            controller.update(1004, 75, 0));
+        assertEquals("current threshold", Level.WARN, controller.getThreshold());
+
+        assertEquals("first step down", Level.INFO, controller.update(1005, 50, 0));
+        assertEquals("second step down", Level.ALL, controller.update(1006, 0, 0));
+        assertNull("already at bottom",             controller.update(1007, 0, 0));
+    }
+
+
+    @Test
+    public void testHoldTime() throws Exception
+    {
+        VerbosityController controller = new VerbosityController(100, 50, 0, 1000);
+
+        assertEquals("first change",    Level.INFO, controller.update(5000, 100, 0));
+        assertNull("within hold time",              controller.update(5999, 100, 0));
+        assertEquals("after hold time", Level.WARN, controller.update(6000, 100, 0));
+        assertNull("within hold time",              controller.update(6500, 0, 0));
+        assertEquals("after hold time", Level.INFO, controller.update(7000, 0, 0));
+    }
+
+
+    @Test
+    public void testDeliveryLag() throws Exception
+    {
+        VerbosityController controller = new VerbosityController(0, 0, 2000, 0);
+
+        assertNull("lag below limit",               controller.update(1000, 5, 1999));
+        assertNull("stale lag, nothing queued",     controller.update(1001, 0, 5000));
+        assertEquals("lag at limit",    Level.INFO, controller.update(1002, 5, 2000));
+        assertNull("lag above half",                controller.update(1003, 5, 1001));
+        assertEquals("lag at half",     Level.ALL,  controller.update(1004, 5, 1000));
+
+        assertEquals("raised again",    Level.INFO, controller.update(1005, 5, 3000));
+        assertEquals("nothing queued",  Level.ALL,  controller.update(1006, 0, 3000));
+    }
+}
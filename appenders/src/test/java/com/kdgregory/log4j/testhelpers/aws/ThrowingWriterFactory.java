@@ -1,6 +1,8 @@
 // Copyright (c) Keith D Gregory, all rights reserved
 package com.kdgregory.log4j.testhelpers.aws;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
 
 import com.kdgregory.log4j.aws.internal.shared.LogMessage;
@@ -39,12 +41,42 @@ public class ThrowingWriterFactory<T> implements WriterFactory<T>
                     // not used
                 }
 
+                @Override
+                public boolean stopAndWait(long timeout)
+                {
+                    return true;
+                }
+
+                @Override
+                public CountDownLatch flush()
+                {
+                    return new CountDownLatch(0);
+                }
+
                 @Override
                 public void setBatchDelay(long value)
                 {
                     // not used
                 }
 
+                @Override
+                public void setDispatchWhenIdle(boolean value)
+                {
+                    // not used
+                }
+
+                @Override
+                public List<LogMessage> takeQueuedMessages()
+                {
+                    return new ArrayList<LogMessage>();
+                }
+
+                @Override
+                public long getBusySince()
+                {
+                    return 0;
+                }
+
                 @Override
                 public void addMessage(LogMessage message)
                 {
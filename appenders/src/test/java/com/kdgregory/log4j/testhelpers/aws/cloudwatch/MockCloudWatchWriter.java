@@ -3,6 +3,7 @@ package com.kdgregory.log4j.testhelpers.aws.cloudwatch;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 
 import com.kdgregory.log4j.aws.internal.cloudwatch.CloudWatchWriterConfig;
 import com.kdgregory.log4j.aws.internal.shared.LogMessage;
@@ -19,6 +20,7 @@ implements LogWriter
     public String logGroup;
     public String logStream;
     public long batchDelay;
+    public boolean dispatchWhenIdle;
 
 
     public MockCloudWatchWriter(CloudWatchWriterConfig config)
@@ -44,6 +46,13 @@ implements LogWriter
     }
 
 
+    @Override
+    public void setDispatchWhenIdle(boolean value)
+    {
+        this.dispatchWhenIdle = value;
+    }
+
+
     /**
      *  Returns the text for the numbered message (starting at 0).
      */
@@ -54,6 +63,20 @@ implements LogWriter
     }
 
 
+    @Override
+    public List<LogMessage> takeQueuedMessages()
+    {
+        return new ArrayList<LogMessage>();
+    }
+
+
+    @Override
+    public long getBusySince()
+    {
+        return 0;
+    }
+
+
     @Override
     public void stop()
     {
@@ -61,6 +84,22 @@ implements LogWriter
     }
 
 
+    @Override
+    public boolean stopAndWait(long timeout)
+    {
+        stopped = true;
+        return true;
+    }
+
+
+    @Override
+    public CountDownLatch flush()
+    {
+        // messages are "sent" as soon as they're added
+        return new CountDownLatch(0);
+    }
+
+
     @Override
     public void run()
     {
@@ -1,6 +1,9 @@
 // Copyright (c) Keith D Gregory, all rights reserved
 package com.kdgregory.log4j.testhelpers.aws.cloudwatch;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import com.kdgregory.log4j.aws.CloudWatchAppender;
 import com.kdgregory.log4j.aws.internal.cloudwatch.CloudWatchWriterConfig;
 import com.kdgregory.log4j.aws.internal.shared.LogWriter;
@@ -13,6 +16,7 @@ public class MockCloudWatchWriterFactory implements WriterFactory<CloudWatchWrit
 
     public int invocationCount = 0;
     public MockCloudWatchWriter writer;
+    public List<MockCloudWatchWriter> writers = new ArrayList<MockCloudWatchWriter>();
 
 
     public MockCloudWatchWriterFactory(CloudWatchAppender appender)
@@ -26,6 +30,7 @@ public class MockCloudWatchWriterFactory implements WriterFactory<CloudWatchWrit
     {
         invocationCount++;
         writer = new MockCloudWatchWriter(config);
+        writers.add(writer);
         return writer;
     }
 }
\ No newline at end of file
@@ -63,6 +63,17 @@ implements InvocationHandler
     }
 
 
+    /**
+     *  Permanently allows the writer thread to proceed without waiting for the
+     *  main thread. Use this when a test doesn't need to make assertions between
+     *  batches.
+     */
+    public void releaseWriterThread()
+    {
+        allowWriterThread.release(Integer.MAX_VALUE / 2);
+    }
+
+
     /**
      *  Creates a new WriterFactory, with the stock CloudWatch writer.
      */
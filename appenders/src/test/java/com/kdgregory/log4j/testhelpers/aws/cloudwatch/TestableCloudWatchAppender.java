@@ -6,7 +6,9 @@ import java.lang.reflect.Field;
 import com.kdgregory.log4j.aws.CloudWatchAppender;
 import com.kdgregory.log4j.aws.internal.cloudwatch.CloudWatchWriterConfig;
 import com.kdgregory.log4j.aws.internal.shared.AbstractLogWriter;
+import com.kdgregory.log4j.aws.internal.shared.AppenderStatistics;
 import com.kdgregory.log4j.aws.internal.shared.LogMessage;
+import com.kdgregory.log4j.aws.internal.shared.LogWriter;
 import com.kdgregory.log4j.aws.internal.shared.MessageQueue;
 import com.kdgregory.log4j.aws.internal.shared.ThreadFactory;
 import com.kdgregory.log4j.aws.internal.shared.WriterFactory;
@@ -43,6 +45,13 @@ public class TestableCloudWatchAppender extends CloudWatchAppender
     }
 
 
+    public LogWriter getLogWriter()
+    {
+        // note: unlike getWriter(), works with any writer implementation
+        return writer;
+    }
+
+
     public MessageQueue getMessageQueue()
     {
         // note: will only work with the regular CloudWatchLogWriter
@@ -59,6 +68,12 @@ public class TestableCloudWatchAppender extends CloudWatchAppender
     }
 
 
+    public AppenderStatistics getStatistics()
+    {
+        return statistics;
+    }
+
+
     public Throwable getLastWriterException()
     {
         return lastWriterException;
@@ -3,6 +3,7 @@ package com.kdgregory.log4j.testhelpers.aws.kinesis;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 
 import com.kdgregory.log4j.aws.internal.kinesis.KinesisWriterConfig;
 import com.kdgregory.log4j.aws.internal.shared.LogMessage;
@@ -18,6 +19,7 @@ implements LogWriter
     public String streamName;
     public String partitionKey;
     public long batchDelay;
+    public boolean dispatchWhenIdle;
 
 
     public MockKinesisWriter(KinesisWriterConfig config)
@@ -43,6 +45,13 @@ implements LogWriter
     }
 
 
+    @Override
+    public void setDispatchWhenIdle(boolean value)
+    {
+        this.dispatchWhenIdle = value;
+    }
+
+
     /**
      *  Returns the text for the numbered message (starting at 0).
      */
@@ -53,6 +62,20 @@ implements LogWriter
     }
 
 
+    @Override
+    public List<LogMessage> takeQueuedMessages()
+    {
+        return new ArrayList<LogMessage>();
+    }
+
+
+    @Override
+    public long getBusySince()
+    {
+        return 0;
+    }
+
+
     @Override
     public void stop()
     {
@@ -60,6 +83,22 @@ implements LogWriter
     }
 
 
+    @Override
+    public boolean stopAndWait(long timeout)
+    {
+        stopped = true;
+        return true;
+    }
+
+
+    @Override
+    public CountDownLatch flush()
+    {
+        // messages are "sent" as soon as they're added
+        return new CountDownLatch(0);
+    }
+
+
     @Override
     public void run()
     {